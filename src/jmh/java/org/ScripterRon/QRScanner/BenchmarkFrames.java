@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import com.google.zxing.WriterException;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+
+/**
+ * BenchmarkFrames generates the frames used by the benchmarks.  The frames are rendered
+ * by the synthetic frame source using a fixed seed, so every benchmark run decodes
+ * the same images.
+ *
+ * A HIT frame contains a QR code and a MISS frame contains just the background and
+ * noise, which is what the decoder sees most of the time while the user is holding
+ * the code up to the camera.
+ */
+class BenchmarkFrames {
+
+    /** Number of frames in a set (the benchmarks cycle through the set) */
+    static final int FRAME_COUNT = 16;
+
+    /** QR code text */
+    static final String TEXT = "bitcoin:1BoatSLRHtKNngkdXEeobR76b53LETtpyT?amount=0.0125&label=QRScanner%20benchmark";
+
+    /** Random number seed */
+    private static final long SEED = 20170801L;
+
+    /**
+     * Return the image size for a resolution name
+     *
+     * @param       resolution      QVGA, VGA, HD or 4K
+     * @return                      Image size
+     */
+    static Dimension getSize(String resolution) {
+        switch (resolution) {
+            case "QVGA":
+                return new Dimension(320, 240);
+            case "VGA":
+                return new Dimension(640, 480);
+            case "HD":
+                return new Dimension(1280, 720);
+            case "4K":
+                return new Dimension(3840, 2160);
+            default:
+                throw new IllegalArgumentException("Unknown resolution: " + resolution);
+        }
+    }
+
+    /**
+     * Render a set of images
+     *
+     * @param       resolution      QVGA, VGA or HD
+     * @param       hit             TRUE if the images contain a QR code
+     * @return                      Images
+     * @throws      WriterException Unable to encode the QR code
+     */
+    static BufferedImage[] createImages(String resolution, boolean hit) throws WriterException {
+        SyntheticFrameSource source = new SyntheticFrameSource(TEXT, getSize(resolution), 1.0, SEED);
+        source.setPresence(hit ? 1.0 : 0.0);
+        BufferedImage[] images = new BufferedImage[FRAME_COUNT];
+        for (int i=0; i<FRAME_COUNT; i++)
+            images[i] = source.renderImage();
+        return images;
+    }
+
+    /**
+     * Render a set of frames
+     *
+     * @param       resolution      QVGA, VGA or HD
+     * @param       hit             TRUE if the frames contain a QR code
+     * @return                      Frames
+     * @throws      WriterException Unable to encode the QR code
+     */
+    static Frame[] createFrames(String resolution, boolean hit) throws WriterException {
+        BufferedImage[] images = createImages(resolution, hit);
+        Frame[] frames = new Frame[images.length];
+        for (int i=0; i<images.length; i++) {
+            frames[i] = new Frame();
+            frames[i].setImage(images[i], i);
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+import com.google.zxing.common.HybridBinarizer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DecodeBenchmark measures a single ZXing decode of a frame for each combination of
+ * resolution, frame content, binarizer and decode hints.  This is the cost of one
+ * decode attempt without the region, pyramid and gate logic in FrameDecoder and is
+ * the number to compare when upgrading ZXing.
+ *
+ * The 'decoded' and 'notFound' counters show how many of the decodes found the QR
+ * code, so a faster configuration that misses codes is easy to spot.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+
+    /** Image resolution */
+    @Param({"QVGA", "VGA", "HD"})
+    public String resolution;
+
+    /** Frame content (HIT or MISS) */
+    @Param({"HIT", "MISS"})
+    public String frames;
+
+    /** Binarizer (pooled, hybrid or global) */
+    @Param({"pooled", "hybrid", "global"})
+    public String binarizer;
+
+    /** Decode hints (qr, tryharder or all) */
+    @Param({"qr", "tryharder", "all"})
+    public String hints;
+
+    /** Frames to be decoded */
+    private Frame[] frameSet;
+
+    /** Next frame */
+    private int frameIndex;
+
+    /** Barcode reader */
+    private MultiFormatReader reader;
+
+    /** Binarizer scratch storage */
+    private final PooledBinarizer.Scratch scratch = new PooledBinarizer.Scratch();
+
+    /**
+     * Decode counts reported with the benchmark results
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counts {
+
+        /** Number of frames decoded */
+        public long decoded;
+
+        /** Number of frames without a QR code */
+        public long notFound;
+
+        /**
+         * Reset the counts for each iteration
+         */
+        @Setup(Level.Iteration)
+        public void reset() {
+            decoded = 0;
+            notFound = 0;
+        }
+    }
+
+    /**
+     * Create the frames and the barcode reader
+     *
+     * @throws      Exception       Unable to create the frames
+     */
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        frameSet = BenchmarkFrames.createFrames(resolution, frames.equals("HIT"));
+        reader = new MultiFormatReader();
+        switch (hints) {
+            case "qr":
+                reader.setHints(FrameDecoder.getHints());
+                break;
+            case "tryharder":
+                Map<DecodeHintType, Object> tryHarder = FrameDecoder.getHints();
+                tryHarder.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+                reader.setHints(tryHarder);
+                break;
+            case "all":
+                reader.setHints(null);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown hints: " + hints);
+        }
+    }
+
+    /**
+     * Decode the next frame
+     *
+     * @param       counts          Decode counts
+     * @return                      Decode result or null
+     */
+    @Benchmark
+    public Result decode(Counts counts) {
+        Frame frame = frameSet[frameIndex];
+        frameIndex = (frameIndex + 1) % frameSet.length;
+        Result result;
+        try {
+            result = reader.decodeWithState(new BinaryBitmap(createBinarizer(frame.getLuminanceSource())));
+            counts.decoded++;
+        } catch (ReaderException exc) {
+            result = null;
+            counts.notFound++;
+        }
+        return result;
+    }
+
+    /**
+     * Create the binarizer for a frame
+     *
+     * @param       source          Luminance source
+     * @return                      Binarizer
+     */
+    private Binarizer createBinarizer(LuminanceSource source) {
+        switch (binarizer) {
+            case "pooled":
+                return new PooledBinarizer(source, scratch);
+            case "hybrid":
+                return new HybridBinarizer(source);
+            case "global":
+                return new GlobalHistogramBinarizer(source);
+            default:
+                throw new IllegalArgumentException("Unknown binarizer: " + binarizer);
+        }
+    }
+}
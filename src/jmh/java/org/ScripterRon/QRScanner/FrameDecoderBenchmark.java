@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import com.google.zxing.Result;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FrameDecoderBenchmark measures the per-frame cost of the scan dialog decode path:
+ * converting the captured image to a luminance frame and decoding it with the
+ * FrameDecoder used by the decode workers.  The region tracker is not used since
+ * the benchmark frames do not follow each other like camera frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+    /** Image resolution */
+    @Param({"QVGA", "VGA", "HD"})
+    public String resolution;
+
+    /** Frame content (HIT or MISS) */
+    @Param({"HIT", "MISS"})
+    public String frames;
+
+    /** Number of pyramid levels (1 disables pyramid decoding) */
+    @Param({"1", "3"})
+    public int pyramidLevels;
+
+    /** Captured images */
+    private BufferedImage[] images;
+
+    /** Converted frames */
+    private Frame[] frameSet;
+
+    /** Frame used for image conversion */
+    private final Frame captureFrame = new Frame();
+
+    /** Next image */
+    private int imageIndex;
+
+    /** Frame decoder */
+    private FrameDecoder decoder;
+
+    /**
+     * Create the images, frames and frame decoder
+     *
+     * @throws      Exception       Unable to create the frames
+     */
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        boolean hit = frames.equals("HIT");
+        images = BenchmarkFrames.createImages(resolution, hit);
+        frameSet = BenchmarkFrames.createFrames(resolution, hit);
+        decoder = new FrameDecoder();
+        if (pyramidLevels > 1)
+            decoder.setPyramid(new PyramidStats(pyramidLevels, 240));
+    }
+
+    /**
+     * Decode the next frame
+     *
+     * @return                      Decode result or null
+     */
+    @Benchmark
+    public Result decode() {
+        Frame frame = frameSet[imageIndex];
+        imageIndex = (imageIndex + 1) % frameSet.length;
+        return decoder.decode(frame);
+    }
+
+    /**
+     * Convert the next captured image and decode it
+     *
+     * @return                      Decode result or null
+     */
+    @Benchmark
+    public Result captureAndDecode() {
+        BufferedImage image = images[imageIndex];
+        imageIndex = (imageIndex + 1) % images.length;
+        captureFrame.setImage(image, System.nanoTime());
+        return decoder.decode(captureFrame);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import com.google.zxing.NotFoundException;
+import com.google.zxing.common.BitMatrix;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PixelKernelsBenchmark compares the scalar and vector pixel kernels for each
+ * preprocessing step: RGB to luminance conversion (packed int and interleaved byte
+ * pixels), downsampling for the luminance pyramid and binarization.
+ *
+ * The vector backend is available only when the benchmarks are built with the
+ * 'vector' profile (mvn -P benchmark,vector package) and run on Java 17 or later with
+ * the jdk.incubator.vector module added.  The vector trials fail during setup otherwise.
+ * The setup also fails if the vector results are not identical to the scalar results
+ * (see PixelKernelsCheck).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class PixelKernelsBenchmark {
+
+    /** Image resolution */
+    @Param({"VGA", "HD", "4K"})
+    public String resolution;
+
+    /** Kernels backend (scalar or vector) */
+    @Param({"scalar", "vector"})
+    public String backend;
+
+    /** Pixel kernels */
+    private PixelKernels kernels;
+
+    /** Image width */
+    private int width;
+
+    /** Image height */
+    private int height;
+
+    /** Packed RGB pixels */
+    private int[] intPixels;
+
+    /** Interleaved BGR pixels */
+    private byte[] bytePixels;
+
+    /** Luminance data */
+    private byte[] luminance;
+
+    /** Downsampled luminance data */
+    private byte[] halfLuminance;
+
+    /** Luminance source for the binarizer */
+    private GreyLuminanceSource source;
+
+    /** Binarizer scratch storage */
+    private PooledBinarizer.Scratch scratch;
+
+    /**
+     * Create the kernels and the pixel data.  The vector kernels are checked against
+     * the scalar kernels before they are measured.
+     *
+     * @throws      Exception       Unable to create the pixel data or the results are different
+     */
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        switch (backend) {
+            case "scalar":
+                kernels = PixelKernels.getScalar();
+                break;
+            case "vector":
+                kernels = PixelKernels.getVector();
+                if (kernels == null)
+                    throw new IllegalStateException("Vector kernels are not available");
+                PixelKernelsCheck.check(kernels, resolution);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown backend: " + backend);
+        }
+        BufferedImage image = BenchmarkFrames.createImages(resolution, true)[0];
+        width = image.getWidth();
+        height = image.getHeight();
+        BufferedImage intImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        intImage.getGraphics().drawImage(image, 0, 0, null);
+        intPixels = ((DataBufferInt)intImage.getRaster().getDataBuffer()).getData();
+        BufferedImage byteImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        byteImage.getGraphics().drawImage(image, 0, 0, null);
+        bytePixels = ((DataBufferByte)byteImage.getRaster().getDataBuffer()).getData();
+        luminance = new byte[width * height];
+        halfLuminance = new byte[(width / 2) * (height / 2)];
+        kernels.lumaInts(intPixels, 0, luminance, 0, width * height);
+        source = new GreyLuminanceSource(luminance, width, height, 0, 0, width, height);
+        scratch = new PooledBinarizer.Scratch(kernels);
+    }
+
+    /**
+     * Convert packed RGB pixels to luminance
+     *
+     * @return                      Luminance data
+     */
+    @Benchmark
+    public byte[] lumaInts() {
+        for (int y=0, offset=0; y<height; y++, offset+=width)
+            kernels.lumaInts(intPixels, offset, luminance, offset, width);
+        return luminance;
+    }
+
+    /**
+     * Convert interleaved BGR pixels to luminance
+     *
+     * @return                      Luminance data
+     */
+    @Benchmark
+    public byte[] lumaBytes() {
+        for (int y=0, offset=0; y<height; y++, offset+=width)
+            kernels.lumaBytes(bytePixels, offset*3, 3, 2, 1, 0, luminance, offset, width);
+        return luminance;
+    }
+
+    /**
+     * Downsample the luminance data to half the width and height
+     *
+     * @return                      Downsampled luminance data
+     */
+    @Benchmark
+    public byte[] downsample() {
+        int halfWidth = width / 2;
+        for (int y=0; y<height/2; y++)
+            kernels.downsample(luminance, 2*y*width, width, halfLuminance, y*halfWidth, halfWidth);
+        return halfLuminance;
+    }
+
+    /**
+     * Binarize the luminance data
+     *
+     * @return                      Black matrix
+     * @throws      NotFoundException   Image is too small
+     */
+    @Benchmark
+    public BitMatrix binarize() throws NotFoundException {
+        return new PooledBinarizer(source, scratch).getBlackMatrix();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import java.awt.Dimension;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * PixelKernelsCheck verifies that a kernels backend gives the same results as the
+ * scalar kernels.  Each kernel is run on random planes at the benchmark resolutions
+ * with the full width and with odd widths and offsets, so the rows end with pixels
+ * that do not fill a vector.  The outputs are compared with Arrays.equals().
+ *
+ * PixelKernelsBenchmark runs the check before the vector trials.  It can also be
+ * run by itself from the benchmark jar:
+ *
+ *   java --add-modules jdk.incubator.vector -cp target/benchmarks.jar org.ScripterRon.QRScanner.PixelKernelsCheck
+ */
+public class PixelKernelsCheck {
+
+    /** Resolutions */
+    private static final String[] RESOLUTIONS = {"VGA", "HD", "4K"};
+
+    /** Amounts subtracted from the image width */
+    private static final int[] WIDTH_DELTAS = {0, 1, 7, 13, 37};
+
+    /** Random number seed */
+    private static final long SEED = 20171017L;
+
+    /**
+     * Check the vector kernels
+     *
+     * @param       args            Command line arguments (resolutions, default VGA HD 4K)
+     */
+    public static void main(String[] args) {
+        PixelKernels kernels = PixelKernels.getVector();
+        if (kernels == null) {
+            System.err.println("Vector kernels are not available");
+            System.exit(1);
+        }
+        for (String resolution : (args.length > 0 ? args : RESOLUTIONS)) {
+            check(kernels, resolution);
+            System.out.println(String.format("%s: %s kernels match the scalar kernels", resolution, kernels.getName()));
+        }
+    }
+
+    /**
+     * Check a kernels backend at one resolution
+     *
+     * @param       kernels         Kernels to check
+     * @param       resolution      VGA, HD or 4K
+     * @throws      IllegalStateException   The results are different
+     */
+    public static void check(PixelKernels kernels, String resolution) {
+        PixelKernels scalar = PixelKernels.getScalar();
+        Dimension size = BenchmarkFrames.getSize(resolution);
+        Random random = new Random(SEED);
+        int[] intPixels = new int[size.width * size.height + 3];
+        for (int i=0; i<intPixels.length; i++)
+            intPixels[i] = random.nextInt();
+        byte[] bytePixels = new byte[intPixels.length * 4];
+        random.nextBytes(bytePixels);
+        for (int delta : WIDTH_DELTAS) {
+            int width = size.width - delta;
+            int height = size.height - (delta & 1);
+            int offset = delta % 4;
+            String name = String.format("%s %dx%d+%d", resolution, width, height, offset);
+            //
+            // RGB to luminance (packed int, interleaved BGR, BGRA and RGBA)
+            //
+            byte[] expected = new byte[width * height];
+            byte[] actual = new byte[width * height];
+            for (int y=0; y<height; y++) {
+                scalar.lumaInts(intPixels, offset+y*width, expected, y*width, width);
+                kernels.lumaInts(intPixels, offset+y*width, actual, y*width, width);
+            }
+            compare(name, "lumaInts", expected, actual);
+            int[][] layouts = {{3, 2, 1, 0}, {4, 2, 1, 0}, {4, 0, 1, 2}};
+            for (int[] layout : layouts) {
+                int stride = layout[0];
+                for (int y=0; y<height; y++) {
+                    int srcOffset = (offset + y*width) * stride;
+                    scalar.lumaBytes(bytePixels, srcOffset, stride, layout[1], layout[2], layout[3],
+                                     expected, y*width, width);
+                    kernels.lumaBytes(bytePixels, srcOffset, stride, layout[1], layout[2], layout[3],
+                                      actual, y*width, width);
+                }
+                compare(name, "lumaBytes/" + stride, expected, actual);
+            }
+            //
+            // Downsampling
+            //
+            byte[] plane = expected;
+            int halfWidth = width / 2;
+            byte[] expectedHalf = new byte[halfWidth * (height / 2)];
+            byte[] actualHalf = new byte[halfWidth * (height / 2)];
+            for (int y=0; y<height/2; y++) {
+                scalar.downsample(plane, 2*y*width, width, expectedHalf, y*halfWidth, halfWidth);
+                kernels.downsample(plane, 2*y*width, width, actualHalf, y*halfWidth, halfWidth);
+            }
+            compare(name, "downsample", expectedHalf, actualHalf);
+            //
+            // Block statistics
+            //
+            int blockCount = (width + PixelKernels.BLOCK_SIZE - 1) / PixelKernels.BLOCK_SIZE;
+            int blockRows = height / PixelKernels.BLOCK_SIZE;
+            int[][] expectedStats = new int[3][blockCount * blockRows];
+            int[][] actualStats = new int[3][blockCount * blockRows];
+            int[][] rowStats = new int[3][blockCount];
+            for (int y=0; y<blockRows; y++) {
+                int rowOffset = y * PixelKernels.BLOCK_SIZE * width;
+                scalar.blockStats(plane, rowOffset, width, width, blockCount, rowStats[0], rowStats[1], rowStats[2]);
+                for (int i=0; i<3; i++)
+                    System.arraycopy(rowStats[i], 0, expectedStats[i], y*blockCount, blockCount);
+                kernels.blockStats(plane, rowOffset, width, width, blockCount, rowStats[0], rowStats[1], rowStats[2]);
+                for (int i=0; i<3; i++)
+                    System.arraycopy(rowStats[i], 0, actualStats[i], y*blockCount, blockCount);
+            }
+            compare(name, "blockStats/sums", expectedStats[0], actualStats[0]);
+            compare(name, "blockStats/mins", expectedStats[1], actualStats[1]);
+            compare(name, "blockStats/maxs", expectedStats[2], actualStats[2]);
+            //
+            // Thresholding (random thresholds against the random luminance plane)
+            //
+            byte[] thresholds = new byte[width];
+            int rowSize = (width + 31) / 32;
+            int[] expectedBits = new int[rowSize * height];
+            int[] actualBits = new int[rowSize * height];
+            int[] rowBits = new int[rowSize];
+            for (int y=0; y<height; y++) {
+                random.nextBytes(thresholds);
+                Arrays.fill(rowBits, 0);
+                scalar.threshold(plane, y*width, thresholds, width, rowBits);
+                System.arraycopy(rowBits, 0, expectedBits, y*rowSize, rowSize);
+                Arrays.fill(rowBits, 0);
+                kernels.threshold(plane, y*width, thresholds, width, rowBits);
+                System.arraycopy(rowBits, 0, actualBits, y*rowSize, rowSize);
+            }
+            compare(name, "threshold", expectedBits, actualBits);
+        }
+    }
+
+    /**
+     * Compare byte results
+     *
+     * @param       name            Plane description
+     * @param       kernel          Kernel name
+     * @param       expected        Scalar results
+     * @param       actual          Results being checked
+     * @throws      IllegalStateException   The results are different
+     */
+    private static void compare(String name, String kernel, byte[] expected, byte[] actual) {
+        if (!Arrays.equals(expected, actual))
+            throw new IllegalStateException(String.format("%s: %s results are different", name, kernel));
+    }
+
+    /**
+     * Compare int results
+     *
+     * @param       name            Plane description
+     * @param       kernel          Kernel name
+     * @param       expected        Scalar results
+     * @param       actual          Results being checked
+     * @throws      IllegalStateException   The results are different
+     */
+    private static void compare(String name, String kernel, int[] expected, int[] actual) {
+        if (!Arrays.equals(expected, actual))
+            throw new IllegalStateException(String.format("%s: %s results are different", name, kernel));
+    }
+}
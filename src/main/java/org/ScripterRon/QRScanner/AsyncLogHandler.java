@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * AsyncLogHandler passes log records to the real log handlers on a background thread,
+ * so a thread that logs a message never waits for the record to be formatted or
+ * written.  The records are held in a bounded ring buffer.  A record is dropped if
+ * the buffer is full and the number of dropped records is logged once the buffer
+ * has been drained.
+ *
+ * The buffer capacity is set by the 'org.ScripterRon.QRScanner.AsyncLogHandler.capacity'
+ * logging property (default 4096).  The remaining records are written when the
+ * handler is closed, which happens when the log manager is reset during shutdown.
+ */
+public class AsyncLogHandler extends Handler {
+
+    /** Default buffer capacity */
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    /** Target handlers */
+    private final Handler[] targets;
+
+    /** Log record buffer */
+    private final ArrayBlockingQueue<LogRecord> buffer;
+
+    /** Number of dropped records */
+    private final LongAdder droppedCount = new LongAdder();
+
+    /** Number of dropped records that have been reported */
+    private long reportedCount;
+
+    /** Log writer thread */
+    private final Thread writerThread;
+
+    /** Handler has been closed */
+    private volatile boolean closed = false;
+
+    /**
+     * Create the asynchronous log handler
+     *
+     * @param       targets         Handlers that write the log records
+     * @param       capacity        Buffer capacity
+     */
+    public AsyncLogHandler(Handler[] targets, int capacity) {
+        this.targets = targets.clone();
+        this.buffer = new ArrayBlockingQueue<>(Math.max(16, capacity));
+        //
+        // We don't need to buffer records that none of the targets will write
+        //
+        Level level = Level.OFF;
+        for (Handler target : targets) {
+            if (target.getLevel().intValue() < level.intValue())
+                level = target.getLevel();
+        }
+        setLevel(level);
+        writerThread = new Thread(() -> writeRecords(), "Log Writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Replace the handlers for a logger with an asynchronous handler that
+     * passes the records to the original handlers
+     *
+     * @param       logger          Logger
+     */
+    public static void install(Logger logger) {
+        Handler[] handlers = logger.getHandlers();
+        if (handlers.length == 0)
+            return;
+        int capacity = DEFAULT_CAPACITY;
+        String value = LogManager.getLogManager().getProperty(AsyncLogHandler.class.getName() + ".capacity");
+        if (value != null) {
+            try {
+                capacity = Integer.parseInt(value.trim());
+            } catch (NumberFormatException exc) {
+                // Use the default capacity
+            }
+        }
+        AsyncLogHandler asyncHandler = new AsyncLogHandler(handlers, capacity);
+        for (Handler handler : handlers)
+            logger.removeHandler(handler);
+        logger.addHandler(asyncHandler);
+    }
+
+    /**
+     * Return the number of dropped records
+     *
+     * @return                      Dropped record count
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * Queue a log record.  The caller class and method are determined before the
+     * record is queued since they are obtained from the current stack.
+     *
+     * @param       record          Log record
+     */
+    @Override
+    public void publish(LogRecord record) {
+        if (!isLoggable(record))
+            return;
+        record.getSourceClassName();
+        if (closed || !buffer.offer(record))
+            droppedCount.increment();
+    }
+
+    /**
+     * Flush the target handlers
+     */
+    @Override
+    public void flush() {
+        for (Handler target : targets)
+            target.flush();
+    }
+
+    /**
+     * Write the remaining records and close the target handlers
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        writerThread.interrupt();
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(2));
+        } catch (InterruptedException exc) {
+            // Close the targets now
+        }
+        for (Handler target : targets)
+            target.close();
+    }
+
+    /**
+     * Write log records until the handler is closed
+     */
+    private void writeRecords() {
+        while (!closed) {
+            try {
+                writeRecord(buffer.take());
+                if (buffer.isEmpty())
+                    reportDropped();
+            } catch (InterruptedException exc) {
+                // Handler is being closed
+            }
+        }
+        LogRecord record;
+        while ((record = buffer.poll()) != null)
+            writeRecord(record);
+        reportDropped();
+    }
+
+    /**
+     * Pass a log record to the target handlers
+     *
+     * @param       record          Log record
+     */
+    private void writeRecord(LogRecord record) {
+        for (Handler target : targets) {
+            try {
+                target.publish(record);
+            } catch (RuntimeException exc) {
+                reportError("Unable to publish log record", exc, ErrorManager.WRITE_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Log the number of records dropped since the last report
+     */
+    private void reportDropped() {
+        long count = droppedCount.sum();
+        if (count == reportedCount)
+            return;
+        LogRecord record = new LogRecord(Level.WARNING,
+                        String.format("%d log records dropped", count - reportedCount));
+        record.setSourceClassName(AsyncLogHandler.class.getName());
+        record.setSourceMethodName("publish");
+        reportedCount = count;
+        writeRecord(record);
+    }
+}
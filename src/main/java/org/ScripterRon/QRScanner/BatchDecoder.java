@@ -0,0 +1,398 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import com.google.zxing.Result;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * BatchDecoder scans all of the images in a directory tree without using the GUI.
+ *
+ * The directory tree is processed on a fork-join pool.  Each directory is a separate
+ * task and the images in a directory are split into smaller tasks so that all of the
+ * pool threads are kept busy.  Each pool thread has its own frame decoder.  Symbolic
+ * links to directories are not followed, so a link loop does not make the scan recurse
+ * without end.
+ *
+ * One line is written for each image as the image is processed.  The line contains
+ * the image path, the QR text, the barcode format and the decode time in milliseconds,
+ * separated by tab characters.  Tab, newline and backslash characters in the QR text
+ * are escaped.  The format is NONE if no QR code was found and ERROR if the image could
+ * not be read (the text is then the error message).
+ *
+ * Every image that is not decoded by the normal scan is scanned again using the
+ * more expensive decode tiers unless 'scan.tiers' is false.
+ *
+ * When a tiled decoder is set, each image is divided into tiles that are decoded
+ * on the same fork-join pool and one line is written for each QR code found in
+ * the image.  The decode time on each line is the time for the whole image.
+ *
+ * The results are kept in the batch result cache (see ResultCache), so an image
+ * that has been scanned before is not decoded again.  The decode time for a cached
+ * image is the time to look up the result.
+ */
+public class BatchDecoder {
+
+    /** Image file extensions */
+    private static final String[] imageExtensions = new String[] {
+        ".png", ".jpg", ".jpeg", ".gif", ".bmp"
+    };
+
+    /** Number of images to be decoded by a single task */
+    private static final int BATCH_SIZE = 8;
+
+    /** Decode tier statistics or null if decode tiers are not enabled */
+    private final TierStats tierStats;
+
+    /** Frame decoder for each pool thread */
+    private final ThreadLocal<FrameDecoder> threadDecoder;
+
+    /** Frame for each pool thread */
+    private final ThreadLocal<Frame> threadFrame = ThreadLocal.withInitial(() -> new Frame());
+
+    /** Tiled decoder or null */
+    private TiledDecoder tiledDecoder;
+
+    /** Result cache or null */
+    private ResultCache resultCache;
+
+    /** Root directory */
+    private final Path rootDirectory;
+
+    /** Result writer */
+    private final Writer writer;
+
+    /** Fork-join pool */
+    private final ForkJoinPool pool;
+
+    /** Number of images processed */
+    private final AtomicLong imageCount = new AtomicLong();
+
+    /** Number of images containing a QR code */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /** Number of images that could not be read */
+    private final AtomicLong errorCount = new AtomicLong();
+
+    /** Total decode time (nanoseconds) */
+    private final AtomicLong decodeTime = new AtomicLong();
+
+    /**
+     * Create the batch decoder
+     *
+     * @param       rootDirectory   Root of the directory tree
+     * @param       writer          Result writer
+     * @param       threads         Number of pool threads
+     */
+    public BatchDecoder(Path rootDirectory, Writer writer, int threads) {
+        this.rootDirectory = rootDirectory;
+        this.writer = writer;
+        this.pool = new ForkJoinPool(threads);
+        tierStats = TierStats.forImages();
+        threadDecoder = ThreadLocal.withInitial(() -> new FrameDecoder(null, null, tierStats));
+    }
+
+    /**
+     * Decode all of the QR codes in each image using overlapping tiles
+     *
+     * @param       tileSize        Tile width and height
+     * @param       overlap         Overlap between adjacent tiles
+     */
+    public void setTiles(int tileSize, int overlap) {
+        tiledDecoder = new TiledDecoder(pool, tileSize, overlap);
+    }
+
+    /**
+     * Decode all of the images in the directory tree
+     *
+     * @throws      IOException     Unable to write the results
+     */
+    public void run() throws IOException {
+        log.info(String.format("Scanning '%s' using %d threads", rootDirectory, pool.getParallelism()));
+        resultCache = ResultCache.fromProperties("batch", getSettings());
+        long startTime = System.nanoTime();
+        try {
+            pool.invoke(new DirectoryTask(rootDirectory));
+        } finally {
+            pool.shutdown();
+            writer.flush();
+            if (resultCache != null)
+                resultCache.save();
+        }
+        long elapsedTime = System.nanoTime() - startTime;
+        long images = imageCount.get();
+        double seconds = (double)elapsedTime / 1.0e9;
+        log.info(String.format("%d images processed in %.3f seconds: %d decoded, %d not found, %d errors",
+                               images, seconds, hitCount.get(), images - hitCount.get() - errorCount.get(),
+                               errorCount.get()));
+        if (images > 0)
+            log.info(String.format("Throughput %.1f images/second, average decode time %.3f ms",
+                                   (double)images / seconds,
+                                   (double)decodeTime.get() / (double)images / 1.0e6));
+        if (tierStats != null)
+            log.info("Decode tiers: {}", tierStats);
+        if (tiledDecoder != null)
+            log.info("Tiles: {}", tiledDecoder);
+        if (resultCache != null)
+            log.info("Result cache: {}", resultCache);
+    }
+
+    /**
+     * Return the decoder settings for the result cache
+     *
+     * @return                      Decoder settings
+     */
+    private String getSettings() {
+        String settings = String.format("%s tiers=%b", ResultCache.getDecoderSettings(), tierStats != null);
+        if (tiledDecoder != null)
+            settings = String.format("%s tiles=%d/%d", settings, tiledDecoder.getTileSize(),
+                                     tiledDecoder.getOverlap());
+        return settings;
+    }
+
+    /**
+     * Check if a file is an image file
+     *
+     * @param       path            File path
+     * @return                      TRUE if this is an image file
+     */
+    static boolean isImageFile(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String extension : imageExtensions) {
+            if (name.endsWith(extension))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Decode an image file and write the results
+     *
+     * @param       path            Image file
+     */
+    private void decodeFile(Path path) {
+        Result[] results = null;
+        long elapsedTime;
+        try {
+            BufferedImage image;
+            String key = null;
+            if (resultCache != null) {
+                byte[] data = Files.readAllBytes(path);
+                key = ResultCache.contentKey(data, 0, 0);
+                results = resultCache.get(key);
+                image = (results == null ? ImageIO.read(new ByteArrayInputStream(data)) : null);
+            } else {
+                image = ImageIO.read(path.toFile());
+            }
+            long startTime = System.nanoTime();
+            if (results == null) {
+                if (image == null)
+                    throw new IOException("Unsupported image format");
+                //
+                // A tiled image has its own frame since this thread can run other
+                // file tasks while it waits for the tiles to be decoded
+                //
+                Frame frame = (tiledDecoder != null ? new Frame() : threadFrame.get());
+                frame.setImage(image, startTime);
+                long hash = 0;
+                if (resultCache != null) {
+                    hash = ResultCache.perceptualHash(frame);
+                    results = resultCache.getSimilar(key, hash, frame.getWidth(), frame.getHeight());
+                }
+                if (results == null) {
+                    results = decodeFrame(frame);
+                    if (resultCache != null)
+                        resultCache.put(key, hash, frame.getWidth(), frame.getHeight(), results);
+                }
+            }
+            elapsedTime = System.nanoTime() - startTime;
+        } catch (IOException | RuntimeException exc) {
+            errorCount.incrementAndGet();
+            imageCount.incrementAndGet();
+            writeResult(path, exc.toString(), "ERROR", 0);
+            return;
+        }
+        decodeTime.addAndGet(elapsedTime);
+        imageCount.incrementAndGet();
+        if (results.length == 0) {
+            writeResult(path, "", "NONE", elapsedTime);
+            return;
+        }
+        hitCount.incrementAndGet();
+        for (Result result : results)
+            writeResult(path, result.getText(), result.getBarcodeFormat().toString(), elapsedTime);
+    }
+
+    /**
+     * Decode a frame using the tiled decoder or the frame decoder for this thread
+     *
+     * @param       frame           Frame
+     * @return                      Decode results (empty if no QR code was found)
+     */
+    private Result[] decodeFrame(Frame frame) {
+        Result[] results;
+        if (tiledDecoder != null) {
+            results = tiledDecoder.decode(frame);
+        } else {
+            Result result = threadDecoder.get().decode(frame);
+            results = (result != null ? new Result[] {result} : null);
+        }
+        return (results != null ? results : new Result[0]);
+    }
+
+    /**
+     * Write a result line
+     *
+     * @param       path            Image file
+     * @param       text            QR text
+     * @param       format          Barcode format
+     * @param       elapsedTime     Decode time (nanoseconds)
+     */
+    private void writeResult(Path path, String text, String format, long elapsedTime) {
+        StringBuilder line = new StringBuilder(256);
+        line.append(path.toString()).append('\t');
+        for (int i=0; i<text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                default:
+                    line.append(c);
+            }
+        }
+        line.append('\t').append(format);
+        line.append('\t').append(String.format("%.3f", (double)elapsedTime / 1.0e6));
+        line.append(Main.lineSeparator);
+        try {
+            synchronized(writer) {
+                writer.write(line.toString());
+            }
+        } catch (IOException exc) {
+            log.error("Unable to write result for {}", path, exc);
+        }
+    }
+
+    /**
+     * Process a directory.  A new task is forked for each subdirectory and the images
+     * in the directory are decoded by batch tasks.
+     */
+    private class DirectoryTask extends RecursiveAction {
+
+        /** Directory */
+        private final Path directory;
+
+        /**
+         * Create the directory task
+         *
+         * @param       directory       Directory
+         */
+        public DirectoryTask(Path directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * Process the directory
+         */
+        @Override
+        protected void compute() {
+            List<RecursiveAction> tasks = new ArrayList<>();
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path path : stream) {
+                    if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        tasks.add(new DirectoryTask(path));
+                    } else if (isImageFile(path) && Files.isRegularFile(path)) {
+                        files.add(path);
+                    }
+                }
+            } catch (IOException exc) {
+                log.error("Unable to read directory {}", directory, exc);
+            }
+            if (!files.isEmpty())
+                tasks.add(new FileTask(files, 0, files.size()));
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Decode a range of image files, splitting the range until it is small enough
+     */
+    private class FileTask extends RecursiveAction {
+
+        /** Image files */
+        private final List<Path> files;
+
+        /** Start of range */
+        private final int start;
+
+        /** End of range (exclusive) */
+        private final int end;
+
+        /**
+         * Create the file task
+         *
+         * @param       files           Image files
+         * @param       start           Start of range
+         * @param       end             End of range
+         */
+        public FileTask(List<Path> files, int start, int end) {
+            this.files = files;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Decode the image files
+         */
+        @Override
+        protected void compute() {
+            if (end - start <= BATCH_SIZE) {
+                for (int i=start; i<end; i++)
+                    decodeFile(files.get(i));
+            } else {
+                int mid = (start + end) >>> 1;
+                invokeAll(new FileTask(files, start, mid), new FileTask(files, mid, end));
+            }
+        }
+    }
+}
@@ -18,9 +18,7 @@ package org.ScripterRon.QRScanner;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.io.Writer;
-import java.text.MessageFormat;
-import java.util.Date;
+import java.util.Calendar;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.LogRecord;
@@ -28,11 +26,20 @@ import java.util.logging.Logger;
 
 /**
  * A Java logging formatter that writes more compact output than the default.
+ *
+ * The record is formatted into a reusable buffer for each thread instead of using
+ * MessageFormat, so formatting a record without an exception allocates just the
+ * returned string.
  */
 public class BriefLogFormatter extends Formatter {
 
-    /** Format used for log messages */
-    private static final MessageFormat messageFormat = new MessageFormat("{3,date,hh:mm:ss} {0} {1}.{2}: {4}\n{5}");
+    /** Format buffer for each thread */
+    private static final ThreadLocal<StringBuilder> threadBuffer =
+                                        ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    /** Calendar for each thread */
+    private static final ThreadLocal<Calendar> threadCalendar =
+                                        ThreadLocal.withInitial(() -> Calendar.getInstance());
 
     // OpenJDK made a questionable, backwards incompatible change to the Logger implementation. It internally uses
     // weak references now which means simply fetching the logger and changing its configuration won't work. We must
@@ -40,12 +47,14 @@ public class BriefLogFormatter extends Formatter {
     private static final Logger logger = Logger.getLogger("");
 
     /**
-     * Configures JDK logging to use this class for everything
+     * Configures JDK logging to use this class for everything.  The existing handlers
+     * are moved behind an asynchronous handler so logging does not wait for I/O.
      */
     public static void init() {
         Handler[] handlers = logger.getHandlers();
         for (Handler handler : handlers)
             handler.setFormatter(new BriefLogFormatter());
+        AsyncLogHandler.install(logger);
     }
 
     /**
@@ -60,23 +69,48 @@ public class BriefLogFormatter extends Formatter {
      */
     @Override
     public String format(LogRecord logRecord) {
-        Object[] arguments = new Object[6];
-        arguments[0] = logRecord.getLevel().getName();
+        StringBuilder sb = threadBuffer.get();
+        sb.setLength(0);
+        format(logRecord, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Append the formatted log record to a buffer
+     *
+     * @param       logRecord       The log record
+     * @param       sb              Buffer
+     */
+    public void format(LogRecord logRecord, StringBuilder sb) {
+        Calendar calendar = threadCalendar.get();
+        calendar.setTimeInMillis(logRecord.getMillis());
+        int hour = calendar.get(Calendar.HOUR);
+        appendTwoDigits(sb, hour == 0 ? 12 : hour).append(':');
+        appendTwoDigits(sb, calendar.get(Calendar.MINUTE)).append(':');
+        appendTwoDigits(sb, calendar.get(Calendar.SECOND)).append(' ');
+        sb.append(logRecord.getLevel().getName()).append(' ');
         String fullClassName = logRecord.getSourceClassName();
-        int lastDot = fullClassName.lastIndexOf('.');
-        String className = fullClassName.substring(lastDot + 1);
-        arguments[1] = className;
-        arguments[2] = logRecord.getSourceMethodName();
-        arguments[3] = new Date(logRecord.getMillis());
-        arguments[4] = logRecord.getMessage();
+        if (fullClassName != null)
+            sb.append(fullClassName, fullClassName.lastIndexOf('.') + 1, fullClassName.length());
+        else
+            sb.append("null");
+        sb.append('.').append(logRecord.getSourceMethodName()).append(": ");
+        sb.append(logRecord.getMessage()).append('\n');
         if (logRecord.getThrown() != null) {
-            Writer result = new StringWriter();
+            StringWriter result = new StringWriter();
             logRecord.getThrown().printStackTrace(new PrintWriter(result));
-            arguments[5] = result.toString();
-        } else {
-            arguments[5] = "";
+            sb.append(result.getBuffer());
         }
+    }
 
-        return messageFormat.format(arguments);
+    /**
+     * Append a two-digit number
+     *
+     * @param       sb              Buffer
+     * @param       value           Value between 0 and 99
+     * @return                      Buffer
+     */
+    private static StringBuilder appendTwoDigits(StringBuilder sb, int value) {
+        return sb.append((char)('0' + value / 10)).append((char)('0' + value % 10));
     }
 }
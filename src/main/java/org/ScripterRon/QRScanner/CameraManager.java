@@ -0,0 +1,278 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import com.github.sarxos.webcam.Webcam;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CameraManager discovers the web camera on a background thread when the application
+ * starts and keeps it open between scans so the scan dialog does not have to wait
+ * for the webcam driver.
+ *
+ * The webcam is opened as soon as it is discovered unless 'scan.camera.warm' is
+ * false.  It is closed when it has not been used for 'scan.camera.idle' seconds
+ * (default 600).  The webcam is closed after each scan if 'scan.camera.idle' is 0
+ * and is never closed if it is negative.
+ *
+ * The multi-camera scan uses all of the attached webcams or the webcams listed in
+ * 'scan.cameras' (a comma-separated list of webcam names or indexes starting at 0).
+ * There is one frame source for each webcam, so a webcam used by both the single
+ * and the multi-camera scan is opened just once.
+ *
+ * Frame sources other than the webcam are created for each scan.  All of the frame
+ * source operations are performed on the camera manager thread so they are done in
+ * the order they were requested without blocking the GUI thread.
+ */
+public class CameraManager {
+
+    /** Camera manager thread */
+    private final ScheduledExecutorService executor;
+
+    /** Open the webcam when it is discovered */
+    private final boolean warm;
+
+    /** Idle timeout (seconds) */
+    private final int idleTimeout;
+
+    /** Default webcam discovery */
+    private CompletableFuture<FrameSource> discovery;
+
+    /** Webcam frame sources (accessed on the camera manager thread) */
+    private final Map<String, WebcamFrameSource> webcamSources = new LinkedHashMap<>();
+
+    /** Idle close task (accessed on the camera manager thread) */
+    private ScheduledFuture<?> idleTask;
+
+    /**
+     * Create the camera manager
+     */
+    public CameraManager() {
+        warm = Boolean.parseBoolean(Main.properties.getProperty("scan.camera.warm", "true"));
+        idleTimeout = Main.getIntegerProperty("scan.camera.idle", 600);
+        ScheduledThreadPoolExecutor threadPool = new ScheduledThreadPoolExecutor(1, (runnable) -> {
+            Thread thread = new Thread(runnable, "Camera Manager");
+            thread.setDaemon(true);
+            return thread;
+        });
+        //
+        // Discard the idle close task when the camera manager is shut down, so shutdown()
+        // does not wait for it
+        //
+        threadPool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        threadPool.setRemoveOnCancelPolicy(true);
+        executor = threadPool;
+    }
+
+    /**
+     * Start discovering the webcam
+     */
+    public void start() {
+        if (FrameSources.getSourceSpec().equals("webcam"))
+            getFrameSource();
+    }
+
+    /**
+     * Return the frame source.  The webcam is discovered again if it was not found
+     * the last time.
+     *
+     * @return                      Frame source (null if no webcam is available)
+     */
+    public synchronized CompletableFuture<FrameSource> getFrameSource() {
+        String spec = FrameSources.getSourceSpec();
+        if (!spec.equals("webcam"))
+            return CompletableFuture.supplyAsync(() -> createSource(spec), executor);
+        if (discovery == null || discovery.isCompletedExceptionally() ||
+                                (discovery.isDone() && discovery.getNow(null) == null))
+            discovery = CompletableFuture.supplyAsync(() -> discoverWebcam(), executor);
+        return discovery;
+    }
+
+    /**
+     * Return the frame sources for the multi-camera scan
+     *
+     * @return                      Webcam frame sources (empty if no webcam is available)
+     */
+    public CompletableFuture<List<FrameSource>> getWebcamSources() {
+        return CompletableFuture.supplyAsync(() -> {
+            List<Webcam> webcams = Webcam.getWebcams();
+            String[] selected = Main.properties.getProperty("scan.cameras", "").trim().split("\\s*,\\s*");
+            List<FrameSource> sources = new ArrayList<>(webcams.size());
+            for (int i=0; i<webcams.size(); i++) {
+                Webcam webcam = webcams.get(i);
+                boolean include = (selected.length == 1 && selected[0].isEmpty());
+                for (String name : selected)
+                    include |= (name.equals(webcam.getName()) || name.equals(Integer.toString(i)));
+                if (include)
+                    sources.add(getWebcamSource(webcam));
+            }
+            log.info(String.format("Using %d of %d webcams for the multi-camera scan",
+                                   sources.size(), webcams.size()));
+            return sources;
+        }, executor);
+    }
+
+    /**
+     * Start capturing images
+     *
+     * @param       source          Frame source
+     * @param       listener        Frame listener
+     * @return                      Future completed when the source has been started
+     */
+    public CompletableFuture<Void> startSource(FrameSource source, FrameListener listener) {
+        return CompletableFuture.runAsync(() -> {
+            cancelIdleTask();
+            try {
+                source.start(listener);
+            } catch (Exception exc) {
+                throw new CompletionException(exc);
+            }
+        }, executor);
+    }
+
+    /**
+     * Stop capturing images.  A webcam that is kept open is closed when it has been
+     * idle for the idle timeout.
+     *
+     * @param       source          Frame source
+     */
+    public void stopSource(FrameSource source) {
+        executor.execute(() -> {
+            source.stop();
+            if (source instanceof WebcamFrameSource && ((WebcamFrameSource)source).isKeepOpen())
+                scheduleIdleTask();
+        });
+    }
+
+    /**
+     * Close the webcams and stop the camera manager thread
+     */
+    public void shutdown() {
+        executor.execute(() -> {
+            cancelIdleTask();
+            webcamSources.values().forEach((source) -> source.close());
+        });
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException exc) {
+            // Exit now
+        }
+    }
+
+    /**
+     * Discover the default webcam and open it if it is to be kept warm
+     *
+     * @return                      Webcam frame source or null if no webcam is available
+     */
+    private FrameSource discoverWebcam() {
+        long startTime = System.nanoTime();
+        Webcam webcam = Webcam.getDefault();
+        if (webcam == null) {
+            log.warn("No webcam available");
+            return null;
+        }
+        long discoveryTime = System.nanoTime();
+        log.info(String.format("Webcam %s discovered in %d ms",
+                               webcam.getName(), (discoveryTime - startTime) / 1000000));
+        WebcamFrameSource source = getWebcamSource(webcam);
+        if (warm && idleTimeout != 0) {
+            try {
+                source.open();
+                log.info(String.format("Webcam %s opened in %d ms",
+                                       source.getName(), (System.nanoTime() - discoveryTime) / 1000000));
+                scheduleIdleTask();
+            } catch (IOException exc) {
+                log.error("Unable to open webcam", exc);
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Return the frame source for a webcam, creating it if necessary
+     *
+     * @param       webcam          Webcam
+     * @return                      Webcam frame source
+     */
+    private WebcamFrameSource getWebcamSource(Webcam webcam) {
+        WebcamFrameSource source = webcamSources.get(webcam.getName());
+        if (source == null) {
+            source = new WebcamFrameSource(webcam);
+            source.setKeepOpen(idleTimeout != 0);
+            webcamSources.put(webcam.getName(), source);
+        }
+        return source;
+    }
+
+    /**
+     * Create a frame source
+     *
+     * @param       spec            Source specification
+     * @return                      Frame source or null if no webcam is available
+     */
+    private FrameSource createSource(String spec) {
+        try {
+            return FrameSources.create(spec);
+        } catch (Exception exc) {
+            throw new CompletionException(exc);
+        }
+    }
+
+    /**
+     * Close the webcams that are open but not capturing images
+     */
+    private void closeIdleWebcams() {
+        idleTask = null;
+        for (WebcamFrameSource source : webcamSources.values()) {
+            if (source.isOpen() && !source.isCapturing()) {
+                source.close();
+                log.info(String.format("Idle webcam %s closed", source.getName()));
+            }
+        }
+    }
+
+    /**
+     * Schedule the idle close task
+     */
+    private void scheduleIdleTask() {
+        cancelIdleTask();
+        if (idleTimeout > 0)
+            idleTask = executor.schedule(() -> closeIdleWebcams(), idleTimeout, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Cancel the idle close task
+     */
+    private void cancelIdleTask() {
+        if (idleTask != null) {
+            idleTask.cancel(false);
+            idleTask = null;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+/**
+ * A DecodeListener is notified when a decode worker finds a QR code
+ */
+public interface DecodeListener {
+
+    /**
+     * A QR code has been decoded
+     *
+     * This method is called on the decode worker thread
+     *
+     * @param       result          Decode result
+     * @param       decodeTime      Time taken to decode the frame (nanoseconds)
+     */
+    void resultDecoded(Result result, long decodeTime);
+
+    /**
+     * Finder patterns have been located in a frame.  This is called for each decoded
+     * frame where at least one pattern was found, whether or not the QR code could
+     * be decoded.
+     *
+     * This method is called on the decode worker thread
+     *
+     * @param       points          Points in frame coordinates
+     * @param       width           Frame width
+     * @param       height          Frame height
+     * @param       decoded         TRUE if a QR code was decoded
+     */
+    default void pointsFound(ResultPoint[] points, int width, int height, boolean decoded) {
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * DecodePipeline separates frame capture from frame decoding.  The capture thread
+ * hands frames to the pipeline and returns immediately.  The pipeline holds just the
+ * most recent frame: a frame that has not been picked up by a decode worker is
+ * replaced when a newer frame arrives, so the workers always scan the latest image
+ * and never fall behind the camera.
+ *
+ * Frames are obtained from a fixed-size frame pool and are returned to the pool
+ * after they have been decoded or replaced.  The pool has one frame for each worker
+ * plus one for the pending frame and one being filled by the capture thread, so a
+ * running scan does not allocate image buffers.
+ *
+ * Each decode worker has its own FrameDecoder since the ZXing reader is not thread-safe.
+ * The workers share a region tracker ('scan.roi', default true) so a frame is first
+ * scanned around the location of the last QR code found by any worker.  The full
+ * frame is scanned using a luminance pyramid ('scan.pyramid.levels', default 3,
+ * with levels no smaller than 'scan.pyramid.min' pixels) unless the number of
+ * levels is set to 1.  Frames that are unchanged or blurry are skipped by the
+ * frame gate ('scan.gate', default true) before they are decoded.  Frames that are
+ * not decoded are sometimes scanned again using more expensive decode tiers
+ * ('scan.tiers', default true).  Frames larger than a tile are divided into
+ * overlapping tiles that are decoded in parallel on the common fork-join pool when
+ * 'scan.tiles' is true (default false, see TiledDecoder).  The decode results are reported to the resolution
+ * controller if the frame source adjusts its capture resolution.
+ *
+ * The finder patterns located in each frame are passed to the decode listener so
+ * they can be displayed over the preview image.  The processor time used by the
+ * workers, and by the pool threads for tiled frames, is recorded so it can be
+ * compared with the time used by the preview.
+ *
+ * The frame counts and decode times are recorded in the application scan metrics,
+ * which can be viewed using JConsole or VisualVM.
+ */
+public class DecodePipeline {
+
+    /** First frame decode has been logged */
+    private static final AtomicBoolean firstDecode = new AtomicBoolean();
+
+    /** Thread management bean */
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    /** Frame handoff lock */
+    private final Lock frameLock = new ReentrantLock();
+
+    /** Frame available condition */
+    private final Condition frameAvailable = frameLock.newCondition();
+
+    /** Frame pool */
+    private final FramePool framePool;
+
+    /** Pending frame (protected by frameLock) */
+    private Frame pendingFrame;
+
+    /** Number of frames submitted (protected by frameLock) */
+    private long submittedCount;
+
+    /** Number of frames replaced before being decoded (protected by frameLock) */
+    private long replacedCount;
+
+    /** Number of workers waiting for a frame (protected by frameLock) */
+    private int waitingCount;
+
+    /** Callback run when a worker is ready for a frame or null */
+    private volatile Runnable readyCallback;
+
+    /** Number of frames not captured because the frame pool was empty */
+    private final AtomicLong unavailableCount = new AtomicLong();
+
+    /** Region tracker shared by the decode workers */
+    private final RegionTracker regionTracker;
+
+    /** Pyramid statistics or null if pyramid decoding is not enabled */
+    private final PyramidStats pyramidStats;
+
+    /** Frame gate or null if frames are not checked before decoding */
+    private final FrameGate frameGate;
+
+    /** Decode tier statistics or null if decode tiers are not enabled */
+    private final TierStats tierStats;
+
+    /** Tiled decoder or null if tiled decoding is not enabled */
+    private final TiledDecoder tiledDecoder;
+
+    /** Scan metrics */
+    private final ScanMetrics metrics = ScanMetrics.getInstance();
+
+    /** Resolution controller or null */
+    private volatile ResolutionController resolutionController;
+
+    /** Decode listener */
+    private final DecodeListener listener;
+
+    /** Decode worker threads */
+    private final List<Thread> workers = new ArrayList<>();
+
+    /** Pipeline name */
+    private final String name;
+
+    /** Number of frames decoded */
+    private final LongAdder decodedCount = new LongAdder();
+
+    /** Number of frames containing a QR code */
+    private final LongAdder hitCount = new LongAdder();
+
+    /** Processor time used by the decode workers (nanoseconds) */
+    private final LongAdder decodeCpuTime = new LongAdder();
+
+    /** Decode all of the QR codes in a frame */
+    private volatile boolean decodeMultiple = false;
+
+    /** Pipeline has been stopped */
+    private volatile boolean stopped = false;
+
+    /**
+     * Create the decode pipeline
+     *
+     * @param       workerCount     Number of decode workers
+     * @param       listener        Decode listener
+     */
+    public DecodePipeline(int workerCount, DecodeListener listener) {
+        this(workerCount, listener, "QR");
+    }
+
+    /**
+     * Create a named decode pipeline.  The name is used for the worker threads
+     * and the pipeline log messages.
+     *
+     * @param       workerCount     Number of decode workers
+     * @param       listener        Decode listener
+     * @param       name            Pipeline name
+     */
+    public DecodePipeline(int workerCount, DecodeListener listener, String name) {
+        this.listener = listener;
+        this.name = name;
+        this.framePool = new FramePool(workerCount + 2);
+        if (Boolean.parseBoolean(Main.properties.getProperty("scan.roi", "true")))
+            regionTracker = new RegionTracker(Main.getIntegerProperty("scan.roi.misses", 15));
+        else
+            regionTracker = null;
+        pyramidStats = PyramidStats.fromProperties();
+        frameGate = FrameGate.fromProperties();
+        tierStats = TierStats.fromProperties();
+        TiledDecoder tiles = null;
+        if (Boolean.parseBoolean(Main.properties.getProperty("scan.tiles", "false"))) {
+            try {
+                tiles = TiledDecoder.fromProperties(ForkJoinPool.commonPool());
+            } catch (IllegalArgumentException exc) {
+                log.error("Tiled decoding is disabled: {}", exc.getMessage());
+            }
+        }
+        tiledDecoder = tiles;
+        for (int i=0; i<workerCount; i++) {
+            Thread thread = new Thread(new DecodeWorker(), name + " Decode Worker " + (i+1));
+            thread.setDaemon(true);
+            workers.add(thread);
+        }
+    }
+
+    /**
+     * Return the default number of decode workers.  This is obtained from the
+     * 'scan.workers' application property and defaults to one less than the number
+     * of processors so that the camera and the GUI have a processor available.
+     *
+     * @return                      Number of decode workers
+     */
+    public static int getDefaultWorkerCount() {
+        int count = Main.getIntegerProperty("scan.workers",
+                                            Runtime.getRuntime().availableProcessors() - 1);
+        return Math.max(1, count);
+    }
+
+    /**
+     * Return the processor time used by the current thread
+     *
+     * @return                      Processor time (nanoseconds) or -1 if not available
+     */
+    static long getCpuTime() {
+        return (threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : -1);
+    }
+
+    /**
+     * Decode all of the QR codes in each frame instead of stopping at the first code.
+     * The listener is called once for each code.
+     *
+     * @param       decodeMultiple  TRUE to decode multiple QR codes
+     */
+    public void setDecodeMultiple(boolean decodeMultiple) {
+        this.decodeMultiple = decodeMultiple;
+    }
+
+    /**
+     * Report the decode time and results for each frame to a resolution controller
+     *
+     * @param       resolutionController    Resolution controller or null
+     */
+    public void setResolutionController(ResolutionController resolutionController) {
+        this.resolutionController = resolutionController;
+    }
+
+    /**
+     * Set the callback that is run when a decode worker starts waiting for a frame.
+     * The callback is run on the worker thread without holding the frame lock.
+     *
+     * @param       callback        Ready callback or null
+     */
+    public void setReadyCallback(Runnable callback) {
+        readyCallback = callback;
+    }
+
+    /**
+     * Check if a decode worker is waiting for a frame
+     *
+     * @return                      TRUE if a submitted frame will be decoded right away
+     */
+    public boolean isReady() {
+        frameLock.lock();
+        try {
+            return (waitingCount > 0 && pendingFrame == null && !stopped);
+        } finally {
+            frameLock.unlock();
+        }
+    }
+
+    /**
+     * Return the number of frames decoded
+     *
+     * @return                      Frame count
+     */
+    public long getDecodedCount() {
+        return decodedCount.sum();
+    }
+
+    /**
+     * Return the number of decoded frames that contained a QR code
+     *
+     * @return                      Frame count
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * Return the processor time used to decode frames.  This includes the time used
+     * by the fork-join pool threads to decode tiles.
+     *
+     * @return                      Processor time (nanoseconds)
+     */
+    public long getDecodeCpuTime() {
+        return decodeCpuTime.sum() + (tiledDecoder != null ? tiledDecoder.getCpuTime() : 0);
+    }
+
+    /**
+     * Start the decode workers
+     */
+    public void start() {
+        workers.forEach((thread) -> thread.start());
+        log.info(String.format("Started %d decode workers", workers.size()));
+    }
+
+    /**
+     * Stop the decode workers.  A decode that is in progress will complete but
+     * its result will not be reported.
+     */
+    public void stop() {
+        stopped = true;
+        frameLock.lock();
+        try {
+            if (pendingFrame != null) {
+                framePool.release(pendingFrame);
+                pendingFrame = null;
+            }
+            frameAvailable.signalAll();
+            log.info(String.format("%s decode pipeline stopped: %d frames submitted, %d frames replaced, "
+                                   + "%d frames not captured",
+                                   name, submittedCount, replacedCount, unavailableCount.get()));
+            log.info("Scan metrics: {}", metrics);
+            if (regionTracker != null)
+                log.info("Region tracking: {}", regionTracker);
+            if (pyramidStats != null)
+                log.info("Pyramid hits: {}", pyramidStats);
+            if (frameGate != null)
+                log.info("Frame gate: {}", frameGate);
+            if (tierStats != null)
+                log.info("Decode tiers: {}", tierStats);
+            if (tiledDecoder != null)
+                log.info("Tiles: {}", tiledDecoder);
+            if (resolutionController != null)
+                log.info("Resolution: {}", resolutionController);
+        } finally {
+            frameLock.unlock();
+        }
+    }
+
+    /**
+     * Obtain an empty frame from the frame pool.  The frame must be passed
+     * to submit() or releaseFrame() once the capture thread is done with it.
+     *
+     * @return                      Frame or null if no frame is available
+     */
+    public Frame acquireFrame() {
+        metrics.frameReceived();
+        Frame frame = framePool.acquire();
+        if (frame == null) {
+            unavailableCount.incrementAndGet();
+            metrics.frameDropped();
+        }
+        return frame;
+    }
+
+    /**
+     * Return an unused frame to the frame pool
+     *
+     * @param       frame           Frame
+     */
+    public void releaseFrame(Frame frame) {
+        framePool.release(frame);
+    }
+
+    /**
+     * Submit a frame for decoding.  This method does not wait for the frame to be
+     * decoded.  A pending frame that has not been picked up by a worker is discarded.
+     *
+     * @param       frame           Frame obtained from acquireFrame()
+     */
+    public void submit(Frame frame) {
+        frameLock.lock();
+        try {
+            if (stopped) {
+                framePool.release(frame);
+                return;
+            }
+            submittedCount++;
+            if (pendingFrame != null) {
+                replacedCount++;
+                metrics.frameDropped();
+                framePool.release(pendingFrame);
+            }
+            pendingFrame = frame;
+            frameAvailable.signal();
+        } finally {
+            frameLock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the next frame
+     *
+     * @return                      Frame or null if the pipeline has been stopped
+     * @throws      InterruptedException    Thread was interrupted while waiting
+     */
+    private Frame takeFrame() throws InterruptedException {
+        Frame frame;
+        frameLock.lock();
+        try {
+            waitingCount++;
+            try {
+                //
+                // The worker is counted as waiting before the callback is run, so
+                // isReady() is true when the frame source checks it
+                //
+                Runnable callback = readyCallback;
+                if (callback != null && pendingFrame == null && !stopped) {
+                    frameLock.unlock();
+                    try {
+                        callback.run();
+                    } finally {
+                        frameLock.lock();
+                    }
+                }
+                while (pendingFrame == null && !stopped)
+                    frameAvailable.await();
+            } finally {
+                waitingCount--;
+            }
+            frame = pendingFrame;
+            pendingFrame = null;
+        } finally {
+            frameLock.unlock();
+        }
+        return frame;
+    }
+
+    /**
+     * Return the result points for a set of decode results
+     *
+     * @param       results         Decode results or null
+     * @return                      Result points
+     */
+    private static ResultPoint[] getResultPoints(Result[] results) {
+        List<ResultPoint> points = new ArrayList<>();
+        if (results != null) {
+            for (Result result : results) {
+                if (result.getResultPoints() != null) {
+                    for (ResultPoint point : result.getResultPoints()) {
+                        if (point != null)
+                            points.add(point);
+                    }
+                }
+            }
+        }
+        return points.toArray(new ResultPoint[points.size()]);
+    }
+
+    /**
+     * Decode worker
+     */
+    private class DecodeWorker implements Runnable {
+
+        /** Frame decoder for this worker */
+        private final FrameDecoder decoder = new FrameDecoder(regionTracker, pyramidStats, tierStats);
+
+        /** Frame gate samples for this worker */
+        private final FrameGate.Sample gateSample = new FrameGate.Sample();
+
+        /**
+         * Decode frames until the pipeline is stopped
+         */
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    Frame frame = takeFrame();
+                    if (frame == null)
+                        break;
+                    try {
+                        if (frameGate != null && !frameGate.accept(frame, gateSample)) {
+                            metrics.frameSkipped();
+                            continue;
+                        }
+                        long startCpuTime = getCpuTime();
+                        long startTime = System.nanoTime();
+                        Result[] results;
+                        boolean tiled = (tiledDecoder != null &&
+                                         tiledDecoder.isTiled(frame.getWidth(), frame.getHeight()));
+                        if (tiled) {
+                            results = tiledDecoder.decode(frame);
+                            if (results != null && !decodeMultiple)
+                                results = new Result[] {results[0]};
+                        } else if (decodeMultiple) {
+                            results = decoder.decodeMultiple(frame);
+                        } else {
+                            Result result = decoder.decode(frame);
+                            results = (result != null ? new Result[] {result} : null);
+                        }
+                        long endTime = System.nanoTime();
+                        //
+                        // The tile tasks record their own processor time since they can
+                        // run on the pool threads as well as on this thread
+                        //
+                        if (startCpuTime >= 0 && !tiled)
+                            decodeCpuTime.add(getCpuTime() - startCpuTime);
+                        if (!firstDecode.get() && firstDecode.compareAndSet(false, true))
+                            log.info(String.format("First frame decoded in %d ms, %d ms after startup",
+                                                   (endTime - startTime) / 1000000, Main.getUptime()));
+                        metrics.frameDecoded(frame.getCaptureTime(), startTime, endTime, results != null);
+                        decodedCount.increment();
+                        if (results != null)
+                            hitCount.increment();
+                        ResolutionController controller = resolutionController;
+                        if (controller != null)
+                            controller.frameDecoded(frame.getWidth(), frame.getHeight(), endTime - startTime,
+                                                    results != null, !tiled && decoder.isCodeDetected());
+                        if (frameGate != null) {
+                            if (results != null)
+                                frameGate.decodeSucceeded();
+                            else
+                                frameGate.decodeFailed(gateSample, tiled || decoder.isFullyTried());
+                        }
+                        ResultPoint[] points = (tiled ? getResultPoints(results) : decoder.getFoundPoints());
+                        if (points.length != 0)
+                            listener.pointsFound(points, frame.getWidth(), frame.getHeight(), results != null);
+                        if (results != null) {
+                            for (Result result : results) {
+                                if (stopped)
+                                    break;
+                                listener.resultDecoded(result, endTime - startTime);
+                            }
+                        }
+                    } catch (Exception exc) {
+                        metrics.frameFailed();
+                        Main.logException("Exception while processing buffered image", exc);
+                    } finally {
+                        framePool.release(frame);
+                    }
+                }
+            } catch (InterruptedException exc) {
+                // Worker is being shut down
+            }
+        }
+    }
+}
@@ -0,0 +1,638 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.imageio.ImageIO;
+
+/**
+ * DecodeServer decodes images sent by other programs over a loopback TCP connection.
+ * The server listens on the loopback address only, so it is not reachable from
+ * other systems.
+ *
+ * A request consists of a 13-byte header followed by the image data.  All integers
+ * are big-endian.
+ * <pre>
+ *   type    1 byte     'I' for an encoded image (PNG, JPEG, GIF or BMP) or
+ *                      'G' for raw grey luminance values (one byte per pixel)
+ *   width   4 bytes    Image width ('G' requests, otherwise 0)
+ *   height  4 bytes    Image height ('G' requests, otherwise 0)
+ *   length  4 bytes    Length of the image data
+ *   data    length bytes
+ * </pre>
+ * Each response is a 4-byte length followed by a UTF-8 JSON object.  The 'id' is the
+ * request number on the connection (starting with 1) and 'status' is 'ok', 'notfound',
+ * 'error' or 'busy'.  A decoded response also contains 'text', 'format' and 'points'.
+ * The decode time and the time from receiving the request to completing the decode
+ * are returned in milliseconds.
+ * <pre>
+ *   {"id":1,"status":"ok","text":"...","format":"QR_CODE","points":[[x,y],...],"decodeMs":1.234,"latencyMs":1.456}
+ * </pre>
+ *
+ * Requests may be pipelined.  The responses are returned in request order.  A
+ * connection may have up to 'server.pipeline' requests in progress (default 32).
+ * After that the server stops reading from the connection until a response has
+ * been written.  Requests are decoded on a fixed worker pool.  A request is answered
+ * immediately with 'busy' status if the worker queue is full ('server.queue', default 64).
+ * Up to 'server.connections' connections are accepted (default 16).  The image data
+ * held by all of the connections is limited to 'server.memory' megabytes (default 256,
+ * at least the 64 MB maximum request length).  A connection stops reading until
+ * enough image data has been released by completed decodes.
+ *
+ * Decode results are kept in the server result cache (see ResultCache).  A response
+ * for an image found in the cache contains '"cached":true'.
+ *
+ * The decoders use the same reader configuration as the scan dialog.  The throughput
+ * and latency are logged every 'server.report' seconds (default 60) and when the
+ * server is stopped.
+ */
+public class DecodeServer {
+
+    /** Maximum image data length */
+    private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    /** Server port */
+    private final int port;
+
+    /** Number of decode workers */
+    private final int workerCount;
+
+    /** Maximum number of requests in progress for a connection */
+    private final int pipelineDepth;
+
+    /** Connection permits */
+    private final Semaphore connectionPermits;
+
+    /** Image data permits (one permit for each KB of request data) */
+    private final Semaphore memoryPermits;
+
+    /** Decode executor */
+    private final ThreadPoolExecutor decodeExecutor;
+
+    /** Connection executor */
+    private final ExecutorService connectionExecutor;
+
+    /** Report executor */
+    private final ScheduledExecutorService reportExecutor;
+
+    /** Report interval (seconds) */
+    private final int reportInterval;
+
+    /** Pyramid statistics or null if pyramid decoding is not enabled */
+    private final PyramidStats pyramidStats;
+
+    /** Decode tier statistics or null if decode tiers are not enabled */
+    private final TierStats tierStats;
+
+    /** Result cache or null */
+    private final ResultCache resultCache;
+
+    /** Frame decoder for each worker */
+    private final ThreadLocal<FrameDecoder> threadDecoder;
+
+    /** Frame for each worker */
+    private final ThreadLocal<Frame> threadFrame = ThreadLocal.withInitial(() -> new Frame());
+
+    /** Server socket */
+    private volatile ServerSocket serverSocket;
+
+    /** Number of requests received */
+    private final LongAdder requestCount = new LongAdder();
+
+    /** Number of requests decoded */
+    private final LongAdder hitCount = new LongAdder();
+
+    /** Number of requests without a QR code */
+    private final LongAdder notFoundCount = new LongAdder();
+
+    /** Number of requests that could not be processed */
+    private final LongAdder errorCount = new LongAdder();
+
+    /** Number of requests rejected because the server was busy */
+    private final LongAdder busyCount = new LongAdder();
+
+    /** Decode time histogram */
+    private final LatencyHistogram decodeTime = new LatencyHistogram();
+
+    /** Request latency histogram (request received to decode complete) */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /** Server start time (System.nanoTime) */
+    private long startTime;
+
+    /** Time of the last report (System.nanoTime) */
+    private long lastReportTime;
+
+    /** Completed request count at the last report */
+    private long lastReportCount;
+
+    /**
+     * Create the decode server
+     *
+     * @param       port            Server port
+     * @param       workerCount     Number of decode workers
+     */
+    public DecodeServer(int port, int workerCount) {
+        this.port = port;
+        this.workerCount = Math.max(1, workerCount);
+        this.pipelineDepth = Math.max(1, Main.getIntegerProperty("server.pipeline", 32));
+        this.connectionPermits = new Semaphore(Math.max(1, Main.getIntegerProperty("server.connections", 16)));
+        this.memoryPermits = new Semaphore(Math.max(MAX_LENGTH/1024,
+                                                    Main.getIntegerProperty("server.memory", 256) * 1024));
+        this.reportInterval = Math.max(1, Main.getIntegerProperty("server.report", 60));
+        int queueSize = Math.max(1, Main.getIntegerProperty("server.queue", 64));
+        decodeExecutor = new ThreadPoolExecutor(this.workerCount, this.workerCount, 0, TimeUnit.SECONDS,
+                                        new ArrayBlockingQueue<>(queueSize), threadFactory("Decode Server Worker"),
+                                        new ThreadPoolExecutor.AbortPolicy());
+        connectionExecutor = Executors.newCachedThreadPool(threadFactory("Decode Server Connection"));
+        reportExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory("Decode Server Report"));
+        pyramidStats = PyramidStats.fromProperties();
+        tierStats = TierStats.forImages();
+        resultCache = ResultCache.fromProperties("server",
+                                String.format("%s tiers=%b pyramid=%d/%d", ResultCache.getDecoderSettings(),
+                                              tierStats != null,
+                                              pyramidStats != null ? pyramidStats.getMaxLevels() : 1,
+                                              pyramidStats != null ? pyramidStats.getMinDimension() : 0));
+        threadDecoder = ThreadLocal.withInitial(() -> new FrameDecoder(null, pyramidStats, tierStats));
+    }
+
+    /**
+     * Accept connections until the server is stopped
+     *
+     * @throws      IOException     Unable to create the server socket
+     */
+    public void run() throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        startTime = System.nanoTime();
+        lastReportTime = startTime;
+        reportExecutor.scheduleAtFixedRate(() -> report(), reportInterval, reportInterval, TimeUnit.SECONDS);
+        log.info(String.format("Decode server listening on %s:%d using %d workers",
+                               serverSocket.getInetAddress().getHostAddress(), serverSocket.getLocalPort(),
+                               workerCount));
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                if (!connectionPermits.tryAcquire()) {
+                    rejectConnection(socket);
+                    continue;
+                }
+                try {
+                    Connection connection = new Connection(socket);
+                    connectionExecutor.execute(() -> connection.readRequests());
+                    connectionExecutor.execute(() -> connection.writeResponses());
+                } catch (IOException | RejectedExecutionException exc) {
+                    log.error("Unable to start connection", exc);
+                    closeSocket(socket);
+                    connectionPermits.release();
+                }
+            }
+        } catch (SocketException exc) {
+            if (serverSocket != null && !serverSocket.isClosed())
+                throw exc;
+            // Server socket was closed by stop()
+        }
+    }
+
+    /**
+     * Stop the server and log the final report
+     */
+    public void stop() {
+        ServerSocket socket = serverSocket;
+        if (socket == null || socket.isClosed())
+            return;
+        closeSocket(socket);
+        reportExecutor.shutdownNow();
+        connectionExecutor.shutdownNow();
+        decodeExecutor.shutdownNow();
+        report();
+        if (tierStats != null)
+            log.info("Decode tiers: {}", tierStats);
+    }
+
+    /**
+     * Return the server port
+     *
+     * @return                      Local port or 0 if the server is not running
+     */
+    public int getLocalPort() {
+        ServerSocket socket = serverSocket;
+        return (socket != null ? socket.getLocalPort() : 0);
+    }
+
+    /**
+     * Log the throughput and latency
+     */
+    private synchronized void report() {
+        long now = System.nanoTime();
+        long completed = hitCount.sum() + notFoundCount.sum() + errorCount.sum();
+        double interval = (double)(now - lastReportTime) / 1.0e9;
+        double elapsed = (double)(now - startTime) / 1.0e9;
+        log.info(String.format("Decode server: %d requests, %d decoded, %d not found, %d errors, %d busy; "
+                               + "%.1f requests/second (%.1f overall)",
+                               requestCount.sum(), hitCount.sum(), notFoundCount.sum(), errorCount.sum(),
+                               busyCount.sum(),
+                               interval > 0 ? (double)(completed - lastReportCount) / interval : 0.0,
+                               elapsed > 0 ? (double)completed / elapsed : 0.0));
+        log.info("Decode server decode time: {}", decodeTime);
+        log.info("Decode server latency: {}", latency);
+        if (resultCache != null) {
+            log.info("Decode server result cache: {}", resultCache);
+            resultCache.save();
+        }
+        lastReportTime = now;
+        lastReportCount = completed;
+    }
+
+    /**
+     * Decode an image request
+     *
+     * @param       request         Request
+     * @return                      JSON response
+     */
+    private String decode(Request request) {
+        long start = System.nanoTime();
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"id\":").append(request.id);
+        try {
+            String key = null;
+            Result[] results = null;
+            if (resultCache != null) {
+                key = ResultCache.contentKey(request.data, request.width, request.height);
+                results = resultCache.get(key);
+            }
+            boolean cached = (results != null);
+            if (results == null) {
+                Frame frame = threadFrame.get();
+                if (request.type == 'G') {
+                    frame.setLuminance(request.data, request.width, request.height, request.receiveTime);
+                } else {
+                    BufferedImage image = ImageIO.read(new ByteArrayInputStream(request.data));
+                    if (image == null)
+                        throw new IOException("Unsupported image format");
+                    frame.setImage(image, request.receiveTime);
+                }
+                long hash = 0;
+                if (resultCache != null) {
+                    hash = ResultCache.perceptualHash(frame);
+                    results = resultCache.getSimilar(key, hash, frame.getWidth(), frame.getHeight());
+                    cached = (results != null);
+                }
+                if (results == null) {
+                    Result decoded = threadDecoder.get().decode(frame);
+                    results = (decoded != null ? new Result[] {decoded} : new Result[0]);
+                    if (resultCache != null)
+                        resultCache.put(key, hash, frame.getWidth(), frame.getHeight(), results);
+                }
+            }
+            Result result = (results.length > 0 ? results[0] : null);
+            if (result != null) {
+                hitCount.increment();
+                json.append(",\"status\":\"ok\",\"text\":");
+                appendString(json, result.getText());
+                json.append(",\"format\":\"").append(result.getBarcodeFormat()).append("\",\"points\":[");
+                ResultPoint[] points = result.getResultPoints();
+                if (points != null) {
+                    boolean first = true;
+                    for (ResultPoint point : points) {
+                        if (point == null)
+                            continue;
+                        if (!first)
+                            json.append(',');
+                        json.append(String.format(Locale.ROOT, "[%.1f,%.1f]", point.getX(), point.getY()));
+                        first = false;
+                    }
+                }
+                json.append(']');
+            } else {
+                notFoundCount.increment();
+                json.append(",\"status\":\"notfound\"");
+            }
+            if (cached)
+                json.append(",\"cached\":true");
+        } catch (IOException | RuntimeException exc) {
+            errorCount.increment();
+            json.append(",\"status\":\"error\",\"message\":");
+            appendString(json, exc.toString());
+        }
+        long end = System.nanoTime();
+        decodeTime.record(end - start);
+        latency.record(end - request.receiveTime);
+        json.append(String.format(Locale.ROOT, ",\"decodeMs\":%.3f,\"latencyMs\":%.3f}",
+                                  (double)(end - start) / 1.0e6, (double)(end - request.receiveTime) / 1.0e6));
+        return json.toString();
+    }
+
+    /**
+     * Append a JSON string
+     *
+     * @param       json            JSON buffer
+     * @param       value           String value
+     */
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i=0; i<value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        json.append(String.format("\\u%04x", (int)c));
+                    else
+                        json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * Reject a connection because the connection limit has been reached
+     *
+     * @param       socket          Client socket
+     */
+    private void rejectConnection(Socket socket) {
+        busyCount.increment();
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            writeResponse(out, "{\"id\":0,\"status\":\"busy\",\"message\":\"Too many connections\"}");
+            out.flush();
+        } catch (IOException exc) {
+            // Connection already closed
+        }
+        closeSocket(socket);
+    }
+
+    /**
+     * Write a response
+     *
+     * @param       out             Output stream
+     * @param       json            JSON response
+     * @throws      IOException     Unable to write the response
+     */
+    private static void writeResponse(DataOutputStream out, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Close a socket
+     *
+     * @param       socket          Socket
+     */
+    private static void closeSocket(Closeable socket) {
+        try {
+            socket.close();
+        } catch (IOException exc) {
+            // Ignore exception
+        }
+    }
+
+    /**
+     * Create a thread factory for daemon threads
+     *
+     * @param       name            Thread name prefix
+     * @return                      Thread factory
+     */
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return (runnable) -> {
+            Thread thread = new Thread(runnable, name + " " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Decode request
+     */
+    private static class Request {
+
+        /** End of requests marker */
+        private static final Request END = new Request(0, 0, 0, 0, null, 0);
+
+        /** Request number */
+        private final long id;
+
+        /** Request type */
+        private final int type;
+
+        /** Image width */
+        private final int width;
+
+        /** Image height */
+        private final int height;
+
+        /** Image data (null after the request has been decoded) */
+        private volatile byte[] data;
+
+        /** Time the request was received (System.nanoTime) */
+        private final long receiveTime;
+
+        /** JSON response */
+        private final CompletableFuture<String> response = new CompletableFuture<>();
+
+        /**
+         * Create a request
+         *
+         * @param       id              Request number
+         * @param       type            Request type
+         * @param       width           Image width
+         * @param       height          Image height
+         * @param       data            Image data
+         * @param       receiveTime     Time the request was received
+         */
+        private Request(long id, int type, int width, int height, byte[] data, long receiveTime) {
+            this.id = id;
+            this.type = type;
+            this.width = width;
+            this.height = height;
+            this.data = data;
+            this.receiveTime = receiveTime;
+        }
+    }
+
+    /**
+     * Client connection.  Requests are read on one thread and responses are written
+     * in request order on another thread.
+     */
+    private class Connection {
+
+        /** Client socket */
+        private final Socket socket;
+
+        /** Input stream */
+        private final DataInputStream in;
+
+        /** Output stream */
+        private final DataOutputStream out;
+
+        /** Requests in progress */
+        private final ArrayBlockingQueue<Request> pending = new ArrayBlockingQueue<>(pipelineDepth + 1);
+
+        /**
+         * Create the connection
+         *
+         * @param       socket          Client socket
+         * @throws      IOException     Unable to get the socket streams
+         */
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+        }
+
+        /**
+         * Read requests until the client closes the connection
+         */
+        private void readRequests() {
+            long id = 0;
+            try {
+                while (true) {
+                    int type;
+                    try {
+                        type = in.readUnsignedByte();
+                    } catch (EOFException exc) {
+                        break;
+                    }
+                    int width = in.readInt();
+                    int height = in.readInt();
+                    int length = in.readInt();
+                    if (type != 'I' && type != 'G')
+                        throw new IOException("Unsupported request type " + type);
+                    if (length < 0 || length > MAX_LENGTH)
+                        throw new IOException("Invalid request length " + length);
+                    if (type == 'G' && (width <= 0 || height <= 0 || (long)width*height != length))
+                        throw new IOException(String.format("Invalid image size %dx%d for length %d",
+                                                            width, height, length));
+                    //
+                    // Reserve the image data before reading it.  The reservation is released
+                    // when the request has been decoded or rejected.
+                    //
+                    int permits = (length + 1023) / 1024;
+                    memoryPermits.acquire(permits);
+                    boolean submitted = false;
+                    try {
+                        byte[] data = new byte[length];
+                        in.readFully(data);
+                        Request request = new Request(++id, type, width, height, data, System.nanoTime());
+                        requestCount.increment();
+                        pending.put(request);
+                        try {
+                            decodeExecutor.execute(() -> {
+                                try {
+                                    request.response.complete(decode(request));
+                                } finally {
+                                    request.data = null;
+                                    memoryPermits.release(permits);
+                                }
+                            });
+                            submitted = true;
+                        } catch (RejectedExecutionException exc) {
+                            busyCount.increment();
+                            request.data = null;
+                            request.response.complete(String.format("{\"id\":%d,\"status\":\"busy\"}", request.id));
+                        }
+                    } finally {
+                        if (!submitted)
+                            memoryPermits.release(permits);
+                    }
+                }
+            } catch (IOException exc) {
+                if (!socket.isClosed())
+                    log.error("Unable to read request: {}", exc.getMessage());
+            } catch (InterruptedException exc) {
+                // Server is stopping
+            }
+            try {
+                pending.put(Request.END);
+            } catch (InterruptedException exc) {
+                closeSocket(socket);
+            }
+        }
+
+        /**
+         * Write responses in request order
+         */
+        private void writeResponses() {
+            try {
+                while (true) {
+                    Request request = pending.take();
+                    if (request == Request.END)
+                        break;
+                    writeResponse(out, request.response.get());
+                    if (pending.isEmpty())
+                        out.flush();
+                }
+                out.flush();
+            } catch (IOException exc) {
+                log.error("Unable to write response: {}", exc.getMessage());
+            } catch (InterruptedException | ExecutionException exc) {
+                // Server is stopping
+            } finally {
+                closeSocket(socket);
+                pending.clear();
+                connectionPermits.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import com.google.zxing.WriterException;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+
+/**
+ * DecoderWarmup decodes a few synthetic frames when the application starts so the
+ * ZXing and frame conversion classes are loaded and compiled before the user scans
+ * a QR code.  The frames are rendered by the synthetic frame source using a fixed
+ * seed and are decoded with the same decoder configuration as the decode workers.
+ *
+ * The warm-up runs on a low-priority background thread unless 'scan.warmup' is
+ * false.  'scan.warmup.frames' sets the number of frames (default 24).
+ */
+public class DecoderWarmup implements Runnable {
+
+    /** QR code text */
+    private static final String TEXT = "QRScanner decoder warm-up frame";
+
+    /** Random number seed */
+    private static final long SEED = 20170901L;
+
+    /** Frame sizes */
+    private static final Dimension[] SIZES = {new Dimension(640, 480), new Dimension(320, 240)};
+
+    /** Number of frames */
+    private final int frameCount;
+
+    /**
+     * Create the decoder warm-up
+     *
+     * @param       frameCount      Number of frames to decode
+     */
+    public DecoderWarmup(int frameCount) {
+        this.frameCount = frameCount;
+    }
+
+    /**
+     * Start the warm-up on a background thread if it is enabled
+     */
+    public static void start() {
+        if (!Boolean.parseBoolean(Main.properties.getProperty("scan.warmup", "true")))
+            return;
+        Thread thread = new Thread(new DecoderWarmup(Main.getIntegerProperty("scan.warmup.frames", 24)),
+                                   "Decoder Warmup");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Decode the warm-up frames.  Every fourth frame does not contain a QR code so
+     * the escalation paths are used as well.
+     */
+    @Override
+    public void run() {
+        long startTime = System.nanoTime();
+        int decoded = 0;
+        try {
+            FrameDecoder decoder = new FrameDecoder(new RegionTracker(15), PyramidStats.fromProperties(),
+                                                    TierStats.fromProperties());
+            Frame frame = new Frame();
+            for (Dimension size : SIZES) {
+                SyntheticFrameSource source = new SyntheticFrameSource(TEXT, size, 1.0, SEED);
+                for (int i=0; i<frameCount/SIZES.length; i++) {
+                    source.setPresence(i%4 == 3 ? 0.0 : 1.0);
+                    BufferedImage image = source.renderImage();
+                    frame.setImage(image, System.nanoTime());
+                    if ((i%8 == 7 ? decoder.decodeMultiple(frame) != null : decoder.decode(frame) != null))
+                        decoded++;
+                }
+            }
+        } catch (WriterException | RuntimeException exc) {
+            log.error("Decoder warm-up failed", exc);
+            return;
+        }
+        log.info(String.format("Decoder warm-up: %d of %d frames decoded in %d ms",
+                               decoded, frameCount/SIZES.length*SIZES.length,
+                               (System.nanoTime() - startTime) / 1000000));
+    }
+}
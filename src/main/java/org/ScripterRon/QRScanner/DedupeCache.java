@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DedupeCache suppresses repeated QR codes during a continuous scan.  A code is
+ * reported the first time it is seen and is not reported again until it has not
+ * been seen for the time-to-live interval, so a code held in front of the camera
+ * is reported just once.
+ *
+ * The cache holds a limited number of codes.  Entries are kept in last-seen order
+ * so expired entries are removed from the front and the least recently seen entry
+ * is removed when the cache is full.
+ */
+public class DedupeCache {
+
+    /** Last seen time for each code (milliseconds) */
+    private final LinkedHashMap<String, Long> lastSeen;
+
+    /** Time-to-live (milliseconds) */
+    private final long timeToLive;
+
+    /** Maximum number of entries */
+    private final int maxSize;
+
+    /**
+     * Create the cache
+     *
+     * @param       timeToLive      Time-to-live (milliseconds)
+     * @param       maxSize         Maximum number of entries
+     */
+    public DedupeCache(long timeToLive, int maxSize) {
+        this.timeToLive = timeToLive;
+        this.maxSize = maxSize;
+        this.lastSeen = new LinkedHashMap<String, Long>(Math.min(maxSize, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > DedupeCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Create the cache using the application properties ('scan.dedupe.ttl' in
+     * milliseconds, default 3000, and 'scan.dedupe.size', default 1000)
+     *
+     * @return                      Dedupe cache
+     */
+    public static DedupeCache fromProperties() {
+        return new DedupeCache(Main.getIntegerProperty("scan.dedupe.ttl", 3000),
+                               Main.getIntegerProperty("scan.dedupe.size", 1000));
+    }
+
+    /**
+     * Record a code
+     *
+     * @param       key             Code key
+     * @param       now             Current time (milliseconds)
+     * @return                      TRUE if this is a new code that should be reported
+     */
+    public synchronized boolean add(String key, long now) {
+        //
+        // Remove expired entries (the map is in last-seen order)
+        //
+        Iterator<Map.Entry<String, Long>> it = lastSeen.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue() < timeToLive)
+                break;
+            it.remove();
+        }
+        //
+        // Update the last-seen time (this moves the entry to the end of the map)
+        //
+        Long previous = lastSeen.put(key, now);
+        return (previous == null);
+    }
+
+    /**
+     * Remove all entries
+     */
+    public synchronized void clear() {
+        lastSeen.clear();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/**
+ * DirectoryFrameSource plays back the image files in a directory at a fixed frame
+ * rate.  The images are played in file name order and playback can optionally
+ * restart with the first image after the last image has been played.
+ */
+public class DirectoryFrameSource extends TimedFrameSource {
+
+    /** Image directory */
+    private final Path directory;
+
+    /** Image files */
+    private final List<Path> files = new ArrayList<>();
+
+    /** Restart after the last image */
+    private final boolean loop;
+
+    /** Image size (size of the first image) */
+    private final Dimension viewSize;
+
+    /** Next image index */
+    private int nextIndex = 0;
+
+    /**
+     * Create the directory frame source
+     *
+     * @param       directory       Image directory
+     * @param       frameRate       Frames per second
+     * @param       loop            TRUE to restart after the last image
+     * @throws      IOException     Unable to read the directory
+     */
+    public DirectoryFrameSource(Path directory, double frameRate, boolean loop) throws IOException {
+        super(frameRate);
+        this.directory = directory;
+        this.loop = loop;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path) && BatchDecoder.isImageFile(path))
+                    files.add(path);
+            }
+        }
+        if (files.isEmpty())
+            throw new IOException("No image files found in '" + directory + "'");
+        Collections.sort(files);
+        BufferedImage image = ImageIO.read(files.get(0).toFile());
+        if (image == null)
+            throw new IOException("Unsupported image format: " + files.get(0));
+        viewSize = new Dimension(image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Return the source name
+     *
+     * @return                      Source name
+     */
+    @Override
+    public String getName() {
+        return "Directory " + directory.getFileName();
+    }
+
+    /**
+     * Return the image size
+     *
+     * @return                      Image size
+     */
+    @Override
+    public Dimension getViewSize() {
+        return viewSize;
+    }
+
+    /**
+     * Return the next image
+     *
+     * @return                      Image or null if all images have been played
+     * @throws      IOException     Unable to read the image
+     */
+    @Override
+    protected BufferedImage nextImage() throws IOException {
+        if (nextIndex == files.size()) {
+            if (!loop)
+                return null;
+            nextIndex = 0;
+        }
+        Path path = files.get(nextIndex++);
+        BufferedImage image = ImageIO.read(path.toFile());
+        if (image == null)
+            throw new IOException("Unsupported image format: " + path);
+        return image;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * A Frame holds the luminance (grey) values for a single camera image.
+ *
+ * Frames are obtained from a FramePool and are reused once they have been
+ * decoded.  The luminance buffer is allocated when the frame is
+ * first used and is reallocated only if the image size increases, so a running
+ * scan does not allocate a new buffer for each camera image.
+ *
+ * Byte and packed integer images are converted a row at a time by the pixel
+ * kernels (see PixelKernels).
+ */
+public class Frame {
+
+    /** Luminance values (one byte per pixel, row-major) */
+    private byte[] luminance = new byte[0];
+
+    /** Pixel kernels */
+    private static final PixelKernels kernels = PixelKernels.getInstance();
+
+    /** Pixel row used when the image format is not directly supported */
+    private int[] pixelRow = new int[0];
+
+    /** Image width */
+    private int width;
+
+    /** Image height */
+    private int height;
+
+    /** Capture time (nanoseconds) */
+    private long captureTime;
+
+    /**
+     * Create an empty frame
+     */
+    public Frame() {
+    }
+
+    /**
+     * Return the image width
+     *
+     * @return                      Image width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Return the image height
+     *
+     * @return                      Image height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Return the luminance values.  The array may be larger than width*height.
+     *
+     * @return                      Luminance array
+     */
+    public byte[] getLuminance() {
+        return luminance;
+    }
+
+    /**
+     * Return the capture time
+     *
+     * @return                      Capture time (System.nanoTime)
+     */
+    public long getCaptureTime() {
+        return captureTime;
+    }
+
+    /**
+     * Return a luminance source for this frame.  The source refers to the frame
+     * buffer and is no longer valid once the frame has been returned to the pool.
+     *
+     * @return                      Luminance source
+     */
+    public GreyLuminanceSource getLuminanceSource() {
+        return new GreyLuminanceSource(luminance, width, height, 0, 0, width, height);
+    }
+
+    /**
+     * Set the image size, reallocating the luminance buffer if it is too small
+     *
+     * @param       width           Image width
+     * @param       height          Image height
+     */
+    private void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        if (luminance.length < width*height)
+            luminance = new byte[width*height];
+    }
+
+    /**
+     * Set the frame from grey luminance values (one byte per pixel, row-major)
+     *
+     * @param       data            Luminance values
+     * @param       width           Image width
+     * @param       height          Image height
+     * @param       captureTime     Capture time (System.nanoTime)
+     */
+    public void setLuminance(byte[] data, int width, int height, long captureTime) {
+        if (data.length < width*height)
+            throw new IllegalArgumentException("Luminance data is smaller than the image");
+        setSize(width, height);
+        this.captureTime = captureTime;
+        System.arraycopy(data, 0, luminance, 0, width*height);
+    }
+
+    /**
+     * Set the frame from an image.  The image raster is read directly when it
+     * uses byte or packed integer pixels.
+     *
+     * @param       image           Image
+     * @param       captureTime     Capture time (System.nanoTime)
+     */
+    public void setImage(BufferedImage image, long captureTime) {
+        setSize(image.getWidth(), image.getHeight());
+        this.captureTime = captureTime;
+        Raster raster = image.getRaster();
+        SampleModel model = raster.getSampleModel();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        boolean converted = false;
+        if (raster.getParent() == null && raster.getNumBands() >= 3 && dataBuffer.getOffset() == 0 &&
+                                image.getColorModel().getTransparency() == BufferedImage.OPAQUE) {
+            if (dataBuffer instanceof DataBufferByte && dataBuffer.getNumBanks() == 1 &&
+                                model instanceof ComponentSampleModel) {
+                convertBytes(((DataBufferByte)dataBuffer).getData(), (ComponentSampleModel)model);
+                converted = true;
+            } else if (dataBuffer instanceof DataBufferInt && dataBuffer.getNumBanks() == 1 &&
+                                model instanceof SinglePixelPackedSampleModel &&
+                                image.getType() == BufferedImage.TYPE_INT_RGB) {
+                convertInts(((DataBufferInt)dataBuffer).getData(), (SinglePixelPackedSampleModel)model);
+                converted = true;
+            }
+        }
+        if (!converted)
+            convertImage(image);
+    }
+
+    /**
+     * Convert interleaved byte pixels
+     *
+     * @param       data            Pixel data
+     * @param       model           Sample model
+     */
+    private void convertBytes(byte[] data, ComponentSampleModel model) {
+        int[] bandOffsets = model.getBandOffsets();
+        int pixelStride = model.getPixelStride();
+        int scanlineStride = model.getScanlineStride();
+        for (int y=0; y<height; y++)
+            kernels.lumaBytes(data, y*scanlineStride, pixelStride, bandOffsets[0], bandOffsets[1],
+                              bandOffsets[2], luminance, y*width, width);
+    }
+
+    /**
+     * Convert packed integer pixels
+     *
+     * @param       data            Pixel data
+     * @param       model           Sample model
+     */
+    private void convertInts(int[] data, SinglePixelPackedSampleModel model) {
+        int scanlineStride = model.getScanlineStride();
+        for (int y=0; y<height; y++)
+            kernels.lumaInts(data, y*scanlineStride, luminance, y*width, width);
+    }
+
+    /**
+     * Convert an image using the color model, one row at a time
+     *
+     * @param       image           Image
+     */
+    private void convertImage(BufferedImage image) {
+        if (pixelRow.length < width)
+            pixelRow = new int[width];
+        for (int y=0, i=0; y<height; y++) {
+            image.getRGB(0, y, width, 1, pixelRow, 0, width);
+            for (int x=0; x<width; x++, i++) {
+                int pixel = pixelRow[x];
+                if ((pixel&0xff000000) == 0) {
+                    // Treat transparent pixels as white
+                    luminance[i] = (byte)0xff;
+                } else {
+                    luminance[i] = luma((pixel>>16)&0xff, (pixel>>8)&0xff, pixel&0xff);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the luminance for a pixel.  This uses the same integer weights as the
+     * ZXing BufferedImageLuminanceSource so both produce the same grey values.
+     *
+     * @param       r               Red component
+     * @param       g               Green component
+     * @param       b               Blue component
+     * @return                      Luminance
+     */
+    static byte luma(int r, int g, int b) {
+        return (byte)((306*r + 601*g + 117*b + 0x200) >> 10);
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.ResultPointCallback;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+import com.google.zxing.multi.qrcode.QRCodeMultiReader;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FrameDecoder scans a single image looking for a QR code.
+ *
+ * The ZXing MultiFormatReader is not thread-safe, so each decode thread
+ * must have its own FrameDecoder.
+ *
+ * If a region tracker is provided, the region around the last detected QR code
+ * is scanned first and the full frame is scanned only if no QR code is found
+ * in the region.
+ *
+ * If pyramid decoding is enabled, the full frame is scanned starting with the
+ * most downsampled pyramid level and moving to the next finer level only if no
+ * QR code is found.  A large QR code can be decoded at a reduced resolution for
+ * a fraction of the cost of binarizing the full frame.
+ *
+ * If decode tiers are enabled, frames that are not decoded by the normal scan are
+ * sometimes scanned again using more expensive methods (see TierStats).
+ */
+public class FrameDecoder implements ResultPointCallback {
+
+    /** Multi-format barcode reader */
+    private final MultiFormatReader barcodeReader;
+
+    /** Multiple QR code reader */
+    private final QRCodeMultiReader multiReader = new QRCodeMultiReader();
+
+    /** Decode hints */
+    private final Map<DecodeHintType, Object> hints;
+
+    /** Binarizer scratch storage */
+    private final PooledBinarizer.Scratch scratch = new PooledBinarizer.Scratch();
+
+    /** Region tracker or null */
+    private final RegionTracker regionTracker;
+
+    /** Pyramid statistics or null if pyramid decoding is not enabled */
+    private PyramidStats pyramidStats;
+
+    /** Luminance pyramid or null if pyramid decoding is not enabled */
+    private LuminancePyramid pyramid;
+
+    /** Decode tier statistics or null if decode tiers are not enabled */
+    private TierStats tierStats;
+
+    /** Barcode reader using the TRY_HARDER hint */
+    private MultiFormatReader tryHarderReader;
+
+    /** Inverted or rotated image buffer */
+    private byte[] tierBuffer;
+
+    /** Points found during the current decode (image coordinates) */
+    private final List<ResultPoint> foundPoints = new ArrayList<>();
+
+    /** Horizontal offset of the image being decoded */
+    private int offsetX;
+
+    /** Vertical offset of the image being decoded */
+    private int offsetY;
+
+    /** Scale of the image being decoded */
+    private int scale;
+
+    /** Image width if the image being decoded is rotated, otherwise 0 */
+    private int rotatedWidth;
+
+    /** A QR code was detected in the last frame but could not be decoded */
+    private boolean codeDetected;
+
+    /** All of the decode tiers were tried on the last frame */
+    private boolean fullyTried;
+
+    /**
+     * Create a frame decoder
+     */
+    public FrameDecoder() {
+        this(null);
+    }
+
+    /**
+     * Create a frame decoder using a region tracker
+     *
+     * @param       regionTracker   Region tracker or null
+     */
+    public FrameDecoder(RegionTracker regionTracker) {
+        this.regionTracker = regionTracker;
+        barcodeReader = new MultiFormatReader();
+        hints = getHints();
+        hints.put(DecodeHintType.NEED_RESULT_POINT_CALLBACK, this);
+        barcodeReader.setHints(hints);
+    }
+
+    /**
+     * Create a frame decoder with the optional decode stages
+     *
+     * @param       regionTracker   Region tracker or null
+     * @param       pyramidStats    Pyramid statistics or null if pyramid decoding is disabled
+     * @param       tierStats       Tier statistics or null if decode tiers are disabled
+     */
+    public FrameDecoder(RegionTracker regionTracker, PyramidStats pyramidStats, TierStats tierStats) {
+        this(regionTracker);
+        if (pyramidStats != null)
+            setPyramid(pyramidStats);
+        if (tierStats != null)
+            setTiers(tierStats);
+    }
+
+    /**
+     * Enable pyramid decoding
+     *
+     * @param       pyramidStats    Pyramid settings and statistics
+     */
+    public void setPyramid(PyramidStats pyramidStats) {
+        this.pyramidStats = pyramidStats;
+        this.pyramid = new LuminancePyramid(pyramidStats.getMaxLevels());
+    }
+
+    /**
+     * Enable decode tiers
+     *
+     * @param       tierStats       Tier settings and statistics
+     */
+    public void setTiers(TierStats tierStats) {
+        this.tierStats = tierStats;
+        Map<DecodeHintType, Object> tryHarderHints = new HashMap<>(hints);
+        tryHarderHints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        tryHarderReader = new MultiFormatReader();
+        tryHarderReader.setHints(tryHarderHints);
+    }
+
+    /**
+     * Return the decode hints used to scan images.  We will look for just QR codes.
+     *
+     * @return                      Decode hints
+     */
+    public static Map<DecodeHintType, Object> getHints() {
+        Map<DecodeHintType, Object> hints = new HashMap<>();
+        List<BarcodeFormat> formats = new ArrayList<>();
+        formats.add(BarcodeFormat.QR_CODE);
+        hints.put(DecodeHintType.POSSIBLE_FORMATS, formats);
+        return hints;
+    }
+
+    /**
+     * Decode a frame
+     *
+     * @param       frame           Frame to be scanned
+     * @return                      Decode result or null if no QR code was found
+     */
+    public Result decode(Frame frame) {
+        codeDetected = false;
+        fullyTried = true;
+        if (tierStats == null)
+            return decodeBase(frame);
+        Result result = null;
+        TierStats.Tier preferred = tierStats.getPreferredTier();
+        //
+        // Try the preferred tier first if a more expensive tier decoded the last QR code
+        //
+        if (preferred != TierStats.Tier.BASE) {
+            result = decodeTier(frame, preferred);
+            tierStats.preferredResult(preferred, result != null);
+        }
+        //
+        // Try the base tier
+        //
+        if (result == null) {
+            result = decodeTier(frame, TierStats.Tier.BASE);
+            if (result != null && preferred != TierStats.Tier.BASE)
+                tierStats.decoded(TierStats.Tier.BASE);
+        }
+        //
+        // Try the remaining tiers if this frame is sampled for escalation
+        //
+        if (result == null) {
+            if (tierStats.escalate()) {
+                for (TierStats.Tier tier : TierStats.getTiers()) {
+                    if (tier == TierStats.Tier.BASE || tier == preferred)
+                        continue;
+                    result = decodeTier(frame, tier);
+                    if (result != null) {
+                        tierStats.decoded(tier);
+                        break;
+                    }
+                }
+            } else {
+                fullyTried = false;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Decode a frame using a single decode tier
+     *
+     * @param       frame           Frame to be scanned
+     * @param       tier            Decode tier
+     * @return                      Decode result or null if no QR code was found
+     */
+    private Result decodeTier(Frame frame, TierStats.Tier tier) {
+        long startTime = System.nanoTime();
+        GreyLuminanceSource source = frame.getLuminanceSource();
+        Result result;
+        switch (tier) {
+            case GLOBAL:
+                result = decode(new BinaryBitmap(new GlobalHistogramBinarizer(source)), barcodeReader, 0, 0, 1);
+                break;
+            case TRY_HARDER:
+                result = decode(new BinaryBitmap(new PooledBinarizer(source, scratch)), tryHarderReader, 0, 0, 1);
+                break;
+            case INVERTED:
+                GreyLuminanceSource inverted = source.invert(tierBuffer);
+                tierBuffer = inverted.getData();
+                result = decode(inverted, 0, 0, 1);
+                break;
+            case ROTATED:
+                GreyLuminanceSource rotated = source.rotateCounterClockwise(tierBuffer);
+                tierBuffer = rotated.getData();
+                rotatedWidth = frame.getWidth();
+                try {
+                    result = decode(rotated, 0, 0, 1);
+                } finally {
+                    rotatedWidth = 0;
+                }
+                break;
+            default:
+                result = decodeBase(frame);
+        }
+        tierStats.record(tier, result != null, System.nanoTime() - startTime);
+        return result;
+    }
+
+    /**
+     * Decode a frame using the region tracker and the luminance pyramid
+     *
+     * @param       frame           Frame to be scanned
+     * @return                      Decode result or null if no QR code was found
+     */
+    private Result decodeBase(Frame frame) {
+        GreyLuminanceSource source = frame.getLuminanceSource();
+        Result result = null;
+        //
+        // Scan the region around the last detection
+        //
+        Rectangle region = null;
+        if (regionTracker != null)
+            region = regionTracker.getRegion(frame.getWidth(), frame.getHeight());
+        if (region != null) {
+            result = decode(source.crop(region.x, region.y, region.width, region.height),
+                            region.x, region.y, 1);
+            regionTracker.regionScanned(result != null);
+            if (result != null)
+                regionTracker.detected(foundPoints, true);
+        }
+        //
+        // Scan the full frame if there is no region or the region scan failed
+        //
+        if (result == null) {
+            if (pyramid != null)
+                result = decodePyramid(frame);
+            else
+                result = decode(source, 0, 0, 1);
+            if (regionTracker != null)
+                regionTracker.detected(foundPoints, result != null);
+            if (result == null && foundPoints.size() >= 3)
+                codeDetected = true;
+        }
+        return result;
+    }
+
+    /**
+     * Check if a QR code was detected in the last frame but could not be decoded.
+     * The code is detected if at least three finder patterns were found during
+     * the full frame scan.
+     *
+     * @return                      TRUE if a QR code was detected but not decoded
+     */
+    public boolean isCodeDetected() {
+        return codeDetected;
+    }
+
+    /**
+     * Check if all of the decode tiers were tried on the last frame.  This is
+     * FALSE if the frame was not decoded and was not sampled for escalation, so
+     * the frame could still be decoded by one of the more expensive tiers.
+     *
+     * @return                      TRUE if all of the decode tiers were tried
+     */
+    public boolean isFullyTried() {
+        return fullyTried;
+    }
+
+    /**
+     * Return the finder and alignment patterns located in the last frame.  These
+     * are the result points if a QR code was decoded.
+     *
+     * @return                      Points in image coordinates
+     */
+    public ResultPoint[] getFoundPoints() {
+        return foundPoints.toArray(new ResultPoint[foundPoints.size()]);
+    }
+
+    /**
+     * Decode all of the QR codes in a frame.  The full frame is always scanned.
+     *
+     * @param       frame           Frame to be scanned
+     * @return                      Decode results or null if no QR code was found
+     */
+    public Result[] decodeMultiple(Frame frame) {
+        return decodeMultiple(frame.getLuminanceSource(), 0, 0);
+    }
+
+    /**
+     * Decode all of the QR codes in a luminance source that is located within a
+     * larger image.  The result points are converted to image coordinates.
+     *
+     * @param       source          Luminance source
+     * @param       left            Left edge of the source within the image
+     * @param       top             Top edge of the source within the image
+     * @return                      Decode results or null if no QR code was found
+     */
+    public Result[] decodeMultiple(LuminanceSource source, int left, int top) {
+        codeDetected = false;
+        fullyTried = true;
+        offsetX = left;
+        offsetY = top;
+        scale = 1;
+        foundPoints.clear();
+        BinaryBitmap bitmap = new BinaryBitmap(new PooledBinarizer(source, scratch));
+        Result[] results;
+        try {
+            results = multiReader.decodeMultiple(bitmap, hints);
+            if (results.length == 0) {
+                results = null;
+            } else if (left != 0 || top != 0) {
+                for (int i=0; i<results.length; i++)
+                    results[i] = translateResult(results[i]);
+            }
+        } catch (NotFoundException exc) {
+            // No QR code in image
+            results = null;
+        }
+        return results;
+    }
+
+    /**
+     * Decode a frame starting with the coarsest pyramid level
+     *
+     * @param       frame           Frame to be scanned
+     * @return                      Decode result or null if no QR code was found
+     */
+    private Result decodePyramid(Frame frame) {
+        Result result = null;
+        pyramid.build(frame, pyramidStats.getMinDimension());
+        for (int level=pyramid.getLevelCount()-1; level>=0 && result==null; level--) {
+            result = decode(pyramid.getLevel(level), 0, 0, 1<<level);
+            pyramidStats.record(level, result != null);
+        }
+        return result;
+    }
+
+    /**
+     * Decode a luminance source
+     *
+     * @param       source          Luminance source
+     * @return                      Decode result or null if no QR code was found
+     */
+    public Result decode(LuminanceSource source) {
+        return decode(source, 0, 0, 1);
+    }
+
+    /**
+     * Decode a luminance source that is located within a larger image and possibly
+     * downsampled.  The result points are converted to image coordinates.
+     *
+     * @param       source          Luminance source
+     * @param       left            Left edge of the source within the image
+     * @param       top             Top edge of the source within the image
+     * @param       scale           Source pixel size in image pixels
+     * @return                      Decode result or null if no QR code was found
+     */
+    private Result decode(LuminanceSource source, int left, int top, int scale) {
+        return decode(new BinaryBitmap(new PooledBinarizer(source, scratch)), barcodeReader, left, top, scale);
+    }
+
+    /**
+     * Decode a binary bitmap using the supplied barcode reader.  The result points
+     * are converted to image coordinates.
+     *
+     * @param       bitmap          Binary bitmap
+     * @param       reader          Barcode reader
+     * @param       left            Left edge of the source within the image
+     * @param       top             Top edge of the source within the image
+     * @param       scale           Source pixel size in image pixels
+     * @return                      Decode result or null if no QR code was found
+     */
+    private Result decode(BinaryBitmap bitmap, MultiFormatReader reader, int left, int top, int scale) {
+        offsetX = left;
+        offsetY = top;
+        this.scale = scale;
+        foundPoints.clear();
+        Result result;
+        try {
+            result = reader.decodeWithState(bitmap);
+            if (left != 0 || top != 0 || scale != 1 || rotatedWidth != 0)
+                result = translateResult(result);
+            ResultPoint[] points = result.getResultPoints();
+            if (points != null) {
+                foundPoints.clear();
+                for (ResultPoint point : points) {
+                    if (point != null)
+                        foundPoints.add(point);
+                }
+            }
+        } catch (ReaderException exc) {
+            // No QR code in image or the QR code could not be decoded
+            result = null;
+        }
+        return result;
+    }
+
+    /**
+     * Convert a point from source coordinates to image coordinates
+     *
+     * @param       point           Source point
+     * @return                      Image point
+     */
+    private ResultPoint translatePoint(ResultPoint point) {
+        if (rotatedWidth != 0)
+            return new ResultPoint(rotatedWidth - 1 - point.getY(), point.getX());
+        if (scale == 1)
+            return new ResultPoint(point.getX() + offsetX, point.getY() + offsetY);
+        return new ResultPoint((point.getX() + 0.5f) * scale - 0.5f + offsetX,
+                               (point.getY() + 0.5f) * scale - 0.5f + offsetY);
+    }
+
+    /**
+     * Convert the result points to image coordinates
+     *
+     * @param       result          Decode result
+     * @return                      Translated result
+     */
+    private Result translateResult(Result result) {
+        ResultPoint[] points = result.getResultPoints();
+        if (points == null)
+            return result;
+        ResultPoint[] translated = new ResultPoint[points.length];
+        for (int i=0; i<points.length; i++) {
+            if (points[i] != null)
+                translated[i] = translatePoint(points[i]);
+        }
+        Result newResult = new Result(result.getText(), result.getRawBytes(), result.getNumBits(),
+                                      translated, result.getBarcodeFormat(), result.getTimestamp());
+        newResult.putAllMetadata(result.getResultMetadata());
+        return newResult;
+    }
+
+    /**
+     * Possible result point found (ResultPointCallback interface)
+     *
+     * This is called by the QR code detector for each finder pattern and alignment
+     * pattern that it locates.  The point is in the coordinates of the luminance
+     * source being decoded.
+     *
+     * @param       point           Result point
+     */
+    @Override
+    public void foundPossibleResultPoint(ResultPoint point) {
+        foundPoints.add(translatePoint(point));
+    }
+}
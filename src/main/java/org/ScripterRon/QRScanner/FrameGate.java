@@ -0,0 +1,282 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FrameGate decides if a frame is worth decoding.  It is computed on a grid of
+ * sample points, where each sample is the average of a 2x2 pixel block, so it costs
+ * much less than a decode.
+ *
+ * A frame is rejected if it is nearly the same as the last frame that was decoded
+ * without finding a QR code (the mean absolute sample difference is less than the
+ * difference threshold) or if it is blurry (the variance of the Laplacian at the
+ * sample points is less than the sharpness threshold).  A frame is always accepted
+ * after a number of consecutive rejections so a threshold that is set too high
+ * cannot stop scanning altogether.
+ *
+ * The gate is shared by the decode workers.  Each worker provides its own sample
+ * storage.
+ */
+public class FrameGate {
+
+    /** Grid spacing (pixels) */
+    private final int step;
+
+    /** Difference threshold (average luminance levels) */
+    private final double differenceThreshold;
+
+    /** Sharpness threshold (Laplacian variance) */
+    private final double sharpnessThreshold;
+
+    /** Maximum number of consecutive rejections */
+    private final int maxSkip;
+
+    /** Samples for the last frame that was decoded without success (protected by this) */
+    private int[] reference = new int[0];
+
+    /** Number of reference samples or 0 if there is no reference frame (protected by this) */
+    private int referenceCount;
+
+    /** All of the decode tiers were tried on the reference frame (protected by this) */
+    private boolean referenceTried;
+
+    /** Number of consecutive rejections (protected by this) */
+    private int skipCount;
+
+    /** Number of frames checked */
+    private final AtomicLong checkedCount = new AtomicLong();
+
+    /** Number of frames rejected as unchanged */
+    private final AtomicLong unchangedCount = new AtomicLong();
+
+    /** Number of frames rejected as blurry */
+    private final AtomicLong blurryCount = new AtomicLong();
+
+    /**
+     * Create the frame gate
+     *
+     * @param       step                    Grid spacing (pixels)
+     * @param       differenceThreshold     Difference threshold (0 to disable)
+     * @param       sharpnessThreshold      Sharpness threshold (0 to disable)
+     * @param       maxSkip                 Maximum number of consecutive rejections
+     */
+    public FrameGate(int step, double differenceThreshold, double sharpnessThreshold, int maxSkip) {
+        this.step = Math.max(4, step);
+        this.differenceThreshold = differenceThreshold;
+        this.sharpnessThreshold = sharpnessThreshold;
+        this.maxSkip = maxSkip;
+    }
+
+    /**
+     * Create the frame gate using the application properties
+     *
+     * @return                      Frame gate or null if the gate is disabled
+     */
+    public static FrameGate fromProperties() {
+        if (!Boolean.parseBoolean(Main.properties.getProperty("scan.gate", "true")))
+            return null;
+        return new FrameGate(Main.getIntegerProperty("scan.gate.step", 8),
+                             Main.getDoubleProperty("scan.gate.difference", 3.0),
+                             Main.getDoubleProperty("scan.gate.sharpness", 20.0),
+                             Main.getIntegerProperty("scan.gate.maxskip", 15));
+    }
+
+    /**
+     * Check if a frame should be decoded
+     *
+     * @param       frame           Frame
+     * @param       sample          Sample storage for the calling thread
+     * @return                      TRUE if the frame should be decoded
+     */
+    public boolean accept(Frame frame, Sample sample) {
+        checkedCount.incrementAndGet();
+        sample.compute(frame, step);
+        boolean unchanged = false;
+        boolean blurry = (sharpnessThreshold > 0 && sample.sharpness < sharpnessThreshold);
+        synchronized(this) {
+            if (differenceThreshold > 0 && referenceCount == sample.count && referenceTried) {
+                long sum = 0;
+                int[] values = sample.values;
+                for (int i=0; i<referenceCount; i++)
+                    sum += Math.abs(values[i] - reference[i]);
+                // Samples are 4 times the average luminance
+                unchanged = ((double)sum / (double)(4*referenceCount) < differenceThreshold);
+            }
+            if (!unchanged && !blurry) {
+                skipCount = 0;
+                return true;
+            }
+            if (++skipCount > maxSkip) {
+                skipCount = 0;
+                return true;
+            }
+        }
+        if (unchanged)
+            unchangedCount.incrementAndGet();
+        else
+            blurryCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * A frame was decoded without finding a QR code.  The frame becomes the reference
+     * for the difference check.  Frames are not rejected as unchanged until all of
+     * the decode tiers have been tried on the reference frame, so an unchanged frame
+     * that is hard to decode still gets the more expensive tiers.
+     *
+     * @param       sample          Sample storage containing the frame samples
+     * @param       fullyTried      TRUE if all of the decode tiers were tried on the frame
+     */
+    public synchronized void decodeFailed(Sample sample, boolean fullyTried) {
+        if (reference.length < sample.count)
+            reference = new int[sample.count];
+        System.arraycopy(sample.values, 0, reference, 0, sample.count);
+        referenceCount = sample.count;
+        referenceTried = fullyTried;
+    }
+
+    /**
+     * A QR code was found in a frame.  There is no longer a reference frame.
+     */
+    public synchronized void decodeSucceeded() {
+        referenceCount = 0;
+    }
+
+    /**
+     * Return the number of frames checked
+     *
+     * @return                      Number of frames checked
+     */
+    public long getCheckedCount() {
+        return checkedCount.get();
+    }
+
+    /**
+     * Return the number of frames rejected because they were unchanged
+     *
+     * @return                      Number of frames rejected
+     */
+    public long getUnchangedCount() {
+        return unchangedCount.get();
+    }
+
+    /**
+     * Return the number of frames rejected because they were blurry
+     *
+     * @return                      Number of frames rejected
+     */
+    public long getBlurryCount() {
+        return blurryCount.get();
+    }
+
+    /**
+     * Return the gate statistics
+     *
+     * @return                      Statistics string
+     */
+    @Override
+    public String toString() {
+        return String.format("%d frames checked, %d unchanged, %d blurry",
+                             checkedCount.get(), unchangedCount.get(), blurryCount.get());
+    }
+
+    /**
+     * Sample storage for a single decode thread
+     */
+    public static class Sample {
+
+        /** Sample values (sum of a 2x2 block) */
+        private int[] values = new int[0];
+
+        /** Number of samples */
+        private int count;
+
+        /** Laplacian variance */
+        private double sharpness;
+
+        /**
+         * Create the sample storage
+         */
+        public Sample() {
+        }
+
+        /**
+         * Return the sharpness of the last frame
+         *
+         * @return                  Laplacian variance
+         */
+        public double getSharpness() {
+            return sharpness;
+        }
+
+        /**
+         * Compute the samples for a frame.  The Laplacian is computed using the
+         * 2x2 blocks two pixels away on each side of the sample block.
+         *
+         * @param       frame       Frame
+         * @param       step        Grid spacing
+         */
+        private void compute(Frame frame, int step) {
+            byte[] data = frame.getLuminance();
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            int columns = Math.max(0, (width - 4) / step);
+            int rows = Math.max(0, (height - 4) / step);
+            count = columns * rows;
+            if (values.length < count)
+                values = new int[count];
+            long lapSum = 0;
+            long lapSquares = 0;
+            int index = 0;
+            for (int row=0; row<rows; row++) {
+                int y = row*step + 2;
+                for (int col=0; col<columns; col++) {
+                    int x = col*step + 2;
+                    int center = block(data, width, x, y);
+                    int laplacian = 4*center - block(data, width, x-2, y) - block(data, width, x+2, y)
+                                             - block(data, width, x, y-2) - block(data, width, x, y+2);
+                    values[index++] = center;
+                    lapSum += laplacian;
+                    lapSquares += (long)laplacian * laplacian;
+                }
+            }
+            if (count > 0) {
+                // Block sums are 4 times the average luminance
+                double mean = (double)lapSum / (double)count / 4.0;
+                sharpness = (double)lapSquares / (double)count / 16.0 - mean*mean;
+            } else {
+                sharpness = 0.0;
+            }
+        }
+
+        /**
+         * Return the sum of the 2x2 block at the specified location
+         *
+         * @param       data        Luminance data
+         * @param       width       Row width
+         * @param       x           Block left edge
+         * @param       y           Block top edge
+         * @return                  Block sum
+         */
+        private static int block(byte[] data, int width, int x, int y) {
+            int offset = y*width + x;
+            return (data[offset] & 0xff) + (data[offset+1] & 0xff) +
+                   (data[offset+width] & 0xff) + (data[offset+width+1] & 0xff);
+        }
+    }
+}
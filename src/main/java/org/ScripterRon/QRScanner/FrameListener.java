@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+
+/**
+ * A FrameListener receives the images captured by a FrameSource
+ */
+public interface FrameListener {
+
+    /**
+     * An image has been captured
+     *
+     * This method is called on the capture thread
+     *
+     * @param       source          Frame source
+     * @param       image           Captured image
+     * @param       captureTime     Capture time (System.nanoTime)
+     */
+    void imageCaptured(FrameSource source, BufferedImage image, long captureTime);
+
+    /**
+     * The frame source has been restarted using a new image size
+     *
+     * This method is called on a frame source thread
+     *
+     * @param       source          Frame source
+     * @param       size            New image size
+     */
+    default void viewSizeChanged(FrameSource source, Dimension size) {
+    }
+
+    /**
+     * Check if the listener is ready for a new frame.  A frame source that has
+     * to do extra work to produce an image can skip that work while the listener
+     * is busy.
+     *
+     * @return                      TRUE if a new frame will be decoded right away
+     */
+    default boolean isReady() {
+        return true;
+    }
+
+    /**
+     * Set the callback that is run when the listener becomes ready for a new frame.
+     * A frame source that waits for isReady() uses the callback instead of polling.
+     * The callback is run on the thread that makes the listener ready and must not
+     * block.  A listener that does not support the callback ignores it.
+     *
+     * @param       callback        Ready callback or null to remove the callback
+     */
+    default void setReadyCallback(Runnable callback) {
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FramePool holds a fixed number of reusable frames.  A frame is created the first
+ * time it is needed and is returned to the pool when it is no longer in use.
+ */
+public class FramePool {
+
+    /** Available frames */
+    private final ArrayBlockingQueue<Frame> freeFrames;
+
+    /** Maximum number of frames */
+    private final int capacity;
+
+    /** Number of frames created */
+    private final AtomicInteger frameCount = new AtomicInteger();
+
+    /**
+     * Create the frame pool
+     *
+     * @param       capacity        Maximum number of frames
+     */
+    public FramePool(int capacity) {
+        this.capacity = capacity;
+        freeFrames = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Obtain a frame from the pool
+     *
+     * @return                      Frame or null if all frames are in use
+     */
+    public Frame acquire() {
+        Frame frame = freeFrames.poll();
+        if (frame == null) {
+            int count = frameCount.get();
+            while (count < capacity) {
+                if (frameCount.compareAndSet(count, count+1)) {
+                    frame = new Frame();
+                    break;
+                }
+                count = frameCount.get();
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Return a frame to the pool
+     *
+     * @param       frame           Frame
+     */
+    public void release(Frame frame) {
+        freeFrames.offer(frame);
+    }
+}
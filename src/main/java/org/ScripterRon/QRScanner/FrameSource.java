@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * A FrameSource supplies the images that are scanned for QR codes.  The source
+ * delivers images to a FrameListener on its own capture thread until it is stopped.
+ */
+public interface FrameSource {
+
+    /**
+     * Return the source name
+     *
+     * @return                      Source name
+     */
+    String getName();
+
+    /**
+     * Return the image size
+     *
+     * @return                      Image size
+     */
+    Dimension getViewSize();
+
+    /**
+     * Start capturing images
+     *
+     * @param       listener        Frame listener
+     * @throws      IOException     Unable to start the source
+     */
+    void start(FrameListener listener) throws IOException;
+
+    /**
+     * Stop capturing images
+     */
+    void stop();
+
+    /**
+     * Copy the luminance values for a captured image to a frame.  The default
+     * implementation converts the image.  A source can override this method if it
+     * has a faster way to obtain the luminance values.
+     *
+     * This method is called on the capture thread by the frame listener.
+     *
+     * @param       frame           Frame
+     * @param       image           Captured image
+     * @param       captureTime     Capture time (System.nanoTime)
+     * @return                      TRUE if the frame was filled
+     */
+    default boolean copyFrame(Frame frame, BufferedImage image, long captureTime) {
+        frame.setImage(image, captureTime);
+        return true;
+    }
+}
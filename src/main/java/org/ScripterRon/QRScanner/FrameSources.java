@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import com.github.sarxos.webcam.Webcam;
+import com.google.zxing.WriterException;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * FrameSources creates the frame source used to scan QR codes.
+ *
+ * The source is selected by a source specification obtained from the '-source'
+ * command-line option or the 'scan.source' application property:
+ * <ul>
+ * <li>webcam - Default web camera (this is the default)</li>
+ * <li>directory:path - Image files in the directory, played back at 'scan.source.fps'
+ * frames per second and restarted after the last image</li>
+ * <li>synthetic[:text] - Rendered QR code images at 'scan.source.fps' frames per second.
+ * The 'scan.synthetic.size', 'scan.synthetic.noise', 'scan.synthetic.blur',
+ * 'scan.synthetic.rotation', 'scan.synthetic.presence' and 'scan.synthetic.seed'
+ * properties control the rendered images.</li>
+ * <li>mjpeg:url - MJPEG stream from an IP camera (see MjpegFrameSource)</li>
+ * </ul>
+ */
+public final class FrameSources {
+
+    /**
+     * This class cannot be instantiated
+     */
+    private FrameSources() {
+    }
+
+    /**
+     * Return the source specification
+     *
+     * @return                      Source specification
+     */
+    public static String getSourceSpec() {
+        String spec = Main.frameSourceSpec;
+        if (spec == null)
+            spec = Main.properties.getProperty("scan.source", "webcam");
+        return spec;
+    }
+
+    /**
+     * Create the frame source
+     *
+     * @param       spec            Source specification
+     * @return                      Frame source or null if no webcam is available
+     * @throws      IOException     Unable to create the frame source
+     */
+    public static FrameSource create(String spec) throws IOException {
+        FrameSource source;
+        int sep = spec.indexOf(':');
+        String type = (sep < 0 ? spec : spec.substring(0, sep));
+        String value = (sep < 0 ? null : spec.substring(sep+1));
+        double frameRate = Main.getDoubleProperty("scan.source.fps", 15.0);
+        switch (type) {
+            case "webcam":
+                Webcam webcam = Webcam.getDefault();
+                source = (webcam != null ? new WebcamFrameSource(webcam) : null);
+                break;
+            case "directory":
+                if (value == null || value.isEmpty())
+                    throw new IOException("No directory specified for the frame source");
+                source = new DirectoryFrameSource(Paths.get(value), frameRate, true);
+                break;
+            case "synthetic":
+                try {
+                    String text = (value != null ? value : "QRScanner synthetic frame");
+                    Dimension size = Main.getSizeProperty("scan.synthetic.size", new Dimension(640, 480));
+                    SyntheticFrameSource synthetic = new SyntheticFrameSource(text, size, frameRate,
+                                        Main.getIntegerProperty("scan.synthetic.seed", 1));
+                    synthetic.setNoise(Main.getDoubleProperty("scan.synthetic.noise", 4.0));
+                    synthetic.setBlur(Main.getIntegerProperty("scan.synthetic.blur", 1));
+                    synthetic.setRotation(Main.getDoubleProperty("scan.synthetic.rotation", 10.0));
+                    synthetic.setPresence(Main.getDoubleProperty("scan.synthetic.presence", 1.0));
+                    source = synthetic;
+                } catch (WriterException exc) {
+                    throw new IOException("Unable to create synthetic QR code", exc);
+                }
+                break;
+            case "mjpeg":
+                if (value == null || value.isEmpty())
+                    throw new IOException("No URL specified for the MJPEG frame source");
+                source = new MjpegFrameSource(value);
+                break;
+            default:
+                throw new IOException("Unrecognized frame source: " + spec);
+        }
+        return source;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import com.google.zxing.LuminanceSource;
+
+/**
+ * GreyLuminanceSource provides the luminance values for a region within a grey
+ * image buffer.  The buffer is not copied and cropping just creates a new view
+ * of the same buffer.
+ */
+public class GreyLuminanceSource extends LuminanceSource {
+
+    /** Luminance data */
+    private final byte[] data;
+
+    /** Data width (row stride) */
+    private final int dataWidth;
+
+    /** Data height */
+    private final int dataHeight;
+
+    /** Left edge of the region */
+    private final int left;
+
+    /** Top edge of the region */
+    private final int top;
+
+    /**
+     * Create a luminance source
+     *
+     * @param       data            Luminance data
+     * @param       dataWidth       Data width
+     * @param       dataHeight      Data height
+     * @param       left            Left edge of the region
+     * @param       top             Top edge of the region
+     * @param       width           Region width
+     * @param       height          Region height
+     */
+    public GreyLuminanceSource(byte[] data, int dataWidth, int dataHeight,
+                                    int left, int top, int width, int height) {
+        super(width, height);
+        if (left < 0 || top < 0 || left + width > dataWidth || top + height > dataHeight)
+            throw new IllegalArgumentException("Crop rectangle does not fit within image data");
+        this.data = data;
+        this.dataWidth = dataWidth;
+        this.dataHeight = dataHeight;
+        this.left = left;
+        this.top = top;
+    }
+
+    /**
+     * Return the luminance data.  The data for this region starts at getOffset()
+     * and each row is getStride() bytes.
+     *
+     * @return                      Luminance data
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Return the offset of the first pixel in the region
+     *
+     * @return                      Data offset
+     */
+    public int getOffset() {
+        return top*dataWidth + left;
+    }
+
+    /**
+     * Return the row stride
+     *
+     * @return                      Row stride
+     */
+    public int getStride() {
+        return dataWidth;
+    }
+
+    /**
+     * Return the left edge of the region within the image
+     *
+     * @return                      Left edge
+     */
+    public int getLeft() {
+        return left;
+    }
+
+    /**
+     * Return the top edge of the region within the image
+     *
+     * @return                      Top edge
+     */
+    public int getTop() {
+        return top;
+    }
+
+    /**
+     * Return a row of luminance data
+     *
+     * @param       y               Row number
+     * @param       row             Array to hold the row or null
+     * @return                      Luminance row
+     */
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        if (y < 0 || y >= getHeight())
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        int width = getWidth();
+        if (row == null || row.length < width)
+            row = new byte[width];
+        System.arraycopy(data, (y + top)*dataWidth + left, row, 0, width);
+        return row;
+    }
+
+    /**
+     * Return the luminance matrix.  The data buffer is returned without copying
+     * when the region covers the entire image.  The caller must not modify the
+     * returned array.
+     *
+     * @return                      Luminance matrix
+     */
+    @Override
+    public byte[] getMatrix() {
+        int width = getWidth();
+        int height = getHeight();
+        if (width == dataWidth && height == dataHeight)
+            return data;
+        byte[] matrix = new byte[width*height];
+        int inputOffset = getOffset();
+        if (width == dataWidth) {
+            System.arraycopy(data, inputOffset, matrix, 0, width*height);
+        } else {
+            for (int y=0, outputOffset=0; y<height; y++, inputOffset+=dataWidth, outputOffset+=width)
+                System.arraycopy(data, inputOffset, matrix, outputOffset, width);
+        }
+        return matrix;
+    }
+
+    /**
+     * Check if cropping is supported
+     *
+     * @return                      TRUE since cropping is supported
+     */
+    @Override
+    public boolean isCropSupported() {
+        return true;
+    }
+
+    /**
+     * Check if rotation is supported
+     *
+     * @return                      TRUE since rotation is supported
+     */
+    @Override
+    public boolean isRotateSupported() {
+        return true;
+    }
+
+    /**
+     * Return a new luminance source with the region rotated 90 degrees counterclockwise
+     *
+     * @return                      Luminance source
+     */
+    @Override
+    public LuminanceSource rotateCounterClockwise() {
+        return rotateCounterClockwise(null);
+    }
+
+    /**
+     * Return a new luminance source with the region rotated 90 degrees counterclockwise.
+     * Pixel (x, y) in the rotated source is pixel (width-1-y, x) in this source.
+     *
+     * @param       buffer          Buffer for the rotated data or null to allocate a new buffer
+     * @return                      Luminance source
+     */
+    public GreyLuminanceSource rotateCounterClockwise(byte[] buffer) {
+        int width = getWidth();
+        int height = getHeight();
+        if (buffer == null || buffer.length < width*height)
+            buffer = new byte[width*height];
+        int base = getOffset();
+        for (int y=0, outputOffset=0; y<width; y++) {
+            int inputOffset = base + width - 1 - y;
+            for (int x=0; x<height; x++, inputOffset+=dataWidth)
+                buffer[outputOffset++] = data[inputOffset];
+        }
+        return new GreyLuminanceSource(buffer, height, width, 0, 0, height, width);
+    }
+
+    /**
+     * Return a new luminance source with the region inverted (black becomes white)
+     *
+     * @return                      Luminance source
+     */
+    @Override
+    public LuminanceSource invert() {
+        return invert(null);
+    }
+
+    /**
+     * Return a new luminance source with the region inverted (black becomes white)
+     *
+     * @param       buffer          Buffer for the inverted data or null to allocate a new buffer
+     * @return                      Luminance source
+     */
+    public GreyLuminanceSource invert(byte[] buffer) {
+        int width = getWidth();
+        int height = getHeight();
+        if (buffer == null || buffer.length < width*height)
+            buffer = new byte[width*height];
+        for (int y=0, inputOffset=getOffset(), outputOffset=0; y<height; y++, inputOffset+=dataWidth) {
+            for (int x=0; x<width; x++)
+                buffer[outputOffset++] = (byte)(255 - (data[inputOffset+x] & 0xff));
+        }
+        return new GreyLuminanceSource(buffer, width, height, 0, 0, width, height);
+    }
+
+    /**
+     * Return a new luminance source for a region within this source
+     *
+     * @param       left            Left edge relative to this region
+     * @param       top             Top edge relative to this region
+     * @param       width           Region width
+     * @param       height          Region height
+     * @return                      Luminance source
+     */
+    @Override
+    public LuminanceSource crop(int left, int top, int width, int height) {
+        return new GreyLuminanceSource(data, dataWidth, dataHeight,
+                                       this.left + left, this.top + top, width, height);
+    }
+}
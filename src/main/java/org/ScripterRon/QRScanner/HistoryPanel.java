@@ -0,0 +1,432 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import java.awt.BorderLayout;
+import java.awt.Toolkit;
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.ClipboardOwner;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.Transferable;
+import java.awt.datatransfer.UnsupportedFlavorException;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.BorderFactory;
+import javax.swing.Box;
+import javax.swing.BoxLayout;
+import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.TransferHandler;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+/**
+ * HistoryPanel displays the scan history in a table with a filter field.  The table
+ * is backed by HistoryTableModel, so only the visible rows are read from the history.
+ * The filter is applied when the user stops typing for FILTER_DELAY milliseconds.
+ *
+ * The selected scans are copied to the clipboard as text with one scan per line
+ * (Ctrl+C or the Copy Selected button).  The text is read from the history on a
+ * background thread, with the progress shown in the status line, and is placed on
+ * the clipboard as a single string when it is complete.  Copying a large selection
+ * does not hold up the user interface and the clipboard never reads the history on
+ * the event dispatch thread.  The whole text is held in memory while it is on the
+ * clipboard because the system clipboard transfers text as one string.
+ */
+public class HistoryPanel extends JPanel implements ActionListener {
+
+    /** Filter delay (milliseconds) */
+    private static final int FILTER_DELAY = 150;
+
+    /** Refresh interval (milliseconds) */
+    private static final int REFRESH_INTERVAL = 1000;
+
+    /** Number of scans copied between progress updates */
+    private static final int COPY_CHUNK = 1024;
+
+    /** Scan history */
+    private final ScanHistory history;
+
+    /** Table model */
+    private final HistoryTableModel model;
+
+    /** History table */
+    private final JTable table;
+
+    /** Filter field */
+    private final JTextField filterField;
+
+    /** Status label */
+    private final JLabel statusLabel;
+
+    /** Filter timer */
+    private final Timer filterTimer;
+
+    /** Refresh timer */
+    private final Timer refreshTimer;
+
+    /** Copy in progress or null */
+    private CopyTask copyTask;
+
+    /** Number of scans copied so far */
+    private int copiedCount;
+
+    /**
+     * Create the history panel
+     *
+     * @param       history         Scan history
+     */
+    public HistoryPanel(ScanHistory history) {
+        super(new BorderLayout(0, 5));
+        this.history = history;
+        setOpaque(false);
+        //
+        // Create the history table.  The rows all have the same height and the table
+        // is not sorted, so the table only asks for the visible rows.
+        //
+        model = new HistoryTableModel(history);
+        table = new JTable(model);
+        table.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        table.setFillsViewportHeight(true);
+        table.setTransferHandler(new HistoryTransferHandler());
+        table.getColumnModel().getColumn(0).setPreferredWidth(140);
+        table.getColumnModel().getColumn(1).setPreferredWidth(420);
+        table.getColumnModel().getColumn(2).setPreferredWidth(80);
+        table.getColumnModel().getColumn(3).setPreferredWidth(120);
+        table.getColumnModel().getColumn(4).setPreferredWidth(70);
+        JScrollPane scrollPane = new JScrollPane(table);
+        //
+        // Create the filter field and status line
+        //
+        filterField = new JTextField(30);
+        filterField.setToolTipText("Show the scans containing this text");
+        filterTimer = new Timer(FILTER_DELAY, (ae) -> model.setFilter(filterField.getText()));
+        filterTimer.setRepeats(false);
+        filterField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent de) {
+                filterTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent de) {
+                filterTimer.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent de) {
+                filterTimer.restart();
+            }
+        });
+        statusLabel = new JLabel();
+        model.setStatusListener(() -> updateStatus());
+        updateStatus();
+        JPanel filterPane = new JPanel();
+        filterPane.setLayout(new BoxLayout(filterPane, BoxLayout.X_AXIS));
+        filterPane.setOpaque(false);
+        filterPane.add(new JLabel("Filter: "));
+        filterPane.add(filterField);
+        filterPane.add(Box.createHorizontalStrut(15));
+        filterPane.add(statusLabel);
+        filterPane.add(Box.createHorizontalGlue());
+        filterPane.add(new ButtonPane(this, 10, new String[] {"Copy Selected", "copy selected"}));
+        filterPane.setBorder(BorderFactory.createEmptyBorder(5, 0, 0, 0));
+        add(filterPane, BorderLayout.NORTH);
+        add(scrollPane, BorderLayout.CENTER);
+        //
+        // Add new scans while the panel is displayed
+        //
+        refreshTimer = new Timer(REFRESH_INTERVAL, (ae) -> model.refresh());
+    }
+
+    /**
+     * Start the refresh timer when the panel is added to a window
+     */
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        model.refresh();
+        refreshTimer.start();
+    }
+
+    /**
+     * Stop the timers when the panel is removed from a window
+     */
+    @Override
+    public void removeNotify() {
+        refreshTimer.stop();
+        filterTimer.stop();
+        super.removeNotify();
+    }
+
+    /**
+     * Action performed (ActionListener interface)
+     *
+     * @param       ae              Action event
+     */
+    @Override
+    public void actionPerformed(ActionEvent ae) {
+        //
+        // "copy selected"      - Copy the selected scans to the system clipboard
+        //
+        try {
+            switch (ae.getActionCommand()) {
+                case "copy selected":
+                    copySelected();
+                    break;
+            }
+        } catch (Exception exc) {
+            Main.logException("Exception while processing action event", exc);
+        }
+    }
+
+    /**
+     * Check if any scans are selected
+     *
+     * @return                      TRUE if there is a selection
+     */
+    public boolean hasSelection() {
+        return (table.getSelectedRowCount() > 0);
+    }
+
+    /**
+     * Copy the selected scans to the system clipboard
+     */
+    public void copySelected() {
+        Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+        table.getTransferHandler().exportToClipboard(table, clipboard, TransferHandler.COPY);
+    }
+
+    /**
+     * Start copying the selected scans.  A copy that is still in progress is cancelled.
+     *
+     * @param       clipboard       Target clipboard
+     */
+    private void startCopy(Clipboard clipboard) {
+        int[] rows = table.getSelectedRows();
+        if (rows.length == 0)
+            return;
+        long[] entries = new long[rows.length];
+        for (int i=0; i<rows.length; i++)
+            entries[i] = model.getEntry(rows[i]);
+        CopyTask task = copyTask;
+        if (task != null) {
+            copyTask = null;
+            task.cancel(false);
+        }
+        copiedCount = 0;
+        copyTask = new CopyTask(clipboard, entries);
+        copyTask.execute();
+        updateStatus();
+    }
+
+    /**
+     * Update the status line
+     */
+    private void updateStatus() {
+        String status;
+        if (!model.isFiltered())
+            status = String.format("%,d scans", model.getEntryCount());
+        else if (model.isFiltering())
+            status = String.format("Searching... %,d matches", model.getRowCount());
+        else
+            status = String.format("%,d of %,d scans", model.getRowCount(), model.getEntryCount());
+        if (copyTask != null)
+            status = String.format("%s, copying %,d of %,d", status, copiedCount, copyTask.entries.length);
+        statusLabel.setText(status);
+    }
+
+    /**
+     * Transfer handler that copies the scan text instead of the cell values
+     */
+    private class HistoryTransferHandler extends TransferHandler {
+
+        /**
+         * Return the supported actions
+         *
+         * @param       c               Source component
+         * @return                      COPY
+         */
+        @Override
+        public int getSourceActions(JComponent c) {
+            return COPY;
+        }
+
+        /**
+         * Copy the selected scans to a clipboard.  The text is read on a background
+         * thread and placed on the clipboard when it is complete.
+         *
+         * @param       c               Source component
+         * @param       clipboard       Target clipboard
+         * @param       action          Transfer action
+         */
+        @Override
+        public void exportToClipboard(JComponent c, Clipboard clipboard, int action) {
+            startCopy(clipboard);
+        }
+    }
+
+    /**
+     * Task that reads the text of the selected scans and then places it on the clipboard
+     */
+    private class CopyTask extends SwingWorker<String, Integer> {
+
+        /** Target clipboard */
+        private final Clipboard clipboard;
+
+        /** Entry numbers */
+        private final long[] entries;
+
+        /**
+         * Create the copy task
+         *
+         * @param       clipboard       Target clipboard
+         * @param       entries         Entry numbers
+         */
+        private CopyTask(Clipboard clipboard, long[] entries) {
+            this.clipboard = clipboard;
+            this.entries = entries;
+        }
+
+        /**
+         * Read the scan text (called on a worker thread)
+         *
+         * @return                      Text with one scan per line
+         * @throws      IOException     Unable to read the history
+         */
+        @Override
+        protected String doInBackground() throws IOException {
+            StringBuilder text = new StringBuilder();
+            for (int i=0; i<entries.length && !isCancelled(); i++) {
+                text.append(history.get(entries[i]).getText()).append(Main.lineSeparator);
+                if ((i+1) % COPY_CHUNK == 0)
+                    publish(i+1);
+            }
+            return text.toString();
+        }
+
+        /**
+         * Show the copy progress (called on the event dispatch thread)
+         *
+         * @param       counts          Number of scans copied
+         */
+        @Override
+        protected void process(List<Integer> counts) {
+            if (this != copyTask || isCancelled())
+                return;
+            copiedCount = counts.get(counts.size()-1);
+            updateStatus();
+        }
+
+        /**
+         * Place the text on the clipboard (called on the event dispatch thread)
+         */
+        @Override
+        protected void done() {
+            if (this != copyTask || isCancelled())
+                return;
+            copyTask = null;
+            try {
+                HistorySelection selection = new HistorySelection(get());
+                clipboard.setContents(selection, selection);
+                log.info(String.format("Copied %,d scans to the clipboard", entries.length));
+            } catch (InterruptedException | ExecutionException exc) {
+                Main.logException("Unable to copy the scan history", exc);
+            }
+            updateStatus();
+        }
+    }
+
+    /**
+     * Transferable containing the text of the copied scans
+     */
+    private static class HistorySelection implements Transferable, ClipboardOwner {
+
+        /** Supported flavors */
+        private static final DataFlavor[] flavors = new DataFlavor[] {
+            DataFlavor.stringFlavor
+        };
+
+        /** Scan text */
+        private final String text;
+
+        /**
+         * Create the selection
+         *
+         * @param       text            Scan text
+         */
+        private HistorySelection(String text) {
+            this.text = text;
+        }
+
+        /**
+         * Return the supported flavors
+         *
+         * @return                      Data flavors
+         */
+        @Override
+        public DataFlavor[] getTransferDataFlavors() {
+            return flavors.clone();
+        }
+
+        /**
+         * Check if a flavor is supported
+         *
+         * @param       flavor          Data flavor
+         * @return                      TRUE if the flavor is supported
+         */
+        @Override
+        public boolean isDataFlavorSupported(DataFlavor flavor) {
+            return flavor.equals(DataFlavor.stringFlavor);
+        }
+
+        /**
+         * Return the selected text
+         *
+         * @param       flavor          Data flavor
+         * @return                      Text with one scan per line
+         * @throws      UnsupportedFlavorException  Flavor is not supported
+         */
+        @Override
+        public Object getTransferData(DataFlavor flavor) throws UnsupportedFlavorException {
+            if (!flavor.equals(DataFlavor.stringFlavor))
+                throw new UnsupportedFlavorException(flavor);
+            return text;
+        }
+
+        /**
+         * Clipboard contents have been replaced (ClipboardOwner interface)
+         *
+         * @param       clipboard       Clipboard
+         * @param       contents        Previous contents
+         */
+        @Override
+        public void lostOwnership(Clipboard clipboard, Transferable contents) {
+        }
+    }
+}
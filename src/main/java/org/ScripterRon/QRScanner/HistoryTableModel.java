@@ -0,0 +1,557 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * HistoryTableModel presents the scan history as a table without loading the whole
+ * history.  The newest scan is the first row.
+ *
+ * The records are read in pages of PAGE_SIZE entries on a background thread when a
+ * row is displayed and the most recently used pages are kept in memory.  A row that
+ * has not been loaded yet is displayed as an empty row and is repainted when its
+ * page has been loaded.  The most recently requested page is loaded first, so the
+ * rows that are visible after scrolling are loaded before the rows that were
+ * scrolled past.
+ *
+ * A filter selects the scans containing the filter text (ignoring case).  The
+ * history is searched on a background thread starting with the newest scan and the
+ * matching rows are added to the table as they are found.  Changing the filter
+ * cancels the search in progress.  When the new filter extends the previous filter
+ * (another character was typed), only the previous matches are searched.
+ *
+ * All of the public methods must be called on the event dispatch thread.
+ */
+public class HistoryTableModel extends AbstractTableModel {
+
+    /** Number of entries in a page */
+    private static final int PAGE_SIZE = 256;
+
+    /** Maximum number of pages kept in memory */
+    private static final int MAX_PAGES = 64;
+
+    /** Maximum number of page requests waiting to be loaded */
+    private static final int MAX_REQUESTS = 16;
+
+    /** Number of matches added to the table at a time while filtering */
+    private static final int FILTER_CHUNK = 256;
+
+    /** Column names */
+    private static final String[] columnNames = new String[] {
+        "Time", "Text", "Format", "Camera", "Decode ms"
+    };
+
+    /** Column classes */
+    private static final Class<?>[] columnClasses = new Class<?>[] {
+        String.class, String.class, String.class, String.class, Integer.class
+    };
+
+    /** Scan history */
+    private final ScanHistory history;
+
+    /** Page loader (a daemon thread) */
+    private final ExecutorService loader;
+
+    /** Loaded pages in least recently used order */
+    private final LinkedHashMap<Long, ScanRecord[]> pages =
+            new LinkedHashMap<Long, ScanRecord[]>(MAX_PAGES * 2, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, ScanRecord[]> eldest) {
+                    return size() > MAX_PAGES;
+                }
+            };
+
+    /** Pages that have been requested but not loaded yet */
+    private final Set<Long> pendingPages = new HashSet<>();
+
+    /** Page requests in request order (shared with the loader thread) */
+    private final ArrayDeque<Long> pageRequests = new ArrayDeque<>();
+
+    /** Timestamp format */
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    /** Number of entries in the history */
+    private long entryCount;
+
+    /** Current filter (lower case) or an empty string if the history is not filtered */
+    private String filter = "";
+
+    /** Entry numbers of the matching scans (newest first) */
+    private long[] matches = new long[0];
+
+    /** Number of matching scans */
+    private int matchCount;
+
+    /** Entries that have been searched for the current filter (end entry, exclusive) */
+    private long searchedCount;
+
+    /** Current filter search or null */
+    private FilterTask filterTask;
+
+    /** Status listener or null */
+    private Runnable statusListener;
+
+    /**
+     * Create the table model
+     *
+     * @param       history         Scan history
+     */
+    public HistoryTableModel(ScanHistory history) {
+        this.history = history;
+        this.entryCount = history.size();
+        this.loader = Executors.newSingleThreadExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "History Loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Set the listener that is called when the row count or the filter status changes
+     *
+     * @param       listener        Status listener
+     */
+    public void setStatusListener(Runnable listener) {
+        statusListener = listener;
+    }
+
+    /**
+     * Return the number of rows
+     *
+     * @return                      Number of rows
+     */
+    @Override
+    public int getRowCount() {
+        return (isFiltered() ? matchCount : (int)Math.min(entryCount, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Return the number of columns
+     *
+     * @return                      Number of columns
+     */
+    @Override
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    /**
+     * Return a column name
+     *
+     * @param       column          Column index
+     * @return                      Column name
+     */
+    @Override
+    public String getColumnName(int column) {
+        return columnNames[column];
+    }
+
+    /**
+     * Return a column class
+     *
+     * @param       column          Column index
+     * @return                      Column class
+     */
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return columnClasses[column];
+    }
+
+    /**
+     * Return a cell value.  A row that has not been loaded has null values.
+     *
+     * @param       row             Row index
+     * @param       column          Column index
+     * @return                      Cell value or null
+     */
+    @Override
+    public Object getValueAt(int row, int column) {
+        ScanRecord record = getRecord(getEntry(row));
+        if (record == null)
+            return null;
+        switch (column) {
+            case 0:
+                return dateFormat.format(new Date(record.getTimestamp()));
+            case 1:
+                return record.getText();
+            case 2:
+                return record.getFormat();
+            case 3:
+                return record.getCamera();
+            case 4:
+                return record.getDecodeTime();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Return the history entry number for a row
+     *
+     * @param       row             Row index
+     * @return                      Entry number
+     */
+    public long getEntry(int row) {
+        return (isFiltered() ? matches[row] : entryCount - 1 - row);
+    }
+
+    /**
+     * Return the number of entries in the history
+     *
+     * @return                      Number of entries
+     */
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Check if the history is filtered
+     *
+     * @return                      TRUE if a filter is set
+     */
+    public boolean isFiltered() {
+        return !filter.isEmpty();
+    }
+
+    /**
+     * Check if a filter search is in progress
+     *
+     * @return                      TRUE if the history is being searched
+     */
+    public boolean isFiltering() {
+        return (filterTask != null);
+    }
+
+    /**
+     * Return a loaded record or request its page
+     *
+     * @param       entry           Entry number
+     * @return                      Scan record or null if the page has not been loaded
+     */
+    private ScanRecord getRecord(long entry) {
+        long page = entry / PAGE_SIZE;
+        int offset = (int)(entry % PAGE_SIZE);
+        ScanRecord[] records = pages.get(page);
+        if (records != null && offset < records.length)
+            return records[offset];
+        requestPage(page);
+        return null;
+    }
+
+    /**
+     * Request a page.  Requests that have waited the longest are dropped when there
+     * are too many requests, since those rows have been scrolled out of view.  They
+     * are requested again if they are displayed.
+     *
+     * @param       page            Page number
+     */
+    private void requestPage(long page) {
+        if (!pendingPages.add(page))
+            return;
+        synchronized(pageRequests) {
+            pageRequests.addLast(page);
+            if (pageRequests.size() > MAX_REQUESTS)
+                pendingPages.remove(pageRequests.pollFirst());
+        }
+        loader.execute(() -> loadPage());
+    }
+
+    /**
+     * Load the most recently requested page (called on the loader thread)
+     */
+    private void loadPage() {
+        Long page;
+        synchronized(pageRequests) {
+            page = pageRequests.pollLast();
+        }
+        if (page == null)
+            return;
+        long first = page * PAGE_SIZE;
+        long end = Math.min(first + PAGE_SIZE, history.size());
+        ScanRecord[] records = new ScanRecord[(int)Math.max(0, end - first)];
+        for (int i=0; i<records.length; i++) {
+            try {
+                records[i] = history.get(first + i);
+            } catch (IOException | IndexOutOfBoundsException exc) {
+                log.error(String.format("Unable to read scan history entry %d: %s", first + i, exc.getMessage()));
+                records[i] = new ScanRecord(0, "", "", "", 0);
+            }
+        }
+        SwingUtilities.invokeLater(() -> pageLoaded(page, records));
+    }
+
+    /**
+     * Add a loaded page and repaint its rows
+     *
+     * @param       page            Page number
+     * @param       records         Scan records
+     */
+    private void pageLoaded(long page, ScanRecord[] records) {
+        pendingPages.remove(page);
+        pages.put(page, records);
+        int rowCount = getRowCount();
+        if (rowCount == 0)
+            return;
+        if (isFiltered()) {
+            fireTableRowsUpdated(0, rowCount - 1);
+        } else {
+            long first = page * PAGE_SIZE;
+            int firstRow = (int)Math.max(0, entryCount - first - records.length);
+            int lastRow = (int)Math.min(rowCount - 1, entryCount - 1 - first);
+            if (firstRow <= lastRow)
+                fireTableRowsUpdated(firstRow, lastRow);
+        }
+    }
+
+    /**
+     * Add new scans to the table.  This is called periodically while the history is
+     * displayed.  New scans are added at the top of the table (or searched if a filter
+     * is set).
+     */
+    public void refresh() {
+        long newCount = history.size();
+        if (newCount > entryCount) {
+            long oldCount = entryCount;
+            entryCount = newCount;
+            //
+            // The last page may have been loaded before it was full
+            //
+            pages.remove((oldCount - 1) / PAGE_SIZE);
+            if (!isFiltered())
+                fireTableRowsInserted(0, (int)(newCount - oldCount - 1));
+            fireStatus();
+        }
+        if (isFiltered() && filterTask == null && searchedCount < entryCount) {
+            filterTask = new FilterTask(filter, null, searchedCount, entryCount, true);
+            searchedCount = entryCount;
+            filterTask.execute();
+            fireStatus();
+        }
+    }
+
+    /**
+     * Set the filter.  The matching scans are found on a background thread and an
+     * empty filter shows the whole history.
+     *
+     * @param       text            Filter text
+     */
+    public void setFilter(String text) {
+        String newFilter = text.trim().toLowerCase(Locale.ROOT);
+        if (newFilter.equals(filter))
+            return;
+        //
+        // Search the previous matches if the filter has been extended and the
+        // previous search is complete
+        //
+        long[] candidates = null;
+        if (isFiltered() && filterTask == null && newFilter.contains(filter))
+            candidates = Arrays.copyOf(matches, matchCount);
+        cancelFilter();
+        filter = newFilter;
+        matches = new long[0];
+        matchCount = 0;
+        if (isFiltered()) {
+            //
+            // Scans added after the previous search are searched by refresh()
+            //
+            if (candidates == null)
+                searchedCount = entryCount;
+            filterTask = new FilterTask(filter, candidates, 0, searchedCount, false);
+            filterTask.execute();
+        }
+        fireTableDataChanged();
+        fireStatus();
+    }
+
+    /**
+     * Cancel the filter search in progress
+     */
+    private void cancelFilter() {
+        FilterTask task = filterTask;
+        if (task != null) {
+            filterTask = null;
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Add matching entries to the table
+     *
+     * @param       task            Filter task
+     * @param       entries         Matching entries (newest first)
+     */
+    private void addMatches(FilterTask task, long[] entries) {
+        if (task != filterTask || entries.length == 0)
+            return;
+        int oldCount = matchCount;
+        int newCount = matchCount + entries.length;
+        long[] newMatches = (newCount <= matches.length ? matches :
+                                        new long[Math.max(newCount, matches.length * 2)]);
+        if (task.prepend) {
+            System.arraycopy(matches, 0, newMatches, entries.length, matchCount);
+            System.arraycopy(entries, 0, newMatches, 0, entries.length);
+        } else {
+            if (newMatches != matches)
+                System.arraycopy(matches, 0, newMatches, 0, matchCount);
+            System.arraycopy(entries, 0, newMatches, matchCount, entries.length);
+        }
+        matches = newMatches;
+        matchCount = newCount;
+        if (task.prepend)
+            fireTableRowsInserted(0, entries.length - 1);
+        else
+            fireTableRowsInserted(oldCount, newCount - 1);
+        fireStatus();
+    }
+
+    /**
+     * Notify the status listener
+     */
+    private void fireStatus() {
+        if (statusListener != null)
+            statusListener.run();
+    }
+
+    /**
+     * Search the history for scans containing the filter text.  The matches are
+     * published in chunks as they are found.
+     */
+    private class FilterTask extends SwingWorker<Void, long[]> {
+
+        /** Filter text (lower case) */
+        private final String text;
+
+        /** Entries to search (newest first) or null to search a range of entries */
+        private final long[] candidates;
+
+        /** First entry of the range */
+        private final long first;
+
+        /** End entry of the range (exclusive) */
+        private final long end;
+
+        /** TRUE if the matches are newer than the current matches */
+        private final boolean prepend;
+
+        /**
+         * Create the filter task
+         *
+         * @param       text            Filter text (lower case)
+         * @param       candidates      Entries to search or null
+         * @param       first           First entry of the range
+         * @param       end             End entry of the range (exclusive)
+         * @param       prepend         TRUE if the matches are newer than the current matches
+         */
+        private FilterTask(String text, long[] candidates, long first, long end, boolean prepend) {
+            this.text = text;
+            this.candidates = candidates;
+            this.first = first;
+            this.end = end;
+            this.prepend = prepend;
+        }
+
+        /**
+         * Search the history (called on a worker thread)
+         *
+         * @return                      Null
+         */
+        @Override
+        protected Void doInBackground() {
+            long[] chunk = new long[FILTER_CHUNK];
+            int count = 0;
+            long[] found = (prepend ? new long[FILTER_CHUNK] : null);
+            int foundCount = 0;
+            long size = (candidates != null ? candidates.length : end - first);
+            for (long i=0; i<size && !isCancelled(); i++) {
+                long entry = (candidates != null ? candidates[(int)i] : end - 1 - i);
+                try {
+                    if (!history.get(entry).getText().toLowerCase(Locale.ROOT).contains(text))
+                        continue;
+                } catch (IOException exc) {
+                    log.error(String.format("Unable to read scan history entry %d: %s", entry, exc.getMessage()));
+                    continue;
+                }
+                if (prepend) {
+                    //
+                    // New scans are added in one piece so they stay in order
+                    //
+                    if (foundCount == found.length)
+                        found = Arrays.copyOf(found, foundCount * 2);
+                    found[foundCount++] = entry;
+                } else {
+                    chunk[count++] = entry;
+                    if (count == chunk.length) {
+                        publish(chunk);
+                        chunk = new long[FILTER_CHUNK];
+                        count = 0;
+                    }
+                }
+            }
+            if (prepend)
+                publish(Arrays.copyOf(found, foundCount));
+            else if (count > 0)
+                publish(Arrays.copyOf(chunk, count));
+            return null;
+        }
+
+        /**
+         * Add the matches to the table (called on the event dispatch thread)
+         *
+         * @param       chunks          Matching entries
+         */
+        @Override
+        protected void process(List<long[]> chunks) {
+            if (isCancelled())
+                return;
+            for (long[] entries : chunks)
+                addMatches(this, entries);
+        }
+
+        /**
+         * Search is complete (called on the event dispatch thread)
+         */
+        @Override
+        protected void done() {
+            if (this != filterTask || isCancelled())
+                return;
+            try {
+                get();
+            } catch (Exception exc) {
+                log.error("Unable to search the scan history", exc);
+            }
+            filterTask = null;
+            fireStatus();
+        }
+    }
+}
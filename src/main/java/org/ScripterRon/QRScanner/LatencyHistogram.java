@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram counts elapsed times in power-of-two microsecond buckets.  Bucket 0
+ * holds times less than 1 microsecond and bucket n holds times from 2^(n-1) up to 2^n
+ * microseconds.  Recording a time is a few atomic increments with no locking, so the
+ * histogram can be updated by the decode workers for every frame.
+ *
+ * Percentiles are reported as the upper bound of the bucket containing the percentile
+ * (limited to the maximum recorded time), so they are accurate to within a factor of two.
+ */
+public class LatencyHistogram {
+
+    /** Number of buckets (the last bucket holds everything over 2^30 microseconds) */
+    public static final int BUCKET_COUNT = 32;
+
+    /** Bucket counts */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    /** Number of recorded times */
+    private final LongAdder count = new LongAdder();
+
+    /** Sum of the recorded times (nanoseconds) */
+    private final LongAdder sum = new LongAdder();
+
+    /** Maximum recorded time (nanoseconds) */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Create the histogram
+     */
+    public LatencyHistogram() {
+    }
+
+    /**
+     * Record an elapsed time
+     *
+     * @param       nanos           Elapsed time (nanoseconds)
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        long micros = nanos / 1000;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * Return the number of recorded times
+     *
+     * @return                      Count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Return the mean time
+     *
+     * @return                      Mean time (milliseconds)
+     */
+    public double getMean() {
+        long n = count.sum();
+        return (n != 0 ? (double)sum.sum() / (double)n / 1.0e6 : 0.0);
+    }
+
+    /**
+     * Return the maximum time
+     *
+     * @return                      Maximum time (milliseconds)
+     */
+    public double getMax() {
+        return (double)max.get() / 1.0e6;
+    }
+
+    /**
+     * Return a percentile
+     *
+     * @param       percentile      Percentile between 0 and 100
+     * @return                      Bucket upper bound (milliseconds)
+     */
+    public double getPercentile(double percentile) {
+        long[] counts = getBuckets();
+        long total = 0;
+        for (long c : counts)
+            total += c;
+        if (total == 0)
+            return 0.0;
+        long target = (long)Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        int bucket = 0;
+        for (; bucket<BUCKET_COUNT-1; bucket++) {
+            seen += counts[bucket];
+            if (seen >= target)
+                break;
+        }
+        return Math.min((double)(1L << bucket) / 1000.0, getMax());
+    }
+
+    /**
+     * Return a copy of the bucket counts
+     *
+     * @return                      Bucket counts
+     */
+    public long[] getBuckets() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i=0; i<BUCKET_COUNT; i++)
+            counts[i] = buckets.get(i);
+        return counts;
+    }
+
+    /**
+     * Reset the histogram.  Times recorded while the reset is in progress may be lost.
+     */
+    public void reset() {
+        for (int i=0; i<BUCKET_COUNT; i++)
+            buckets.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * Return the histogram summary
+     *
+     * @return                      Summary string
+     */
+    @Override
+    public String toString() {
+        return String.format("count %d, mean %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+                             getCount(), getMean(), getPercentile(50.0), getPercentile(99.0), getMax());
+    }
+}
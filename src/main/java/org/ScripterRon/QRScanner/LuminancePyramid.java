@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+/**
+ * LuminancePyramid holds downsampled copies of a frame.  Level 0 is the frame
+ * itself and each following level is half the width and height of the previous
+ * level, with each pixel being the average of a 2x2 block.
+ *
+ * The level buffers are reused from one frame to the next, so a pyramid belongs
+ * to a single decode thread.
+ */
+public class LuminancePyramid {
+
+    /** Level buffers (level 0 is not used since it is the frame buffer) */
+    private final byte[][] levels;
+
+    /** Level widths */
+    private final int[] widths;
+
+    /** Level heights */
+    private final int[] heights;
+
+    /** Number of levels built for the current frame */
+    private int levelCount;
+
+    /** Pixel kernels */
+    private static final PixelKernels kernels = PixelKernels.getInstance();
+
+    /** Level 0 source */
+    private GreyLuminanceSource baseSource;
+
+    /**
+     * Create the pyramid
+     *
+     * @param       maxLevels       Maximum number of levels (including level 0)
+     */
+    public LuminancePyramid(int maxLevels) {
+        levels = new byte[maxLevels][];
+        widths = new int[maxLevels];
+        heights = new int[maxLevels];
+        for (int i=1; i<maxLevels; i++)
+            levels[i] = new byte[0];
+    }
+
+    /**
+     * Build the pyramid for a frame.  Levels are added until the maximum number
+     * of levels is reached or the next level would be smaller than the minimum
+     * dimension.
+     *
+     * @param       frame           Frame
+     * @param       minDimension    Minimum level width or height
+     */
+    public void build(Frame frame, int minDimension) {
+        baseSource = frame.getLuminanceSource();
+        widths[0] = frame.getWidth();
+        heights[0] = frame.getHeight();
+        levelCount = 1;
+        byte[] input = frame.getLuminance();
+        while (levelCount < levels.length) {
+            int inputWidth = widths[levelCount-1];
+            int inputHeight = heights[levelCount-1];
+            int width = inputWidth / 2;
+            int height = inputHeight / 2;
+            if (width < minDimension || height < minDimension)
+                break;
+            byte[] output = levels[levelCount];
+            if (output.length < width*height) {
+                output = new byte[width*height];
+                levels[levelCount] = output;
+            }
+            for (int y=0; y<height; y++)
+                kernels.downsample(input, 2*y*inputWidth, inputWidth, output, y*width, width);
+            widths[levelCount] = width;
+            heights[levelCount] = height;
+            input = output;
+            levelCount++;
+        }
+    }
+
+    /**
+     * Return the number of levels for the current frame
+     *
+     * @return                      Number of levels
+     */
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    /**
+     * Return the luminance source for a level
+     *
+     * @param       level           Pyramid level
+     * @return                      Luminance source
+     */
+    public GreyLuminanceSource getLevel(int level) {
+        if (level == 0)
+            return baseSource;
+        return new GreyLuminanceSource(levels[level], widths[level], heights[level],
+                                       0, 0, widths[level], heights[level]);
+    }
+}
@@ -18,12 +18,21 @@ package org.ScripterRon.QRScanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.awt.Dimension;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.channels.FileLock;
 import java.util.Properties;
 import java.util.logging.LogManager;
@@ -35,6 +44,24 @@ import javax.swing.UIManager;
 
 /**
  * <p>The main() method is invoked by the JVM to start the application.</p>
+ *
+ * <p>The GUI is started if no command-line options are specified.  The following
+ * options run QRScanner without the GUI:</p>
+ * <ul>
+ * <li>-batch directory - Decode all of the images in the directory tree</li>
+ * <li>-output file - Write the batch results to the file instead of stdout</li>
+ * <li>-tiled - Decode all of the QR codes in each batch image using overlapping tiles
+ * (see TiledDecoder)</li>
+ * <li>-server port - Decode images sent over a loopback connection (see DecodeServer)</li>
+ * <li>-mjpeg port directory - Serve the images in the directory as an MJPEG stream on the
+ * loopback address (see MjpegServer)</li>
+ * <li>-threads count - Number of batch or server decode threads (defaults to the number of processors)</li>
+ * <li>-warmup - Run the decoder warm-up, load the GUI classes and exit (used to create the
+ * class data sharing archive)</li>
+ * </ul>
+ *
+ * <p>The '-source spec' option selects the frame source used by the GUI scan
+ * (see FrameSources).  This overrides the 'scan.source' application property.</p>
  */
 public class Main {
 
@@ -80,6 +107,45 @@ public class Main {
     /** Main application window */
     public static MainWindow mainWindow;
 
+    /** Scan history (null if the history is disabled or could not be opened) */
+    public static ScanHistory scanHistory;
+
+    /** Camera manager */
+    public static CameraManager cameraManager;
+
+    /** Running without the GUI */
+    public static boolean headless = false;
+
+    /** Batch directory */
+    private static String batchDirectory;
+
+    /** Run the decoder warm-up and exit */
+    private static boolean warmupOnly = false;
+
+    /** Decode server port (-1 if not running the decode server) */
+    private static int serverPort = -1;
+
+    /** Decode server */
+    private static DecodeServer decodeServer;
+
+    /** MJPEG server port (-1 if not running the MJPEG server) */
+    private static int mjpegPort = -1;
+
+    /** MJPEG server image directory */
+    private static String mjpegDirectory;
+
+    /** Batch output file */
+    private static String batchOutput;
+
+    /** Decode batch images using tiles */
+    private static boolean batchTiled = false;
+
+    /** Number of batch threads */
+    private static int batchThreads = Runtime.getRuntime().availableProcessors();
+
+    /** Frame source specification (null to use the 'scan.source' property) */
+    public static String frameSourceSpec;
+
     /** Deferred exception text */
     private static String deferredText;
 
@@ -100,6 +166,7 @@ public class Main {
             //
             // Process command-line options
             //
+            processArguments(args);
             if (osName.startsWith("win"))
                 dataPath = userHome+"\\Appdata\\Roaming\\QRScanner";
             else if (osName.startsWith("linux"))
@@ -127,12 +194,15 @@ public class Main {
             //
             BriefLogFormatter.init();
             //
-            // Open the application lock file
+            // Open the application lock file (a headless mode can run at the
+            // same time as the GUI since it does not update the application properties)
             //
-            lockFile = new RandomAccessFile(dataPath+fileSeparator+".lock", "rw");
-            fileLock = lockFile.getChannel().tryLock();
-            if (fileLock == null)
-                throw new IllegalStateException("QRScanner is already running");
+            if (!headless) {
+                lockFile = new RandomAccessFile(dataPath+fileSeparator+".lock", "rw");
+                fileLock = lockFile.getChannel().tryLock();
+                if (fileLock == null)
+                    throw new IllegalStateException("QRScanner is already running");
+            }
             //
             // Get the application build properties
             //
@@ -159,15 +229,233 @@ public class Main {
                 }
             }
             //
+            // Run a batch decode without starting the GUI
+            //
+            if (batchDirectory != null) {
+                runBatch();
+                return;
+            }
+            //
+            // Run the class data sharing training workload without starting the GUI
+            //
+            if (warmupOnly) {
+                runWarmup();
+                return;
+            }
+            //
+            // Run the MJPEG server without starting the GUI
+            //
+            if (mjpegPort >= 0) {
+                runMjpegServer();
+                return;
+            }
+            //
+            // Run the decode server without starting the GUI
+            //
+            if (serverPort >= 0) {
+                runServer();
+                return;
+            }
+            //
+            // Open the scan history
+            //
+            if (Boolean.parseBoolean(properties.getProperty("history.enabled", "true"))) {
+                try {
+                    scanHistory = new ScanHistory(Paths.get(dataPath));
+                } catch (IOException exc) {
+                    log.error("Unable to open the scan history", exc);
+                }
+            }
+            //
+            // Start discovering the webcam while the GUI is being created
+            //
+            cameraManager = new CameraManager();
+            cameraManager.start();
+            //
+            // Warm up the decoder before the user scans a QR code
+            //
+            DecoderWarmup.start();
+            //
             // Start our services on the GUI thread so we can display dialogs
             //
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
             SwingUtilities.invokeLater(() -> createAndShowGUI());
         } catch (Exception exc) {
             logException("Exception during program initialization", exc);
+            if (headless)
+                System.exit(1);
+        }
+    }
+
+    /**
+     * Process the command-line arguments.  The headless modes are selected before
+     * their option values are read, so an invalid value is not reported using the GUI.
+     *
+     * @param       args                Command-line arguments
+     * @throws      IllegalArgumentException    Invalid command-line argument
+     */
+    private static void processArguments(String[] args) throws IllegalArgumentException {
+        for (int i=0; i<args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-batch":
+                    headless = true;
+                    batchDirectory = optionValue(args, ++i, arg);
+                    break;
+                case "-server":
+                    headless = true;
+                    try {
+                        serverPort = Integer.parseInt(optionValue(args, ++i, arg));
+                    } catch (NumberFormatException exc) {
+                        throw new IllegalArgumentException("Invalid server port: " + args[i]);
+                    }
+                    if (serverPort < 0 || serverPort > 65535)
+                        throw new IllegalArgumentException("Invalid server port: " + args[i]);
+                    break;
+                case "-warmup":
+                    warmupOnly = true;
+                    headless = true;
+                    break;
+                case "-mjpeg":
+                    headless = true;
+                    try {
+                        mjpegPort = Integer.parseInt(optionValue(args, ++i, arg));
+                    } catch (NumberFormatException exc) {
+                        throw new IllegalArgumentException("Invalid MJPEG server port: " + args[i]);
+                    }
+                    if (mjpegPort < 0 || mjpegPort > 65535)
+                        throw new IllegalArgumentException("Invalid MJPEG server port: " + args[i]);
+                    mjpegDirectory = optionValue(args, ++i, arg);
+                    break;
+                case "-source":
+                    frameSourceSpec = optionValue(args, ++i, arg);
+                    break;
+                case "-output":
+                    batchOutput = optionValue(args, ++i, arg);
+                    break;
+                case "-tiled":
+                    batchTiled = true;
+                    break;
+                case "-threads":
+                    try {
+                        batchThreads = Integer.parseInt(optionValue(args, ++i, arg));
+                    } catch (NumberFormatException exc) {
+                        throw new IllegalArgumentException("Invalid thread count: " + args[i]);
+                    }
+                    if (batchThreads < 1)
+                        throw new IllegalArgumentException("Invalid thread count: " + args[i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unrecognized command-line option: " + arg);
+            }
+        }
+    }
+
+    /**
+     * Return the value for a command-line option
+     *
+     * @param       args                Command-line arguments
+     * @param       index               Index of the option value
+     * @param       option              Option name
+     * @return                          Option value
+     * @throws      IllegalArgumentException    Option value is missing
+     */
+    private static String optionValue(String[] args, int index, String option)
+                                        throws IllegalArgumentException {
+        if (index >= args.length)
+            throw new IllegalArgumentException("No value specified for " + option);
+        return args[index];
+    }
+
+    /**
+     * Decode the images in the batch directory
+     *
+     * @throws      IOException         Unable to process the batch directory
+     */
+    private static void runBatch() throws IOException {
+        Path directory = Paths.get(batchDirectory);
+        if (!Files.isDirectory(directory))
+            throw new IOException("Batch directory '" + batchDirectory + "' not found");
+        Writer writer;
+        if (batchOutput != null)
+            writer = Files.newBufferedWriter(Paths.get(batchOutput), StandardCharsets.UTF_8);
+        else
+            writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        try {
+            BatchDecoder decoder = new BatchDecoder(directory, writer, batchThreads);
+            if (batchTiled)
+                decoder.setTiles(Main.getIntegerProperty("scan.tile.size", 1024),
+                                 Main.getIntegerProperty("scan.tile.overlap", 256));
+            decoder.run();
+        } finally {
+            if (batchOutput != null)
+                writer.close();
+            else
+                writer.flush();
         }
     }
 
+    /**
+     * Run the decode server until the application is stopped
+     *
+     * @throws      IOException         Unable to start the decode server
+     */
+    private static void runServer() throws IOException {
+        decodeServer = new DecodeServer(serverPort, batchThreads);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> decodeServer.stop()));
+        decodeServer.run();
+    }
+
+    /**
+     * Serve the images in the MJPEG directory until the application is stopped
+     *
+     * @throws      IOException         Unable to start the MJPEG server
+     */
+    private static void runMjpegServer() throws IOException {
+        MjpegServer server = new MjpegServer(mjpegPort, Paths.get(mjpegDirectory),
+                                             getDoubleProperty("scan.source.fps", 15.0));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop()));
+        server.run();
+    }
+
+    /**
+     * Run the decoder warm-up and load the GUI classes.  This is the training
+     * workload for the class data sharing archive.
+     */
+    private static void runWarmup() {
+        new DecoderWarmup(Main.getIntegerProperty("scan.warmup.frames", 24)).run();
+        String[] classNames = {
+            "org.ScripterRon.QRScanner.MainWindow", "org.ScripterRon.QRScanner.ScanDialog",
+            "org.ScripterRon.QRScanner.PreviewPanel", "org.ScripterRon.QRScanner.Menu",
+            "org.ScripterRon.QRScanner.ButtonPane", "org.ScripterRon.QRScanner.CameraManager",
+            "org.ScripterRon.QRScanner.ScanHistory", "org.ScripterRon.QRScanner.MultiScanDialog",
+            "org.ScripterRon.QRScanner.HistoryPanel", "org.ScripterRon.QRScanner.HistoryTableModel",
+            "javax.swing.JFrame", "javax.swing.JDialog", "javax.swing.JTextArea", "javax.swing.JList",
+            "javax.swing.JScrollPane", "javax.swing.JMenuBar", "javax.swing.JMenuItem",
+            "javax.swing.JOptionPane", "javax.swing.JTable", "javax.swing.JTabbedPane"
+        };
+        int loaded = 0;
+        for (String className : classNames) {
+            try {
+                Class.forName(className, false, Main.class.getClassLoader());
+                loaded++;
+            } catch (ClassNotFoundException | LinkageError exc) {
+                log.warn(String.format("Unable to load %s", className));
+            }
+        }
+        log.info(String.format("Warm-up completed: %d GUI classes loaded, %d ms after startup",
+                               loaded, getUptime()));
+    }
+
+    /**
+     * Return the time since the JVM was started
+     *
+     * @return                      Elapsed time (milliseconds)
+     */
+    public static long getUptime() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
     /**
      * Create and show our application GUI
      *
@@ -189,6 +477,7 @@ public class Main {
         //
         mainWindow.pack();
         mainWindow.setVisible(true);
+        log.info(String.format("Application window displayed %d ms after startup", getUptime()));
     }
 
     /**
@@ -200,6 +489,16 @@ public class Main {
         //
         saveProperties();
         //
+        // Write the pending scans to the history
+        //
+        if (scanHistory != null)
+            scanHistory.close();
+        //
+        // Close the webcam
+        //
+        if (cameraManager != null)
+            cameraManager.shutdown();
+        //
         // Close the application lock file
         //
         try {
@@ -228,13 +527,80 @@ public class Main {
     }
 
     /**
-     * Display a dialog when an exception occurs.
+     * Return an integer application property
+     *
+     * @param       name        Property name
+     * @param       defaultValue Default value
+     * @return                  Property value
+     */
+    public static int getIntegerProperty(String name, int defaultValue) {
+        int result = defaultValue;
+        String propValue = properties.getProperty(name);
+        if (propValue != null) {
+            try {
+                result = Integer.parseInt(propValue.trim());
+            } catch (NumberFormatException exc) {
+                log.error(String.format("Invalid '%s' property value: %s", name, propValue));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return a numeric application property
+     *
+     * @param       name        Property name
+     * @param       defaultValue Default value
+     * @return                  Property value
+     */
+    public static double getDoubleProperty(String name, double defaultValue) {
+        double result = defaultValue;
+        String propValue = properties.getProperty(name);
+        if (propValue != null) {
+            try {
+                result = Double.parseDouble(propValue.trim());
+            } catch (NumberFormatException exc) {
+                log.error(String.format("Invalid '%s' property value: %s", name, propValue));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return an image size application property (width,height)
+     *
+     * @param       name        Property name
+     * @param       defaultValue Default value
+     * @return                  Property value
+     */
+    public static Dimension getSizeProperty(String name, Dimension defaultValue) {
+        Dimension result = defaultValue;
+        String propValue = properties.getProperty(name);
+        if (propValue != null) {
+            int sep = propValue.indexOf(',');
+            try {
+                if (sep < 0)
+                    throw new NumberFormatException();
+                result = new Dimension(Integer.parseInt(propValue.substring(0, sep).trim()),
+                                       Integer.parseInt(propValue.substring(sep+1).trim()));
+            } catch (NumberFormatException exc) {
+                log.error(String.format("Invalid '%s' property value: %s", name, propValue));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Display a dialog when an exception occurs.  The exception is just logged
+     * when running without the GUI.
      *
      * @param       text        Text message describing the cause of the exception
      * @param       exc         The Java exception object
      */
     public static void logException(String text, Throwable exc) {
-        if (SwingUtilities.isEventDispatchThread()) {
+        if (headless) {
+            log.error(text, exc);
+        } else if (SwingUtilities.isEventDispatchThread()) {
             StringBuilder string = new StringBuilder(512);
             //
             // Display our error message
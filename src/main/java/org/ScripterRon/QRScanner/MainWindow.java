@@ -17,6 +17,7 @@ package org.ScripterRon.QRScanner;
 import static org.ScripterRon.QRScanner.Main.log;
 
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Point;
 import java.awt.Toolkit;
@@ -26,15 +27,22 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.List;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.DefaultListModel;
 import javax.swing.JFrame;
+import javax.swing.JList;
 import javax.swing.JMenuBar;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTabbedPane;
 import javax.swing.JTextArea;
+import javax.swing.ListSelectionModel;
 import javax.swing.WindowConstants;
 
 /**
@@ -47,6 +55,18 @@ public final class MainWindow extends JFrame implements ActionListener {
     
     /** QR text field */
     private final JTextArea textField;
+    
+    /** Continuous scan results */
+    private final DefaultListModel<ScanRecord> resultModel = new DefaultListModel<>();
+    
+    /** Continuous scan result list */
+    private final JList<ScanRecord> resultList;
+
+    /** Result tabs */
+    private final JTabbedPane resultTabs;
+
+    /** Scan history panel or null if the history is not enabled */
+    private final HistoryPanel historyPanel;
 
     /**
      * Create the application window
@@ -99,7 +119,11 @@ public final class MainWindow extends JFrame implements ActionListener {
         // Add the "Action" menu to the menu bar
         //
         menuBar.add(new Menu(this, "Action", new String[] {"Scan QR Code", "scan qr"},
-                                             new String[] {"Copy QR Text", "copy text"}));
+                                             new String[] {"Continuous Scan", "scan continuous"},
+                                             new String[] {"Multi-Camera Scan", "scan multiple"},
+                                             new String[] {"Receive Sequence", "receive sequence"},
+                                             new String[] {"Copy QR Text", "copy text"},
+                                             new String[] {"Clear Results", "clear results"}));
         //
         // Add the "Help" menu to the menu bar
         //
@@ -118,6 +142,25 @@ public final class MainWindow extends JFrame implements ActionListener {
         textField.setLineWrap(true);
         textField.setWrapStyleWord(true);
         //
+        // Create the list for the continuous scan results
+        //
+        resultList = new JList<>(resultModel);
+        resultList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        resultList.setCellRenderer(new ResultRenderer());
+        JScrollPane resultPane = new JScrollPane(resultList);
+        //
+        // Create the tabs for the continuous scan results and the scan history
+        //
+        resultTabs = new JTabbedPane();
+        resultTabs.addTab("Scan Results", resultPane);
+        if (Main.scanHistory != null) {
+            historyPanel = new HistoryPanel(Main.scanHistory);
+            resultTabs.addTab("History", historyPanel);
+        } else {
+            historyPanel = null;
+        }
+        resultTabs.setPreferredSize(new Dimension(frameWidth - 60, 300));
+        //
         // Set up the content pane
         //
         JPanel contentPane = new JPanel();
@@ -127,6 +170,8 @@ public final class MainWindow extends JFrame implements ActionListener {
         contentPane.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
         contentPane.add(Box.createVerticalStrut(30));
         contentPane.add(textField);
+        contentPane.add(Box.createVerticalStrut(15));
+        contentPane.add(resultTabs);
         setContentPane(contentPane);
         //
         // Receive WindowListener events
@@ -145,7 +190,11 @@ public final class MainWindow extends JFrame implements ActionListener {
         // "about"              - Display information about this program
         // "exit"               - Exit the program
         // "scan qr"            - Scan a QR code
+        // "scan continuous"    - Scan QR codes until the scan dialog is closed
+        // "scan multiple"      - Scan QR codes using all of the webcams
+        // "receive sequence"   - Receive a payload sent as a sequence of QR codes
         // "copy text"          - Copy QR text to the system clipboard
+        // "clear results"      - Clear the continuous scan results
         //
         try {
             String action = ae.getActionCommand();
@@ -162,10 +211,20 @@ public final class MainWindow extends JFrame implements ActionListener {
                         textField.setText(text);
                     }
                     break;
+                case "scan continuous":
+                    ScanDialog.showContinuousDialog(this, (record) -> addResult(record));
+                    break;
+                case "scan multiple":
+                    MultiScanDialog.showDialog(this, (record) -> addResult(record));
+                    break;
+                case "receive sequence":
+                    ReceiveDialog.showDialog(this, (summary) -> textField.setText(summary));
+                    break;
                 case "copy text":
-                    StringSelection sel = new StringSelection(textField.getText());
-                    Clipboard cb = Toolkit.getDefaultToolkit().getSystemClipboard();
-                    cb.setContents(sel, null);
+                    copyText();
+                    break;
+                case "clear results":
+                    resultModel.clear();
                     break;
             }
         } catch (Exception exc) {
@@ -173,6 +232,42 @@ public final class MainWindow extends JFrame implements ActionListener {
         }
     }
 
+    /**
+     * Add a continuous scan result to the result list
+     *
+     * @param       record          Scan record
+     */
+    public void addResult(ScanRecord record) {
+        resultModel.addElement(record);
+        resultList.ensureIndexIsVisible(resultModel.size() - 1);
+    }
+
+    /**
+     * Copy the selected continuous scan results to the system clipboard (one per line).
+     * The selected scans are copied when the history is displayed.  The QR text field
+     * is copied if no results are selected.
+     */
+    private void copyText() {
+        if (historyPanel != null && resultTabs.getSelectedComponent() == historyPanel &&
+                                    historyPanel.hasSelection()) {
+            historyPanel.copySelected();
+            return;
+        }
+        String text;
+        List<ScanRecord> selected = resultList.getSelectedValuesList();
+        if (selected.isEmpty()) {
+            text = textField.getText();
+        } else {
+            StringBuilder sb = new StringBuilder(selected.size()*64);
+            for (ScanRecord record : selected)
+                sb.append(record.getText()).append(Main.lineSeparator);
+            text = sb.toString();
+        }
+        StringSelection sel = new StringSelection(text);
+        Clipboard cb = Toolkit.getDefaultToolkit().getSystemClipboard();
+        cb.setContents(sel, null);
+    }
+
     /**
      * Exit the application
      */
@@ -284,4 +379,29 @@ public final class MainWindow extends JFrame implements ActionListener {
             }
         }
     }
+
+    /**
+     * Display the QR text and the camera that scanned it
+     */
+    private static class ResultRenderer extends DefaultListCellRenderer {
+
+        /**
+         * Return the component used to display a result
+         *
+         * @param       list            Result list
+         * @param       value           Scan record
+         * @param       index           List index
+         * @param       isSelected      TRUE if the result is selected
+         * @param       cellHasFocus    TRUE if the result has the focus
+         * @return                      Display component
+         */
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                      boolean isSelected, boolean cellHasFocus) {
+            ScanRecord record = (ScanRecord)value;
+            String text = (record.getCamera().isEmpty() ? record.getText() :
+                                        String.format("%s    [%s]", record.getText(), record.getCamera()));
+            return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+        }
+    }
 }
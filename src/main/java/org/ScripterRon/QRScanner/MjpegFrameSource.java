@@ -0,0 +1,394 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.imageio.ImageIO;
+
+/**
+ * MjpegFrameSource receives images from an IP camera that provides an MJPEG stream
+ * over HTTP (frame source 'mjpeg:http://host:port/path').
+ *
+ * The stream is read on the reader thread using a socket channel and is parsed as it
+ * arrives.  Only the most recent JPEG image is kept: an image that has not been
+ * decoded when the next image arrives is dropped.  The decoder thread converts the
+ * JPEG image to a buffered image when the frame listener is ready for a new frame,
+ * so images are not decompressed just to be replaced in the decode pipeline.  The
+ * decoder thread is woken by the listener ready callback.  An image is also decoded
+ * if the preview has not been updated for 'scan.mjpeg.preview' milliseconds
+ * (default 250).
+ *
+ * Each start() creates a new session for the reader and decoder threads.  A thread
+ * from an earlier session that has not ended yet sees that its own session has been
+ * stopped, so it never uses the listener or the connection of a later session.
+ *
+ * The stream is reopened after 'scan.mjpeg.reconnect' seconds (default 2) if the
+ * connection is lost.  User information in the URL is sent using basic authentication.
+ */
+public class MjpegFrameSource implements FrameSource {
+
+    /** Stream URI */
+    private final URI uri;
+
+    /** Maximum image size */
+    private final int maxFrameSize;
+
+    /** Preview interval (nanoseconds) */
+    private final long previewInterval;
+
+    /** Reconnect delay (milliseconds) */
+    private final long reconnectDelay;
+
+    /** Image size (size of the last image) */
+    private volatile Dimension viewSize;
+
+    /** Current session or null if the source is stopped */
+    private Session session;
+
+    /** Reader thread */
+    private Thread readerThread;
+
+    /** Decoder thread */
+    private Thread decoderThread;
+
+    /** Image lock */
+    private final Lock imageLock = new ReentrantLock();
+
+    /** Image available condition */
+    private final Condition imageAvailable = imageLock.newCondition();
+
+    /** Latest JPEG image (protected by imageLock) */
+    private byte[] latestImage;
+
+    /** Receive time for the latest image (protected by imageLock) */
+    private long latestTime;
+
+    /** Number of images received */
+    private final AtomicLong receivedCount = new AtomicLong();
+
+    /** Number of images dropped before they were decoded */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /** Number of images decoded */
+    private final AtomicLong decodedCount = new AtomicLong();
+
+    /** Number of bytes received */
+    private final AtomicLong byteCount = new AtomicLong();
+
+    /**
+     * Create the MJPEG frame source
+     *
+     * @param       url             Stream URL
+     * @throws      IOException     Invalid URL
+     */
+    public MjpegFrameSource(String url) throws IOException {
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException exc) {
+            throw new IOException("Invalid MJPEG stream URL: " + url, exc);
+        }
+        if (!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null)
+            throw new IOException("MJPEG stream URL must be an http URL: " + url);
+        maxFrameSize = Main.getIntegerProperty("scan.mjpeg.maxframe", 8*1024*1024);
+        previewInterval = TimeUnit.MILLISECONDS.toNanos(Main.getIntegerProperty("scan.mjpeg.preview", 250));
+        reconnectDelay = TimeUnit.SECONDS.toMillis(Main.getIntegerProperty("scan.mjpeg.reconnect", 2));
+        viewSize = Main.getSizeProperty("scan.mjpeg.size", new Dimension(640, 480));
+    }
+
+    /**
+     * Return the source name
+     *
+     * @return                      Stream host and port
+     */
+    @Override
+    public String getName() {
+        return "MJPEG " + uri.getHost() + (uri.getPort() >= 0 ? ":" + uri.getPort() : "");
+    }
+
+    /**
+     * Return the image size
+     *
+     * @return                      Image size
+     */
+    @Override
+    public Dimension getViewSize() {
+        return viewSize;
+    }
+
+    /**
+     * Start receiving images
+     *
+     * @param       listener        Frame listener
+     * @throws      IOException     Unable to start the source
+     */
+    @Override
+    public synchronized void start(FrameListener listener) throws IOException {
+        if (session != null)
+            throw new IllegalStateException("Frame source is already started");
+        Session newSession = new Session(listener);
+        session = newSession;
+        imageLock.lock();
+        try {
+            latestImage = null;
+        } finally {
+            imageLock.unlock();
+        }
+        listener.setReadyCallback(() -> listenerReady());
+        readerThread = new Thread(() -> readStream(newSession), getName() + " Reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+        decoderThread = new Thread(() -> decodeImages(newSession), getName() + " Decoder");
+        decoderThread.setDaemon(true);
+        decoderThread.start();
+    }
+
+    /**
+     * Stop receiving images
+     */
+    @Override
+    public synchronized void stop() {
+        if (session == null)
+            return;
+        session.stopped = true;
+        session.listener.setReadyCallback(null);
+        closeChannel(session);
+        readerThread.interrupt();
+        decoderThread.interrupt();
+        session = null;
+        readerThread = null;
+        decoderThread = null;
+        log.info(String.format("%s stopped: %d images received (%d KB), %d decoded, %d dropped",
+                               getName(), receivedCount.get(), byteCount.get() / 1024,
+                               decodedCount.get(), droppedCount.get()));
+    }
+
+    /**
+     * Read the stream until the session is stopped
+     *
+     * @param       session         Reader session
+     */
+    private void readStream(Session session) {
+        MjpegParser parser = new MjpegParser((data) -> {
+            if (!session.stopped)
+                imageReceived(data);
+        }, maxFrameSize);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+        while (!session.stopped) {
+            try {
+                int port = (uri.getPort() >= 0 ? uri.getPort() : 80);
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(uri.getHost(), port));
+                session.channel = channel;
+                if (session.stopped)
+                    break;
+                channel.write(ByteBuffer.wrap(buildRequest().getBytes(StandardCharsets.ISO_8859_1)));
+                log.info(String.format("Connected to %s", getName()));
+                parser.reset();
+                while (true) {
+                    buffer.clear();
+                    int count = channel.read(buffer);
+                    if (count < 0)
+                        throw new IOException("Connection closed by the camera");
+                    byteCount.addAndGet(count);
+                    buffer.flip();
+                    parser.feed(buffer);
+                }
+            } catch (IOException exc) {
+                if (session.stopped)
+                    break;
+                log.error(String.format("Unable to read %s: %s", getName(), exc.getMessage()));
+            } finally {
+                closeChannel(session);
+            }
+            try {
+                Thread.sleep(reconnectDelay);
+            } catch (InterruptedException exc) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Build the HTTP request.  HTTP/1.0 is used so the stream is not chunked.
+     *
+     * @return                      Request
+     */
+    private String buildRequest() {
+        StringBuilder request = new StringBuilder(256);
+        String path = uri.getRawPath();
+        if (path == null || path.isEmpty())
+            path = "/";
+        if (uri.getRawQuery() != null)
+            path = path + "?" + uri.getRawQuery();
+        request.append("GET ").append(path).append(" HTTP/1.0\r\n");
+        request.append("Host: ").append(uri.getHost());
+        if (uri.getPort() >= 0)
+            request.append(':').append(uri.getPort());
+        request.append("\r\n");
+        if (uri.getRawUserInfo() != null) {
+            String credentials = Base64.getEncoder().encodeToString(
+                                        uri.getUserInfo().getBytes(StandardCharsets.UTF_8));
+            request.append("Authorization: Basic ").append(credentials).append("\r\n");
+        }
+        request.append("User-Agent: QRScanner\r\n\r\n");
+        return request.toString();
+    }
+
+    /**
+     * Close the socket channel for a session
+     *
+     * @param       session         Reader session
+     */
+    private static void closeChannel(Session session) {
+        SocketChannel socketChannel = session.channel;
+        if (socketChannel != null) {
+            try {
+                socketChannel.close();
+            } catch (IOException exc) {
+                // Ignore exception
+            }
+        }
+    }
+
+    /**
+     * A JPEG image has been received (called on the reader thread).  The image
+     * replaces an image that has not been decoded yet.
+     *
+     * @param       data            Image data
+     */
+    private void imageReceived(byte[] data) {
+        receivedCount.incrementAndGet();
+        imageLock.lock();
+        try {
+            if (latestImage != null)
+                droppedCount.incrementAndGet();
+            latestImage = data;
+            latestTime = System.nanoTime();
+            imageAvailable.signalAll();
+        } finally {
+            imageLock.unlock();
+        }
+    }
+
+    /**
+     * The frame listener is ready for a new frame (called on a decode worker thread)
+     */
+    private void listenerReady() {
+        imageLock.lock();
+        try {
+            imageAvailable.signalAll();
+        } finally {
+            imageLock.unlock();
+        }
+    }
+
+    /**
+     * Decode the JPEG images when the listener is ready for a new frame
+     *
+     * @param       session         Decoder session
+     */
+    private void decodeImages(Session session) {
+        FrameListener frameListener = session.listener;
+        long lastDecodeTime = System.nanoTime();
+        try {
+            while (!session.stopped) {
+                byte[] data;
+                long captureTime;
+                imageLock.lock();
+                try {
+                    if (latestImage == null) {
+                        imageAvailable.await();
+                        continue;
+                    }
+                    //
+                    // Wait until the listener is ready unless it is time to update
+                    // the preview.  The ready callback or a newer image ends the wait.
+                    //
+                    long waitTime = previewInterval - (System.nanoTime() - lastDecodeTime);
+                    if (waitTime > 0 && !frameListener.isReady()) {
+                        imageAvailable.awaitNanos(waitTime);
+                        continue;
+                    }
+                    if (session.stopped)
+                        break;
+                    data = latestImage;
+                    captureTime = latestTime;
+                    latestImage = null;
+                } finally {
+                    imageLock.unlock();
+                }
+                lastDecodeTime = System.nanoTime();
+                try {
+                    BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+                    if (image == null) {
+                        log.warn(String.format("%s image is not a JPEG image", getName()));
+                        continue;
+                    }
+                    if (session.stopped)
+                        break;
+                    decodedCount.incrementAndGet();
+                    if (image.getWidth() != viewSize.width || image.getHeight() != viewSize.height)
+                        viewSize = new Dimension(image.getWidth(), image.getHeight());
+                    frameListener.imageCaptured(this, image, captureTime);
+                } catch (IOException exc) {
+                    log.warn(String.format("Unable to decode %s image: %s", getName(), exc.getMessage()));
+                }
+            }
+        } catch (InterruptedException exc) {
+            // Source is being stopped
+        }
+    }
+
+    /**
+     * Reader and decoder state for one start() call
+     */
+    private static class Session {
+
+        /** Frame listener */
+        private final FrameListener listener;
+
+        /** Session has been stopped */
+        private volatile boolean stopped;
+
+        /** Socket channel */
+        private volatile SocketChannel channel;
+
+        /**
+         * Create the session
+         *
+         * @param       listener        Frame listener
+         */
+        Session(FrameListener listener) {
+            this.listener = listener;
+        }
+    }
+}
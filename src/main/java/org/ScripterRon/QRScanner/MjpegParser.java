@@ -0,0 +1,324 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * MjpegParser extracts the JPEG images from an MJPEG-over-HTTP stream.  The stream
+ * is a multipart/x-mixed-replace HTTP response where each part is a JPEG image.
+ *
+ * The parser is incremental: the stream bytes are passed to feed() as they are
+ * received and the handler is called for each complete image.  A part with a
+ * Content-Length header is copied directly.  Otherwise the image ends at the next
+ * boundary.  The boundary is matched with or without the leading '--' since some
+ * cameras include it in the Content-Type header.
+ */
+public class MjpegParser {
+
+    /**
+     * The frame handler receives the complete images
+     */
+    public interface FrameHandler {
+
+        /**
+         * A JPEG image has been received
+         *
+         * @param       data            Image data
+         */
+        void frameReceived(byte[] data);
+    }
+
+    /** Parser states */
+    private enum State {RESPONSE, BOUNDARY, HEADERS, BODY}
+
+    /** Header terminator */
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    /** Frame handler */
+    private final FrameHandler handler;
+
+    /** Maximum image size */
+    private final int maxFrameSize;
+
+    /** Boundary (without the leading '--') */
+    private byte[] boundary;
+
+    /** Current state */
+    private State state = State.RESPONSE;
+
+    /** Content length for the current part or -1 */
+    private int contentLength;
+
+    /** Data buffer */
+    private byte[] buffer = new byte[65536];
+
+    /** Start of the unprocessed data */
+    private int start;
+
+    /** End of the unprocessed data */
+    private int end;
+
+    /** Number of images discarded because they were too large */
+    private long discardCount;
+
+    /**
+     * Create the parser
+     *
+     * @param       handler         Frame handler
+     * @param       maxFrameSize    Maximum image size
+     */
+    public MjpegParser(FrameHandler handler, int maxFrameSize) {
+        this.handler = handler;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Return the number of images discarded because they were too large
+     *
+     * @return                      Discard count
+     */
+    public long getDiscardCount() {
+        return discardCount;
+    }
+
+    /**
+     * Reset the parser for a new HTTP response
+     */
+    public void reset() {
+        state = State.RESPONSE;
+        boundary = null;
+        start = 0;
+        end = 0;
+    }
+
+    /**
+     * Process stream data
+     *
+     * @param       data            Stream data (the buffer position is advanced to the limit)
+     * @throws      IOException     The stream is not an MJPEG stream
+     */
+    public void feed(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            int count = Math.min(data.remaining(), reserve(data.remaining()));
+            data.get(buffer, end, count);
+            end += count;
+            parse();
+        }
+    }
+
+    /**
+     * Make room at the end of the buffer
+     *
+     * @param       length          Number of bytes needed
+     * @return                      Number of bytes available
+     */
+    private int reserve(int length) {
+        if (buffer.length - end < length && start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (buffer.length - end < length && buffer.length < maxFrameSize + 65536)
+            buffer = Arrays.copyOf(buffer, Math.min(Math.max(buffer.length*2, end + length), maxFrameSize + 65536));
+        return buffer.length - end;
+    }
+
+    /**
+     * Process the buffered data
+     *
+     * @throws      IOException     The stream is not an MJPEG stream
+     */
+    private void parse() throws IOException {
+        boolean progress = true;
+        while (progress) {
+            switch (state) {
+                case RESPONSE:
+                    progress = parseResponse();
+                    break;
+                case BOUNDARY:
+                    progress = parseBoundary();
+                    break;
+                case HEADERS:
+                    progress = parseHeaders();
+                    break;
+                case BODY:
+                    progress = parseBody();
+                    break;
+            }
+        }
+        //
+        // Discard the buffered data if we are looking for the end of an image
+        // that is too large
+        //
+        if (end - start >= maxFrameSize + 65536 - 1024) {
+            discardCount++;
+            int keep = (boundary != null ? boundary.length + 4 : 0);
+            start = end - keep;
+            state = (state == State.RESPONSE ? State.RESPONSE : State.BOUNDARY);
+        }
+    }
+
+    /**
+     * Parse the HTTP response headers
+     *
+     * @return                      TRUE if the headers were processed
+     * @throws      IOException     The response is not an MJPEG stream
+     */
+    private boolean parseResponse() throws IOException {
+        int pos = indexOf(HEADER_END, start, end);
+        if (pos < 0)
+            return false;
+        String[] lines = new String(buffer, start, pos - start, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] status = lines[0].split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/"))
+            throw new IOException("Invalid HTTP response: " + lines[0]);
+        if (!status[1].equals("200"))
+            throw new IOException("HTTP request failed: " + lines[0]);
+        for (int i=1; i<lines.length; i++) {
+            String line = lines[i];
+            int sep = line.indexOf(':');
+            if (sep < 0 || !line.substring(0, sep).trim().equalsIgnoreCase("Content-Type"))
+                continue;
+            String contentType = line.substring(sep+1).trim();
+            if (!contentType.toLowerCase(Locale.ROOT).startsWith("multipart/"))
+                throw new IOException("Not an MJPEG stream: " + contentType);
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (param.toLowerCase(Locale.ROOT).startsWith("boundary=")) {
+                    String value = param.substring(9).trim();
+                    if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\""))
+                        value = value.substring(1, value.length()-1);
+                    if (value.startsWith("--") && value.length() > 2)
+                        value = value.substring(2);
+                    boundary = value.getBytes(StandardCharsets.ISO_8859_1);
+                }
+            }
+        }
+        if (boundary == null || boundary.length == 0)
+            throw new IOException("No multipart boundary in the HTTP response");
+        start = pos + HEADER_END.length;
+        state = State.BOUNDARY;
+        return true;
+    }
+
+    /**
+     * Find the next boundary
+     *
+     * @return                      TRUE if the boundary was found
+     */
+    private boolean parseBoundary() {
+        int pos = indexOf(boundary, start, end);
+        if (pos < 0) {
+            start = Math.max(start, end - boundary.length);
+            return false;
+        }
+        start = pos + boundary.length;
+        state = State.HEADERS;
+        return true;
+    }
+
+    /**
+     * Parse the part headers following the boundary
+     *
+     * @return                      TRUE if the headers were processed
+     */
+    private boolean parseHeaders() {
+        int pos = indexOf(HEADER_END, start, end);
+        if (pos < 0)
+            return false;
+        contentLength = -1;
+        String[] lines = new String(buffer, start, pos - start, StandardCharsets.ISO_8859_1).split("\r\n");
+        for (String line : lines) {
+            int sep = line.indexOf(':');
+            if (sep > 0 && line.substring(0, sep).trim().equalsIgnoreCase("Content-Length")) {
+                try {
+                    contentLength = Integer.parseInt(line.substring(sep+1).trim());
+                } catch (NumberFormatException exc) {
+                    contentLength = -1;
+                }
+            }
+        }
+        if (contentLength > maxFrameSize) {
+            discardCount++;
+            contentLength = -1;
+            start = pos + HEADER_END.length;
+            state = State.BOUNDARY;
+            return true;
+        }
+        start = pos + HEADER_END.length;
+        state = State.BODY;
+        return true;
+    }
+
+    /**
+     * Extract the image
+     *
+     * @return                      TRUE if the image was extracted
+     */
+    private boolean parseBody() {
+        int bodyEnd;
+        int next;
+        if (contentLength >= 0) {
+            if (end - start < contentLength)
+                return false;
+            bodyEnd = start + contentLength;
+            next = bodyEnd;
+            state = State.BOUNDARY;
+        } else {
+            int pos = indexOf(boundary, start, end);
+            if (pos < 0)
+                return false;
+            bodyEnd = pos;
+            if (bodyEnd - start >= 2 && buffer[bodyEnd-1] == '-' && buffer[bodyEnd-2] == '-')
+                bodyEnd -= 2;
+            if (bodyEnd - start >= 2 && buffer[bodyEnd-1] == '\n' && buffer[bodyEnd-2] == '\r')
+                bodyEnd -= 2;
+            next = pos + boundary.length;
+            state = State.HEADERS;
+        }
+        if (bodyEnd > start)
+            handler.frameReceived(Arrays.copyOfRange(buffer, start, bodyEnd));
+        start = next;
+        return true;
+    }
+
+    /**
+     * Find a byte sequence in the buffer
+     *
+     * @param       pattern         Byte sequence
+     * @param       from            Start position
+     * @param       to              End position
+     * @return                      Position of the sequence or -1 if not found
+     */
+    private int indexOf(byte[] pattern, int from, int to) {
+        byte first = pattern[0];
+        int last = to - pattern.length;
+        for (int i=from; i<=last; i++) {
+            if (buffer[i] != first)
+                continue;
+            int j = 1;
+            while (j < pattern.length && buffer[i+j] == pattern[j])
+                j++;
+            if (j == pattern.length)
+                return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * MjpegServer serves the images in a directory as an MJPEG stream on the loopback
+ * address.  It is used to test the MJPEG frame source with recorded camera frames
+ * without an IP camera.
+ *
+ * JPEG files are sent as they are and other image files are converted to JPEG when
+ * the server starts.  Each client receives the images in file name order at
+ * 'scan.source.fps' frames per second, starting again after the last image.
+ */
+public class MjpegServer {
+
+    /** Multipart boundary */
+    private static final String BOUNDARY = "qrscannerframe";
+
+    /** Server port */
+    private final int port;
+
+    /** JPEG images */
+    private final List<byte[]> images = new ArrayList<>();
+
+    /** Frame interval (nanoseconds) */
+    private final long frameInterval;
+
+    /** Server channel */
+    private volatile ServerSocketChannel serverChannel;
+
+    /** Client number */
+    private final AtomicInteger clientNumber = new AtomicInteger();
+
+    /**
+     * Create the MJPEG server
+     *
+     * @param       port            Server port (0 to use an available port)
+     * @param       directory       Image directory
+     * @param       frameRate       Frames per second
+     * @throws      IOException     Unable to read the images
+     */
+    public MjpegServer(int port, Path directory, double frameRate) throws IOException {
+        if (frameRate <= 0)
+            throw new IllegalArgumentException("Frame rate must be greater than 0");
+        this.port = port;
+        this.frameInterval = (long)(1.0e9 / frameRate);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path) && BatchDecoder.isImageFile(path))
+                    files.add(path);
+            }
+        }
+        Collections.sort(files);
+        for (Path path : files) {
+            String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+                images.add(Files.readAllBytes(path));
+            } else {
+                BufferedImage image = ImageIO.read(path.toFile());
+                if (image == null)
+                    continue;
+                BufferedImage rgbImage = new BufferedImage(image.getWidth(), image.getHeight(),
+                                                           BufferedImage.TYPE_INT_RGB);
+                rgbImage.getGraphics().drawImage(image, 0, 0, null);
+                ByteArrayOutputStream out = new ByteArrayOutputStream(64*1024);
+                ImageIO.write(rgbImage, "jpeg", out);
+                images.add(out.toByteArray());
+            }
+        }
+        if (images.isEmpty())
+            throw new IOException("No image files found in '" + directory + "'");
+    }
+
+    /**
+     * Return the server port
+     *
+     * @return                      Port or -1 if the server is not running
+     */
+    public int getPort() {
+        ServerSocketChannel channel = serverChannel;
+        return (channel != null ? channel.socket().getLocalPort() : -1);
+    }
+
+    /**
+     * Bind the server socket
+     *
+     * @throws      IOException     Unable to bind the server socket
+     */
+    public void bind() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        log.info(String.format("MJPEG server listening on %s:%d with %d images",
+                               InetAddress.getLoopbackAddress().getHostAddress(), getPort(), images.size()));
+    }
+
+    /**
+     * Accept connections until the server is stopped.  Each client is served on
+     * its own thread.
+     *
+     * @throws      IOException     Unable to accept a connection
+     */
+    public void run() throws IOException {
+        if (serverChannel == null)
+            bind();
+        try {
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                Thread thread = new Thread(() -> serveClient(channel),
+                                           "MJPEG Client " + clientNumber.incrementAndGet());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException exc) {
+            if (serverChannel.isOpen())
+                throw exc;
+        }
+    }
+
+    /**
+     * Stop the server
+     */
+    public void stop() {
+        ServerSocketChannel channel = serverChannel;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException exc) {
+                // Ignore exception
+            }
+        }
+    }
+
+    /**
+     * Send the images to a client until the client closes the connection
+     *
+     * @param       channel         Client channel
+     */
+    private void serveClient(SocketChannel channel) {
+        long frameCount = 0;
+        try {
+            //
+            // Read the request headers (the request itself is not checked)
+            //
+            ByteBuffer request = ByteBuffer.allocate(8192);
+            while (request.hasRemaining()) {
+                if (channel.read(request) < 0)
+                    throw new IOException("Connection closed before the request was received");
+                String text = new String(request.array(), 0, request.position(), StandardCharsets.ISO_8859_1);
+                if (text.contains("\r\n\r\n"))
+                    break;
+            }
+            writeFully(channel, ("HTTP/1.0 200 OK\r\n"
+                                 + "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n"
+                                 + "Cache-Control: no-cache\r\n"
+                                 + "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            long nextTime = System.nanoTime();
+            while (true) {
+                byte[] image = images.get((int)(frameCount % images.size()));
+                byte[] header = ("--" + BOUNDARY + "\r\n"
+                                 + "Content-Type: image/jpeg\r\n"
+                                 + "Content-Length: " + image.length + "\r\n\r\n")
+                                .getBytes(StandardCharsets.ISO_8859_1);
+                channel.write(new ByteBuffer[] {ByteBuffer.wrap(header), ByteBuffer.wrap(image),
+                                                ByteBuffer.wrap(new byte[] {'\r', '\n'})});
+                frameCount++;
+                nextTime += frameInterval;
+                long delay = nextTime - System.nanoTime();
+                if (delay > 0)
+                    TimeUnit.NANOSECONDS.sleep(delay);
+            }
+        } catch (IOException exc) {
+            log.info(String.format("MJPEG client disconnected after %d frames", frameCount));
+        } catch (InterruptedException exc) {
+            // Server is being stopped
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException exc) {
+                // Ignore exception
+            }
+        }
+    }
+
+    /**
+     * Write a buffer to a channel
+     *
+     * @param       channel         Channel
+     * @param       data            Data
+     * @throws      IOException     Unable to write the data
+     */
+    private static void writeFully(SocketChannel channel, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+}
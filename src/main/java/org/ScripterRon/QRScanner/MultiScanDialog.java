@@ -0,0 +1,417 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.swing.BorderFactory;
+import javax.swing.Box;
+import javax.swing.BoxLayout;
+import javax.swing.JDialog;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.WindowConstants;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Dialog;
+import java.awt.Dimension;
+import java.awt.GridLayout;
+import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+
+/**
+ * Scan QR codes using several web cameras at the same time
+ *
+ * Each webcam has its own decode pipeline, so the cameras are captured and decoded
+ * on separate threads and a slow camera does not delay the others.  The results
+ * from all of the cameras are merged into a single stream: a QR code seen by more
+ * than one camera is reported once (see DedupeCache) and is tagged with the camera
+ * that saw it first.  The frame rate and hit rate (percentage of decoded frames
+ * containing a QR code) are displayed for each camera and are logged when the
+ * dialog is closed.
+ *
+ * The decode workers are divided between the cameras ('scan.camera.workers' sets
+ * the number of workers for each camera).
+ */
+public class MultiScanDialog extends JDialog implements ActionListener {
+
+    /** Camera panes */
+    private final List<CameraPane> cameraPanes = new ArrayList<>();
+
+    /** Result consumer */
+    private final Consumer<ScanRecord> resultConsumer;
+
+    /** Dedupe cache shared by the cameras */
+    private final DedupeCache dedupeCache = DedupeCache.fromProperties();
+
+    /** Result count label */
+    private final JLabel countLabel;
+
+    /** Result count */
+    private int resultCount = 0;
+
+    /** Camera statistics timer */
+    private final Timer statsTimer;
+
+    /**
+     * Create the dialog
+     *
+     * @param       parent          Parent frame
+     * @param       sources         Webcam frame sources
+     * @param       resultConsumer  Result consumer
+     */
+    public MultiScanDialog(JFrame parent, List<FrameSource> sources, Consumer<ScanRecord> resultConsumer) {
+        super(parent, "Multi-Camera Scan", Dialog.ModalityType.DOCUMENT_MODAL);
+        setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+        this.resultConsumer = resultConsumer;
+        //
+        // Create a pane for each camera (two columns when there are more than
+        // two cameras)
+        //
+        int workerCount = Main.getIntegerProperty("scan.camera.workers",
+                        Math.max(1, DecodePipeline.getDefaultWorkerCount() / sources.size()));
+        int columns = (sources.size() > 2 ? 2 : sources.size());
+        JPanel cameraGrid = new JPanel(new GridLayout(0, columns, 10, 10));
+        for (FrameSource source : sources) {
+            CameraPane pane = new CameraPane(source, workerCount);
+            cameraPanes.add(pane);
+            cameraGrid.add(pane);
+        }
+        countLabel = new JLabel("0 codes scanned");
+        countLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+        JPanel buttonPane = new ButtonPane(this, 10, new String[] {"Done", "cancel"});
+        //
+        // Set up the content pane
+        //
+        JPanel contentPane = new JPanel();
+        contentPane.setLayout(new BoxLayout(contentPane, BoxLayout.Y_AXIS));
+        contentPane.setOpaque(true);
+        contentPane.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+        contentPane.add(cameraGrid);
+        contentPane.add(Box.createVerticalStrut(10));
+        contentPane.add(countLabel);
+        contentPane.add(Box.createVerticalStrut(15));
+        contentPane.add(buttonPane);
+        setContentPane(contentPane);
+        //
+        // Update the camera statistics once a second
+        //
+        statsTimer = new Timer(1000, (ae) -> cameraPanes.forEach((pane) -> pane.updateStats()));
+        //
+        // Closing the dialog is the same as pressing the Done button
+        //
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent we) {
+                actionPerformed(new ActionEvent(MultiScanDialog.this, 0, "cancel"));
+            }
+        });
+    }
+
+    /**
+     * Show the multi-camera scan dialog and wait for it to be closed.  The result
+     * consumer is called on the GUI thread for each new QR code.
+     *
+     * @param       parent              Parent frame
+     * @param       resultConsumer      Result consumer
+     */
+    public static void showDialog(JFrame parent, Consumer<ScanRecord> resultConsumer) {
+        try {
+            CompletableFuture<List<FrameSource>> future = Main.cameraManager.getWebcamSources();
+            if (!future.isDone() && !ScanDialog.waitForSource(parent, future))
+                return;
+            List<FrameSource> sources;
+            try {
+                sources = future.get();
+            } catch (ExecutionException exc) {
+                throw (exc.getCause() instanceof Exception ? (Exception)exc.getCause() : exc);
+            }
+            if (sources.isEmpty()) {
+                JOptionPane.showMessageDialog(parent, "No webcam available", "No Webcam", JOptionPane.ERROR_MESSAGE);
+            } else {
+                MultiScanDialog dialog = new MultiScanDialog(parent, sources, resultConsumer);
+                dialog.pack();
+                dialog.setLocationRelativeTo(parent);
+                dialog.startCapture();
+                dialog.setVisible(true);
+            }
+        } catch (Exception exc) {
+            Main.logException("Exception while displaying dialog", exc);
+        }
+    }
+
+    /**
+     * Start the decode pipelines and start capturing images on the camera manager
+     * thread.  A camera that cannot be started is reported in its pane and the other
+     * cameras continue scanning.
+     */
+    private void startCapture() {
+        statsTimer.start();
+        for (CameraPane pane : cameraPanes) {
+            pane.decodePipeline.start();
+            Main.cameraManager.startSource(pane.frameSource, pane).whenComplete((result, exc) -> {
+                if (exc != null) {
+                    Throwable cause = (exc.getCause() != null ? exc.getCause() : exc);
+                    log.error("Unable to start {}", pane.frameSource.getName(), cause);
+                    SwingUtilities.invokeLater(() -> pane.statsLabel.setText("Unable to start the camera"));
+                }
+            });
+        }
+    }
+
+    /**
+     * Action performed (ActionListener interface)
+     *
+     * @param   ae              Action event
+     */
+    @Override
+    public void actionPerformed(ActionEvent ae) {
+        try {
+            String action = ae.getActionCommand();
+            switch (action) {
+                case "cancel":
+                    statsTimer.stop();
+                    for (CameraPane pane : cameraPanes) {
+                        pane.decodePipeline.stop();
+                        Main.cameraManager.stopSource(pane.frameSource);
+                        log.info("Camera {}: {}", pane.frameSource.getName(), pane.toString());
+                        log.info("Camera {} preview: {}, {}", pane.frameSource.getName(), pane.previewPanel.toString(),
+                                 pane.previewPanel.getCpuSplit(pane.decodePipeline.getDecodeCpuTime()));
+                    }
+                    setVisible(false);
+                    dispose();
+                    break;
+            }
+        } catch (Exception exc) {
+            Main.logException("Exception while processing action event", exc);
+        }
+    }
+
+    /**
+     * Report a QR code found by one of the cameras.  This method is called on
+     * a decode worker thread.
+     *
+     * @param       pane            Camera pane
+     * @param       result          Decode result
+     * @param       decodeTime      Decode time (nanoseconds)
+     */
+    private void resultDecoded(CameraPane pane, Result result, long decodeTime) {
+        long now = System.currentTimeMillis();
+        if (!dedupeCache.add(result.getText(), now))
+            return;
+        String camera = pane.frameSource.getName();
+        ScanRecord record = new ScanRecord(now, result.getText(), result.getBarcodeFormat().toString(),
+                                           camera, (int)Math.min(decodeTime / 1000, Integer.MAX_VALUE));
+        pane.codeCount.increment();
+        log.info("QR text from {}: {}", camera, result.getText());
+        if (Main.scanHistory != null)
+            Main.scanHistory.add(record);
+        SwingUtilities.invokeLater(() -> {
+            Toolkit.getDefaultToolkit().beep();
+            resultCount++;
+            countLabel.setText(String.format("%d %s scanned", resultCount, resultCount == 1 ? "code" : "codes"));
+            resultConsumer.accept(record);
+        });
+    }
+
+    /**
+     * The camera pane displays the images and statistics for one camera.  It receives
+     * the images from the camera and the results from the camera decode pipeline.
+     */
+    private class CameraPane extends JPanel implements FrameListener, DecodeListener {
+
+        /** Frame source */
+        private final FrameSource frameSource;
+
+        /** Preview panel */
+        private final PreviewPanel previewPanel;
+
+        /** Statistics label */
+        private final JLabel statsLabel;
+
+        /** Decode pipeline */
+        private final DecodePipeline decodePipeline;
+
+        /** Number of images captured */
+        private final LongAdder frameCount = new LongAdder();
+
+        /** Number of new QR codes reported for this camera */
+        private final LongAdder codeCount = new LongAdder();
+
+        /** Image count at the last statistics update */
+        private long lastFrameCount;
+
+        /** Time of the last statistics update (System.nanoTime) */
+        private long lastUpdateTime = System.nanoTime();
+
+        /** Capture start time (System.nanoTime) */
+        private final long startTime = System.nanoTime();
+
+        /**
+         * Create the camera pane
+         *
+         * @param       frameSource     Frame source
+         * @param       workerCount     Number of decode workers
+         */
+        CameraPane(FrameSource frameSource, int workerCount) {
+            super(new BorderLayout(0, 5));
+            this.frameSource = frameSource;
+            Dimension viewSize = frameSource.getViewSize();
+            Dimension previewSize = (viewSize != null ? new Dimension(viewSize) : new Dimension(640, 480));
+            if (previewSize.width > 480) {
+                previewSize.height = previewSize.height * 480 / previewSize.width;
+                previewSize.width = 480;
+            }
+            previewPanel = new PreviewPanel(previewSize);
+            previewPanel.setMirrored(true);
+            statsLabel = new JLabel("Starting");
+            add(new JLabel(frameSource.getName()), BorderLayout.NORTH);
+            add(previewPanel, BorderLayout.CENTER);
+            add(statsLabel, BorderLayout.SOUTH);
+            decodePipeline = new DecodePipeline(workerCount, this, frameSource.getName());
+            decodePipeline.setDecodeMultiple(true);
+            if (frameSource instanceof WebcamFrameSource)
+                decodePipeline.setResolutionController(((WebcamFrameSource)frameSource).getResolutionController());
+            previewPanel.setDecodeMonitor(decodePipeline::isReady);
+        }
+
+        /**
+         * Update the camera statistics (called on the GUI thread)
+         */
+        void updateStats() {
+            long now = System.nanoTime();
+            long frames = frameCount.sum();
+            double frameRate = (double)(frames - lastFrameCount) * 1.0e9 / (double)Math.max(1, now - lastUpdateTime);
+            lastFrameCount = frames;
+            lastUpdateTime = now;
+            statsLabel.setText(String.format("%.1f fps, %.1f%% hits, %d codes",
+                                             frameRate, getHitRate(), codeCount.sum()));
+        }
+
+        /**
+         * Return the percentage of decoded frames containing a QR code
+         *
+         * @return                  Hit rate
+         */
+        private double getHitRate() {
+            long decoded = decodePipeline.getDecodedCount();
+            return (decoded != 0 ? (double)decodePipeline.getHitCount() * 100.0 / (double)decoded : 0.0);
+        }
+
+        /**
+         * Image captured (FrameListener interface)
+         *
+         * @param   source          Frame source
+         * @param   image           Captured image
+         * @param   captureTime     Capture time
+         */
+        @Override
+        public void imageCaptured(FrameSource source, BufferedImage image, long captureTime) {
+            frameCount.increment();
+            previewPanel.setImage(image);
+            Frame frame = decodePipeline.acquireFrame();
+            if (frame == null)
+                return;
+            try {
+                if (source.copyFrame(frame, image, captureTime)) {
+                    decodePipeline.submit(frame);
+                    frame = null;
+                }
+            } catch (Exception exc) {
+                ScanMetrics.getInstance().frameFailed();
+                Main.logException("Exception while processing buffered image", exc);
+            } finally {
+                if (frame != null)
+                    decodePipeline.releaseFrame(frame);
+            }
+        }
+
+        /**
+         * Check if the decode pipeline is ready for a new frame (FrameListener interface)
+         *
+         * @return                  TRUE if a decode worker is waiting for a frame
+         */
+        @Override
+        public boolean isReady() {
+            return decodePipeline.isReady();
+        }
+
+        /**
+         * Set the decode pipeline ready callback (FrameListener interface)
+         *
+         * @param       callback        Ready callback or null
+         */
+        @Override
+        public void setReadyCallback(Runnable callback) {
+            decodePipeline.setReadyCallback(callback);
+        }
+
+        /**
+         * Finder patterns located (DecodeListener interface)
+         *
+         * @param   points          Points in frame coordinates
+         * @param   width           Frame width
+         * @param   height          Frame height
+         * @param   decoded         TRUE if a QR code was decoded
+         */
+        @Override
+        public void pointsFound(ResultPoint[] points, int width, int height, boolean decoded) {
+            previewPanel.setPoints(points, width, height, decoded);
+        }
+
+        /**
+         * QR code decoded (DecodeListener interface)
+         *
+         * @param   result          Decode result
+         * @param   decodeTime      Decode time (nanoseconds)
+         */
+        @Override
+        public void resultDecoded(Result result, long decodeTime) {
+            MultiScanDialog.this.resultDecoded(this, result, decodeTime);
+        }
+
+        /**
+         * Return the camera statistics for the scan
+         *
+         * @return                  Statistics string
+         */
+        @Override
+        public String toString() {
+            double elapsed = (double)(System.nanoTime() - startTime) / 1.0e9;
+            return String.format("%d frames, %.1f fps, %d decoded, %.1f%% hits, %d codes",
+                                 frameCount.sum(), (double)frameCount.sum() / Math.max(elapsed, 0.001),
+                                 decodePipeline.getDecodedCount(), getHitRate(), codeCount.sum());
+        }
+    }
+}
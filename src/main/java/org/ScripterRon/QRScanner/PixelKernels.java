@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * PixelKernels performs the per-pixel image preprocessing: conversion of RGB pixels
+ * to luminance, 2x2 downsampling for the luminance pyramid, and the block statistics
+ * and thresholding used by the binarizer.  Each method processes one row (or one
+ * row of 8x8 blocks) so the caller keeps control of the image layout.
+ *
+ * The scalar kernels are always available.  The vector kernels use the JDK Vector
+ * API and are compiled only when the 'vector' build profile is selected (Java 17
+ * or later).  They are loaded by name so the application still runs on Java 8 and
+ * they are used only when the 'scan.simd' system or application property is true
+ * and the JVM is started with '--add-modules jdk.incubator.vector'.  The scalar
+ * kernels are used if the vector kernels cannot be loaded.  Both implementations
+ * produce exactly the same output.
+ */
+public abstract class PixelKernels {
+
+    /** Vector kernels class name */
+    private static final String VECTOR_CLASS = "org.ScripterRon.QRScanner.VectorPixelKernels";
+
+    /** Scalar kernels */
+    private static final PixelKernels scalarKernels = new ScalarPixelKernels();
+
+    /** Selected kernels */
+    private static volatile PixelKernels instance;
+
+    /** Block size is 8x8 pixels */
+    static final int BLOCK_SIZE = 8;
+
+    /**
+     * Return the kernels selected by the 'scan.simd' property.  The system property
+     * overrides the application property.
+     *
+     * @return                      Pixel kernels
+     */
+    public static PixelKernels getInstance() {
+        PixelKernels kernels = instance;
+        if (kernels == null) {
+            synchronized(PixelKernels.class) {
+                kernels = instance;
+                if (kernels == null) {
+                    String simd = (Main.properties != null ? Main.properties.getProperty("scan.simd", "false") : "false");
+                    if (Boolean.parseBoolean(System.getProperty("scan.simd", simd)))
+                        kernels = getVector();
+                    if (kernels == null)
+                        kernels = scalarKernels;
+                    log.info(String.format("Using %s pixel kernels", kernels.getName()));
+                    instance = kernels;
+                }
+            }
+        }
+        return kernels;
+    }
+
+    /**
+     * Return the scalar kernels
+     *
+     * @return                      Scalar kernels
+     */
+    public static PixelKernels getScalar() {
+        return scalarKernels;
+    }
+
+    /**
+     * Return the vector kernels
+     *
+     * @return                      Vector kernels or null if they are not available
+     */
+    public static PixelKernels getVector() {
+        try {
+            return (PixelKernels)Class.forName(VECTOR_CLASS).getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException exc) {
+            log.warn("Vector pixel kernels are not included in this build");
+        } catch (NoClassDefFoundError exc) {
+            if (exc.getMessage() != null && exc.getMessage().startsWith("jdk/incubator/vector/"))
+                log.warn(String.format("Vector pixel kernels are not available (%s), "
+                                       + "start Java with '--add-modules jdk.incubator.vector'", exc.toString()));
+            else
+                log.warn("Vector pixel kernels are not available", exc);
+        } catch (InvocationTargetException | ExceptionInInitializerError exc) {
+            log.warn(String.format("Vector pixel kernels are not supported on this system (%s)",
+                                   exc.getCause().toString()));
+        } catch (ReflectiveOperationException | LinkageError exc) {
+            log.warn("Vector pixel kernels are not available", exc);
+        }
+        return null;
+    }
+
+    /**
+     * Return the kernels name
+     *
+     * @return                      Name
+     */
+    public abstract String getName();
+
+    /**
+     * Convert packed RGB integer pixels (0xRRGGBB) to luminance
+     *
+     * @param       src             Pixel data
+     * @param       srcOffset       Offset of the first pixel
+     * @param       dst             Luminance data
+     * @param       dstOffset       Offset of the first luminance value
+     * @param       count           Number of pixels
+     */
+    public abstract void lumaInts(int[] src, int srcOffset, byte[] dst, int dstOffset, int count);
+
+    /**
+     * Convert interleaved byte pixels to luminance
+     *
+     * @param       src             Pixel data
+     * @param       srcOffset       Offset of the first pixel
+     * @param       pixelStride     Number of bytes per pixel
+     * @param       rOffset         Offset of the red component within a pixel
+     * @param       gOffset         Offset of the green component within a pixel
+     * @param       bOffset         Offset of the blue component within a pixel
+     * @param       dst             Luminance data
+     * @param       dstOffset       Offset of the first luminance value
+     * @param       count           Number of pixels
+     */
+    public abstract void lumaBytes(byte[] src, int srcOffset, int pixelStride, int rOffset, int gOffset,
+                                   int bOffset, byte[] dst, int dstOffset, int count);
+
+    /**
+     * Downsample two luminance rows to one row of half the width.  Each output value
+     * is the rounded average of a 2x2 block of input values.
+     *
+     * @param       src             Input luminance data
+     * @param       srcOffset       Offset of the first input row
+     * @param       srcStride       Input row stride
+     * @param       dst             Output luminance data
+     * @param       dstOffset       Offset of the output row
+     * @param       count           Number of output values
+     */
+    public abstract void downsample(byte[] src, int srcOffset, int srcStride, byte[] dst, int dstOffset,
+                                    int count);
+
+    /**
+     * Calculate the sum, minimum and maximum luminance for each 8x8 block in a row
+     * of blocks.  The last block is aligned with the right edge of the image, so it
+     * overlaps the previous block if the width is not a multiple of 8.
+     *
+     * @param       luminances      Luminance data
+     * @param       offset          Offset of the first pixel in the block row
+     * @param       stride          Row stride
+     * @param       width           Image width (at least 8)
+     * @param       blockCount      Number of blocks
+     * @param       sums            Block sums
+     * @param       mins            Block minimum values
+     * @param       maxs            Block maximum values
+     */
+    public abstract void blockStats(byte[] luminances, int offset, int stride, int width, int blockCount,
+                                    int[] sums, int[] mins, int[] maxs);
+
+    /**
+     * Set the bit for each pixel in a row that is not brighter than its threshold.
+     * The bits are combined with the existing row bits (bit x%32 of word x/32 is
+     * pixel x, the ZXing BitArray layout).
+     *
+     * @param       luminances      Luminance data
+     * @param       offset          Offset of the first pixel in the row
+     * @param       thresholds      Threshold for each pixel (unsigned)
+     * @param       width           Row width
+     * @param       bits            Row bits
+     */
+    public abstract void threshold(byte[] luminances, int offset, byte[] thresholds, int width, int[] bits);
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.common.BitArray;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+import com.google.zxing.common.HybridBinarizer;
+
+/**
+ * PooledBinarizer implements the same local block thresholding algorithm as the
+ * ZXing HybridBinarizer but reuses the black point table and bit matrix from one
+ * image to the next.  The luminance values are read directly from a GreyLuminanceSource
+ * so a cropped region is not copied.
+ *
+ * The block statistics and the pixel thresholds are computed by the pixel kernels
+ * (see PixelKernels), one row of blocks or one row of pixels at a time.
+ *
+ * The scratch storage belongs to a single decode thread.  The bit matrix returned
+ * by getBlackMatrix() is valid until the next image is binarized using the same
+ * scratch storage.
+ */
+public class PooledBinarizer extends Binarizer {
+
+    /** Block size is 8x8 pixels */
+    private static final int BLOCK_SIZE_POWER = 3;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SIZE_POWER;
+    private static final int BLOCK_SIZE_MASK = BLOCK_SIZE - 1;
+
+    /** Minimum image dimension for local thresholding */
+    private static final int MINIMUM_DIMENSION = BLOCK_SIZE * 5;
+
+    /** Minimum dynamic range within a block */
+    private static final int MIN_DYNAMIC_RANGE = 24;
+
+    /** Scratch storage */
+    private final Scratch scratch;
+
+    /** Black matrix for this image */
+    private BitMatrix matrix;
+
+    /**
+     * Create the binarizer
+     *
+     * @param       source          Luminance source
+     * @param       scratch         Scratch storage
+     */
+    public PooledBinarizer(LuminanceSource source, Scratch scratch) {
+        super(source);
+        this.scratch = scratch;
+    }
+
+    /**
+     * Return a row of black/white values.  This is used only by the 1D readers,
+     * so we just use the global histogram binarizer.
+     *
+     * @param       y               Row number
+     * @param       row             Row array or null
+     * @return                      Black/white row
+     * @throws      NotFoundException   Row is entirely white or black
+     */
+    @Override
+    public BitArray getBlackRow(int y, BitArray row) throws NotFoundException {
+        return new GlobalHistogramBinarizer(getLuminanceSource()).getBlackRow(y, row);
+    }
+
+    /**
+     * Return the black matrix for the image
+     *
+     * @return                      Black matrix
+     * @throws      NotFoundException   Unable to binarize the image
+     */
+    @Override
+    public BitMatrix getBlackMatrix() throws NotFoundException {
+        if (matrix != null)
+            return matrix;
+        LuminanceSource source = getLuminanceSource();
+        int width = source.getWidth();
+        int height = source.getHeight();
+        if (width < MINIMUM_DIMENSION || height < MINIMUM_DIMENSION) {
+            matrix = new GlobalHistogramBinarizer(source).getBlackMatrix();
+            return matrix;
+        }
+        byte[] luminances;
+        int offset;
+        int stride;
+        if (source instanceof GreyLuminanceSource) {
+            GreyLuminanceSource greySource = (GreyLuminanceSource)source;
+            luminances = greySource.getData();
+            offset = greySource.getOffset();
+            stride = greySource.getStride();
+        } else {
+            luminances = source.getMatrix();
+            offset = 0;
+            stride = width;
+        }
+        int subWidth = width >> BLOCK_SIZE_POWER;
+        if ((width & BLOCK_SIZE_MASK) != 0)
+            subWidth++;
+        int subHeight = height >> BLOCK_SIZE_POWER;
+        if ((height & BLOCK_SIZE_MASK) != 0)
+            subHeight++;
+        int[] blackPoints = scratch.getBlackPoints(subWidth*subHeight);
+        calculateBlackPoints(luminances, offset, stride, subWidth, subHeight, width, height, blackPoints);
+        matrix = scratch.getMatrix(width, height);
+        calculateThresholdForBlock(luminances, offset, stride, subWidth, subHeight, width, height,
+                                   blackPoints, matrix);
+        return matrix;
+    }
+
+    /**
+     * Create a new binarizer for a derived luminance source (cropped or rotated).
+     * The derived binarizer does not share our scratch storage since the
+     * original black matrix may still be in use.
+     *
+     * @param       source          Luminance source
+     * @return                      Binarizer
+     */
+    @Override
+    public Binarizer createBinarizer(LuminanceSource source) {
+        return new HybridBinarizer(source);
+    }
+
+    /**
+     * Calculate the black point for each block of pixels.  The black point is the
+     * average luminance for the block unless the block has a small dynamic range.
+     *
+     * @param       luminances      Luminance data
+     * @param       base            Offset of the first pixel
+     * @param       stride          Row stride
+     * @param       subWidth        Number of horizontal blocks
+     * @param       subHeight       Number of vertical blocks
+     * @param       width           Image width
+     * @param       height          Image height
+     * @param       blackPoints     Black point table
+     */
+    private void calculateBlackPoints(byte[] luminances, int base, int stride, int subWidth,
+                                    int subHeight, int width, int height, int[] blackPoints) {
+        int maxYOffset = height - BLOCK_SIZE;
+        int[] sums = scratch.getSums(subWidth);
+        int[] mins = scratch.getMins(subWidth);
+        int[] maxs = scratch.getMaxs(subWidth);
+        for (int y=0; y<subHeight; y++) {
+            int yoffset = Math.min(y << BLOCK_SIZE_POWER, maxYOffset);
+            scratch.kernels.blockStats(luminances, base+yoffset*stride, stride, width, subWidth, sums, mins, maxs);
+            for (int x=0; x<subWidth; x++) {
+                int min = mins[x];
+                int average = sums[x] >> (BLOCK_SIZE_POWER * 2);
+                if (maxs[x] - min <= MIN_DYNAMIC_RANGE) {
+                    //
+                    // A low-contrast block is assumed to be background unless
+                    // it is darker than its neighbors
+                    //
+                    average = min / 2;
+                    if (y > 0 && x > 0) {
+                        int row = y*subWidth;
+                        int prevRow = row - subWidth;
+                        int averageNeighborBlackPoint = (blackPoints[prevRow+x] + (2*blackPoints[row+x-1]) +
+                                                         blackPoints[prevRow+x-1]) / 4;
+                        if (min < averageNeighborBlackPoint)
+                            average = averageNeighborBlackPoint;
+                    }
+                }
+                blackPoints[y*subWidth+x] = average;
+            }
+        }
+    }
+
+    /**
+     * Threshold each block using the average black point of the surrounding 5x5 blocks.
+     *
+     * The threshold for each block is copied to each pixel column of the block and
+     * the rows of the block are thresholded a row at a time.  The last block in a
+     * row or column overlaps the previous block when the image size is not a multiple
+     * of the block size.  An overlapped pixel is black if it is black for either
+     * block, so it uses the larger threshold and the overlapped rows are combined
+     * with the rows set by the previous row of blocks.
+     *
+     * @param       luminances      Luminance data
+     * @param       base            Offset of the first pixel
+     * @param       stride          Row stride
+     * @param       subWidth        Number of horizontal blocks
+     * @param       subHeight       Number of vertical blocks
+     * @param       width           Image width
+     * @param       height          Image height
+     * @param       blackPoints     Black point table
+     * @param       matrix          Black matrix
+     */
+    private void calculateThresholdForBlock(byte[] luminances, int base, int stride, int subWidth,
+                                    int subHeight, int width, int height, int[] blackPoints, BitMatrix matrix) {
+        int maxYOffset = height - BLOCK_SIZE;
+        int maxXOffset = width - BLOCK_SIZE;
+        byte[] thresholds = scratch.getThresholds(width);
+        BitArray row = scratch.getRow(width);
+        int nextRow = 0;
+        for (int y=0; y<subHeight; y++) {
+            int yoffset = Math.min(y << BLOCK_SIZE_POWER, maxYOffset);
+            int top = cap(y, 2, subHeight - 3);
+            for (int x=0; x<subWidth; x++) {
+                int xoffset = Math.min(x << BLOCK_SIZE_POWER, maxXOffset);
+                int left = cap(x, 2, subWidth - 3);
+                int sum = 0;
+                for (int z=-2; z<=2; z++) {
+                    int blockRow = (top+z)*subWidth + left;
+                    sum += blackPoints[blockRow-2] + blackPoints[blockRow-1] + blackPoints[blockRow] +
+                           blackPoints[blockRow+1] + blackPoints[blockRow+2];
+                }
+                int threshold = sum / 25;
+                for (int xx=0; xx<BLOCK_SIZE; xx++) {
+                    if (xoffset + xx >= (x << BLOCK_SIZE_POWER) || threshold > (thresholds[xoffset+xx] & 0xff))
+                        thresholds[xoffset+xx] = (byte)threshold;
+                }
+            }
+            for (int yy=0; yy<BLOCK_SIZE; yy++) {
+                int rowY = yoffset + yy;
+                if (rowY < nextRow)
+                    row = matrix.getRow(rowY, row);
+                else
+                    row.clear();
+                scratch.kernels.threshold(luminances, base+rowY*stride, thresholds, width, row.getBitArray());
+                matrix.setRow(rowY, row);
+            }
+            nextRow = yoffset + BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * Limit a value to the specified range
+     *
+     * @param       value           Value
+     * @param       min             Minimum value
+     * @param       max             Maximum value
+     * @return                      Limited value
+     */
+    private static int cap(int value, int min, int max) {
+        return value < min ? min : value > max ? max : value;
+    }
+
+    /**
+     * Scratch storage used by a single decode thread
+     */
+    public static class Scratch {
+
+        /** Black point table */
+        private int[] blackPoints = new int[0];
+
+        /** Black matrix */
+        private BitMatrix matrix;
+
+        /** Pixel kernels */
+        private final PixelKernels kernels;
+
+        /** Block sums for a row of blocks */
+        private int[] sums = new int[0];
+
+        /** Block minimum values for a row of blocks */
+        private int[] mins = new int[0];
+
+        /** Block maximum values for a row of blocks */
+        private int[] maxs = new int[0];
+
+        /** Pixel thresholds for a row of blocks */
+        private byte[] thresholds = new byte[0];
+
+        /** Matrix row */
+        private BitArray row;
+
+        /**
+         * Create the scratch storage using the selected pixel kernels
+         */
+        public Scratch() {
+            this(PixelKernels.getInstance());
+        }
+
+        /**
+         * Create the scratch storage
+         *
+         * @param       kernels         Pixel kernels
+         */
+        public Scratch(PixelKernels kernels) {
+            this.kernels = kernels;
+        }
+
+        /**
+         * Return the block sums
+         *
+         * @param       size            Number of blocks
+         * @return                      Block sums
+         */
+        private int[] getSums(int size) {
+            if (sums.length < size)
+                sums = new int[size];
+            return sums;
+        }
+
+        /**
+         * Return the block minimum values
+         *
+         * @param       size            Number of blocks
+         * @return                      Block minimum values
+         */
+        private int[] getMins(int size) {
+            if (mins.length < size)
+                mins = new int[size];
+            return mins;
+        }
+
+        /**
+         * Return the block maximum values
+         *
+         * @param       size            Number of blocks
+         * @return                      Block maximum values
+         */
+        private int[] getMaxs(int size) {
+            if (maxs.length < size)
+                maxs = new int[size];
+            return maxs;
+        }
+
+        /**
+         * Return the pixel thresholds
+         *
+         * @param       width           Image width
+         * @return                      Pixel thresholds
+         */
+        private byte[] getThresholds(int width) {
+            if (thresholds.length < width)
+                thresholds = new byte[width];
+            return thresholds;
+        }
+
+        /**
+         * Return the matrix row
+         *
+         * @param       width           Image width
+         * @return                      Matrix row
+         */
+        private BitArray getRow(int width) {
+            if (row == null || row.getSize() < width)
+                row = new BitArray(width);
+            return row;
+        }
+
+        /**
+         * Return the black point table
+         *
+         * @param       size            Required size
+         * @return                      Black point table
+         */
+        private int[] getBlackPoints(int size) {
+            if (blackPoints.length < size)
+                blackPoints = new int[size];
+            return blackPoints;
+        }
+
+        /**
+         * Return an empty black matrix
+         *
+         * @param       width           Matrix width
+         * @param       height          Matrix height
+         * @return                      Black matrix
+         */
+        private BitMatrix getMatrix(int width, int height) {
+            if (matrix == null || matrix.getWidth() != width || matrix.getHeight() != height) {
+                matrix = new BitMatrix(width, height);
+            } else {
+                matrix.clear();
+            }
+            return matrix;
+        }
+    }
+}
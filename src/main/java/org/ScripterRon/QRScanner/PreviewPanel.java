@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import com.google.zxing.ResultPoint;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.function.BooleanSupplier;
+
+import javax.swing.JPanel;
+
+/**
+ * PreviewPanel displays the most recent image from a frame source.  The image is
+ * scaled to fit the panel and can be mirrored for a web camera.
+ *
+ * Scaling the preview image competes with the decode workers for the processor,
+ * so the panel is repainted at most 'preview.fps' times a second (default 30).
+ * When a decode monitor is set, the repaint interval is increased each time an
+ * image arrives while the decode workers are busy and is slowly reduced again
+ * once a worker is waiting, down to 'preview.fps.min' repaints a second (default 2).
+ *
+ * The finder patterns located by the decoder are drawn over the image for
+ * 'preview.overlay.ms' milliseconds (default 500, 0 to disable the overlay): green
+ * when the QR code was decoded and orange when it was not, so the user can see
+ * that a code was found but could not be read.
+ */
+public class PreviewPanel extends JPanel {
+
+    /** Overlay point radius */
+    private static final int POINT_RADIUS = 6;
+
+    /** Current image */
+    private volatile BufferedImage image;
+
+    /** Display a mirror image */
+    private boolean mirrored;
+
+    /** Minimum repaint interval (nanoseconds) */
+    private final long minInterval;
+
+    /** Maximum repaint interval (nanoseconds) */
+    private final long maxInterval;
+
+    /** Current repaint interval (nanoseconds) */
+    private volatile long repaintInterval;
+
+    /** Time of the last repaint request (System.nanoTime) */
+    private long lastRepaintTime;
+
+    /** Decode monitor (returns TRUE if a decode worker is waiting for a frame) */
+    private volatile BooleanSupplier decodeMonitor;
+
+    /** Overlay display time (nanoseconds) */
+    private final long overlayTime;
+
+    /** Current overlay */
+    private volatile Overlay overlay;
+
+    /** Number of images received */
+    private volatile long imageCount;
+
+    /** Number of images painted */
+    private volatile long paintCount;
+
+    /** Processor time used to paint the panel (nanoseconds) */
+    private volatile long paintCpuTime;
+
+    /**
+     * Create the preview panel
+     *
+     * @param       size            Preferred size
+     */
+    public PreviewPanel(Dimension size) {
+        super();
+        setPreferredSize(new Dimension(size));
+        setBackground(Color.BLACK);
+        minInterval = (long)(1.0e9 / Math.max(Main.getDoubleProperty("preview.fps", 30.0), 0.1));
+        maxInterval = Math.max(minInterval,
+                               (long)(1.0e9 / Math.max(Main.getDoubleProperty("preview.fps.min", 2.0), 0.1)));
+        repaintInterval = minInterval;
+        overlayTime = (long)Main.getIntegerProperty("preview.overlay.ms", 500) * 1000000L;
+    }
+
+    /**
+     * Display a mirror image
+     *
+     * @param       mirrored        TRUE to mirror the image
+     */
+    public void setMirrored(boolean mirrored) {
+        this.mirrored = mirrored;
+        repaint();
+    }
+
+    /**
+     * Set the decode monitor used to slow down the repaints while the decoder
+     * is falling behind
+     *
+     * @param       decodeMonitor   Returns TRUE if a decode worker is waiting for a frame
+     */
+    public void setDecodeMonitor(BooleanSupplier decodeMonitor) {
+        this.decodeMonitor = decodeMonitor;
+    }
+
+    /**
+     * Set the image to be displayed.  This method is called on the capture thread
+     * and the panel is repainted if the repaint interval has elapsed.
+     *
+     * @param       image           Image
+     */
+    public void setImage(BufferedImage image) {
+        this.image = image;
+        imageCount++;
+        long interval = repaintInterval;
+        BooleanSupplier monitor = decodeMonitor;
+        if (monitor != null) {
+            if (monitor.getAsBoolean())
+                interval = Math.max(minInterval, interval - interval / 16);
+            else
+                interval = Math.min(maxInterval, interval + interval / 4);
+            repaintInterval = interval;
+        }
+        long now = System.nanoTime();
+        if (now - lastRepaintTime >= interval) {
+            lastRepaintTime = now;
+            repaint();
+        }
+    }
+
+    /**
+     * Set the finder pattern points located in the latest decoded frame.  This
+     * method can be called on any thread and the points are displayed the next
+     * time the panel is painted.
+     *
+     * @param       points          Points in frame coordinates
+     * @param       width           Frame width
+     * @param       height          Frame height
+     * @param       decoded         TRUE if the QR code was decoded
+     */
+    public void setPoints(ResultPoint[] points, int width, int height, boolean decoded) {
+        if (overlayTime > 0)
+            overlay = new Overlay(points, width, height, decoded);
+    }
+
+    /**
+     * Paint the panel
+     *
+     * @param       g               Graphics context
+     */
+    @Override
+    protected void paintComponent(Graphics g) {
+        long startTime = DecodePipeline.getCpuTime();
+        super.paintComponent(g);
+        BufferedImage currentImage = image;
+        if (currentImage == null)
+            return;
+        int width = getWidth();
+        int height = getHeight();
+        double scale = Math.min((double)width / (double)currentImage.getWidth(),
+                                (double)height / (double)currentImage.getHeight());
+        int scaledWidth = (int)(currentImage.getWidth() * scale);
+        int scaledHeight = (int)(currentImage.getHeight() * scale);
+        int x = (width - scaledWidth) / 2;
+        int y = (height - scaledHeight) / 2;
+        if (mirrored)
+            g.drawImage(currentImage, x + scaledWidth, y, -scaledWidth, scaledHeight, null);
+        else
+            g.drawImage(currentImage, x, y, scaledWidth, scaledHeight, null);
+        //
+        // Draw the finder patterns if they were located recently
+        //
+        Overlay currentOverlay = overlay;
+        if (currentOverlay != null && System.nanoTime() - currentOverlay.time < overlayTime) {
+            g.setColor(currentOverlay.decoded ? Color.GREEN : Color.ORANGE);
+            double scaleX = (double)scaledWidth / (double)currentOverlay.width;
+            double scaleY = (double)scaledHeight / (double)currentOverlay.height;
+            for (ResultPoint point : currentOverlay.points) {
+                int px = (int)(point.getX() * scaleX);
+                int py = y + (int)(point.getY() * scaleY);
+                px = (mirrored ? x + scaledWidth - px : x + px);
+                g.drawOval(px - POINT_RADIUS, py - POINT_RADIUS, 2 * POINT_RADIUS, 2 * POINT_RADIUS);
+            }
+        }
+        paintCount++;
+        if (startTime >= 0)
+            paintCpuTime += DecodePipeline.getCpuTime() - startTime;
+    }
+
+    /**
+     * Return the processor time used to paint the panel
+     *
+     * @return                      Processor time (nanoseconds)
+     */
+    public long getPaintCpuTime() {
+        return paintCpuTime;
+    }
+
+    /**
+     * Return the division of processor time between the preview and the decoder
+     *
+     * @param       decodeCpuTime   Decode processor time (nanoseconds)
+     * @return                      Processor time string
+     */
+    public String getCpuSplit(long decodeCpuTime) {
+        long total = Math.max(1, paintCpuTime + decodeCpuTime);
+        return String.format("preview %d ms (%.1f%%), decode %d ms (%.1f%%)",
+                             paintCpuTime / 1000000, (double)paintCpuTime * 100.0 / (double)total,
+                             decodeCpuTime / 1000000, (double)decodeCpuTime * 100.0 / (double)total);
+    }
+
+    /**
+     * Return the preview statistics
+     *
+     * @return                      Statistics string
+     */
+    @Override
+    public String toString() {
+        return String.format("%d images, %d painted, %.1f fps limit",
+                             imageCount, paintCount, 1.0e9 / (double)repaintInterval);
+    }
+
+    /**
+     * Finder pattern overlay
+     */
+    private static class Overlay {
+
+        /** Points in frame coordinates */
+        private final ResultPoint[] points;
+
+        /** Frame width */
+        private final int width;
+
+        /** Frame height */
+        private final int height;
+
+        /** QR code was decoded */
+        private final boolean decoded;
+
+        /** Time the points were located (System.nanoTime) */
+        private final long time = System.nanoTime();
+
+        /**
+         * Create the overlay
+         *
+         * @param       points          Points in frame coordinates
+         * @param       width           Frame width
+         * @param       height          Frame height
+         * @param       decoded         TRUE if the QR code was decoded
+         */
+        Overlay(ResultPoint[] points, int width, int height, boolean decoded) {
+            this.points = points;
+            this.width = width;
+            this.height = height;
+            this.decoded = decoded;
+        }
+    }
+}
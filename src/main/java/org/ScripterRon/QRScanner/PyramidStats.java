@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * PyramidStats holds the pyramid settings and counts the decode attempts and
+ * hits at each pyramid level.  It is shared by all of the decode workers.
+ */
+public class PyramidStats {
+
+    /** Maximum number of levels */
+    private final int maxLevels;
+
+    /** Minimum level dimension */
+    private final int minDimension;
+
+    /** Decode attempts for each level */
+    private final AtomicLongArray attempts;
+
+    /** Decode hits for each level */
+    private final AtomicLongArray hits;
+
+    /**
+     * Create the pyramid statistics
+     *
+     * @param       maxLevels       Maximum number of levels (including the full frame)
+     * @param       minDimension    Minimum level width or height
+     */
+    public PyramidStats(int maxLevels, int minDimension) {
+        this.maxLevels = maxLevels;
+        this.minDimension = minDimension;
+        attempts = new AtomicLongArray(maxLevels);
+        hits = new AtomicLongArray(maxLevels);
+    }
+
+    /**
+     * Create the pyramid statistics using the application properties.  The pyramid
+     * has up to 'scan.pyramid.levels' levels (default 3) and stops when a level
+     * would be smaller than 'scan.pyramid.min' pixels (default 240).
+     *
+     * @return                      Pyramid statistics or null if pyramid decoding is disabled
+     */
+    public static PyramidStats fromProperties() {
+        int maxLevels = Main.getIntegerProperty("scan.pyramid.levels", 3);
+        if (maxLevels <= 1)
+            return null;
+        return new PyramidStats(maxLevels, Main.getIntegerProperty("scan.pyramid.min", 240));
+    }
+
+    /**
+     * Return the maximum number of levels
+     *
+     * @return                      Maximum number of levels
+     */
+    public int getMaxLevels() {
+        return maxLevels;
+    }
+
+    /**
+     * Return the minimum level dimension
+     *
+     * @return                      Minimum level width or height
+     */
+    public int getMinDimension() {
+        return minDimension;
+    }
+
+    /**
+     * Record a decode attempt
+     *
+     * @param       level           Pyramid level
+     * @param       hit             TRUE if a QR code was decoded
+     */
+    public void record(int level, boolean hit) {
+        attempts.incrementAndGet(level);
+        if (hit)
+            hits.incrementAndGet(level);
+    }
+
+    /**
+     * Return the number of decode attempts for a level
+     *
+     * @param       level           Pyramid level
+     * @return                      Number of attempts
+     */
+    public long getAttempts(int level) {
+        return attempts.get(level);
+    }
+
+    /**
+     * Return the number of hits for a level
+     *
+     * @param       level           Pyramid level
+     * @return                      Number of hits
+     */
+    public long getHits(int level) {
+        return hits.get(level);
+    }
+
+    /**
+     * Return the statistics for each level
+     *
+     * @return                      Statistics string
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(128);
+        for (int level=0; level<maxLevels; level++) {
+            if (level > 0)
+                sb.append(", ");
+            sb.append(String.format("level %d: %d/%d", level, hits.get(level), attempts.get(level)));
+        }
+        return sb.toString();
+    }
+}
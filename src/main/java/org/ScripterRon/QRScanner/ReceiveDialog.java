@@ -0,0 +1,339 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.swing.BorderFactory;
+import javax.swing.Box;
+import javax.swing.BoxLayout;
+import javax.swing.JDialog;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+import javax.swing.WindowConstants;
+
+import java.awt.Component;
+import java.awt.Dialog;
+import java.awt.Dimension;
+import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+
+/**
+ * Receive a payload displayed as an animated sequence of QR codes
+ *
+ * Every captured frame is decoded and the results are passed to the sequence
+ * receiver, which reassembles the payload as the parts arrive.  The dialog shows
+ * the progress of the current transfer and the effective transfer rate.  Completed
+ * payloads are written to the receive directory and the dialog continues receiving
+ * until it is closed, so several payloads can be received one after the other.
+ * QR codes that are not part of a sequence are ignored.
+ */
+public class ReceiveDialog extends JDialog implements ActionListener, FrameListener, DecodeListener,
+                                                      SequenceReceiver.ProgressListener {
+
+    /** Frame source */
+    private final FrameSource frameSource;
+
+    /** Completed transfer consumer */
+    private final Consumer<String> resultConsumer;
+
+    /** Preview panel */
+    private final PreviewPanel previewPanel;
+
+    /** Progress bar */
+    private final JProgressBar progressBar;
+
+    /** Transfer status label */
+    private final JLabel statusLabel;
+
+    /** Completed transfer label */
+    private final JLabel fileLabel;
+
+    /** Decode pipeline */
+    private final DecodePipeline decodePipeline;
+
+    /** Sequence receiver */
+    private final SequenceReceiver sequenceReceiver;
+
+    /** Number of images captured */
+    private final LongAdder frameCount = new LongAdder();
+
+    /**
+     * Create the dialog
+     *
+     * @param       parent          Parent frame
+     * @param       frameSource     Frame source
+     * @param       resultConsumer  Completed transfer consumer
+     */
+    public ReceiveDialog(JFrame parent, FrameSource frameSource, Consumer<String> resultConsumer) {
+        super(parent, "Receive Sequence", Dialog.ModalityType.DOCUMENT_MODAL);
+        setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+        this.frameSource = frameSource;
+        this.resultConsumer = resultConsumer;
+        String directory = Main.properties.getProperty("receive.directory");
+        sequenceReceiver = new SequenceReceiver(directory != null ? Paths.get(directory) :
+                                                Paths.get(Main.dataPath, "received"), this);
+        //
+        // Create the preview panel, progress bar and status labels
+        //
+        Dimension viewSize = frameSource.getViewSize();
+        previewPanel = new PreviewPanel(viewSize != null ? viewSize : new Dimension(640, 480));
+        previewPanel.setMirrored(frameSource instanceof WebcamFrameSource);
+        progressBar = new JProgressBar(0, 1000);
+        progressBar.setStringPainted(true);
+        progressBar.setString("Waiting for a sequence");
+        statusLabel = new JLabel(" ");
+        statusLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+        fileLabel = new JLabel(" ");
+        fileLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+        JPanel buttonPane = new ButtonPane(this, 10, new String[] {"Done", "cancel"});
+        //
+        // Set up the content pane
+        //
+        JPanel contentPane = new JPanel();
+        contentPane.setLayout(new BoxLayout(contentPane, BoxLayout.Y_AXIS));
+        contentPane.setOpaque(true);
+        contentPane.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+        contentPane.add(previewPanel);
+        contentPane.add(Box.createVerticalStrut(10));
+        contentPane.add(progressBar);
+        contentPane.add(Box.createVerticalStrut(5));
+        contentPane.add(statusLabel);
+        contentPane.add(Box.createVerticalStrut(5));
+        contentPane.add(fileLabel);
+        contentPane.add(Box.createVerticalStrut(15));
+        contentPane.add(buttonPane);
+        setContentPane(contentPane);
+        //
+        // Create the decode pipeline.  Structured append parts are decoded one per
+        // frame since the multiple code reader merges the parts it finds in a single
+        // frame and drops the sequence metadata.
+        //
+        decodePipeline = new DecodePipeline(DecodePipeline.getDefaultWorkerCount(), this, "Receive");
+        if (frameSource instanceof WebcamFrameSource)
+            decodePipeline.setResolutionController(((WebcamFrameSource)frameSource).getResolutionController());
+        previewPanel.setDecodeMonitor(decodePipeline::isReady);
+        //
+        // Closing the dialog is the same as pressing the Done button
+        //
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent we) {
+                actionPerformed(new ActionEvent(ReceiveDialog.this, 0, "cancel"));
+            }
+        });
+    }
+
+    /**
+     * Show the receive dialog and wait for it to be closed.  The result consumer is
+     * called on the GUI thread with a summary of each completed transfer.
+     *
+     * @param       parent              Parent frame
+     * @param       resultConsumer      Completed transfer consumer
+     */
+    public static void showDialog(JFrame parent, Consumer<String> resultConsumer) {
+        try {
+            CompletableFuture<FrameSource> future = Main.cameraManager.getFrameSource();
+            if (!future.isDone() && !ScanDialog.waitForSource(parent, future))
+                return;
+            FrameSource frameSource;
+            try {
+                frameSource = future.get();
+            } catch (ExecutionException exc) {
+                throw (exc.getCause() instanceof Exception ? (Exception)exc.getCause() : exc);
+            }
+            if (frameSource == null) {
+                JOptionPane.showMessageDialog(parent, "No webcam available", "No Webcam", JOptionPane.ERROR_MESSAGE);
+            } else {
+                ReceiveDialog dialog = new ReceiveDialog(parent, frameSource, resultConsumer);
+                dialog.pack();
+                dialog.setLocationRelativeTo(parent);
+                dialog.startCapture();
+                dialog.setVisible(true);
+            }
+        } catch (Exception exc) {
+            Main.logException("Exception while displaying dialog", exc);
+        }
+    }
+
+    /**
+     * Start the decode pipeline and start capturing images on the camera manager thread
+     */
+    private void startCapture() {
+        decodePipeline.start();
+        Main.cameraManager.startSource(frameSource, this).whenComplete((result, exc) -> {
+            if (exc != null) {
+                Throwable cause = (exc.getCause() != null ? exc.getCause() : exc);
+                log.error("Unable to start {}", frameSource.getName(), cause);
+                SwingUtilities.invokeLater(() -> statusLabel.setText("Unable to start the camera"));
+            }
+        });
+    }
+
+    /**
+     * Action performed (ActionListener interface)
+     *
+     * @param   ae              Action event
+     */
+    @Override
+    public void actionPerformed(ActionEvent ae) {
+        try {
+            String action = ae.getActionCommand();
+            switch (action) {
+                case "cancel":
+                    decodePipeline.stop();
+                    Main.cameraManager.stopSource(frameSource);
+                    log.info("Receive: {} frames, {} decoded, {} codes",
+                             frameCount.sum(), decodePipeline.getDecodedCount(), decodePipeline.getHitCount());
+                    log.info("Preview: {}, {}", previewPanel.toString(),
+                             previewPanel.getCpuSplit(decodePipeline.getDecodeCpuTime()));
+                    setVisible(false);
+                    dispose();
+                    break;
+            }
+        } catch (Exception exc) {
+            Main.logException("Exception while processing action event", exc);
+        }
+    }
+
+    /**
+     * Image captured (FrameListener interface)
+     *
+     * @param   source          Frame source
+     * @param   image           Captured image
+     * @param   captureTime     Capture time
+     */
+    @Override
+    public void imageCaptured(FrameSource source, BufferedImage image, long captureTime) {
+        frameCount.increment();
+        previewPanel.setImage(image);
+        Frame frame = decodePipeline.acquireFrame();
+        if (frame == null)
+            return;
+        try {
+            if (source.copyFrame(frame, image, captureTime)) {
+                decodePipeline.submit(frame);
+                frame = null;
+            }
+        } catch (Exception exc) {
+            ScanMetrics.getInstance().frameFailed();
+            Main.logException("Exception while processing buffered image", exc);
+        } finally {
+            if (frame != null)
+                decodePipeline.releaseFrame(frame);
+        }
+    }
+
+    /**
+     * Check if the decode pipeline is ready for a new frame (FrameListener interface)
+     *
+     * @return                  TRUE if a decode worker is waiting for a frame
+     */
+    @Override
+    public boolean isReady() {
+        return decodePipeline.isReady();
+    }
+
+    /**
+     * Set the decode pipeline ready callback (FrameListener interface)
+     *
+     * @param       callback        Ready callback or null
+     */
+    @Override
+    public void setReadyCallback(Runnable callback) {
+        decodePipeline.setReadyCallback(callback);
+    }
+
+    /**
+     * Finder patterns located (DecodeListener interface)
+     *
+     * @param   points          Points in frame coordinates
+     * @param   width           Frame width
+     * @param   height          Frame height
+     * @param   decoded         TRUE if a QR code was decoded
+     */
+    @Override
+    public void pointsFound(ResultPoint[] points, int width, int height, boolean decoded) {
+        previewPanel.setPoints(points, width, height, decoded);
+    }
+
+    /**
+     * QR code decoded (DecodeListener interface)
+     *
+     * @param   result          Decode result
+     * @param   decodeTime      Decode time (nanoseconds)
+     */
+    @Override
+    public void resultDecoded(Result result, long decodeTime) {
+        sequenceReceiver.resultDecoded(result);
+    }
+
+    /**
+     * Transfer progress (ProgressListener interface)
+     *
+     * @param   transfer        Transfer
+     */
+    @Override
+    public void transferProgress(SequenceReceiver.Transfer transfer) {
+        double progress = transfer.getProgress();
+        String status = String.format("%d codes received, %d used, %.0f bytes/second",
+                                      transfer.getReceivedCount(), transfer.getUsedCount(), transfer.getByteRate());
+        SwingUtilities.invokeLater(() -> {
+            progressBar.setValue((int)(progress * 1000.0));
+            progressBar.setString(String.format("%.1f%%", progress * 100.0));
+            statusLabel.setText(status);
+        });
+    }
+
+    /**
+     * Transfer completed (ProgressListener interface)
+     *
+     * @param   transfer        Transfer
+     * @param   path            Payload file
+     */
+    @Override
+    public void transferCompleted(SequenceReceiver.Transfer transfer, Path path) {
+        String summary = String.format("Received %d bytes in %.1f seconds (%.0f bytes/second): %s",
+                                       transfer.getRecoveredBytes(), transfer.getElapsedTime(),
+                                       transfer.getByteRate(), path);
+        SwingUtilities.invokeLater(() -> {
+            Toolkit.getDefaultToolkit().beep();
+            progressBar.setValue(1000);
+            progressBar.setString("Complete");
+            statusLabel.setText(String.format("%d codes received, %d used, %.0f bytes/second",
+                                transfer.getReceivedCount(), transfer.getUsedCount(), transfer.getByteRate()));
+            fileLabel.setText(path.toString());
+            resultConsumer.accept(summary);
+        });
+    }
+}
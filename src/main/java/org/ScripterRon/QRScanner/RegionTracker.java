@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import com.google.zxing.ResultPoint;
+
+import java.awt.Rectangle;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RegionTracker remembers where the last QR code was seen so that the next frame
+ * can be scanned around that location before scanning the full frame.
+ *
+ * The region is set from the result points of a successful decode or from the finder
+ * patterns located by a decode that did not succeed.  It is padded on each side by
+ * the size of the code and is forgotten after a number of consecutive frames without
+ * a detection.  The tracker is shared by all of the decode workers.
+ */
+public class RegionTracker {
+
+    /** Minimum number of points for a partial detection (the three finder patterns) */
+    private static final int MIN_PARTIAL_POINTS = 3;
+
+    /** Minimum region size */
+    private static final int MIN_REGION_SIZE = 120;
+
+    /** Number of consecutive misses before the region is forgotten */
+    private final int maxMisses;
+
+    /** Current region or null (protected by this) */
+    private Rectangle region;
+
+    /** Consecutive frames without a detection (protected by this) */
+    private int missCount;
+
+    /** Number of region scans */
+    private final AtomicLong regionScans = new AtomicLong();
+
+    /** Number of region scans that found a QR code */
+    private final AtomicLong regionHits = new AtomicLong();
+
+    /**
+     * Create the region tracker
+     *
+     * @param       maxMisses       Number of consecutive misses before the region is forgotten
+     */
+    public RegionTracker(int maxMisses) {
+        this.maxMisses = maxMisses;
+    }
+
+    /**
+     * Return the region to be scanned for a frame.  The region is clipped to the
+     * frame and is null if there is no current region or if the region covers most
+     * of the frame.
+     *
+     * @param       width           Frame width
+     * @param       height          Frame height
+     * @return                      Region or null
+     */
+    public synchronized Rectangle getRegion(int width, int height) {
+        if (region == null)
+            return null;
+        Rectangle clipped = region.intersection(new Rectangle(0, 0, width, height));
+        if (clipped.isEmpty() || (long)clipped.width*clipped.height*4 > (long)width*height*3)
+            return null;
+        return clipped;
+    }
+
+    /**
+     * Record the result of scanning a region
+     *
+     * @param       hit             TRUE if a QR code was found
+     */
+    public void regionScanned(boolean hit) {
+        regionScans.incrementAndGet();
+        if (hit)
+            regionHits.incrementAndGet();
+    }
+
+    /**
+     * Record a detection.  The points are in frame coordinates.
+     *
+     * @param       points          Result points
+     * @param       decoded         TRUE if the QR code was decoded
+     */
+    public void detected(List<ResultPoint> points, boolean decoded) {
+        if (!decoded && points.size() < MIN_PARTIAL_POINTS) {
+            missed();
+            return;
+        }
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (ResultPoint point : points) {
+            minX = Math.min(minX, point.getX());
+            minY = Math.min(minY, point.getY());
+            maxX = Math.max(maxX, point.getX());
+            maxY = Math.max(maxY, point.getY());
+        }
+        if (minX > maxX)
+            return;
+        //
+        // The finder pattern centers are inside the code, so pad the region by
+        // the code size on each side to allow for the code edges and for movement
+        //
+        int size = Math.max((int)Math.max(maxX - minX, maxY - minY), MIN_REGION_SIZE / 3);
+        Rectangle newRegion = new Rectangle((int)minX - size, (int)minY - size,
+                                            (int)(maxX - minX) + 2*size, (int)(maxY - minY) + 2*size);
+        synchronized(this) {
+            region = newRegion;
+            missCount = 0;
+        }
+    }
+
+    /**
+     * Record a frame without a detection
+     */
+    public synchronized void missed() {
+        if (region != null && ++missCount >= maxMisses) {
+            region = null;
+            missCount = 0;
+        }
+    }
+
+    /**
+     * Return the tracker statistics
+     *
+     * @return                      Statistics string
+     */
+    @Override
+    public String toString() {
+        return String.format("%d region scans, %d region hits", regionScans.get(), regionHits.get());
+    }
+}
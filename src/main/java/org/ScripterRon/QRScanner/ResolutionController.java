@@ -0,0 +1,311 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import java.awt.Dimension;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * ResolutionController selects the capture resolution for a web camera from the sizes
+ * supported by the camera.  The decode workers report the decode time for each frame
+ * and whether a QR code was decoded or just detected (the finder patterns were found
+ * but the code could not be read).  The results are evaluated after every
+ * 'scan.resolution.window' frames (default 30):
+ *
+ *   - The resolution is reduced if the average decode time exceeds the per-frame
+ *     budget ('scan.budget.ms', default 40)
+ *   - The resolution is increased if at least a quarter of the frames contained
+ *     a QR code that could not be decoded, more codes were missed than decoded and
+ *     the decode time at the next larger size is within the budget (the last
+ *     measured time is used if the camera has been at that size, otherwise the time
+ *     is estimated from the current time and the size ratio)
+ *
+ * The selected size is saved in the 'scan.resolution.camera-name' application property
+ * and is used the next time the camera is opened.  The most recent changes are saved
+ * in the 'scan.resolution.camera-name.history' application property.
+ */
+public class ResolutionController {
+
+    /** Number of saved resolution changes */
+    private static final int HISTORY_SIZE = 8;
+
+    /** Default resolution */
+    private static final Dimension DEFAULT_SIZE = new Dimension(640, 480);
+
+    /** Camera name */
+    private final String cameraName;
+
+    /** Supported view sizes in order of increasing area */
+    private final Dimension[] viewSizes;
+
+    /** Per-frame decode time budget (nanoseconds) */
+    private final long budget;
+
+    /** Number of frames evaluated before changing the resolution */
+    private final int window;
+
+    /** Resolution change handler */
+    private final Consumer<Dimension> changeHandler;
+
+    /** Current view size index */
+    private int sizeIndex;
+
+    /** Last average decode time measured at each view size (nanoseconds) */
+    private final long[] measuredTimes;
+
+    /** Resolution change is in progress */
+    private boolean changePending;
+
+    /** View size index before the pending change */
+    private int previousIndex;
+
+    /** Frames in the current window */
+    private int frameCount;
+
+    /** Total decode time for the current window (nanoseconds) */
+    private long decodeTime;
+
+    /** Frames decoded in the current window */
+    private int decodedCount;
+
+    /** Frames with a QR code that could not be decoded in the current window */
+    private int detectedCount;
+
+    /** Resolution changes */
+    private final List<String> history = new ArrayList<>();
+
+    /**
+     * Create the resolution controller
+     *
+     * @param       cameraName      Camera name
+     * @param       viewSizes       Supported view sizes
+     * @param       changeHandler   Called with the new view size when the resolution is changed
+     */
+    public ResolutionController(String cameraName, Dimension[] viewSizes, Consumer<Dimension> changeHandler) {
+        this.cameraName = cameraName;
+        this.changeHandler = changeHandler;
+        this.budget = (long)Main.getIntegerProperty("scan.budget.ms", 40) * 1000000L;
+        this.window = Math.max(5, Main.getIntegerProperty("scan.resolution.window", 30));
+        this.viewSizes = Arrays.stream(viewSizes)
+                               .distinct()
+                               .sorted((a, b) -> Integer.compare(a.width*a.height, b.width*b.height))
+                               .toArray(Dimension[]::new);
+        measuredTimes = new long[this.viewSizes.length];
+        //
+        // Start with the saved size for this camera or VGA
+        //
+        Dimension size = Main.getSizeProperty(getPropertyName(), DEFAULT_SIZE);
+        sizeIndex = indexOf(size);
+        if (sizeIndex < 0)
+            sizeIndex = indexOf(DEFAULT_SIZE);
+        if (sizeIndex < 0)
+            sizeIndex = Math.max(0, Math.min(this.viewSizes.length-1, findClosest(DEFAULT_SIZE)));
+        String savedHistory = Main.properties.getProperty(getPropertyName() + ".history");
+        if (savedHistory != null && !savedHistory.isEmpty())
+            history.addAll(Arrays.asList(savedHistory.split("; ")));
+    }
+
+    /**
+     * Return the current view size
+     *
+     * @return                      View size or null if the camera did not report any sizes
+     */
+    public synchronized Dimension getViewSize() {
+        return (viewSizes.length != 0 ? viewSizes[sizeIndex] : null);
+    }
+
+    /**
+     * The camera has been opened using the new view size
+     */
+    public synchronized void changeCompleted() {
+        changePending = false;
+        resetWindow();
+    }
+
+    /**
+     * The resolution change was not made, either because capture was stopped or
+     * because the camera could not be opened using the new view size.  The previous
+     * view size is restored and saved, and the change is removed from the history.
+     *
+     * @return                      Previous view size
+     */
+    public synchronized Dimension changeFailed() {
+        if (changePending) {
+            Dimension size = viewSizes[sizeIndex];
+            sizeIndex = previousIndex;
+            Dimension oldSize = viewSizes[sizeIndex];
+            log.info(String.format("Resolution change for %s to %dx%d was not made, using %dx%d", cameraName,
+                                   size.width, size.height, oldSize.width, oldSize.height));
+            if (!history.isEmpty())
+                history.remove(history.size()-1);
+            saveSize();
+            changePending = false;
+            resetWindow();
+        }
+        return viewSizes[sizeIndex];
+    }
+
+    /**
+     * Record the result of decoding a frame.  This is called by the decode workers.
+     *
+     * @param       width           Frame width
+     * @param       height          Frame height
+     * @param       elapsedTime     Decode time (nanoseconds)
+     * @param       decoded         TRUE if a QR code was decoded
+     * @param       detected        TRUE if a QR code was detected but not decoded
+     */
+    public void frameDecoded(int width, int height, long elapsedTime, boolean decoded, boolean detected) {
+        Dimension newSize = null;
+        String reason = null;
+        synchronized(this) {
+            if (changePending || viewSizes.length < 2)
+                return;
+            Dimension size = viewSizes[sizeIndex];
+            if (width != size.width || height != size.height)
+                return;
+            frameCount++;
+            decodeTime += elapsedTime;
+            if (decoded)
+                decodedCount++;
+            else if (detected)
+                detectedCount++;
+            if (frameCount < window)
+                return;
+            long averageTime = decodeTime / frameCount;
+            measuredTimes[sizeIndex] = averageTime;
+            previousIndex = sizeIndex;
+            if (averageTime > budget && sizeIndex > 0) {
+                sizeIndex--;
+                reason = String.format("decode time %.1f ms exceeds budget", (double)averageTime / 1.0e6);
+            } else if (detectedCount*4 >= frameCount && detectedCount > decodedCount &&
+                                        sizeIndex < viewSizes.length-1) {
+                Dimension nextSize = viewSizes[sizeIndex+1];
+                double ratio = (double)(nextSize.width*nextSize.height) / (double)(size.width*size.height);
+                double nextTime = (measuredTimes[sizeIndex+1] != 0 ? measuredTimes[sizeIndex+1] : averageTime * ratio);
+                if (nextTime <= budget) {
+                    sizeIndex++;
+                    reason = String.format("%d of %d frames not decoded", detectedCount, frameCount);
+                }
+            }
+            resetWindow();
+            if (reason != null) {
+                newSize = viewSizes[sizeIndex];
+                changePending = true;
+                saveChange(size, newSize, reason);
+            }
+        }
+        if (newSize != null)
+            changeHandler.accept(newSize);
+    }
+
+    /**
+     * Return the resolution change history
+     *
+     * @return                      History string
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("%s using %dx%d, changes: %s", cameraName,
+                             viewSizes.length != 0 ? viewSizes[sizeIndex].width : 0,
+                             viewSizes.length != 0 ? viewSizes[sizeIndex].height : 0,
+                             history.isEmpty() ? "none" : String.join("; ", history));
+    }
+
+    /**
+     * Log a resolution change and save the new size and the change history
+     *
+     * @param       oldSize         Previous view size
+     * @param       newSize         New view size
+     * @param       reason          Reason for the change
+     */
+    private void saveChange(Dimension oldSize, Dimension newSize, String reason) {
+        log.info(String.format("Changing %s resolution from %dx%d to %dx%d: %s", cameraName,
+                               oldSize.width, oldSize.height, newSize.width, newSize.height, reason));
+        String timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+        history.add(String.format("%s %dx%d to %dx%d (%s)", timestamp, oldSize.width, oldSize.height,
+                                  newSize.width, newSize.height, reason));
+        while (history.size() > HISTORY_SIZE)
+            history.remove(0);
+        saveSize();
+    }
+
+    /**
+     * Save the current view size and the change history
+     */
+    private void saveSize() {
+        Dimension size = viewSizes[sizeIndex];
+        Main.properties.setProperty(getPropertyName(), size.width + "," + size.height);
+        Main.properties.setProperty(getPropertyName() + ".history", String.join("; ", history));
+    }
+
+    /**
+     * Reset the evaluation window
+     */
+    private void resetWindow() {
+        frameCount = 0;
+        decodeTime = 0;
+        decodedCount = 0;
+        detectedCount = 0;
+    }
+
+    /**
+     * Return the application property name for this camera
+     *
+     * @return                      Property name
+     */
+    private String getPropertyName() {
+        return "scan.resolution." + cameraName;
+    }
+
+    /**
+     * Return the index of a view size
+     *
+     * @param       size            View size
+     * @return                      Index or -1 if the size is not supported
+     */
+    private int indexOf(Dimension size) {
+        for (int i=0; i<viewSizes.length; i++) {
+            if (viewSizes[i].equals(size))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Return the index of the view size with the area closest to a size
+     *
+     * @param       size            View size
+     * @return                      Index or -1 if there are no view sizes
+     */
+    private int findClosest(Dimension size) {
+        int index = -1;
+        long bestDifference = Long.MAX_VALUE;
+        for (int i=0; i<viewSizes.length; i++) {
+            long difference = Math.abs((long)viewSizes[i].width*viewSizes[i].height - (long)size.width*size.height);
+            if (difference < bestDifference) {
+                bestDifference = difference;
+                index = i;
+            }
+        }
+        return index;
+    }
+}
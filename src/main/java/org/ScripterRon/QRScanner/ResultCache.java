@@ -0,0 +1,542 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ResultCache remembers the decode results for images that have already been
+ * scanned so a repeated image is answered without running ZXing.  It is used by the
+ * batch decoder and the decode server.
+ *
+ * Each entry is keyed by the SHA-256 hash of the image bytes and also records a
+ * 64-bit difference hash (dHash) of the luminance, computed from a 9x8 grid of block
+ * averages.  When 'cache.similar' is set to a bit distance (0 or more), an image that
+ * is not found by its content hash is looked up by its perceptual hash, so a re-encoded
+ * or resaved copy of an image is also found.  The perceptual lookup is disabled by
+ * default (-1) because the hash is too coarse to tell apart different QR codes at the
+ * same position in otherwise similar images.  Images without a QR code are cached as
+ * well since they are the most expensive images to decode.
+ *
+ * The cache is limited to 'cache.size' megabytes (default 16, estimated from the
+ * text and point counts) and the least recently used entries are removed when the
+ * cache is full.  It is loaded from the application data directory when it is opened
+ * and is written back by save().  There is a separate cache file for each decode mode.
+ *
+ * The cache file records the decoder settings that produced the results (the
+ * application version, decode hints, decode tiers and so on).  The cached results
+ * are discarded when the cache is opened with different settings.  Delete the cache
+ * file or call clear() to discard the results at any other time.
+ */
+public class ResultCache {
+
+    /** Cache file identifier ('QRCR') */
+    private static final int CACHE_MAGIC = 0x51524352;
+
+    /** File version */
+    private static final int VERSION = 1;
+
+    /** Estimated size of an entry without the result text (bytes) */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    /** Estimated size of a result point (bytes) */
+    private static final int POINT_SIZE = 32;
+
+    /** Empty result array (the image does not contain a QR code) */
+    private static final Result[] NO_RESULTS = new Result[0];
+
+    /** Cache file */
+    private final Path path;
+
+    /** Decoder settings */
+    private final String settings;
+
+    /** Maximum cache size (bytes) */
+    private final long maxSize;
+
+    /** Maximum perceptual hash distance or -1 if perceptual lookups are disabled */
+    private final int similarDistance;
+
+    /** Cache entries in least recently used order */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+
+    /** Entries by perceptual hash (the most recently added entry for each hash) */
+    private final HashMap<Long, Entry> similarEntries = new HashMap<>(1024);
+
+    /** Estimated cache size (bytes) */
+    private long cacheSize;
+
+    /** Cache has been modified since it was loaded or saved */
+    private boolean modified;
+
+    /** Number of content hash hits */
+    private long hitCount;
+
+    /** Number of perceptual hash hits */
+    private long similarCount;
+
+    /** Number of misses */
+    private long missCount;
+
+    /** Number of entries removed to make room for new entries */
+    private long evictionCount;
+
+    /** Number of entries discarded because the decoder settings changed */
+    private long staleCount;
+
+    /**
+     * Create the cache and load the cached results
+     *
+     * @param       path            Cache file
+     * @param       settings        Decoder settings
+     * @param       maxSize         Maximum cache size (bytes)
+     * @param       similarDistance Maximum perceptual hash distance or -1 to disable
+     */
+    public ResultCache(Path path, String settings, long maxSize, int similarDistance) {
+        this.path = path;
+        this.settings = settings;
+        this.maxSize = maxSize;
+        this.similarDistance = Math.min(similarDistance, 64);
+        load();
+    }
+
+    /**
+     * Open the cache for a decode mode using the application properties.  The cache
+     * is stored in 'results-mode.cache' in the application data directory and is
+     * enabled by 'cache.enabled' (default true).
+     *
+     * @param       mode            Decode mode (batch or server)
+     * @param       settings        Decoder settings for the mode
+     * @return                      Result cache or null if the cache is not enabled
+     */
+    public static ResultCache fromProperties(String mode, String settings) {
+        if (Main.dataPath == null || !Boolean.parseBoolean(Main.properties.getProperty("cache.enabled", "true")))
+            return null;
+        return new ResultCache(Paths.get(Main.dataPath, "results-" + mode + ".cache"), settings,
+                               (long)Math.max(1, Main.getIntegerProperty("cache.size", 16)) * 1024 * 1024,
+                               Main.getIntegerProperty("cache.similar", -1));
+    }
+
+    /**
+     * Return the decoder settings that are common to all decode modes.  The decode
+     * mode adds its own settings to this description.
+     *
+     * @return                      Decoder settings
+     */
+    public static String getDecoderSettings() {
+        return String.format("version=%s zxing=%s hints=%s",
+                             Main.applicationVersion, Result.class.getPackage().getImplementationVersion(),
+                             new EnumMap<DecodeHintType, Object>(FrameDecoder.getHints()));
+    }
+
+    /**
+     * Return the content hash for an image
+     *
+     * @param       data            Image data
+     * @param       width           Image width (raw luminance data) or 0
+     * @param       height          Image height (raw luminance data) or 0
+     * @return                      Content hash (hex string)
+     */
+    public static String contentKey(byte[] data, int width, int height) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exc) {
+            throw new IllegalStateException("SHA-256 is not available", exc);
+        }
+        for (int i=3; i>=0; i--)
+            digest.update((byte)(width >>> (i*8)));
+        for (int i=3; i>=0; i--)
+            digest.update((byte)(height >>> (i*8)));
+        byte[] hash = digest.digest(data);
+        StringBuilder key = new StringBuilder(hash.length * 2);
+        for (byte b : hash)
+            key.append(Character.forDigit((b >>> 4) & 0x0f, 16)).append(Character.forDigit(b & 0x0f, 16));
+        return key.toString();
+    }
+
+    /**
+     * Return the perceptual hash for a frame.  The frame is divided into a 9x8 grid
+     * and each bit is set if a grid cell is brighter than the cell to its right.  The
+     * cell averages are sampled so the cost does not depend on the image size.
+     *
+     * @param       frame           Frame
+     * @return                      Perceptual hash
+     */
+    public static long perceptualHash(Frame frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        byte[] luminance = frame.getLuminance();
+        if (width < 9 || height < 8)
+            return 0;
+        int step = Math.max(1, Math.min(width / 9, height / 8) / 16);
+        int[] sums = new int[72];
+        int[] counts = new int[72];
+        for (int y=0; y<height; y+=step) {
+            int row = (y * 8 / height) * 9;
+            int offset = y * width;
+            for (int x=0; x<width; x+=step) {
+                int cell = row + x * 9 / width;
+                sums[cell] += luminance[offset+x] & 0xff;
+                counts[cell]++;
+            }
+        }
+        long hash = 0;
+        for (int row=0; row<8; row++) {
+            for (int col=0; col<8; col++) {
+                int cell = row*9 + col;
+                //
+                // Compare the averages without dividing (a/n > b/m is a*m > b*n)
+                //
+                hash <<= 1;
+                if ((long)sums[cell] * counts[cell+1] > (long)sums[cell+1] * counts[cell])
+                    hash |= 1;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Return the cached results for an image content hash
+     *
+     * @param       key             Content hash
+     * @return                      Decode results (empty if the image does not contain a QR code)
+     *                              or null if the image is not in the cache
+     */
+    public synchronized Result[] get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+        hitCount++;
+        return entry.results;
+    }
+
+    /**
+     * Return the cached results for an image with the same size and a similar perceptual
+     * hash.  The results are added to the cache for the content hash so the next lookup
+     * for the image finds them directly.  This is called after get() does not find the
+     * image and counts a miss if there is no similar image.
+     *
+     * @param       key             Content hash
+     * @param       hash            Perceptual hash
+     * @param       width           Image width
+     * @param       height          Image height
+     * @return                      Decode results or null if there is no similar image
+     */
+    public synchronized Result[] getSimilar(String key, long hash, int width, int height) {
+        Entry similar = null;
+        if (similarDistance == 0) {
+            similar = similarEntries.get(hash);
+            if (similar != null && (similar.width != width || similar.height != height))
+                similar = null;
+        } else if (similarDistance > 0) {
+            int bestDistance = similarDistance + 1;
+            for (Entry entry : entries.values()) {
+                if (entry.width == width && entry.height == height) {
+                    int distance = Long.bitCount(entry.hash ^ hash);
+                    if (distance < bestDistance) {
+                        similar = entry;
+                        bestDistance = distance;
+                    }
+                }
+            }
+        }
+        if (similar == null) {
+            missCount++;
+            return null;
+        }
+        similarCount++;
+        entries.get(similar.key);           // Mark the similar entry as recently used
+        add(new Entry(key, hash, width, height, similar.results));
+        return similar.results;
+    }
+
+    /**
+     * Add the decode results for an image
+     *
+     * @param       key             Content hash
+     * @param       hash            Perceptual hash
+     * @param       width           Image width
+     * @param       height          Image height
+     * @param       results         Decode results (empty if the image does not contain a QR code)
+     */
+    public synchronized void put(String key, long hash, int width, int height, Result[] results) {
+        add(new Entry(key, hash, width, height, results.length > 0 ? results : NO_RESULTS));
+    }
+
+    /**
+     * Add an entry and remove the least recently used entries if the cache is full
+     *
+     * @param       entry           New entry
+     */
+    private void add(Entry entry) {
+        Entry previous = entries.put(entry.key, entry);
+        if (previous != null)
+            remove(previous);
+        similarEntries.put(entry.hash, entry);
+        cacheSize += entry.size;
+        modified = true;
+        Iterator<Entry> it = entries.values().iterator();
+        while (cacheSize > maxSize && it.hasNext()) {
+            Entry eldest = it.next();
+            if (eldest == entry)
+                break;
+            it.remove();
+            remove(eldest);
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Remove an entry from the perceptual hash index and the cache size.  The entry
+     * has already been removed from the entry map.
+     *
+     * @param       entry           Entry
+     */
+    private void remove(Entry entry) {
+        if (similarEntries.get(entry.hash) == entry)
+            similarEntries.remove(entry.hash);
+        cacheSize -= entry.size;
+    }
+
+    /**
+     * Remove all entries
+     */
+    public synchronized void clear() {
+        entries.clear();
+        similarEntries.clear();
+        cacheSize = 0;
+        modified = true;
+    }
+
+    /**
+     * Return the number of entries
+     *
+     * @return                      Number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return the number of lookups answered from the cache
+     *
+     * @return                      Content hash and perceptual hash hits
+     */
+    public synchronized long getHitCount() {
+        return hitCount + similarCount;
+    }
+
+    /**
+     * Return the number of lookups not answered from the cache
+     *
+     * @return                      Misses
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Load the cached results.  The cache starts out empty if the file does not exist,
+     * cannot be read or was written with different decoder settings.
+     */
+    private synchronized void load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 65536))) {
+            if (in.readInt() != CACHE_MAGIC || in.readInt() != VERSION)
+                throw new IOException("Unsupported cache file format");
+            String fileSettings = in.readUTF();
+            int count = in.readInt();
+            if (!fileSettings.equals(settings)) {
+                staleCount = count;
+                modified = true;
+                log.info(String.format("Discarded %d cached results for different decoder settings", count));
+                return;
+            }
+            for (int i=0; i<count; i++) {
+                String key = in.readUTF();
+                long hash = in.readLong();
+                int width = in.readInt();
+                int height = in.readInt();
+                Result[] results = new Result[in.readInt()];
+                for (int j=0; j<results.length; j++) {
+                    byte[] text = new byte[in.readInt()];
+                    in.readFully(text);
+                    BarcodeFormat format = BarcodeFormat.valueOf(in.readUTF());
+                    ResultPoint[] points = new ResultPoint[in.readInt()];
+                    for (int k=0; k<points.length; k++)
+                        points[k] = new ResultPoint(in.readFloat(), in.readFloat());
+                    results[j] = new Result(new String(text, StandardCharsets.UTF_8), null, points, format);
+                }
+                add(new Entry(key, hash, width, height, results.length > 0 ? results : NO_RESULTS));
+            }
+            evictionCount = 0;
+            modified = false;
+            log.info(String.format("Loaded %d cached results from '%s'", entries.size(), path));
+        } catch (NoSuchFileException exc) {
+            // Cache has not been created yet
+        } catch (IOException | IllegalArgumentException exc) {
+            log.error(String.format("Unable to load the result cache '%s', starting with an empty cache", path), exc);
+            clear();
+        }
+    }
+
+    /**
+     * Save the cached results if they have changed.  The cache is written to a
+     * temporary file which then replaces the cache file.
+     */
+    public synchronized void save() {
+        if (!modified)
+            return;
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                                new BufferedOutputStream(Files.newOutputStream(tempPath), 65536))) {
+                out.writeInt(CACHE_MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(settings);
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    out.writeUTF(entry.key);
+                    out.writeLong(entry.hash);
+                    out.writeInt(entry.width);
+                    out.writeInt(entry.height);
+                    out.writeInt(entry.results.length);
+                    for (Result result : entry.results) {
+                        byte[] text = result.getText().getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(text.length);
+                        out.write(text);
+                        out.writeUTF(result.getBarcodeFormat().name());
+                        ResultPoint[] points = getPoints(result);
+                        out.writeInt(points.length);
+                        for (ResultPoint point : points) {
+                            out.writeFloat(point.getX());
+                            out.writeFloat(point.getY());
+                        }
+                    }
+                }
+            }
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            modified = false;
+        } catch (IOException exc) {
+            log.error(String.format("Unable to save the result cache '%s'", path), exc);
+        }
+    }
+
+    /**
+     * Return the non-null result points
+     *
+     * @param       result          Decode result
+     * @return                      Result points
+     */
+    private static ResultPoint[] getPoints(Result result) {
+        ResultPoint[] points = result.getResultPoints();
+        if (points == null)
+            return new ResultPoint[0];
+        List<ResultPoint> list = new ArrayList<>(points.length);
+        for (ResultPoint point : points) {
+            if (point != null)
+                list.add(point);
+        }
+        return list.toArray(new ResultPoint[list.size()]);
+    }
+
+    /**
+     * Return the cache statistics
+     *
+     * @return                      Statistics
+     */
+    @Override
+    public synchronized String toString() {
+        long lookups = hitCount + similarCount + missCount;
+        return String.format("%d entries (%d KB), %d hits, %d similar, %d misses (%.1f%% hit rate), "
+                             + "%d evicted, %d stale",
+                             entries.size(), cacheSize / 1024, hitCount, similarCount, missCount,
+                             lookups > 0 ? (double)(hitCount + similarCount) * 100.0 / (double)lookups : 0.0,
+                             evictionCount, staleCount);
+    }
+
+    /**
+     * Cache entry
+     */
+    private static class Entry {
+
+        /** Content hash */
+        private final String key;
+
+        /** Perceptual hash */
+        private final long hash;
+
+        /** Image width */
+        private final int width;
+
+        /** Image height */
+        private final int height;
+
+        /** Decode results */
+        private final Result[] results;
+
+        /** Estimated size (bytes) */
+        private final int size;
+
+        /**
+         * Create a cache entry
+         *
+         * @param       key             Content hash
+         * @param       hash            Perceptual hash
+         * @param       width           Image width
+         * @param       height          Image height
+         * @param       results         Decode results
+         */
+        private Entry(String key, long hash, int width, int height, Result[] results) {
+            this.key = key;
+            this.hash = hash;
+            this.width = width;
+            this.height = height;
+            this.results = results;
+            int resultSize = 0;
+            for (Result result : results) {
+                ResultPoint[] points = result.getResultPoints();
+                resultSize += 64 + 2*result.getText().length() + (points != null ? points.length*POINT_SIZE : 0);
+            }
+            this.size = ENTRY_OVERHEAD + resultSize;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+/**
+ * ScalarPixelKernels processes one pixel at a time.  These kernels are always
+ * available and define the results that the vector kernels must reproduce.
+ */
+public class ScalarPixelKernels extends PixelKernels {
+
+    /**
+     * Return the kernels name
+     *
+     * @return                      Name
+     */
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+
+    /**
+     * Convert packed RGB integer pixels (0xRRGGBB) to luminance
+     *
+     * @param       src             Pixel data
+     * @param       srcOffset       Offset of the first pixel
+     * @param       dst             Luminance data
+     * @param       dstOffset       Offset of the first luminance value
+     * @param       count           Number of pixels
+     */
+    @Override
+    public void lumaInts(int[] src, int srcOffset, byte[] dst, int dstOffset, int count) {
+        for (int i=0; i<count; i++) {
+            int pixel = src[srcOffset+i];
+            dst[dstOffset+i] = Frame.luma((pixel>>16)&0xff, (pixel>>8)&0xff, pixel&0xff);
+        }
+    }
+
+    /**
+     * Convert interleaved byte pixels to luminance
+     *
+     * @param       src             Pixel data
+     * @param       srcOffset       Offset of the first pixel
+     * @param       pixelStride     Number of bytes per pixel
+     * @param       rOffset         Offset of the red component within a pixel
+     * @param       gOffset         Offset of the green component within a pixel
+     * @param       bOffset         Offset of the blue component within a pixel
+     * @param       dst             Luminance data
+     * @param       dstOffset       Offset of the first luminance value
+     * @param       count           Number of pixels
+     */
+    @Override
+    public void lumaBytes(byte[] src, int srcOffset, int pixelStride, int rOffset, int gOffset,
+                          int bOffset, byte[] dst, int dstOffset, int count) {
+        for (int i=0, offset=srcOffset; i<count; i++, offset+=pixelStride) {
+            dst[dstOffset+i] = Frame.luma(src[offset+rOffset]&0xff, src[offset+gOffset]&0xff,
+                                          src[offset+bOffset]&0xff);
+        }
+    }
+
+    /**
+     * Downsample two luminance rows to one row of half the width
+     *
+     * @param       src             Input luminance data
+     * @param       srcOffset       Offset of the first input row
+     * @param       srcStride       Input row stride
+     * @param       dst             Output luminance data
+     * @param       dstOffset       Offset of the output row
+     * @param       count           Number of output values
+     */
+    @Override
+    public void downsample(byte[] src, int srcOffset, int srcStride, byte[] dst, int dstOffset, int count) {
+        for (int x=0, offset=srcOffset; x<count; x++, offset+=2) {
+            int sum = (src[offset] & 0xff) + (src[offset+1] & 0xff) +
+                      (src[offset+srcStride] & 0xff) + (src[offset+srcStride+1] & 0xff);
+            dst[dstOffset+x] = (byte)((sum + 2) >> 2);
+        }
+    }
+
+    /**
+     * Calculate the sum, minimum and maximum luminance for each block in a row of blocks
+     *
+     * @param       luminances      Luminance data
+     * @param       offset          Offset of the first pixel in the block row
+     * @param       stride          Row stride
+     * @param       width           Image width (at least 8)
+     * @param       blockCount      Number of blocks
+     * @param       sums            Block sums
+     * @param       mins            Block minimum values
+     * @param       maxs            Block maximum values
+     */
+    @Override
+    public void blockStats(byte[] luminances, int offset, int stride, int width, int blockCount,
+                           int[] sums, int[] mins, int[] maxs) {
+        blockStats(luminances, offset, stride, width, 0, blockCount, sums, mins, maxs);
+    }
+
+    /**
+     * Calculate the block statistics for a range of blocks in a row of blocks.  This
+     * is also used by the vector kernels for the blocks at the end of the row.
+     *
+     * @param       luminances      Luminance data
+     * @param       offset          Offset of the first pixel in the block row
+     * @param       stride          Row stride
+     * @param       width           Image width (at least 8)
+     * @param       start           First block
+     * @param       end             End of the blocks (exclusive)
+     * @param       sums            Block sums
+     * @param       mins            Block minimum values
+     * @param       maxs            Block maximum values
+     */
+    static void blockStats(byte[] luminances, int offset, int stride, int width, int start, int end,
+                           int[] sums, int[] mins, int[] maxs) {
+        int maxXOffset = width - BLOCK_SIZE;
+        for (int x=start; x<end; x++) {
+            int xoffset = Math.min(x * BLOCK_SIZE, maxXOffset);
+            int sum = 0;
+            int min = 0xff;
+            int max = 0;
+            for (int yy=0, rowOffset=offset+xoffset; yy<BLOCK_SIZE; yy++, rowOffset+=stride) {
+                for (int xx=0; xx<BLOCK_SIZE; xx++) {
+                    int pixel = luminances[rowOffset+xx] & 0xff;
+                    sum += pixel;
+                    min = Math.min(min, pixel);
+                    max = Math.max(max, pixel);
+                }
+            }
+            sums[x] = sum;
+            mins[x] = min;
+            maxs[x] = max;
+        }
+    }
+
+    /**
+     * Set the bit for each pixel in a row that is not brighter than its threshold
+     *
+     * @param       luminances      Luminance data
+     * @param       offset          Offset of the first pixel in the row
+     * @param       thresholds      Threshold for each pixel (unsigned)
+     * @param       width           Row width
+     * @param       bits            Row bits
+     */
+    @Override
+    public void threshold(byte[] luminances, int offset, byte[] thresholds, int width, int[] bits) {
+        threshold(luminances, offset, thresholds, 0, width, bits);
+    }
+
+    /**
+     * Threshold a range of pixels in a row.  This is also used by the vector kernels
+     * for the pixels at the end of the row.
+     *
+     * @param       luminances      Luminance data
+     * @param       offset          Offset of the first pixel in the row
+     * @param       thresholds      Threshold for each pixel (unsigned)
+     * @param       start           First pixel
+     * @param       end             End of the pixels (exclusive)
+     * @param       bits            Row bits
+     */
+    static void threshold(byte[] luminances, int offset, byte[] thresholds, int start, int end, int[] bits) {
+        //
+        // Build each 32-bit word without branching on the pixel values (the sign of
+        // threshold - luminance is the pixel bit)
+        //
+        int x = start;
+        while (x < end) {
+            int wordEnd = Math.min((x | 0x1f) + 1, end);
+            int word = 0;
+            for (; x<wordEnd; x++) {
+                int bit = ~((thresholds[x] & 0xff) - (luminances[offset+x] & 0xff)) >>> 31;
+                word |= bit << (x & 0x1f);
+            }
+            bits[(x - 1) >> 5] |= word;
+        }
+    }
+}
@@ -16,86 +16,124 @@
 package org.ScripterRon.QRScanner;
 import static org.ScripterRon.QRScanner.Main.log;
 
-import com.github.sarxos.webcam.Webcam;
-import com.github.sarxos.webcam.WebcamEvent;
-import com.github.sarxos.webcam.WebcamPanel;
-import com.github.sarxos.webcam.WebcamListener;
-import com.github.sarxos.webcam.WebcamResolution;
-
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.BinaryBitmap;
-import com.google.zxing.DecodeHintType;
-import com.google.zxing.LuminanceSource;
-import com.google.zxing.MultiFormatReader;
-import com.google.zxing.NotFoundException;
 import com.google.zxing.Result;
-import com.google.zxing.client.j2se.BufferedImageLuminanceSource;
-import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.ResultPoint;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 
+import java.awt.Component;
 import java.awt.Dialog;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
 
 
 /**
  * Use the PC camera to scan the QR code
+ *
+ * The dialog is closed when the first QR code is found unless it is a continuous
+ * scan.  A continuous scan decodes all of the QR codes in each frame and reports each
+ * new code until the user closes the dialog.  A code is not reported again while
+ * it remains in view (see DedupeCache).
+ *
+ * The frame source is obtained from the camera manager and is started on the camera
+ * manager thread, so the dialog is displayed without waiting for the webcam.  The
+ * time from the scan request to the first captured image is logged for each scan.
  */
-public class ScanDialog extends JDialog implements ActionListener, WebcamListener {
+public class ScanDialog extends JDialog implements ActionListener, FrameListener, DecodeListener {
+    
+    /** Frame source */
+    private final FrameSource frameSource;
+    
+    /** Preview panel */
+    private final PreviewPanel previewPanel;
+    
+    /** Decode pipeline */
+    private final DecodePipeline decodePipeline;
     
-    /** Webcam */
-    private final Webcam webcam;
+    /** QR text string (set by the first decode worker to find a QR code) */
+    private final AtomicReference<String> qrString = new AtomicReference<>();
     
-    /** Webcam panel */
-    private final WebcamPanel webcamPanel;
+    /** Continuous scan result consumer (null for a single scan) */
+    private final Consumer<ScanRecord> resultConsumer;
     
-    /** Multi-format barcode reader */
-    private final MultiFormatReader barcodeReader;
+    /** Continuous scan dedupe cache */
+    private final DedupeCache dedupeCache;
     
-    /** Image processing lock */
-    private final Lock processingLock = new ReentrantLock();
+    /** Continuous scan result count label */
+    private final JLabel countLabel;
     
-    /** QR text string */
-    private String qrString = null;
+    /** Continuous scan result count */
+    private int resultCount = 0;
+
+    /** Scan request time (System.nanoTime) */
+    private final long requestTime;
+
+    /** Webcam was open when the scan was requested */
+    private final boolean warmStart;
+
+    /** First image has been captured */
+    private final AtomicBoolean firstFrame = new AtomicBoolean();
 
     /**
      * Create the dialog
      *
      * @param       parent          Parent frame
-     * @param       webcam          Web camera
+     * @param       frameSource     Frame source
+     * @param       resultConsumer  Continuous scan result consumer or null for a single scan
+     * @param       requestTime     Scan request time (System.nanoTime)
      */
-    public ScanDialog(JFrame parent, Webcam webcam) {
-        super(parent, "Scan QR Code", Dialog.ModalityType.DOCUMENT_MODAL);
-        setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+    public ScanDialog(JFrame parent, FrameSource frameSource, Consumer<ScanRecord> resultConsumer,
+                      long requestTime) {
+        super(parent, resultConsumer != null ? "Continuous Scan" : "Scan QR Code",
+              Dialog.ModalityType.DOCUMENT_MODAL);
+        setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+        this.frameSource = frameSource;
+        this.resultConsumer = resultConsumer;
+        this.requestTime = requestTime;
         //
-        // Create the webcam panel (this will display the webcam stream to the user)
+        // Create the preview panel (this will display the image stream to the user).
+        // The webcam stream is mirrored so it looks like a mirror to the user.  The
+        // preview displays the captured images, so the webcam is not read a second
+        // time for the preview and the repaint rate drops when the decoder is busy.
         //
-        this.webcam = webcam;
-        webcam.setViewSize(WebcamResolution.VGA.getSize());
-        webcamPanel = new WebcamPanel(webcam);
-        webcamPanel.setMirrored(true);
+        WebcamFrameSource webcamSource =
+                (frameSource instanceof WebcamFrameSource ? (WebcamFrameSource)frameSource : null);
+        warmStart = (webcamSource != null && webcamSource.isOpen());
+        previewPanel = new PreviewPanel(frameSource.getViewSize());
+        previewPanel.setMirrored(webcamSource != null);
         //
-        // Create the buttons (Cancel)
+        // Create the buttons (Cancel for a single scan, Done for a continuous scan)
         //
-        JPanel buttonPane = new ButtonPane(this, 10, new String[] {"Cancel", "cancel"});
+        JPanel buttonPane;
+        if (resultConsumer != null) {
+            dedupeCache = DedupeCache.fromProperties();
+            countLabel = new JLabel("0 codes scanned");
+            countLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+            buttonPane = new ButtonPane(this, 10, new String[] {"Done", "cancel"});
+        } else {
+            dedupeCache = null;
+            countLabel = null;
+            buttonPane = new ButtonPane(this, 10, new String[] {"Cancel", "cancel"});
+        }
         //
         // Set up the content pane
         //
@@ -103,23 +141,32 @@ public class ScanDialog extends JDialog implements ActionListener, WebcamListene
         contentPane.setLayout(new BoxLayout(contentPane, BoxLayout.Y_AXIS));
         contentPane.setOpaque(true);
         contentPane.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
-        contentPane.add(webcamPanel);
+        contentPane.add(previewPanel);
+        if (countLabel != null) {
+            contentPane.add(Box.createVerticalStrut(10));
+            contentPane.add(countLabel);
+        }
         contentPane.add(Box.createVerticalStrut(15));
         contentPane.add(buttonPane);
         setContentPane(contentPane);
         //
-        // Set up the barcode reader to look for just QR codes
+        // Start the decode workers
         //
-        barcodeReader = new MultiFormatReader();
-        Map<DecodeHintType, Object> hints = new HashMap<>();
-        List<BarcodeFormat> formats = new ArrayList<>();
-        formats.add(BarcodeFormat.QR_CODE);
-        hints.put(DecodeHintType.POSSIBLE_FORMATS, formats);
-        barcodeReader.setHints(hints);
+        decodePipeline = new DecodePipeline(DecodePipeline.getDefaultWorkerCount(), this);
+        decodePipeline.setDecodeMultiple(resultConsumer != null);
+        if (frameSource instanceof WebcamFrameSource)
+            decodePipeline.setResolutionController(((WebcamFrameSource)frameSource).getResolutionController());
+        previewPanel.setDecodeMonitor(decodePipeline::isReady);
+        decodePipeline.start();
         //
-        // Listen for webcam events (we will scan webcam images looking for a QR code)
+        // Closing the dialog is the same as pressing the Cancel button
         //
-        webcam.addWebcamListener(this);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent we) {
+                actionPerformed(new ActionEvent(ScanDialog.this, 0, "cancel"));
+            }
+        });
     }
 
     /**
@@ -129,23 +176,89 @@ public class ScanDialog extends JDialog implements ActionListener, WebcamListene
      * @return      Text string from the QR code or null
      */
     public static String showDialog(JFrame parent) {
-        String result = null;
+        ScanDialog dialog = showDialog(parent, null);
+        return (dialog != null ? dialog.qrString.get() : null);
+    }
+
+    /**
+     * Show the continuous scan dialog.  The result consumer is called on the GUI
+     * thread for each new QR code until the user closes the dialog.
+     *
+     * @param       parent              Parent frame
+     * @param       resultConsumer      Result consumer
+     */
+    public static void showContinuousDialog(JFrame parent, Consumer<ScanRecord> resultConsumer) {
+        showDialog(parent, resultConsumer);
+    }
+
+    /**
+     * Show the scan dialog and wait for it to be closed
+     *
+     * @param       parent              Parent frame
+     * @param       resultConsumer      Continuous scan result consumer or null
+     * @return      Scan dialog or null if the dialog was not displayed
+     */
+    private static ScanDialog showDialog(JFrame parent, Consumer<ScanRecord> resultConsumer) {
+        ScanDialog dialog = null;
+        long requestTime = System.nanoTime();
         try {
-            Webcam webcam = Webcam.getDefault();
-            if (webcam == null) {
+            CompletableFuture<FrameSource> future = Main.cameraManager.getFrameSource();
+            if (!future.isDone() && !waitForSource(parent, future))
+                return null;
+            FrameSource frameSource;
+            try {
+                frameSource = future.get();
+            } catch (ExecutionException exc) {
+                throw (exc.getCause() instanceof Exception ? (Exception)exc.getCause() : exc);
+            }
+            if (frameSource == null) {
                 JOptionPane.showMessageDialog(parent, "No webcam available", "No Webcam", JOptionPane.ERROR_MESSAGE);
             } else {
-                log.info("Using webcam " + webcam.getName());
-                ScanDialog dialog = new ScanDialog(parent, webcam);
+                log.info("Using frame source {}", frameSource.getName());
+                dialog = new ScanDialog(parent, frameSource, resultConsumer, requestTime);
                 dialog.pack();
                 dialog.setLocationRelativeTo(parent);
+                dialog.startCapture();
                 dialog.setVisible(true);
-                result = dialog.qrString;
             }
         } catch (Exception exc) {
             Main.logException("Exception while displaying dialog", exc);
         }
-        return result;
+        return dialog;
+    }
+
+    /**
+     * Wait for the camera manager to discover the webcam.  A message is displayed
+     * until the frame source is available or the user cancels the scan.
+     *
+     * @param       parent              Parent frame
+     * @param       future              Frame source future
+     * @return      TRUE if the frame source is available
+     */
+    static boolean waitForSource(JFrame parent, CompletableFuture<?> future) {
+        JOptionPane pane = new JOptionPane("Looking for the webcam...", JOptionPane.INFORMATION_MESSAGE,
+                                           JOptionPane.DEFAULT_OPTION, null, new Object[] {"Cancel"});
+        JDialog dialog = pane.createDialog(parent, "Scan QR Code");
+        future.whenComplete((source, exc) -> SwingUtilities.invokeLater(() -> dialog.setVisible(false)));
+        dialog.setVisible(true);
+        dialog.dispose();
+        return future.isDone();
+    }
+
+    /**
+     * Start capturing images from the frame source on the camera manager thread.
+     * The dialog is closed if the frame source cannot be started.
+     */
+    private void startCapture() {
+        Main.cameraManager.startSource(frameSource, this).whenComplete((result, exc) ->
+            SwingUtilities.invokeLater(() -> {
+                if (exc != null) {
+                    if (isDisplayable())
+                        actionPerformed(new ActionEvent(this, 0, "cancel"));
+                    Main.logException("Unable to start frame source",
+                                      exc.getCause() != null ? exc.getCause() : exc);
+                }
+            }));
     }
 
     /**
@@ -159,8 +272,10 @@ public class ScanDialog extends JDialog implements ActionListener, WebcamListene
             String action = ae.getActionCommand();
             switch (action) {
                 case "cancel":
-                    webcamPanel.stop();
-                    webcam.removeWebcamListener(this);
+                    decodePipeline.stop();
+                    Main.cameraManager.stopSource(frameSource);
+                    log.info("Preview: {}, {}", previewPanel.toString(),
+                             previewPanel.getCpuSplit(decodePipeline.getDecodeCpuTime()));
                     setVisible(false);
                     dispose();
                     break;
@@ -169,68 +284,124 @@ public class ScanDialog extends JDialog implements ActionListener, WebcamListene
             Main.logException("Exception while processing action event", exc);
         }
     }
-    
+
     /**
-     * Webcam opened (WebcamListener interface)
+     * Image captured (FrameListener interface)
+     *
+     * The image is copied to a pooled frame and handed to the decode pipeline so
+     * the capture thread is not delayed while the image is scanned.
      * 
-     * @param   we              Webcam event
+     * @param   source          Frame source
+     * @param   image           Captured image
+     * @param   captureTime     Capture time
      */
     @Override
-    public void webcamOpen(WebcamEvent we) {
-        // Ignore event
+    public void imageCaptured(FrameSource source, BufferedImage image, long captureTime) {
+        if (!firstFrame.get() && firstFrame.compareAndSet(false, true))
+            log.info("First image from {} after {} ms ({} start)", source.getName(),
+                     (captureTime - requestTime) / 1000000, warmStart ? "warm" : "cold");
+        previewPanel.setImage(image);
+        if (resultConsumer == null && qrString.get() != null)
+            return;
+        Frame frame = decodePipeline.acquireFrame();
+        if (frame == null)
+            return;
+        try {
+            if (source.copyFrame(frame, image, captureTime)) {
+                decodePipeline.submit(frame);
+                frame = null;
+            }
+        } catch (Exception exc) {
+            ScanMetrics.getInstance().frameFailed();
+            Main.logException("Exception while processing buffered image", exc);
+        } finally {
+            if (frame != null)
+                decodePipeline.releaseFrame(frame);
+        }
     }
-    
+
     /**
-     * Webcam closed (WebcamListener interface)
-     * 
-     * @param   we              Webcam event
+     * Check if the decode pipeline is ready for a new frame (FrameListener interface)
+     *
+     * @return                  TRUE if a decode worker is waiting for a frame
      */
     @Override
-    public void webcamClosed(WebcamEvent we) {
-        // Ignore event
+    public boolean isReady() {
+        return decodePipeline.isReady();
     }
-    
+
     /**
-     * Webcam disposed (WebcamListener interface)
-     * 
-     * @param   we              Webcam event
+     * Set the decode pipeline ready callback (FrameListener interface)
+     *
+     * @param       callback        Ready callback or null
      */
     @Override
-    public void webcamDisposed(WebcamEvent we) {
-        // Ignore event
+    public void setReadyCallback(Runnable callback) {
+        decodePipeline.setReadyCallback(callback);
     }
-    
+
     /**
-     * Webcam image obtained (WebcamListener interface)
-     * 
-     * @param   we              Webcam event
+     * Finder patterns located (DecodeListener interface)
+     *
+     * @param   points          Points in frame coordinates
+     * @param   width           Frame width
+     * @param   height          Frame height
+     * @param   decoded         TRUE if a QR code was decoded
      */
     @Override
-    public void webcamImageObtained(WebcamEvent we) {
-        if (qrString != null || !processingLock.tryLock())
+    public void pointsFound(ResultPoint[] points, int width, int height, boolean decoded) {
+        previewPanel.setPoints(points, width, height, decoded);
+    }
+
+    /**
+     * QR code decoded (DecodeListener interface)
+     *
+     * Only the first result is used for a single scan and the dialog is closed on
+     * the GUI thread.  New results are passed to the result consumer on the GUI thread
+     * for a continuous scan.  Each result that is used is added to the scan history.
+     *
+     * @param   result          Decode result
+     * @param   decodeTime      Decode time (nanoseconds)
+     */
+    @Override
+    public void resultDecoded(Result result, long decodeTime) {
+        if (resultConsumer != null) {
+            if (!dedupeCache.add(result.getText(), System.currentTimeMillis()))
+                return;
+            log.info("QR text: {}", result.getText());
+            ScanRecord record = addHistory(result, decodeTime);
+            SwingUtilities.invokeLater(() -> {
+                Toolkit.getDefaultToolkit().beep();
+                resultCount++;
+                countLabel.setText(String.format("%d %s scanned", resultCount, resultCount == 1 ? "code" : "codes"));
+                resultConsumer.accept(record);
+            });
             return;
-        try {
-            BufferedImage image = we.getImage();
-            if (image != null) {
-                LuminanceSource source = new BufferedImageLuminanceSource(image);
-                BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
-                Result result = barcodeReader.decodeWithState(bitmap);
-                if (result != null) {
-                    qrString = result.getText();
-                    log.info("QR text: " + qrString);
-                    final ActionEvent ae = new ActionEvent(this, 0, "cancel");
-                    SwingUtilities.invokeLater(() -> {
-                        Toolkit.getDefaultToolkit().beep();
-                        actionPerformed(ae);
-                    });
-                }
-            }
-        } catch (NotFoundException exc) {
-            // No QR code in image
-        } catch (Exception exc) {
-            Main.logException("Exception whle processing buffered image", exc);
-        } finally {
-            processingLock.unlock();
         }
+        if (!qrString.compareAndSet(null, result.getText()))
+            return;
+        log.info("QR text: {}", result.getText());
+        addHistory(result, decodeTime);
+        final ActionEvent ae = new ActionEvent(this, 0, "cancel");
+        SwingUtilities.invokeLater(() -> {
+            Toolkit.getDefaultToolkit().beep();
+            actionPerformed(ae);
+        });
+    }
+
+    /**
+     * Add a decode result to the scan history
+     *
+     * @param   result          Decode result
+     * @param   decodeTime      Decode time (nanoseconds)
+     * @return                  Scan record
+     */
+    private ScanRecord addHistory(Result result, long decodeTime) {
+        ScanRecord record = new ScanRecord(System.currentTimeMillis(), result.getText(),
+                                           result.getBarcodeFormat().toString(), frameSource.getName(),
+                                           (int)Math.min(decodeTime / 1000, Integer.MAX_VALUE));
+        if (Main.scanHistory != null)
+            Main.scanHistory.add(record);
+        return record;
     }
 }
@@ -0,0 +1,929 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * ScanHistory keeps a permanent record of the QR codes that have been scanned.
+ *
+ * The scans are appended to 'history.log' in the application data directory.  Each
+ * record is a 4-byte payload length and a CRC-32 of the payload followed by the
+ * payload (timestamp, decode time, format, camera and text).  The log is never
+ * rewritten.
+ *
+ * 'history.idx' is a memory-mapped index with a 24-byte entry for each record
+ * (timestamp, log offset and the first 8 bytes of the text).  The entries are in
+ * timestamp order, so a time range is found using a binary search.  'history.pfx.n'
+ * is a memory-mapped prefix index containing the text keys and entry numbers sorted by
+ * text key.  Newer entries are searched sequentially until there are enough of them
+ * to merge into a new prefix index.  The index files can be deleted at any time
+ * and will be rebuilt from the log.
+ *
+ * Scans are queued and written in batches by a background thread.  The log is
+ * forced to disk before the index is updated.  When the history is opened, any
+ * records after the last indexed record are added to the index and a partially
+ * written record is removed, so at most the last batch is lost if the
+ * application crashes.  A damaged record that is followed by valid records is
+ * skipped, so the records after it are still indexed.
+ */
+public class ScanHistory {
+
+    /** Log file name */
+    private static final String LOG_FILE = "history.log";
+
+    /** Index file name */
+    private static final String INDEX_FILE = "history.idx";
+
+    /** Prefix index file name (followed by the generation number) */
+    private static final String PREFIX_FILE = "history.pfx.";
+
+    /** Index file identifier ('QRHI') */
+    private static final int INDEX_MAGIC = 0x51524849;
+
+    /** Prefix index file identifier ('QRHP') */
+    private static final int PREFIX_MAGIC = 0x51524850;
+
+    /** File version */
+    private static final int VERSION = 1;
+
+    /** Index file header size */
+    private static final int HEADER_SIZE = 32;
+
+    /** Index entry size */
+    private static final int ENTRY_SIZE = 24;
+
+    /** Prefix index entry size */
+    private static final int PAIR_SIZE = 16;
+
+    /** Log record header size (length and CRC) */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /** Minimum log record payload size */
+    private static final int MIN_PAYLOAD_SIZE = 8 + 4 + 4 + 4 + 4;
+
+    /** Maximum log record payload size */
+    private static final int MAX_PAYLOAD_SIZE = 1024 * 1024;
+
+    /** Initial index capacity (entries) */
+    private static final int INITIAL_CAPACITY = 4096;
+
+    /** Number of unsorted entries that causes a prefix index merge */
+    private static final int MERGE_THRESHOLD = 65536;
+
+    /** Maximum number of records in a batch */
+    private static final int MAX_BATCH = 1000;
+
+    /** End of queue marker */
+    private static final ScanRecord END = new ScanRecord(0, "", "", "", 0);
+
+    /** Data directory */
+    private final Path directory;
+
+    /** Log file channel */
+    private final FileChannel logChannel;
+
+    /** Index file channel */
+    private final FileChannel indexChannel;
+
+    /** Mapped index */
+    private MappedByteBuffer indexMap;
+
+    /** Number of index entries */
+    private long entryCount;
+
+    /** Length of the indexed log records */
+    private long logLength;
+
+    /** Timestamp of the last entry */
+    private long lastTimestamp;
+
+    /** Mapped prefix index or null */
+    private MappedByteBuffer prefixMap;
+
+    /** Prefix index generation */
+    private long prefixGeneration;
+
+    /** Number of index entries included in the prefix index */
+    private long prefixCovered;
+
+    /** Number of prefix index entries */
+    private long prefixCount;
+
+    /** Batch interval (milliseconds) */
+    private final long batchInterval;
+
+    /** Scan queue */
+    private final LinkedBlockingQueue<ScanRecord> queue = new LinkedBlockingQueue<>();
+
+    /** History writer thread */
+    private final Thread writerThread;
+
+    /** History has been closed */
+    private volatile boolean closed = false;
+
+    /**
+     * Open the scan history in a directory, creating the files if they do not exist
+     *
+     * @param       directory       Data directory
+     * @throws      IOException     Unable to open the history files
+     */
+    public ScanHistory(Path directory) throws IOException {
+        this.directory = directory;
+        this.batchInterval = Math.max(10, Main.getIntegerProperty("history.batch.ms", 1000));
+        logChannel = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.CREATE,
+                                      StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            indexChannel = FileChannel.open(directory.resolve(INDEX_FILE), StandardOpenOption.CREATE,
+                                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                openIndex();
+                recover();
+                openPrefixIndex();
+            } catch (IOException exc) {
+                indexChannel.close();
+                throw exc;
+            }
+        } catch (IOException exc) {
+            logChannel.close();
+            throw exc;
+        }
+        log.info(String.format("Scan history contains %d entries", entryCount));
+        writerThread = new Thread(() -> writeRecords(), "Scan History Writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queue a scan to be added to the history.  This method does not wait for
+     * the scan to be written.
+     *
+     * @param       record          Scan record
+     */
+    public void add(ScanRecord record) {
+        if (!closed)
+            queue.offer(record);
+    }
+
+    /**
+     * Write the queued scans and close the history
+     */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        queue.offer(END);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException exc) {
+            // Close the files now
+        }
+        try {
+            logChannel.close();
+            indexChannel.close();
+        } catch (IOException exc) {
+            log.error("Unable to close scan history", exc);
+        }
+    }
+
+    /**
+     * Return the number of scans in the history
+     *
+     * @return                      Number of entries
+     */
+    public synchronized long size() {
+        return entryCount;
+    }
+
+    /**
+     * Return a scan
+     *
+     * @param       index           Entry number (0 is the oldest scan)
+     * @return                      Scan record
+     * @throws      IOException     Unable to read the scan
+     */
+    public ScanRecord get(long index) throws IOException {
+        long offset;
+        long limit;
+        synchronized(this) {
+            if (index < 0 || index >= entryCount)
+                throw new IndexOutOfBoundsException("Scan history entry " + index + " does not exist");
+            offset = indexMap.getLong(entryPosition(index) + 8);
+            limit = logLength;
+        }
+        ByteBuffer payload = readPayload(offset, limit);
+        if (payload == null)
+            throw new IOException("Scan history entry " + index + " is damaged");
+        return decodeRecord(payload);
+    }
+
+    /**
+     * Return the range of entries for a time range
+     *
+     * @param       startTime       Start time (milliseconds since the epoch, inclusive)
+     * @param       endTime         End time (milliseconds since the epoch, exclusive)
+     * @return                      First entry and end entry (exclusive)
+     */
+    public synchronized long[] findTimeRange(long startTime, long endTime) {
+        long first = timeLowerBound(startTime);
+        long end = Math.max(first, timeLowerBound(endTime));
+        return new long[] {first, end};
+    }
+
+    /**
+     * Return the scans within a time range in the order they were scanned
+     *
+     * @param       startTime       Start time (milliseconds since the epoch, inclusive)
+     * @param       endTime         End time (milliseconds since the epoch, exclusive)
+     * @param       limit           Maximum number of scans to return
+     * @return                      Scan records
+     * @throws      IOException     Unable to read the history
+     */
+    public List<ScanRecord> findByTime(long startTime, long endTime, int limit) throws IOException {
+        long[] range = findTimeRange(startTime, endTime);
+        List<ScanRecord> records = new ArrayList<>();
+        for (long index=range[0]; index<range[1] && records.size()<limit; index++)
+            records.add(get(index));
+        return records;
+    }
+
+    /**
+     * Return the entry numbers of the scans with text starting with a prefix.  Entries
+     * in the prefix index are returned in text order followed by newer entries in
+     * the order they were scanned.
+     *
+     * @param       prefix          Text prefix
+     * @param       limit           Maximum number of entries to return
+     * @return                      Entry numbers
+     * @throws      IOException     Unable to read the history
+     */
+    public long[] findByPrefix(String prefix, int limit) throws IOException {
+        byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+        long low = textKey(bytes, 0x00);
+        long high = textKey(bytes, 0xff);
+        boolean verify = (bytes.length > 8);
+        //
+        // Use the current index state for the whole search.  A prefix index that is
+        // replaced by a merge remains mapped while we are using it.
+        //
+        MappedByteBuffer pairMap;
+        MappedByteBuffer entryMap;
+        long pairCount;
+        long covered;
+        long count;
+        synchronized(this) {
+            pairMap = prefixMap;
+            pairCount = prefixCount;
+            entryMap = indexMap;
+            covered = prefixCovered;
+            count = entryCount;
+        }
+        long[] matches = new long[Math.max(0, Math.min(limit, 1024))];
+        int matchCount = 0;
+        for (long pos=prefixLowerBound(pairMap, pairCount, low); pos<pairCount && matchCount<limit; pos++) {
+            int position = HEADER_SIZE + (int)pos*PAIR_SIZE;
+            if (Long.compareUnsigned(pairMap.getLong(position), high) > 0)
+                break;
+            long index = pairMap.getLong(position + 8);
+            if (!verify || get(index).getText().startsWith(prefix)) {
+                if (matchCount == matches.length)
+                    matches = Arrays.copyOf(matches, Math.min(limit, matchCount*2));
+                matches[matchCount++] = index;
+            }
+        }
+        for (long index=covered; index<count && matchCount<limit; index++) {
+            long key = entryMap.getLong(entryPosition(index) + 16);
+            if (Long.compareUnsigned(key, low) < 0 || Long.compareUnsigned(key, high) > 0)
+                continue;
+            if (!verify || get(index).getText().startsWith(prefix)) {
+                if (matchCount == matches.length)
+                    matches = Arrays.copyOf(matches, Math.min(limit, matchCount*2));
+                matches[matchCount++] = index;
+            }
+        }
+        return Arrays.copyOf(matches, matchCount);
+    }
+
+    /**
+     * Write queued scans until the history is closed
+     */
+    private void writeRecords() {
+        List<ScanRecord> batch = new ArrayList<>();
+        boolean done = false;
+        try {
+            mergePrefixIndexSafely();
+            while (!done) {
+                ScanRecord record = queue.take();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchInterval);
+                while (record != null) {
+                    if (record == END) {
+                        done = true;
+                        break;
+                    }
+                    batch.add(record);
+                    if (batch.size() >= MAX_BATCH)
+                        break;
+                    long wait = deadline - System.nanoTime();
+                    record = (wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll());
+                }
+                if (!batch.isEmpty()) {
+                    try {
+                        writeBatch(batch);
+                    } catch (IOException exc) {
+                        log.error(String.format("Unable to write %d scans to the history", batch.size()), exc);
+                    }
+                    batch.clear();
+                    mergePrefixIndexSafely();
+                }
+            }
+        } catch (InterruptedException exc) {
+            // History is being closed
+        }
+    }
+
+    /**
+     * Merge the prefix index if the threshold has been reached.  A merge failure is
+     * logged and the scans are still written, since prefix searches also check the
+     * entries that are not in the prefix index.
+     */
+    private void mergePrefixIndexSafely() {
+        try {
+            mergePrefixIndex(false);
+        } catch (IOException exc) {
+            log.error("Unable to merge the scan history prefix index", exc);
+        }
+    }
+
+    /**
+     * Append a batch of scans to the log and then add them to the index
+     *
+     * @param       batch           Scan records
+     * @throws      IOException     Unable to write the scans
+     */
+    private void writeBatch(List<ScanRecord> batch) throws IOException {
+        int batchSize = batch.size();
+        ByteBuffer[] buffers = new ByteBuffer[batchSize];
+        long[] timestamps = new long[batchSize];
+        long[] keys = new long[batchSize];
+        long timestamp = lastTimestamp;
+        int length = 0;
+        for (int i=0; i<batchSize; i++) {
+            ScanRecord record = batch.get(i);
+            //
+            // The index must be in timestamp order, so we don't allow the time
+            // to go backwards if the system clock is changed
+            //
+            timestamp = Math.max(timestamp, record.getTimestamp());
+            timestamps[i] = timestamp;
+            keys[i] = textKey(record.getText().getBytes(StandardCharsets.UTF_8), 0x00);
+            buffers[i] = encodeRecord(record, timestamp);
+            length += buffers[i].remaining();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (ByteBuffer recordBuffer : buffers)
+            buffer.put(recordBuffer);
+        buffer.flip();
+        //
+        // Write the records and force them to disk before updating the index
+        //
+        long offset = logLength;
+        long position = offset;
+        while (buffer.hasRemaining())
+            position += logChannel.write(buffer, position);
+        logChannel.force(false);
+        synchronized(this) {
+            //
+            // The entries are removed again if the index cannot be extended, so the
+            // next batch is written over the records that were not indexed
+            //
+            long savedCount = entryCount;
+            long savedTimestamp = lastTimestamp;
+            long recordOffset = offset;
+            try {
+                for (int i=0; i<batchSize; i++) {
+                    addEntry(timestamps[i], recordOffset, keys[i]);
+                    recordOffset += buffers[i].limit();
+                }
+            } catch (IOException | RuntimeException exc) {
+                entryCount = savedCount;
+                lastTimestamp = savedTimestamp;
+                throw exc;
+            }
+            indexMap.force();
+            logLength = position;
+            writeIndexHeader();
+            indexMap.force();
+        }
+    }
+
+    /**
+     * Merge the unsorted entries into a new prefix index
+     *
+     * @param       force           TRUE to merge even if the threshold has not been reached
+     * @throws      IOException     Unable to write the prefix index
+     */
+    private void mergePrefixIndex(boolean force) throws IOException {
+        long covered;
+        long count;
+        long oldCount;
+        long[] tailKeys;
+        MappedByteBuffer oldMap;
+        synchronized(this) {
+            covered = prefixCovered;
+            count = entryCount;
+            if (count == covered || (!force && count - covered < MERGE_THRESHOLD))
+                return;
+            oldMap = prefixMap;
+            oldCount = prefixCount;
+            tailKeys = new long[(int)(count - covered)];
+            for (int i=0; i<tailKeys.length; i++)
+                tailKeys[i] = indexMap.getLong(entryPosition(covered + i) + 16);
+        }
+        long startTime = System.nanoTime();
+        //
+        // Sort the new entries by key and entry number
+        //
+        Integer[] order = new Integer[tailKeys.length];
+        for (int i=0; i<order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> {
+            int cmp = Long.compareUnsigned(tailKeys[a], tailKeys[b]);
+            return (cmp != 0 ? cmp : Integer.compare(a, b));
+        });
+        //
+        // Merge the sorted entries with the current prefix index
+        //
+        long generation = prefixGeneration + 1;
+        Path path = directory.resolve(PREFIX_FILE + generation);
+        Path tempPath = directory.resolve(PREFIX_FILE + "tmp");
+        long newCount = oldCount + order.length;
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            OutputStream stream = Channels.newOutputStream(channel);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+            out.writeInt(PREFIX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(count);
+            out.writeLong(newCount);
+            out.writeLong(0);
+            long oldPos = 0;
+            int newPos = 0;
+            while (oldPos < oldCount || newPos < order.length) {
+                long oldKey = 0;
+                if (oldPos < oldCount)
+                    oldKey = oldMap.getLong(HEADER_SIZE + (int)oldPos*PAIR_SIZE);
+                if (newPos >= order.length ||
+                        (oldPos < oldCount && Long.compareUnsigned(oldKey, tailKeys[order[newPos]]) <= 0)) {
+                    out.writeLong(oldKey);
+                    out.writeLong(oldMap.getLong(HEADER_SIZE + (int)oldPos*PAIR_SIZE + 8));
+                    oldPos++;
+                } else {
+                    int i = order[newPos++];
+                    out.writeLong(tailKeys[i]);
+                    out.writeLong(covered + i);
+                }
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tempPath, path);
+        MappedByteBuffer newMap;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            newMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        synchronized(this) {
+            prefixMap = newMap;
+            prefixGeneration = generation;
+            prefixCovered = count;
+            prefixCount = newCount;
+        }
+        deleteOldPrefixFiles();
+        log.info(String.format("Scan history prefix index merged: %d entries in %.1f ms",
+                               newCount, (double)(System.nanoTime() - startTime) / 1.0e6));
+    }
+
+    /**
+     * Open the index, creating a new index if the index file is empty or invalid
+     *
+     * @throws      IOException     Unable to map the index
+     */
+    private void openIndex() throws IOException {
+        long size = indexChannel.size();
+        mapIndex(Math.max(size, HEADER_SIZE + (long)INITIAL_CAPACITY*ENTRY_SIZE));
+        if (size >= HEADER_SIZE && indexMap.getInt(0) == INDEX_MAGIC && indexMap.getInt(4) == VERSION) {
+            entryCount = indexMap.getLong(8);
+            logLength = indexMap.getLong(16);
+            if (entryCount < 0 || HEADER_SIZE + entryCount*ENTRY_SIZE > size) {
+                log.warn("Scan history index is damaged and will be rebuilt");
+                entryCount = 0;
+                logLength = 0;
+            }
+        } else {
+            if (size != 0)
+                log.warn("Scan history index is not valid and will be rebuilt");
+            entryCount = 0;
+            logLength = 0;
+        }
+        lastTimestamp = (entryCount != 0 ? indexMap.getLong(entryPosition(entryCount-1)) : 0);
+        writeIndexHeader();
+    }
+
+    /**
+     * Add log records that are not in the index and remove a partial record at
+     * the end of the log.  The log is truncated only when there are no valid
+     * records after the first record that is not valid.  Otherwise the damaged
+     * bytes are skipped and indexing continues with the next valid record.
+     *
+     * @throws      IOException     Unable to read the log
+     */
+    private void recover() throws IOException {
+        long fileLength = logChannel.size();
+        if (logLength > fileLength) {
+            log.warn("Scan history index does not match the log and will be rebuilt");
+            entryCount = 0;
+            logLength = 0;
+            lastTimestamp = 0;
+        }
+        long offset = logLength;
+        long added = 0;
+        while (offset < fileLength) {
+            ByteBuffer payload = readPayload(offset, fileLength);
+            ScanRecord record = (payload != null ? readRecord(payload) : null);
+            if (record == null) {
+                long next = findRecord(offset + 1, fileLength);
+                if (next < 0)
+                    break;
+                log.warn(String.format("Skipping %d damaged bytes at offset %d in the scan history log",
+                                       next - offset, offset));
+                offset = next;
+                continue;
+            }
+            int length = payload.limit();
+            lastTimestamp = Math.max(lastTimestamp, record.getTimestamp());
+            addEntry(lastTimestamp, offset, textKey(record.getText().getBytes(StandardCharsets.UTF_8), 0x00));
+            offset += RECORD_HEADER_SIZE + length;
+            added++;
+        }
+        if (offset < fileLength) {
+            log.warn(String.format("Removing %d bytes from the end of the scan history log", fileLength - offset));
+            logChannel.truncate(offset);
+        }
+        if (added != 0)
+            log.info(String.format("Added %d scans to the scan history index", added));
+        logLength = offset;
+        indexMap.force();
+        writeIndexHeader();
+        indexMap.force();
+    }
+
+    /**
+     * Decode a verified record payload
+     *
+     * @param       payload         Record payload
+     * @return                      Scan record or null if the payload is not valid
+     */
+    private static ScanRecord readRecord(ByteBuffer payload) {
+        try {
+            ScanRecord record = decodeRecord(payload);
+            payload.rewind();
+            return record;
+        } catch (IOException | RuntimeException exc) {
+            return null;
+        }
+    }
+
+    /**
+     * Find the next valid record in the log.  The log is read in blocks and each
+     * offset with a possible record length is checked by reading and verifying
+     * the record.
+     *
+     * @param       offset          First log offset to check
+     * @param       limit           End of the log data
+     * @return                      Offset of the next valid record or -1 if there are none
+     * @throws      IOException     Unable to read the log
+     */
+    private long findRecord(long offset, long limit) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        long position = offset;
+        while (position + RECORD_HEADER_SIZE <= limit) {
+            buffer.clear();
+            buffer.limit((int)Math.min(buffer.capacity(), limit - position));
+            readFully(buffer, position);
+            int count = buffer.limit() - RECORD_HEADER_SIZE + 1;
+            for (int i=0; i<count; i++) {
+                int length = buffer.getInt(i);
+                if (length < MIN_PAYLOAD_SIZE || length > MAX_PAYLOAD_SIZE ||
+                                position + i + RECORD_HEADER_SIZE + length > limit)
+                    continue;
+                ByteBuffer payload = readPayload(position + i, limit);
+                if (payload != null && readRecord(payload) != null)
+                    return position + i;
+            }
+            position += count;
+        }
+        return -1;
+    }
+
+    /**
+     * Open the newest valid prefix index and delete the others
+     *
+     * @throws      IOException     Unable to read the data directory
+     */
+    private void openPrefixIndex() throws IOException {
+        prefixMap = null;
+        prefixGeneration = 0;
+        prefixCovered = 0;
+        prefixCount = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX_FILE + "*")) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                long generation;
+                try {
+                    generation = Long.parseLong(name.substring(PREFIX_FILE.length()));
+                } catch (NumberFormatException exc) {
+                    continue;
+                }
+                if (generation <= prefixGeneration)
+                    continue;
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    if (size < HEADER_SIZE)
+                        continue;
+                    MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    long covered = map.getLong(8);
+                    long count = map.getLong(16);
+                    if (map.getInt(0) != PREFIX_MAGIC || map.getInt(4) != VERSION || covered > entryCount ||
+                                        count != covered || size != HEADER_SIZE + count*PAIR_SIZE)
+                        continue;
+                    prefixMap = map;
+                    prefixGeneration = generation;
+                    prefixCovered = covered;
+                    prefixCount = count;
+                }
+            }
+        }
+        deleteOldPrefixFiles();
+    }
+
+    /**
+     * Delete prefix index files other than the current generation.  A file that
+     * is still mapped may not be deleted on some systems, so it will be deleted
+     * the next time the history is opened.
+     */
+    private void deleteOldPrefixFiles() {
+        String current = PREFIX_FILE + prefixGeneration;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX_FILE + "*")) {
+            for (Path path : stream) {
+                if (!path.getFileName().toString().equals(current)) {
+                    try {
+                        Files.deleteIfExists(path);
+                    } catch (IOException exc) {
+                        // File is still in use
+                    }
+                }
+            }
+        } catch (IOException exc) {
+            log.error("Unable to delete old scan history prefix index", exc);
+        }
+    }
+
+    /**
+     * Map the index file
+     *
+     * @param       size            Mapped size
+     * @throws      IOException     Unable to map the index
+     */
+    private void mapIndex(long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Scan history index is full");
+        indexMap = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Add an index entry, extending the index if necessary.  The index header is
+     * not updated.
+     *
+     * @param       timestamp       Scan time
+     * @param       offset          Log offset
+     * @param       key             Text key
+     * @throws      IOException     Unable to extend the index
+     */
+    private void addEntry(long timestamp, long offset, long key) throws IOException {
+        int position = entryPosition(entryCount);
+        if (position + ENTRY_SIZE > indexMap.capacity())
+            mapIndex(Math.max((long)indexMap.capacity()*2, (long)position + ENTRY_SIZE));
+        indexMap.putLong(position, timestamp);
+        indexMap.putLong(position + 8, offset);
+        indexMap.putLong(position + 16, key);
+        entryCount++;
+        lastTimestamp = timestamp;
+    }
+
+    /**
+     * Write the index header
+     */
+    private void writeIndexHeader() {
+        indexMap.putInt(0, INDEX_MAGIC);
+        indexMap.putInt(4, VERSION);
+        indexMap.putLong(8, entryCount);
+        indexMap.putLong(16, logLength);
+    }
+
+    /**
+     * Return the index position of an entry
+     *
+     * @param       index           Entry number
+     * @return                      Byte position
+     */
+    private static int entryPosition(long index) {
+        return (int)(HEADER_SIZE + index*ENTRY_SIZE);
+    }
+
+    /**
+     * Return the first entry with a timestamp greater than or equal to a time
+     *
+     * @param       time            Time
+     * @return                      Entry number
+     */
+    private long timeLowerBound(long time) {
+        long low = 0;
+        long high = entryCount;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (indexMap.getLong(entryPosition(mid)) < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Return the first prefix index entry with a key greater than or equal to a key
+     *
+     * @param       map             Prefix index
+     * @param       count           Number of prefix index entries
+     * @param       key             Text key
+     * @return                      Prefix index entry number
+     */
+    private static long prefixLowerBound(MappedByteBuffer map, long count, long key) {
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (Long.compareUnsigned(map.getLong(HEADER_SIZE + (int)mid*PAIR_SIZE), key) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Return the text key for the first 8 bytes of the text
+     *
+     * @param       bytes           UTF-8 text
+     * @param       fill            Value used for the missing bytes if the text is shorter
+     * @return                      Text key
+     */
+    private static long textKey(byte[] bytes, int fill) {
+        long key = 0;
+        for (int i=0; i<8; i++)
+            key = (key << 8) | (i < bytes.length ? bytes[i] & 0xff : fill);
+        return key;
+    }
+
+    /**
+     * Encode a log record
+     *
+     * @param       record          Scan record
+     * @param       timestamp       Scan time
+     * @return                      Log record ready to be written
+     */
+    private static ByteBuffer encodeRecord(ScanRecord record, long timestamp) {
+        byte[] format = record.getFormat().getBytes(StandardCharsets.UTF_8);
+        byte[] camera = record.getCamera().getBytes(StandardCharsets.UTF_8);
+        byte[] text = record.getText().getBytes(StandardCharsets.UTF_8);
+        int length = MIN_PAYLOAD_SIZE + format.length + camera.length + text.length;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        buffer.putInt(length);
+        buffer.putInt(0);
+        buffer.putLong(timestamp);
+        buffer.putInt(record.getDecodeTime());
+        buffer.putInt(format.length).put(format);
+        buffer.putInt(camera.length).put(camera);
+        buffer.putInt(text.length).put(text);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), RECORD_HEADER_SIZE, length);
+        buffer.putInt(4, (int)crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decode a log record
+     *
+     * @param       payload         Record payload
+     * @return                      Scan record
+     * @throws      IOException     Record is not valid
+     */
+    private static ScanRecord decodeRecord(ByteBuffer payload) throws IOException {
+        long timestamp = payload.getLong();
+        int decodeTime = payload.getInt();
+        String format = getString(payload);
+        String camera = getString(payload);
+        String text = getString(payload);
+        return new ScanRecord(timestamp, text, format, camera, decodeTime);
+    }
+
+    /**
+     * Read a string from a log record
+     *
+     * @param       payload         Record payload
+     * @return                      String
+     * @throws      IOException     Record is not valid
+     */
+    private static String getString(ByteBuffer payload) throws IOException {
+        int length = payload.getInt();
+        if (length < 0 || length > payload.remaining())
+            throw new IOException("Scan history record is not valid");
+        String value = new String(payload.array(), payload.position(), length, StandardCharsets.UTF_8);
+        payload.position(payload.position() + length);
+        return value;
+    }
+
+    /**
+     * Read and verify the payload of a log record
+     *
+     * @param       offset          Log offset
+     * @param       limit           End of the valid log data
+     * @return                      Payload or null if the record is not valid
+     * @throws      IOException     Unable to read the log
+     */
+    private ByteBuffer readPayload(long offset, long limit) throws IOException {
+        if (offset + RECORD_HEADER_SIZE > limit)
+            return null;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(header, offset);
+        int length = header.getInt(0);
+        int crc = header.getInt(4);
+        if (length < MIN_PAYLOAD_SIZE || length > MAX_PAYLOAD_SIZE || offset + RECORD_HEADER_SIZE + length > limit)
+            return null;
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(payload, offset + RECORD_HEADER_SIZE);
+        CRC32 check = new CRC32();
+        check.update(payload.array(), 0, length);
+        if ((int)check.getValue() != crc)
+            return null;
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Fill a buffer from the log
+     *
+     * @param       buffer          Buffer
+     * @param       position        Log position
+     * @throws      IOException     Unable to read the log
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = logChannel.read(buffer, position);
+            if (count < 0)
+                throw new IOException("Unexpected end of scan history log");
+            position += count;
+        }
+    }
+}
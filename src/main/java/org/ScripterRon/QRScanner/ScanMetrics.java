@@ -0,0 +1,370 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * ScanMetrics counts the frames flowing through the decode pipeline and records the
+ * decode time and the capture-to-decode latency.  The metrics are registered as a
+ * platform MXBean the first time they are used and are kept for the life of the
+ * application, so they accumulate across scans until they are reset.
+ *
+ * The counters are LongAdders and the histograms use atomic buckets, so updating
+ * the metrics does not block the capture thread or the decode workers.
+ */
+public class ScanMetrics implements ScanMetricsMXBean {
+
+    /** MXBean object name */
+    public static final String OBJECT_NAME = "org.ScripterRon.QRScanner:type=ScanMetrics";
+
+    /** Frame rate measurement interval (nanoseconds) */
+    private static final long RATE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /** Application scan metrics */
+    private static ScanMetrics instance;
+
+    /** Frames received */
+    private final LongAdder framesReceived = new LongAdder();
+
+    /** Frames dropped */
+    private final LongAdder framesDropped = new LongAdder();
+
+    /** Frames skipped */
+    private final LongAdder framesSkipped = new LongAdder();
+
+    /** Frames with a QR code */
+    private final LongAdder hits = new LongAdder();
+
+    /** Frames without a QR code */
+    private final LongAdder misses = new LongAdder();
+
+    /** Frames with a processing error */
+    private final LongAdder errors = new LongAdder();
+
+    /** Decode time histogram */
+    private final LatencyHistogram decodeTime = new LatencyHistogram();
+
+    /** Capture-to-decode latency histogram */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /** Start of the current frame rate interval */
+    private volatile long rateStart = System.nanoTime();
+
+    /** Frames received at the start of the current frame rate interval */
+    private volatile long rateCount;
+
+    /** Frame rate for the last interval */
+    private volatile double frameRate;
+
+    /**
+     * Return the application scan metrics, registering the MXBean if this is the
+     * first call.  The metrics are still collected if the MXBean can not be registered.
+     *
+     * @return                      Scan metrics
+     */
+    public static synchronized ScanMetrics getInstance() {
+        if (instance == null) {
+            instance = new ScanMetrics();
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.registerMBean(instance, new ObjectName(OBJECT_NAME));
+            } catch (JMException | SecurityException exc) {
+                log.error("Unable to register scan metrics MXBean", exc);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Create the scan metrics
+     */
+    private ScanMetrics() {
+    }
+
+    /**
+     * A frame has been received from the frame source
+     */
+    public void frameReceived() {
+        framesReceived.increment();
+        long now = System.nanoTime();
+        long start = rateStart;
+        if (now - start >= RATE_INTERVAL) {
+            long count = framesReceived.sum();
+            frameRate = (double)(count - rateCount) * 1.0e9 / (double)(now - start);
+            rateCount = count;
+            rateStart = now;
+        }
+    }
+
+    /**
+     * A frame has been dropped because no frame was available or the frame was
+     * replaced by a newer frame before it was decoded
+     */
+    public void frameDropped() {
+        framesDropped.increment();
+    }
+
+    /**
+     * A frame has been skipped by the frame gate
+     */
+    public void frameSkipped() {
+        framesSkipped.increment();
+    }
+
+    /**
+     * A frame has been decoded
+     *
+     * @param       captureTime     Frame capture time (System.nanoTime)
+     * @param       startTime       Decode start time (System.nanoTime)
+     * @param       endTime         Decode end time (System.nanoTime)
+     * @param       hit             TRUE if a QR code was found
+     */
+    public void frameDecoded(long captureTime, long startTime, long endTime, boolean hit) {
+        if (hit)
+            hits.increment();
+        else
+            misses.increment();
+        decodeTime.record(endTime - startTime);
+        latency.record(endTime - captureTime);
+    }
+
+    /**
+     * A frame could not be processed
+     */
+    public void frameFailed() {
+        errors.increment();
+    }
+
+    /**
+     * Return the number of frames received from the frame source
+     *
+     * @return                      Frame count
+     */
+    @Override
+    public long getFramesReceived() {
+        return framesReceived.sum();
+    }
+
+    /**
+     * Return the number of frames dropped because the decode workers were busy
+     *
+     * @return                      Frame count
+     */
+    @Override
+    public long getFramesDropped() {
+        return framesDropped.sum();
+    }
+
+    /**
+     * Return the number of frames skipped by the frame gate
+     *
+     * @return                      Frame count
+     */
+    @Override
+    public long getFramesSkipped() {
+        return framesSkipped.sum();
+    }
+
+    /**
+     * Return the number of frames decoded (hits plus misses)
+     *
+     * @return                      Frame count
+     */
+    @Override
+    public long getFramesDecoded() {
+        return hits.sum() + misses.sum();
+    }
+
+    /**
+     * Return the number of decoded frames containing a QR code
+     *
+     * @return                      Frame count
+     */
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Return the number of decoded frames without a QR code
+     *
+     * @return                      Frame count
+     */
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Return the number of frames that could not be processed
+     *
+     * @return                      Frame count
+     */
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * Return the frame rate for the last complete interval.  The rate is 0 if
+     * no frames have been received recently.
+     *
+     * @return                      Frames per second
+     */
+    @Override
+    public double getFrameRate() {
+        return (System.nanoTime() - rateStart < 2*RATE_INTERVAL ? frameRate : 0.0);
+    }
+
+    /**
+     * Return the mean decode time
+     *
+     * @return                      Decode time (milliseconds)
+     */
+    @Override
+    public double getDecodeTimeMean() {
+        return decodeTime.getMean();
+    }
+
+    /**
+     * Return the median decode time
+     *
+     * @return                      Bucket upper bound (milliseconds)
+     */
+    @Override
+    public double getDecodeTimeP50() {
+        return decodeTime.getPercentile(50.0);
+    }
+
+    /**
+     * Return the 99th percentile decode time
+     *
+     * @return                      Bucket upper bound (milliseconds)
+     */
+    @Override
+    public double getDecodeTimeP99() {
+        return decodeTime.getPercentile(99.0);
+    }
+
+    /**
+     * Return the maximum decode time
+     *
+     * @return                      Decode time (milliseconds)
+     */
+    @Override
+    public double getDecodeTimeMax() {
+        return decodeTime.getMax();
+    }
+
+    /**
+     * Return the decode time histogram (power-of-two microsecond buckets)
+     *
+     * @return                      Bucket counts
+     */
+    @Override
+    public long[] getDecodeTimeHistogram() {
+        return decodeTime.getBuckets();
+    }
+
+    /**
+     * Return the mean time from frame capture to the end of the decode
+     *
+     * @return                      Latency (milliseconds)
+     */
+    @Override
+    public double getLatencyMean() {
+        return latency.getMean();
+    }
+
+    /**
+     * Return the median time from frame capture to the end of the decode
+     *
+     * @return                      Bucket upper bound (milliseconds)
+     */
+    @Override
+    public double getLatencyP50() {
+        return latency.getPercentile(50.0);
+    }
+
+    /**
+     * Return the 99th percentile time from frame capture to the end of the decode
+     *
+     * @return                      Bucket upper bound (milliseconds)
+     */
+    @Override
+    public double getLatencyP99() {
+        return latency.getPercentile(99.0);
+    }
+
+    /**
+     * Return the maximum time from frame capture to the end of the decode
+     *
+     * @return                      Latency (milliseconds)
+     */
+    @Override
+    public double getLatencyMax() {
+        return latency.getMax();
+    }
+
+    /**
+     * Return the capture-to-decode latency histogram (power-of-two microsecond buckets)
+     *
+     * @return                      Bucket counts
+     */
+    @Override
+    public long[] getLatencyHistogram() {
+        return latency.getBuckets();
+    }
+
+    /**
+     * Reset the metrics
+     */
+    @Override
+    public void reset() {
+        framesReceived.reset();
+        framesDropped.reset();
+        framesSkipped.reset();
+        hits.reset();
+        misses.reset();
+        errors.reset();
+        decodeTime.reset();
+        latency.reset();
+        rateCount = 0;
+        rateStart = System.nanoTime();
+        frameRate = 0.0;
+    }
+
+    /**
+     * Return the metrics summary
+     *
+     * @return                      Summary string
+     */
+    @Override
+    public String toString() {
+        return String.format("%d frames received, %d dropped, %d skipped, %d hits, %d misses, %d errors; "
+                             + "decode time %s; latency %s",
+                             getFramesReceived(), getFramesDropped(), getFramesSkipped(),
+                             getHits(), getMisses(), getErrors(), decodeTime, latency);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+/**
+ * ScanMetricsMXBean is the management interface for the scan metrics.  It is
+ * registered as 'org.ScripterRon.QRScanner:type=ScanMetrics' and can be viewed
+ * using JConsole or VisualVM.
+ *
+ * Times are in milliseconds and percentiles are accurate to within a factor of two.
+ */
+public interface ScanMetricsMXBean {
+
+    /**
+     * Return the number of frames received from the frame source
+     *
+     * @return                      Frame count
+     */
+    long getFramesReceived();
+
+    /**
+     * Return the number of frames dropped because the decode workers were busy
+     *
+     * @return                      Frame count
+     */
+    long getFramesDropped();
+
+    /**
+     * Return the number of frames skipped by the frame gate
+     *
+     * @return                      Frame count
+     */
+    long getFramesSkipped();
+
+    /**
+     * Return the number of frames decoded
+     *
+     * @return                      Frame count
+     */
+    long getFramesDecoded();
+
+    /**
+     * Return the number of decoded frames containing a QR code
+     *
+     * @return                      Frame count
+     */
+    long getHits();
+
+    /**
+     * Return the number of decoded frames without a QR code
+     *
+     * @return                      Frame count
+     */
+    long getMisses();
+
+    /**
+     * Return the number of frames that could not be processed
+     *
+     * @return                      Frame count
+     */
+    long getErrors();
+
+    /**
+     * Return the frame rate delivered by the frame source
+     *
+     * @return                      Frames per second
+     */
+    double getFrameRate();
+
+    /**
+     * Return the mean decode time
+     *
+     * @return                      Decode time
+     */
+    double getDecodeTimeMean();
+
+    /**
+     * Return the median decode time
+     *
+     * @return                      Decode time
+     */
+    double getDecodeTimeP50();
+
+    /**
+     * Return the 99th percentile decode time
+     *
+     * @return                      Decode time
+     */
+    double getDecodeTimeP99();
+
+    /**
+     * Return the maximum decode time
+     *
+     * @return                      Decode time
+     */
+    double getDecodeTimeMax();
+
+    /**
+     * Return the decode time histogram (power-of-two microsecond buckets)
+     *
+     * @return                      Bucket counts
+     */
+    long[] getDecodeTimeHistogram();
+
+    /**
+     * Return the mean time from frame capture to the end of the decode
+     *
+     * @return                      Latency
+     */
+    double getLatencyMean();
+
+    /**
+     * Return the median time from frame capture to the end of the decode
+     *
+     * @return                      Latency
+     */
+    double getLatencyP50();
+
+    /**
+     * Return the 99th percentile time from frame capture to the end of the decode
+     *
+     * @return                      Latency
+     */
+    double getLatencyP99();
+
+    /**
+     * Return the maximum time from frame capture to the end of the decode
+     *
+     * @return                      Latency
+     */
+    double getLatencyMax();
+
+    /**
+     * Return the capture-to-decode latency histogram (power-of-two microsecond buckets)
+     *
+     * @return                      Bucket counts
+     */
+    long[] getLatencyHistogram();
+
+    /**
+     * Reset the metrics
+     */
+    void reset();
+}
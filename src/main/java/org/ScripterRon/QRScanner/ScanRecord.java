@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+/**
+ * ScanRecord describes a QR code that was scanned
+ */
+public class ScanRecord {
+
+    /** Scan time (milliseconds since the epoch) */
+    private final long timestamp;
+
+    /** QR text */
+    private final String text;
+
+    /** Barcode format */
+    private final String format;
+
+    /** Camera or frame source name */
+    private final String camera;
+
+    /** Decode time (microseconds) */
+    private final int decodeTime;
+
+    /**
+     * Create a scan record
+     *
+     * @param       timestamp       Scan time (milliseconds since the epoch)
+     * @param       text            QR text
+     * @param       format          Barcode format
+     * @param       camera          Camera or frame source name
+     * @param       decodeTime      Decode time (microseconds)
+     */
+    public ScanRecord(long timestamp, String text, String format, String camera, int decodeTime) {
+        this.timestamp = timestamp;
+        this.text = text;
+        this.format = format;
+        this.camera = camera;
+        this.decodeTime = decodeTime;
+    }
+
+    /**
+     * Return the scan time
+     *
+     * @return                      Milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Return the QR text
+     *
+     * @return                      QR text
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Return the barcode format
+     *
+     * @return                      Barcode format
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Return the camera name
+     *
+     * @return                      Camera or frame source name
+     */
+    public String getCamera() {
+        return camera;
+    }
+
+    /**
+     * Return the decode time
+     *
+     * @return                      Decode time (microseconds)
+     */
+    public int getDecodeTime() {
+        return decodeTime;
+    }
+}
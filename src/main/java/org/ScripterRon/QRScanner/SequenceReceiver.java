@@ -0,0 +1,805 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import com.google.zxing.Result;
+import com.google.zxing.ResultMetadataType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * SequenceReceiver reassembles a payload that is displayed as a cycling sequence of
+ * QR codes.  The parts can arrive in any order and duplicates are ignored.  When a
+ * payload is complete it is written to the receive directory ('receive.directory',
+ * default 'received' in the application data directory).
+ *
+ * Two sequence formats are recognized:
+ * <ul>
+ * <li>QR structured append - the part number, part count and parity are obtained from
+ * the ZXing result metadata.  The payload is the concatenation of the parts and the
+ * exclusive-or of the payload bytes must match the parity.  Parts are grouped by the
+ * parity and part count, so a part that is different from an earlier part with the
+ * same number belongs to another payload and the transfer is started again.</li>
+ * <li>Fountain chunks - each QR code contains the text
+ * 'QRF1/id/length/blockSize/seed/data' where 'id' is the CRC-32 of the payload as
+ * 8 hexadecimal digits, 'length' is the payload length, 'blockSize' is the number of
+ * bytes in a block and 'data' is the chunk data encoded using base64.  The payload
+ * is divided into K blocks (the last block is padded with zeroes) and a recovered
+ * payload is discarded if its CRC-32 does not match the identifier.  A chunk with
+ * a seed less than K contains block 'seed'.  Otherwise the chunk is the exclusive-or
+ * of a set of blocks chosen using the xorshift32 generator (x ^= x &lt;&lt; 13,
+ * x ^= x &gt;&gt;&gt; 17, x ^= x &lt;&lt; 5) starting with x = seed: the degree is
+ * min(K, 2^24 / ((next &amp; 0xFFFFFF) + 1)) and each block index is next % K
+ * (unsigned), skipping an index that has already been chosen.  The sender can
+ * send the K source blocks followed by as many coded chunks as needed, and the
+ * receiver needs only slightly more than K chunks no matter which ones are missed.</li>
+ * </ul>
+ *
+ * The effective transfer rate is the payload length divided by the time from the
+ * first part to the last part.
+ */
+public class SequenceReceiver {
+
+    /** Fountain chunk prefix */
+    private static final String FOUNTAIN_PREFIX = "QRF1/";
+
+    /** Maximum payload length */
+    private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    /** Maximum fountain block size (a version 40 QR code holds 2953 bytes) */
+    private static final int MAX_BLOCK_SIZE = 4096;
+
+    /** Maximum number of fountain blocks */
+    private static final int MAX_BLOCKS = 65536;
+
+    /** Maximum number of active transfers */
+    private static final int MAX_TRANSFERS = 4;
+
+    /** Maximum number of completed transfer identifiers */
+    private static final int MAX_COMPLETED = 256;
+
+    /** An active transfer expires when no new part is received for this time (nanoseconds) */
+    private static final long TRANSFER_TIMEOUT = 5 * 60 * 1000000000L;
+
+    /** A completed transfer identifier expires after this time (milliseconds) */
+    private static final long COMPLETED_TIMEOUT = 30 * 60 * 1000L;
+
+    /**
+     * Transfer progress listener
+     */
+    public interface ProgressListener {
+
+        /**
+         * Transfer progress has been made.  This method is called on a decode
+         * worker thread.
+         *
+         * @param       transfer        Transfer
+         */
+        void transferProgress(Transfer transfer);
+
+        /**
+         * A transfer has been completed and written to disk.  This method is called
+         * on a decode worker thread.
+         *
+         * @param       transfer        Transfer
+         * @param       path            Payload file
+         */
+        void transferCompleted(Transfer transfer, Path path);
+    }
+
+    /** Receive directory */
+    private final Path directory;
+
+    /** Progress listener */
+    private final ProgressListener listener;
+
+    /** Active transfers */
+    private final Map<String, Transfer> transfers = new HashMap<>();
+
+    /** Completed transfer identifiers and completion times (in completion order) */
+    private final Map<String, Long> completed = new LinkedHashMap<>();
+
+    /**
+     * Create the sequence receiver
+     *
+     * @param       directory       Receive directory
+     * @param       listener        Progress listener
+     */
+    public SequenceReceiver(Path directory, ProgressListener listener) {
+        this.directory = directory;
+        this.listener = listener;
+    }
+
+    /**
+     * Process a decode result.  A QR code that is not part of a sequence can start a
+     * new transfer, so the number of active transfers is limited and transfers that
+     * stop receiving new parts are discarded.
+     *
+     * @param       result          Decode result
+     * @return                      TRUE if the result is part of a sequence
+     */
+    public boolean resultDecoded(Result result) {
+        Transfer transfer;
+        boolean progress;
+        boolean complete;
+        synchronized(this) {
+            expireTransfers();
+            Map<ResultMetadataType, Object> metadata = result.getResultMetadata();
+            String text = result.getText();
+            if (metadata != null && metadata.get(ResultMetadataType.STRUCTURED_APPEND_SEQUENCE) != null) {
+                int sequence = (Integer)metadata.get(ResultMetadataType.STRUCTURED_APPEND_SEQUENCE);
+                Object parity = metadata.get(ResultMetadataType.STRUCTURED_APPEND_PARITY);
+                int count = (sequence & 0x0f) + 1;
+                int index = sequence >> 4;
+                byte[] data = getBytes(result);
+                String id = String.format("SA-%02x-%d", parity != null ? (Integer)parity : 0, count);
+                if (completed.containsKey(id))
+                    return true;
+                transfer = transfers.get(id);
+                if (transfer != null && ((StructuredTransfer)transfer).conflicts(index, data)) {
+                    transfers.remove(id);
+                    log.info("Transfer {} restarted, part {} does not match the earlier part", id, index+1);
+                    transfer = null;
+                }
+                if (transfer == null) {
+                    transfer = new StructuredTransfer(id, count, parity != null ? (Integer)parity : -1);
+                    addTransfer(transfer);
+                }
+                progress = ((StructuredTransfer)transfer).addPart(index, data);
+            } else if (text.startsWith(FOUNTAIN_PREFIX)) {
+                String[] fields = text.split("/", 6);
+                if (fields.length != 6)
+                    return false;
+                String id = fields[1];
+                int length, blockSize;
+                long seed;
+                byte[] data;
+                try {
+                    length = Integer.parseInt(fields[2]);
+                    blockSize = Integer.parseInt(fields[3]);
+                    seed = Long.parseLong(fields[4]);
+                    data = Base64.getDecoder().decode(fields[5]);
+                } catch (IllegalArgumentException exc) {
+                    log.warn("Invalid fountain chunk: {}", text);
+                    return false;
+                }
+                if (length <= 0 || length > MAX_LENGTH || blockSize <= 0 || blockSize > MAX_BLOCK_SIZE ||
+                                (length + blockSize - 1) / blockSize > MAX_BLOCKS ||
+                                seed < 0 || seed > 0xffffffffL || data.length != blockSize) {
+                    log.warn("Invalid fountain chunk: {}", text);
+                    return false;
+                }
+                String key = id + "/" + length + "/" + blockSize;
+                if (completed.containsKey(key))
+                    return true;
+                transfer = transfers.get(key);
+                if (transfer == null) {
+                    transfer = new FountainTransfer(key, id, length, blockSize);
+                    addTransfer(transfer);
+                }
+                progress = ((FountainTransfer)transfer).addChunk((int)seed, data);
+            } else {
+                return false;
+            }
+            //
+            // Only the thread that completes the transfer writes the payload
+            //
+            complete = (transfer.isComplete() && transfers.remove(transfer.getId()) != null);
+        }
+        if (complete) {
+            //
+            // A payload that fails its check is discarded and a later part starts
+            // the transfer again
+            //
+            byte[] payload = transfer.getPayload();
+            if (payload != null) {
+                synchronized(this) {
+                    completed.put(transfer.getId(), System.currentTimeMillis());
+                }
+                Path path = writePayload(transfer, payload);
+                if (path != null)
+                    listener.transferCompleted(transfer, path);
+            }
+        } else if (progress) {
+            listener.transferProgress(transfer);
+        }
+        return true;
+    }
+
+    /**
+     * Add a new transfer.  The transfer that has been idle the longest is discarded
+     * if there are too many active transfers.
+     *
+     * @param       transfer        New transfer
+     */
+    private void addTransfer(Transfer transfer) {
+        if (transfers.size() >= MAX_TRANSFERS) {
+            Transfer oldest = null;
+            for (Transfer t : transfers.values()) {
+                if (oldest == null || t.getLastTime() - oldest.getLastTime() < 0)
+                    oldest = t;
+            }
+            transfers.remove(oldest.getId());
+            log.info(String.format("Discarded transfer %s, too many active transfers", oldest.getId()));
+        }
+        transfers.put(transfer.getId(), transfer);
+    }
+
+    /**
+     * Discard active transfers that have not received a new part within the transfer
+     * timeout and completed transfer identifiers that are older than the completed
+     * timeout (or the oldest identifiers if there are too many)
+     */
+    private void expireTransfers() {
+        long now = System.nanoTime();
+        Iterator<Transfer> it = transfers.values().iterator();
+        while (it.hasNext()) {
+            Transfer transfer = it.next();
+            if (now - transfer.getLastTime() > TRANSFER_TIMEOUT) {
+                it.remove();
+                log.info(String.format("Transfer %s expired, %.0f%% complete",
+                                       transfer.getId(), transfer.getProgress() * 100.0));
+            }
+        }
+        long expireTime = System.currentTimeMillis() - COMPLETED_TIMEOUT;
+        completed.values().removeIf(time -> time < expireTime);
+        Iterator<Long> cit = completed.values().iterator();
+        while (completed.size() > MAX_COMPLETED) {
+            cit.next();
+            cit.remove();
+        }
+    }
+
+    /**
+     * Return the bytes for a structured append part.  The byte segment is used for
+     * a byte-mode QR code so binary data is not changed by character decoding.  A
+     * code with more than one segment or with text that is longer than the byte
+     * segment contains other modes and the text is used instead.
+     *
+     * @param       result          Decode result
+     * @return                      Part bytes
+     */
+    @SuppressWarnings("unchecked")
+    private static byte[] getBytes(Result result) {
+        List<byte[]> segments = (List<byte[]>)result.getResultMetadata().get(ResultMetadataType.BYTE_SEGMENTS);
+        if (segments != null && segments.size() == 1 && result.getText().length() <= segments.get(0).length)
+            return segments.get(0);
+        return result.getText().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a completed payload to the receive directory
+     *
+     * @param       transfer        Completed transfer
+     * @param       payload         Payload
+     * @return                      Payload file or null if the payload could not be written
+     */
+    private Path writePayload(Transfer transfer, byte[] payload) {
+        try {
+            Files.createDirectories(directory);
+            String name = String.format("%s-%s.bin", new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()),
+                                        transfer.getName());
+            Path path = directory.resolve(name);
+            Path tempPath = directory.resolve(name + ".tmp");
+            Files.write(tempPath, payload);
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info(String.format("Received %d bytes in %.1f seconds (%.0f bytes/second, %d of %d codes used): %s",
+                                   payload.length, transfer.getElapsedTime(), transfer.getByteRate(),
+                                   transfer.getUsedCount(), transfer.getReceivedCount(), path));
+            return path;
+        } catch (IOException exc) {
+            log.error("Unable to write the received payload", exc);
+            return null;
+        }
+    }
+
+    /**
+     * A transfer reassembles one payload
+     */
+    public static abstract class Transfer {
+
+        /** Transfer identifier */
+        private final String id;
+
+        /** Time of the first part (System.nanoTime) */
+        private final long startTime = System.nanoTime();
+
+        /** Time of the last new part (System.nanoTime) */
+        private volatile long lastTime = startTime;
+
+        /** Number of QR codes received (including duplicates) */
+        private volatile int receivedCount;
+
+        /**
+         * Create the transfer
+         *
+         * @param       id              Transfer identifier
+         */
+        protected Transfer(String id) {
+            this.id = id;
+        }
+
+        /**
+         * Return the transfer identifier
+         *
+         * @return                      Identifier
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Return the name used for the payload file
+         *
+         * @return                      File name
+         */
+        public String getName() {
+            return id.replaceAll("[^A-Za-z0-9-]", "_");
+        }
+
+        /**
+         * Return the number of QR codes received
+         *
+         * @return                      Number of codes
+         */
+        public int getReceivedCount() {
+            return receivedCount;
+        }
+
+        /**
+         * Return the time of the last new part
+         *
+         * @return                      System.nanoTime() value
+         */
+        long getLastTime() {
+            return lastTime;
+        }
+
+        /**
+         * Return the elapsed time from the first part to the last new part
+         *
+         * @return                      Seconds
+         */
+        public double getElapsedTime() {
+            return (double)(lastTime - startTime) / 1.0e9;
+        }
+
+        /**
+         * Return the effective transfer rate
+         *
+         * @return                      Bytes per second
+         */
+        public double getByteRate() {
+            return (double)getRecoveredBytes() / Math.max(getElapsedTime(), 0.001);
+        }
+
+        /**
+         * Count a received QR code
+         *
+         * @param       isNew           TRUE if the code provided new data
+         */
+        protected void codeReceived(boolean isNew) {
+            receivedCount++;
+            if (isNew)
+                lastTime = System.nanoTime();
+        }
+
+        /**
+         * Return the fraction of the payload that has been recovered
+         *
+         * @return                      Fraction between 0 and 1
+         */
+        public abstract double getProgress();
+
+        /**
+         * Return the number of payload bytes recovered so far
+         *
+         * @return                      Number of bytes
+         */
+        public abstract long getRecoveredBytes();
+
+        /**
+         * Return the number of QR codes that provided new data
+         *
+         * @return                      Number of codes
+         */
+        public abstract int getUsedCount();
+
+        /**
+         * Check if the payload is complete
+         *
+         * @return                      TRUE if the payload is complete
+         */
+        public abstract boolean isComplete();
+
+        /**
+         * Return the payload
+         *
+         * @return                      Payload or null if the payload is not complete or
+         *                              does not match its check value
+         */
+        public abstract byte[] getPayload();
+    }
+
+    /**
+     * Structured append transfer
+     */
+    private static class StructuredTransfer extends Transfer {
+
+        /** Parts */
+        private final byte[][] parts;
+
+        /** Payload parity or -1 if the parity is not known */
+        private final int parity;
+
+        /** Number of parts received */
+        private int partCount;
+
+        /** Number of bytes received */
+        private long byteCount;
+
+        /**
+         * Create the transfer
+         *
+         * @param       id              Transfer identifier
+         * @param       count           Number of parts
+         * @param       parity          Payload parity or -1 if the parity is not known
+         */
+        StructuredTransfer(String id, int count, int parity) {
+            super(id);
+            this.parts = new byte[count][];
+            this.parity = parity;
+        }
+
+        /**
+         * Check if a part is different from the part already received with the same index
+         *
+         * @param       index           Part index
+         * @param       data            Part data
+         * @return                      TRUE if the part belongs to another payload
+         */
+        boolean conflicts(int index, byte[] data) {
+            return (index < parts.length && parts[index] != null && !Arrays.equals(parts[index], data));
+        }
+
+        /**
+         * Add a part
+         *
+         * @param       index           Part index
+         * @param       data            Part data
+         * @return                      TRUE if this is a new part
+         */
+        boolean addPart(int index, byte[] data) {
+            boolean isNew = (index < parts.length && parts[index] == null);
+            if (isNew) {
+                parts[index] = data;
+                partCount++;
+                byteCount += data.length;
+            }
+            codeReceived(isNew);
+            return isNew;
+        }
+
+        @Override
+        public double getProgress() {
+            return (double)partCount / (double)parts.length;
+        }
+
+        @Override
+        public long getRecoveredBytes() {
+            return byteCount;
+        }
+
+        @Override
+        public int getUsedCount() {
+            return partCount;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return (partCount == parts.length);
+        }
+
+        @Override
+        public byte[] getPayload() {
+            if (!isComplete())
+                return null;
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int)byteCount);
+            for (byte[] part : parts)
+                out.write(part, 0, part.length);
+            byte[] payload = out.toByteArray();
+            if (parity >= 0) {
+                int actual = 0;
+                for (byte b : payload)
+                    actual ^= b;
+                if ((actual & 0xff) != parity) {
+                    log.warn("Transfer {} discarded, payload parity {} does not match",
+                             getId(), String.format("%02x", actual & 0xff));
+                    return null;
+                }
+            }
+            return payload;
+        }
+    }
+
+    /**
+     * Fountain-coded transfer.  The chunks are decoded by peeling: a chunk is reduced
+     * by the blocks that are already known and a chunk with one unknown block
+     * recovers that block, which may reduce other waiting chunks.
+     */
+    private static class FountainTransfer extends Transfer {
+
+        /** Payload identifier (CRC-32) */
+        private final String crcId;
+
+        /** Payload length */
+        private final int length;
+
+        /** Block size */
+        private final int blockSize;
+
+        /** Number of blocks */
+        private final int blockCount;
+
+        /** Recovered blocks */
+        private final byte[][] blocks;
+
+        /** Number of recovered blocks */
+        private int recoveredCount;
+
+        /** Seeds that have been received */
+        private final Map<Integer, Boolean> seeds = new HashMap<>();
+
+        /** Chunks waiting for more blocks */
+        private final List<Chunk> waiting = new ArrayList<>();
+
+        /** Number of chunks used */
+        private int usedCount;
+
+        /**
+         * Create the transfer
+         *
+         * @param       key             Transfer key
+         * @param       crcId           Payload identifier
+         * @param       length          Payload length
+         * @param       blockSize       Block size
+         */
+        FountainTransfer(String key, String crcId, int length, int blockSize) {
+            super(key);
+            this.crcId = crcId;
+            this.length = length;
+            this.blockSize = blockSize;
+            this.blockCount = (length + blockSize - 1) / blockSize;
+            this.blocks = new byte[blockCount][];
+        }
+
+        @Override
+        public String getName() {
+            return crcId.replaceAll("[^A-Za-z0-9-]", "_");
+        }
+
+        /**
+         * Add a chunk
+         *
+         * @param       seed            Chunk seed
+         * @param       data            Chunk data
+         * @return                      TRUE if the chunk was new
+         */
+        boolean addChunk(int seed, byte[] data) {
+            if (seeds.put(seed, Boolean.TRUE) != null || isComplete()) {
+                codeReceived(false);
+                return false;
+            }
+            usedCount++;
+            Chunk chunk = new Chunk(getBlockIndexes(seed, blockCount), data.clone());
+            int before = recoveredCount;
+            if (reduce(chunk)) {
+                waiting.add(chunk);
+            }
+            codeReceived(recoveredCount != before);
+            return true;
+        }
+
+        /**
+         * Reduce a chunk by the known blocks.  A chunk with one unknown block
+         * recovers that block.
+         *
+         * @param       chunk           Chunk
+         * @return                      TRUE if the chunk has more than one unknown block
+         */
+        private boolean reduce(Chunk chunk) {
+            for (int i=0; i<chunk.count; ) {
+                byte[] block = blocks[chunk.indexes[i]];
+                if (block != null) {
+                    xor(chunk.data, block);
+                    chunk.indexes[i] = chunk.indexes[--chunk.count];
+                } else {
+                    i++;
+                }
+            }
+            if (chunk.count == 1) {
+                recoverBlock(chunk.indexes[0], chunk.data);
+                return false;
+            }
+            return (chunk.count > 1);
+        }
+
+        /**
+         * Recover a block and reduce the waiting chunks
+         *
+         * @param       index           Block index
+         * @param       data            Block data
+         */
+        private void recoverBlock(int index, byte[] data) {
+            List<Integer> pending = new ArrayList<>();
+            List<byte[]> pendingData = new ArrayList<>();
+            pending.add(index);
+            pendingData.add(data);
+            while (!pending.isEmpty()) {
+                int blockIndex = pending.remove(pending.size()-1);
+                byte[] blockData = pendingData.remove(pendingData.size()-1);
+                if (blocks[blockIndex] != null)
+                    continue;
+                blocks[blockIndex] = blockData;
+                recoveredCount++;
+                Iterator<Chunk> it = waiting.iterator();
+                while (it.hasNext()) {
+                    Chunk chunk = it.next();
+                    for (int i=0; i<chunk.count; i++) {
+                        if (chunk.indexes[i] == blockIndex) {
+                            xor(chunk.data, blockData);
+                            chunk.indexes[i] = chunk.indexes[--chunk.count];
+                            break;
+                        }
+                    }
+                    if (chunk.count <= 1) {
+                        it.remove();
+                        if (chunk.count == 1) {
+                            pending.add(chunk.indexes[0]);
+                            pendingData.add(chunk.data);
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public double getProgress() {
+            return (double)recoveredCount / (double)blockCount;
+        }
+
+        @Override
+        public long getRecoveredBytes() {
+            return Math.min((long)recoveredCount * blockSize, length);
+        }
+
+        @Override
+        public int getUsedCount() {
+            return usedCount;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return (recoveredCount == blockCount);
+        }
+
+        @Override
+        public byte[] getPayload() {
+            if (!isComplete())
+                return null;
+            byte[] payload = new byte[length];
+            for (int i=0; i<blockCount; i++)
+                System.arraycopy(blocks[i], 0, payload, i*blockSize, Math.min(blockSize, length - i*blockSize));
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            String actual = String.format("%08x", crc.getValue());
+            if (!actual.equalsIgnoreCase(crcId)) {
+                log.warn("Transfer {} discarded, payload CRC {} does not match", getId(), actual);
+                return null;
+            }
+            return payload;
+        }
+    }
+
+    /**
+     * Fountain chunk waiting for more blocks
+     */
+    private static class Chunk {
+
+        /** Unknown block indexes */
+        private final int[] indexes;
+
+        /** Number of unknown blocks */
+        private int count;
+
+        /** Chunk data reduced by the known blocks */
+        private final byte[] data;
+
+        /**
+         * Create the chunk
+         *
+         * @param       indexes         Block indexes
+         * @param       data            Chunk data
+         */
+        Chunk(int[] indexes, byte[] data) {
+            this.indexes = indexes;
+            this.count = indexes.length;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Return the block indexes for a fountain chunk
+     *
+     * @param       seed            Chunk seed
+     * @param       blockCount      Number of blocks
+     * @return                      Block indexes
+     */
+    static int[] getBlockIndexes(int seed, int blockCount) {
+        if (Integer.compareUnsigned(seed, blockCount) < 0)
+            return new int[] {seed};
+        int x = seed;
+        x ^= x << 13; x ^= x >>> 17; x ^= x << 5;
+        int degree = Math.min(blockCount, (1 << 24) / ((x & 0xffffff) + 1));
+        int[] indexes = new int[degree];
+        BitSet chosen = (degree > 16 ? new BitSet(blockCount) : null);
+        int count = 0;
+        while (count < degree) {
+            x ^= x << 13; x ^= x >>> 17; x ^= x << 5;
+            int index = Integer.remainderUnsigned(x, blockCount);
+            boolean duplicate = false;
+            if (chosen != null) {
+                duplicate = chosen.get(index);
+                chosen.set(index);
+            } else {
+                for (int i=0; i<count && !duplicate; i++)
+                    duplicate = (indexes[i] == index);
+            }
+            if (!duplicate)
+                indexes[count++] = index;
+        }
+        return indexes;
+    }
+
+    /**
+     * Exclusive-or a block into a chunk
+     *
+     * @param       target          Target data
+     * @param       source          Source data
+     */
+    private static void xor(byte[] target, byte[] source) {
+        for (int i=0; i<target.length; i++)
+            target[i] ^= source[i];
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * SyntheticFrameSource renders camera-like images containing a QR code.  The code
+ * is drawn at a random position, size and rotation and the image is then blurred
+ * and has noise added.  The random number generator is seeded so the same sequence
+ * of images is produced each time the source is created with the same settings.
+ */
+public class SyntheticFrameSource extends TimedFrameSource {
+
+    /** QR code modules (1 pixel per module, including the quiet zone) */
+    private final BufferedImage codeImage;
+
+    /** Image size */
+    private final Dimension viewSize;
+
+    /** Random number generator */
+    private final Random random;
+
+    /** Number of precomputed noise samples */
+    private static final int NOISE_SAMPLES = 1 << 16;
+
+    /** Precomputed gaussian noise samples (standard deviation 1) */
+    private final float[] noiseSamples = new float[NOISE_SAMPLES];
+
+    /** Noise standard deviation (luminance levels) */
+    private double noise = 4.0;
+
+    /** Blur radius (pixels) */
+    private int blur = 1;
+
+    /** Maximum rotation (degrees) */
+    private double rotation = 10.0;
+
+    /** Probability that an image contains the QR code */
+    private double presence = 1.0;
+
+    /**
+     * Create the synthetic frame source
+     *
+     * @param       text            QR code text
+     * @param       viewSize        Image size
+     * @param       frameRate       Frames per second
+     * @param       seed            Random number seed
+     * @throws      WriterException Unable to encode the QR code
+     */
+    public SyntheticFrameSource(String text, Dimension viewSize, double frameRate, long seed)
+                                        throws WriterException {
+        super(frameRate);
+        this.viewSize = new Dimension(viewSize);
+        this.random = new Random(seed);
+        for (int i=0; i<NOISE_SAMPLES; i++)
+            noiseSamples[i] = (float)random.nextGaussian();
+        Map<EncodeHintType, Object> hints = new HashMap<>();
+        hints.put(EncodeHintType.MARGIN, 4);
+        BitMatrix matrix = new QRCodeWriter().encode(text, BarcodeFormat.QR_CODE, 0, 0, hints);
+        codeImage = new BufferedImage(matrix.getWidth(), matrix.getHeight(), BufferedImage.TYPE_INT_RGB);
+        for (int y=0; y<matrix.getHeight(); y++) {
+            for (int x=0; x<matrix.getWidth(); x++)
+                codeImage.setRGB(x, y, matrix.get(x, y) ? 0x202020 : 0xf0f0f0);
+        }
+    }
+
+    /**
+     * Set the noise level
+     *
+     * @param       noise           Noise standard deviation (luminance levels)
+     */
+    public void setNoise(double noise) {
+        this.noise = Math.max(0.0, noise);
+    }
+
+    /**
+     * Set the blur radius
+     *
+     * @param       blur            Blur radius (pixels)
+     */
+    public void setBlur(int blur) {
+        this.blur = Math.max(0, blur);
+    }
+
+    /**
+     * Set the maximum rotation
+     *
+     * @param       rotation        Maximum rotation (degrees)
+     */
+    public void setRotation(double rotation) {
+        this.rotation = Math.abs(rotation);
+    }
+
+    /**
+     * Set the probability that an image contains the QR code.  Images without
+     * a QR code are used to measure the cost of a failed scan.
+     *
+     * @param       presence        Probability between 0 and 1
+     */
+    public void setPresence(double presence) {
+        this.presence = Math.min(1.0, Math.max(0.0, presence));
+    }
+
+    /**
+     * Return the source name
+     *
+     * @return                      Source name
+     */
+    @Override
+    public String getName() {
+        return "Synthetic";
+    }
+
+    /**
+     * Return the image size
+     *
+     * @return                      Image size
+     */
+    @Override
+    public Dimension getViewSize() {
+        return viewSize;
+    }
+
+    /**
+     * Return the next image
+     *
+     * @return                      Rendered image
+     */
+    @Override
+    protected BufferedImage nextImage() {
+        return renderImage();
+    }
+
+    /**
+     * Render the next image
+     *
+     * @return                      Rendered image
+     */
+    public synchronized BufferedImage renderImage() {
+        int width = viewSize.width;
+        int height = viewSize.height;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        int background = 120 + random.nextInt(80);
+        g.setColor(new Color(background, background, background));
+        g.fillRect(0, 0, width, height);
+        if (random.nextDouble() < presence) {
+            //
+            // Draw the QR code somewhere within the image, making sure that the
+            // rotated code still fits
+            //
+            int minDimension = Math.min(width, height);
+            int codeSize = (int)(minDimension * (0.35 + 0.35*random.nextDouble()));
+            double angle = Math.toRadians((2.0*random.nextDouble() - 1.0) * rotation);
+            int extent = (int)Math.ceil(codeSize * (Math.abs(Math.cos(angle)) + Math.abs(Math.sin(angle))));
+            double centerX = extent/2 + random.nextInt(Math.max(1, width - extent));
+            double centerY = extent/2 + random.nextInt(Math.max(1, height - extent));
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            g.rotate(angle, centerX, centerY);
+            g.drawImage(codeImage, (int)centerX - codeSize/2, (int)centerY - codeSize/2,
+                        codeSize, codeSize, null);
+        }
+        g.dispose();
+        byte[] data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        if (blur > 0)
+            blurImage(data, width, height);
+        if (noise > 0)
+            addNoise(data);
+        return image;
+    }
+
+    /**
+     * Apply a box blur.  All of the color components are the same, so we blur the
+     * first component and then copy it to the others.
+     *
+     * @param       data            Image data (3 bytes per pixel)
+     * @param       width           Image width
+     * @param       height          Image height
+     */
+    private void blurImage(byte[] data, int width, int height) {
+        int[] grey = new int[width*height];
+        int[] temp = new int[width*height];
+        for (int i=0; i<grey.length; i++)
+            grey[i] = data[i*3] & 0xff;
+        int window = 2*blur + 1;
+        //
+        // Horizontal pass
+        //
+        for (int y=0; y<height; y++) {
+            int row = y*width;
+            for (int x=0; x<width; x++) {
+                int sum = 0;
+                for (int k=-blur; k<=blur; k++)
+                    sum += grey[row + Math.min(width-1, Math.max(0, x+k))];
+                temp[row+x] = sum / window;
+            }
+        }
+        //
+        // Vertical pass
+        //
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                int sum = 0;
+                for (int k=-blur; k<=blur; k++)
+                    sum += temp[Math.min(height-1, Math.max(0, y+k))*width + x];
+                int value = sum / window;
+                int offset = (y*width + x)*3;
+                data[offset] = (byte)value;
+                data[offset+1] = (byte)value;
+                data[offset+2] = (byte)value;
+            }
+        }
+    }
+
+    /**
+     * Add gaussian noise to each pixel.  The noise is taken from the precomputed
+     * samples starting at a random position.
+     *
+     * @param       data            Image data (3 bytes per pixel)
+     */
+    private void addNoise(byte[] data) {
+        int index = random.nextInt(NOISE_SAMPLES);
+        for (int offset=0; offset<data.length; offset+=3) {
+            index = (index + 7) & (NOISE_SAMPLES - 1);
+            int value = (data[offset] & 0xff) + Math.round(noiseSamples[index] * (float)noise);
+            value = Math.min(255, Math.max(0, value));
+            data[offset] = (byte)value;
+            data[offset+1] = (byte)value;
+            data[offset+2] = (byte)value;
+        }
+    }
+}
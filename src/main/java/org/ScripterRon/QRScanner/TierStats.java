@@ -0,0 +1,231 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * TierStats holds the decode tier settings and statistics and decides which tier
+ * is tried first.  It is shared by all of the decode workers.
+ *
+ * The base tier (the region, pyramid and full frame scan using the hybrid binarizer)
+ * is used for every frame.  When it fails, the more expensive tiers are tried on
+ * one out of every 'sampleInterval' frames.  A tier that finds a QR code becomes the
+ * preferred tier and is tried first on the following frames, since the same code is
+ * probably still in front of the camera.  The preferred tier is dropped after it fails
+ * on 'missLimit' consecutive frames or when the base tier finds a code on its own.
+ */
+public class TierStats {
+
+    /**
+     * Decode tiers in order of increasing cost
+     */
+    public enum Tier {
+
+        /** Hybrid binarizer (region, pyramid and full frame) */
+        BASE("base"),
+
+        /** Global histogram binarizer */
+        GLOBAL("global"),
+
+        /** Hybrid binarizer with the TRY_HARDER hint */
+        TRY_HARDER("tryharder"),
+
+        /** Inverted image (light modules on a dark background) */
+        INVERTED("inverted"),
+
+        /** Image rotated 90 degrees */
+        ROTATED("rotated");
+
+        /** Tier name */
+        private final String name;
+
+        /**
+         * Create the tier
+         *
+         * @param       name        Tier name
+         */
+        Tier(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Return the tier name
+         *
+         * @return                  Tier name
+         */
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /** Decode tiers */
+    private static final Tier[] tiers = Tier.values();
+
+    /** Escalate on one out of this many failed frames */
+    private final int sampleInterval;
+
+    /** Consecutive misses before the preferred tier is dropped */
+    private final int missLimit;
+
+    /** Preferred tier */
+    private final AtomicReference<Tier> preferredTier = new AtomicReference<>(Tier.BASE);
+
+    /** Consecutive preferred tier misses */
+    private final AtomicInteger preferredMisses = new AtomicInteger();
+
+    /** Failed frame counter used for sampling */
+    private final AtomicLong failedFrames = new AtomicLong();
+
+    /** Decode attempts for each tier */
+    private final AtomicLongArray attempts = new AtomicLongArray(tiers.length);
+
+    /** Decode hits for each tier */
+    private final AtomicLongArray hits = new AtomicLongArray(tiers.length);
+
+    /** Decode time for each tier (nanoseconds) */
+    private final AtomicLongArray times = new AtomicLongArray(tiers.length);
+
+    /**
+     * Create the tier statistics
+     *
+     * @param       sampleInterval  Escalate on one out of this many failed frames
+     * @param       missLimit       Consecutive misses before the preferred tier is dropped
+     */
+    public TierStats(int sampleInterval, int missLimit) {
+        this.sampleInterval = Math.max(1, sampleInterval);
+        this.missLimit = Math.max(1, missLimit);
+    }
+
+    /**
+     * Create the tier statistics using the application properties.  Escalation is
+     * enabled by 'scan.tiers' (default true), is attempted on one out of
+     * 'scan.tiers.sample' failed frames (default 4) and the preferred tier is dropped
+     * after 'scan.tiers.misses' consecutive misses (default 30).
+     *
+     * @return                      Tier statistics or null if escalation is disabled
+     */
+    public static TierStats fromProperties() {
+        if (!Boolean.parseBoolean(Main.properties.getProperty("scan.tiers", "true")))
+            return null;
+        return new TierStats(Main.getIntegerProperty("scan.tiers.sample", 4),
+                             Main.getIntegerProperty("scan.tiers.misses", 30));
+    }
+
+    /**
+     * Create the tier statistics for decoding independent images.  Each image is seen
+     * only once, so every failed image is escalated and the preferred tier is dropped
+     * after a single miss.  Escalation is enabled by 'scan.tiers' (default true).
+     *
+     * @return                      Tier statistics or null if escalation is disabled
+     */
+    public static TierStats forImages() {
+        if (!Boolean.parseBoolean(Main.properties.getProperty("scan.tiers", "true")))
+            return null;
+        return new TierStats(1, 1);
+    }
+
+    /**
+     * Return the decode tiers
+     *
+     * @return                      Tiers in order of increasing cost
+     */
+    public static Tier[] getTiers() {
+        return tiers;
+    }
+
+    /**
+     * Return the preferred tier
+     *
+     * @return                      Tier to try first
+     */
+    public Tier getPreferredTier() {
+        return preferredTier.get();
+    }
+
+    /**
+     * Check if the escalation tiers should be tried for a frame that the base tier
+     * did not decode
+     *
+     * @return                      TRUE if the frame is sampled
+     */
+    public boolean escalate() {
+        return failedFrames.incrementAndGet() % sampleInterval == 0;
+    }
+
+    /**
+     * Record a decode attempt
+     *
+     * @param       tier            Decode tier
+     * @param       hit             TRUE if a QR code was decoded
+     * @param       elapsedTime     Decode time (nanoseconds)
+     */
+    public void record(Tier tier, boolean hit, long elapsedTime) {
+        int index = tier.ordinal();
+        attempts.incrementAndGet(index);
+        times.addAndGet(index, elapsedTime);
+        if (hit)
+            hits.incrementAndGet(index);
+    }
+
+    /**
+     * Record the result of trying the preferred tier first
+     *
+     * @param       tier            Preferred tier
+     * @param       hit             TRUE if a QR code was decoded
+     */
+    public void preferredResult(Tier tier, boolean hit) {
+        if (hit) {
+            preferredMisses.set(0);
+        } else if (preferredMisses.incrementAndGet() >= missLimit) {
+            preferredTier.compareAndSet(tier, Tier.BASE);
+        }
+    }
+
+    /**
+     * Record a frame decoded by a tier other than the preferred tier.  The tier
+     * becomes the preferred tier.
+     *
+     * @param       tier            Decode tier
+     */
+    public void decoded(Tier tier) {
+        preferredMisses.set(0);
+        preferredTier.set(tier);
+    }
+
+    /**
+     * Return the statistics for each tier
+     *
+     * @return                      Statistics string
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(256);
+        for (Tier tier : tiers) {
+            int index = tier.ordinal();
+            long count = attempts.get(index);
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(String.format("%s: %d/%d (%.3f ms)", tier, hits.get(index), count,
+                                    count != 0 ? (double)times.get(index) / (double)count / 1.0e6 : 0.0));
+        }
+        return sb.toString();
+    }
+}
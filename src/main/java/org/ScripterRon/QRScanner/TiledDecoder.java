@@ -0,0 +1,383 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TiledDecoder finds all of the QR codes in a large image.
+ *
+ * A single scan of a 12 megapixel image usually finds just one of the codes, and
+ * it is slow since the whole image is binarized and searched by one thread.  The
+ * tiled decoder divides the image into overlapping square tiles ('scan.tile.size',
+ * default 1024 pixels, overlapping by 'scan.tile.overlap', default 256 pixels) and
+ * decodes all of the QR codes in each tile in parallel on a fork-join pool.  The
+ * overlap must be at least as large as the biggest QR code in the image so that
+ * every code lies completely within at least one tile.
+ *
+ * A code that lies within more than one tile is found more than once, so the
+ * tile results are merged by position: results with the same text whose centers
+ * are less than half a code apart are the same code.  The same text at different
+ * positions (two copies of a label on a pallet) is reported for each position.
+ * The merged results are returned in reading order (top to bottom, left to right).
+ *
+ * The tile decode times are accumulated for all of the images and are returned
+ * by toString().  The processor time used by the tile tasks is returned by
+ * getCpuTime() since it is not charged to the thread that decodes the image.  Each pool thread has its own frame decoder since the ZXing
+ * readers are not thread-safe.
+ */
+public class TiledDecoder {
+
+    /** Fork-join pool used when the caller is not running in a fork-join pool */
+    private final ForkJoinPool pool;
+
+    /** Tile size */
+    private final int tileSize;
+
+    /** Tile overlap */
+    private final int overlap;
+
+    /** Frame decoder for each pool thread */
+    private final ThreadLocal<FrameDecoder> threadDecoder = ThreadLocal.withInitial(() -> new FrameDecoder());
+
+    /** Number of images decoded */
+    private final LongAdder imageCount = new LongAdder();
+
+    /** Number of tiles decoded */
+    private final LongAdder tileCount = new LongAdder();
+
+    /** Number of tiles containing a QR code */
+    private final LongAdder hitCount = new LongAdder();
+
+    /** Number of duplicate results removed */
+    private final LongAdder duplicateCount = new LongAdder();
+
+    /** Total tile decode time (nanoseconds) */
+    private final LongAdder tileTime = new LongAdder();
+
+    /** Maximum tile decode time (nanoseconds) */
+    private final AtomicLong maxTileTime = new AtomicLong();
+
+    /** Total tile processor time (nanoseconds) */
+    private final LongAdder tileCpuTime = new LongAdder();
+
+    /**
+     * Create a tiled decoder using the tile size and overlap application properties
+     *
+     * @param       pool            Fork-join pool
+     * @return                      Tiled decoder
+     */
+    public static TiledDecoder fromProperties(ForkJoinPool pool) {
+        return new TiledDecoder(pool, Main.getIntegerProperty("scan.tile.size", 1024),
+                                Main.getIntegerProperty("scan.tile.overlap", 256));
+    }
+
+    /**
+     * Create a tiled decoder
+     *
+     * @param       pool            Fork-join pool
+     * @param       tileSize        Tile width and height
+     * @param       overlap         Overlap between adjacent tiles
+     * @throws      IllegalArgumentException    The overlap is not smaller than the tile size
+     */
+    public TiledDecoder(ForkJoinPool pool, int tileSize, int overlap) {
+        if (tileSize < 64 || overlap < 0 || overlap >= tileSize)
+            throw new IllegalArgumentException(String.format("Invalid tile size %d or overlap %d",
+                                                             tileSize, overlap));
+        this.pool = pool;
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+    }
+
+    /**
+     * Return the tile size
+     *
+     * @return                      Tile width and height
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Return the overlap between adjacent tiles
+     *
+     * @return                      Overlap
+     */
+    public int getOverlap() {
+        return overlap;
+    }
+
+    /**
+     * Return the processor time used to decode tiles
+     *
+     * @return                      Processor time (nanoseconds)
+     */
+    public long getCpuTime() {
+        return tileCpuTime.sum();
+    }
+
+    /**
+     * Check if an image is divided into more than one tile
+     *
+     * @param       width           Image width
+     * @param       height          Image height
+     * @return                      TRUE if the image is larger than a tile
+     */
+    public boolean isTiled(int width, int height) {
+        return (width > tileSize || height > tileSize);
+    }
+
+    /**
+     * Return the tile start positions along one side of the image.  The last tile
+     * is aligned with the edge of the image.
+     *
+     * @param       length          Image width or height
+     * @return                      Tile start positions
+     */
+    private int[] getTilePositions(int length) {
+        if (length <= tileSize)
+            return new int[] {0};
+        int step = tileSize - overlap;
+        int count = (length - tileSize + step - 1) / step + 1;
+        int[] positions = new int[count];
+        for (int i=0; i<count; i++)
+            positions[i] = Math.min(i * step, length - tileSize);
+        return positions;
+    }
+
+    /**
+     * Decode all of the QR codes in a frame
+     *
+     * @param       frame           Frame to be scanned
+     * @return                      Decode results or null if no QR code was found
+     */
+    public Result[] decode(Frame frame) {
+        return decode(frame.getLuminanceSource());
+    }
+
+    /**
+     * Decode all of the QR codes in an image.  The tiles are decoded in the current
+     * fork-join pool if this is a fork-join task, otherwise in the decoder pool.
+     *
+     * @param       source          Image luminance source
+     * @return                      Decode results or null if no QR code was found
+     */
+    public Result[] decode(LuminanceSource source) {
+        int[] columns = getTilePositions(source.getWidth());
+        int[] rows = getTilePositions(source.getHeight());
+        List<TileTask> tasks = new ArrayList<>(columns.length * rows.length);
+        for (int top : rows) {
+            for (int left : columns) {
+                tasks.add(new TileTask(source, left, top, Math.min(tileSize, source.getWidth()),
+                                       Math.min(tileSize, source.getHeight())));
+            }
+        }
+        if (ForkJoinTask.inForkJoinPool())
+            ForkJoinTask.invokeAll(tasks);
+        else
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        //
+        // Merge the tile results
+        //
+        List<Result> results = new ArrayList<>();
+        for (TileTask task : tasks) {
+            if (task.results == null)
+                continue;
+            for (Result result : task.results) {
+                if (isDuplicate(result, results))
+                    duplicateCount.increment();
+                else
+                    results.add(result);
+            }
+        }
+        imageCount.increment();
+        if (log.isDebugEnabled()) {
+            StringBuilder sb = new StringBuilder(tasks.size() * 24);
+            for (TileTask task : tasks)
+                sb.append(String.format(" (%d,%d) %.1f ms/%d", task.left, task.top,
+                                        (double)task.elapsedTime / 1.0e6,
+                                        task.results != null ? task.results.length : 0));
+            log.debug(String.format("%d tiles, %d codes:%s", tasks.size(), results.size(), sb.toString()));
+        }
+        if (results.isEmpty())
+            return null;
+        results.sort(Comparator.comparingDouble((Result result) -> getCenter(result)[1])
+                               .thenComparingDouble((result) -> getCenter(result)[0]));
+        return results.toArray(new Result[results.size()]);
+    }
+
+    /**
+     * Check if a result is a duplicate of a result found in another tile
+     *
+     * @param       result          Tile result
+     * @param       results         Merged results
+     * @return                      TRUE if the result is a duplicate
+     */
+    private static boolean isDuplicate(Result result, List<Result> results) {
+        double[] center = getCenter(result);
+        double size = getSize(result);
+        for (Result merged : results) {
+            if (!merged.getText().equals(result.getText()))
+                continue;
+            double[] mergedCenter = getCenter(merged);
+            double limit = Math.max(size, getSize(merged)) / 2.0;
+            if (Math.hypot(center[0] - mergedCenter[0], center[1] - mergedCenter[1]) < limit)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return the center of a QR code.  This is the average of the finder pattern
+     * points (the first three result points).
+     *
+     * @param       result          Decode result
+     * @return                      Center coordinates (x, y)
+     */
+    private static double[] getCenter(Result result) {
+        ResultPoint[] points = result.getResultPoints();
+        double x = 0, y = 0;
+        int count = 0;
+        if (points != null) {
+            for (int i=0; i<points.length && i<3; i++) {
+                if (points[i] != null) {
+                    x += points[i].getX();
+                    y += points[i].getY();
+                    count++;
+                }
+            }
+        }
+        return (count != 0 ? new double[] {x / count, y / count} : new double[] {0, 0});
+    }
+
+    /**
+     * Return the approximate size of a QR code.  This is the largest distance between
+     * two finder pattern points.
+     *
+     * @param       result          Decode result
+     * @return                      Code size in pixels
+     */
+    private static double getSize(Result result) {
+        ResultPoint[] points = result.getResultPoints();
+        double size = 0;
+        if (points != null) {
+            int count = Math.min(points.length, 3);
+            for (int i=0; i<count; i++) {
+                for (int j=i+1; j<count; j++) {
+                    if (points[i] != null && points[j] != null)
+                        size = Math.max(size, ResultPoint.distance(points[i], points[j]));
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Return the tile statistics
+     *
+     * @return                      Statistics string
+     */
+    @Override
+    public String toString() {
+        long tiles = tileCount.sum();
+        return String.format("%d images, %d tiles of %d pixels (%d overlap), %d tiles with codes, "
+                             + "%d duplicates, tile time %.3f ms average, %.3f ms maximum",
+                             imageCount.sum(), tiles, tileSize, overlap, hitCount.sum(), duplicateCount.sum(),
+                             tiles != 0 ? (double)tileTime.sum() / (double)tiles / 1.0e6 : 0.0,
+                             (double)maxTileTime.get() / 1.0e6);
+    }
+
+    /**
+     * Decode one tile
+     */
+    private class TileTask extends RecursiveAction {
+
+        /** Image luminance source */
+        private final LuminanceSource source;
+
+        /** Tile left edge */
+        private final int left;
+
+        /** Tile top edge */
+        private final int top;
+
+        /** Tile width */
+        private final int width;
+
+        /** Tile height */
+        private final int height;
+
+        /** Tile results or null */
+        private Result[] results;
+
+        /** Tile decode time (nanoseconds) */
+        private long elapsedTime;
+
+        /**
+         * Create the tile task
+         *
+         * @param       source          Image luminance source
+         * @param       left            Tile left edge
+         * @param       top             Tile top edge
+         * @param       width           Tile width
+         * @param       height          Tile height
+         */
+        TileTask(LuminanceSource source, int left, int top, int width, int height) {
+            this.source = source;
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Decode the tile
+         */
+        @Override
+        protected void compute() {
+            long startCpuTime = DecodePipeline.getCpuTime();
+            long startTime = System.nanoTime();
+            LuminanceSource tile = (width == source.getWidth() && height == source.getHeight() ?
+                                    source : source.crop(left, top, width, height));
+            results = threadDecoder.get().decodeMultiple(tile, left, top);
+            elapsedTime = System.nanoTime() - startTime;
+            if (startCpuTime >= 0)
+                tileCpuTime.add(DecodePipeline.getCpuTime() - startCpuTime);
+            tileCount.increment();
+            tileTime.add(elapsedTime);
+            maxTileTime.accumulateAndGet(elapsedTime, Math::max);
+            if (results != null)
+                hitCount.increment();
+        }
+    }
+}
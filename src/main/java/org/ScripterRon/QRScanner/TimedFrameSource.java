@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TimedFrameSource is the base class for frame sources that generate images
+ * at a fixed rate on their own capture thread.
+ */
+public abstract class TimedFrameSource implements FrameSource {
+
+    /** Frame rate */
+    private final double frameRate;
+
+    /** Capture thread */
+    private ScheduledExecutorService executor;
+
+    /** Frame listener */
+    private volatile FrameListener listener;
+
+    /**
+     * Create the frame source
+     *
+     * @param       frameRate       Frames per second
+     */
+    protected TimedFrameSource(double frameRate) {
+        if (frameRate <= 0)
+            throw new IllegalArgumentException("Frame rate must be greater than 0");
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * Return the frame rate
+     *
+     * @return                      Frames per second
+     */
+    public double getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Return the next image
+     *
+     * @return                      Image or null if there are no more images
+     * @throws      IOException     Unable to obtain the image
+     */
+    protected abstract BufferedImage nextImage() throws IOException;
+
+    /**
+     * Start capturing images
+     *
+     * @param       listener        Frame listener
+     * @throws      IOException     Unable to start the source
+     */
+    @Override
+    public synchronized void start(FrameListener listener) throws IOException {
+        if (executor != null)
+            throw new IllegalStateException("Frame source is already started");
+        this.listener = listener;
+        executor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, getName() + " Capture");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = (long)(1.0e9 / frameRate);
+        executor.scheduleAtFixedRate(() -> captureImage(), 0, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stop capturing images
+     */
+    @Override
+    public synchronized void stop() {
+        listener = null;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Capture the next image and pass it to the listener
+     */
+    private void captureImage() {
+        FrameListener frameListener = listener;
+        if (frameListener == null)
+            return;
+        try {
+            BufferedImage image = nextImage();
+            if (image == null) {
+                log.info(String.format("Frame source %s has no more images", getName()));
+                stop();
+            } else {
+                frameListener.imageCaptured(this, image, System.nanoTime());
+            }
+        } catch (Exception exc) {
+            log.error(String.format("Unable to capture image from %s", getName()), exc);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+import static org.ScripterRon.QRScanner.Main.log;
+
+import com.github.sarxos.webcam.Webcam;
+import com.github.sarxos.webcam.WebcamEvent;
+import com.github.sarxos.webcam.WebcamListener;
+import com.github.sarxos.webcam.WebcamResolution;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * WebcamFrameSource captures images from a web camera.  The webcam is opened in
+ * asynchronous mode so images are delivered on the webcam update thread.
+ *
+ * The luminance values are taken from the image delivered with each webcam event,
+ * so the decoded frame is the frame shown in the preview and the camera is read
+ * only once for each image.
+ *
+ * The capture resolution is selected by a resolution controller unless
+ * 'scan.resolution.auto' is false, in which case VGA is used.  The webcam is
+ * reopened on a background thread when the controller changes the resolution.
+ *
+ * The webcam is closed when capture is stopped unless it is being kept open by
+ * the camera manager, in which case it remains open until close() is called.
+ */
+public class WebcamFrameSource implements FrameSource, WebcamListener {
+
+    /** Webcam */
+    private final Webcam webcam;
+
+    /** Frame listener */
+    private volatile FrameListener listener;
+
+    /** Resolution controller or null */
+    private final ResolutionController resolutionController;
+
+    /** Executor used to change the resolution */
+    private ExecutorService resolutionExecutor;
+
+    /** Keep the webcam open when capture is stopped */
+    private volatile boolean keepOpen;
+
+    /**
+     * Create the webcam frame source
+     *
+     * @param       webcam          Web camera
+     */
+    public WebcamFrameSource(Webcam webcam) {
+        this.webcam = webcam;
+        Dimension[] viewSizes = webcam.getViewSizes();
+        if (Boolean.parseBoolean(Main.properties.getProperty("scan.resolution.auto", "true")) &&
+                                        viewSizes != null && viewSizes.length != 0)
+            resolutionController = new ResolutionController(webcam.getName(), viewSizes,
+                                                             (size) -> requestViewSize(size));
+        else
+            resolutionController = null;
+    }
+
+    /**
+     * Return the resolution controller
+     *
+     * @return                      Resolution controller or null
+     */
+    public ResolutionController getResolutionController() {
+        return resolutionController;
+    }
+
+    /**
+     * Return the web camera
+     *
+     * @return                      Web camera
+     */
+    public Webcam getWebcam() {
+        return webcam;
+    }
+
+    /**
+     * Keep the webcam open when capture is stopped
+     *
+     * @param       keepOpen        TRUE to keep the webcam open
+     */
+    public void setKeepOpen(boolean keepOpen) {
+        this.keepOpen = keepOpen;
+    }
+
+    /**
+     * Check if the webcam is kept open when capture is stopped
+     *
+     * @return                      TRUE if the webcam is kept open
+     */
+    public boolean isKeepOpen() {
+        return keepOpen;
+    }
+
+    /**
+     * Check if images are being captured
+     *
+     * @return                      TRUE if capture has been started
+     */
+    public boolean isCapturing() {
+        return (listener != null);
+    }
+
+    /**
+     * Check if the webcam is open
+     *
+     * @return                      TRUE if the webcam is open
+     */
+    public boolean isOpen() {
+        return webcam.isOpen();
+    }
+
+    /**
+     * Return the source name
+     *
+     * @return                      Webcam name
+     */
+    @Override
+    public String getName() {
+        return webcam.getName();
+    }
+
+    /**
+     * Return the image size
+     *
+     * @return                      Image size
+     */
+    @Override
+    public Dimension getViewSize() {
+        return webcam.getViewSize();
+    }
+
+    /**
+     * Start capturing images
+     *
+     * @param       listener        Frame listener
+     * @throws      IOException     Unable to open the webcam
+     */
+    @Override
+    public synchronized void start(FrameListener listener) throws IOException {
+        open();
+        this.listener = listener;
+        if (resolutionController != null && resolutionExecutor == null)
+            resolutionExecutor = Executors.newSingleThreadExecutor((runnable) -> {
+                Thread thread = new Thread(runnable, "Webcam Resolution");
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Stop capturing images.  The webcam is closed unless it is being kept open.
+     */
+    @Override
+    public synchronized void stop() {
+        listener = null;
+        if (!keepOpen)
+            close();
+        if (resolutionExecutor != null) {
+            resolutionExecutor.shutdown();
+            resolutionExecutor = null;
+        }
+    }
+
+    /**
+     * Open the webcam without capturing images.  Nothing is done if the webcam
+     * is already open.
+     *
+     * @throws      IOException     Unable to open the webcam
+     */
+    public synchronized void open() throws IOException {
+        if (webcam.isOpen())
+            return;
+        Dimension size = (resolutionController != null ? resolutionController.getViewSize() : null);
+        webcam.setViewSize(size != null ? size : WebcamResolution.VGA.getSize());
+        webcam.addWebcamListener(this);
+        if (!webcam.open(true)) {
+            webcam.removeWebcamListener(this);
+            throw new IOException("Unable to open webcam " + webcam.getName());
+        }
+    }
+
+    /**
+     * Close the webcam
+     */
+    public synchronized void close() {
+        webcam.removeWebcamListener(this);
+        webcam.close();
+    }
+
+    /**
+     * Change the resolution on the resolution thread.  The change is cancelled if
+     * capture has been stopped.
+     *
+     * @param       size            New view size
+     */
+    private synchronized void requestViewSize(Dimension size) {
+        try {
+            if (resolutionExecutor != null) {
+                resolutionExecutor.execute(() -> changeViewSize(size));
+                return;
+            }
+        } catch (RejectedExecutionException exc) {
+            // Capture has been stopped
+        }
+        resolutionController.changeFailed();
+    }
+
+    /**
+     * Reopen the webcam using a new view size.  The webcam is reopened using the
+     * previous view size if it cannot be opened using the new size.
+     *
+     * @param       size            New view size
+     */
+    private void changeViewSize(Dimension size) {
+        FrameListener frameListener;
+        Dimension newSize = size;
+        synchronized(this) {
+            frameListener = listener;
+            if (frameListener == null) {
+                resolutionController.changeFailed();
+                return;
+            }
+            Dimension oldSize = webcam.getViewSize();
+            webcam.close();
+            webcam.setViewSize(size);
+            if (webcam.open(true)) {
+                resolutionController.changeCompleted();
+            } else {
+                log.error(String.format("Unable to reopen webcam %s at %dx%d",
+                                        webcam.getName(), size.width, size.height));
+                newSize = resolutionController.changeFailed();
+                webcam.close();
+                webcam.setViewSize(newSize);
+                if (!webcam.open(true)) {
+                    log.error(String.format("Unable to reopen webcam %s at %dx%d",
+                                            webcam.getName(), newSize.width, newSize.height));
+                    return;
+                }
+            }
+            if (newSize.equals(oldSize))
+                return;
+        }
+        frameListener.viewSizeChanged(this, newSize);
+    }
+
+    /**
+     * Webcam opened (WebcamListener interface)
+     * 
+     * @param   we              Webcam event
+     */
+    @Override
+    public void webcamOpen(WebcamEvent we) {
+        log.info(String.format("Webcam %s opened: %dx%d", webcam.getName(),
+                               webcam.getViewSize().width, webcam.getViewSize().height));
+    }
+    
+    /**
+     * Webcam closed (WebcamListener interface)
+     * 
+     * @param   we              Webcam event
+     */
+    @Override
+    public void webcamClosed(WebcamEvent we) {
+        // Ignore event
+    }
+    
+    /**
+     * Webcam disposed (WebcamListener interface)
+     * 
+     * @param   we              Webcam event
+     */
+    @Override
+    public void webcamDisposed(WebcamEvent we) {
+        // Ignore event
+    }
+    
+    /**
+     * Webcam image obtained (WebcamListener interface)
+     * 
+     * @param   we              Webcam event
+     */
+    @Override
+    public void webcamImageObtained(WebcamEvent we) {
+        FrameListener frameListener = listener;
+        BufferedImage image = we.getImage();
+        if (frameListener != null && image != null)
+            frameListener.imageCaptured(this, image, System.nanoTime());
+    }
+}
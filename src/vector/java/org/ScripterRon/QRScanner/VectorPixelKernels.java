@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.QRScanner;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * VectorPixelKernels uses the JDK Vector API to process a full vector of pixels
+ * at a time.  The pixels at the end of a row that do not fill a vector are
+ * processed by the scalar kernels.  The results are the same as the scalar
+ * kernels: the luminance weights, rounding and thresholds are computed using
+ * the same integer arithmetic.
+ *
+ * This class is compiled only by the 'vector' build profile and requires the
+ * 'jdk.incubator.vector' module at run time.  It is loaded by PixelKernels.
+ */
+public class VectorPixelKernels extends PixelKernels {
+
+    /** Byte species (the preferred vector size) */
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+
+    /** Short species with the same vector size */
+    private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+
+    /** Int species with the same vector size */
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    /** Byte species with one lane for each int lane (at least 64 bits, see luma()) */
+    private static final VectorSpecies<Byte> INT_BYTES = narrowSpecies(byte.class, INTS.vectorBitSize() / 4);
+
+    /** Byte species with one lane for each short lane */
+    private static final VectorSpecies<Byte> SHORT_BYTES = narrowSpecies(byte.class, SHORTS.vectorBitSize() / 2);
+
+    /** Int species with one lane for each 8 byte lanes (one lane per block) */
+    private static final VectorSpecies<Integer> BLOCK_INTS = narrowSpecies(int.class, BYTES.vectorBitSize() / 2);
+
+    /** Shuffle that spreads 3-byte pixels into 4-byte lanes (one pixel per int lane) */
+    private static final VectorShuffle<Byte> SPREAD_3 =
+            VectorShuffle.fromOp(BYTES, i -> (i / 4) * 3 + Math.min(i % 4, 2));
+
+    /**
+     * Return a species for a narrower vector.  The smallest vector shape is 64 bits,
+     * so a 128-bit preferred shape (SSE or NEON) gets a 64-bit species with more lanes
+     * than requested.  The kernels allow for this and the constructor rejects shapes
+     * that are too small, so class initialization never fails.
+     *
+     * @param       elementType     Element type
+     * @param       bitSize         Requested vector size in bits
+     * @return                      Vector species
+     */
+    private static <E> VectorSpecies<E> narrowSpecies(Class<E> elementType, int bitSize) {
+        return VectorSpecies.of(elementType, VectorShape.forBitSize(Math.max(bitSize, 64)));
+    }
+
+    /**
+     * Create the vector kernels
+     *
+     * @throws      IllegalStateException   The vector size is too small
+     */
+    public VectorPixelKernels() {
+        if (BYTES.length() < 16)
+            throw new IllegalStateException("Vector size " + BYTES.vectorBitSize() + " bits is too small");
+    }
+
+    /**
+     * Return the kernels name
+     *
+     * @return                      Name
+     */
+    @Override
+    public String getName() {
+        return "vector (" + BYTES.vectorBitSize() + " bits)";
+    }
+
+    /**
+     * Convert packed RGB integer pixels (0xRRGGBB) to luminance
+     *
+     * @param       src             Pixel data
+     * @param       srcOffset       Offset of the first pixel
+     * @param       dst             Luminance data
+     * @param       dstOffset       Offset of the first luminance value
+     * @param       count           Number of pixels
+     */
+    @Override
+    public void lumaInts(int[] src, int srcOffset, byte[] dst, int dstOffset, int count) {
+        int lanes = INTS.length();
+        int i = 0;
+        for (; i<=count-INT_BYTES.length(); i+=lanes) {
+            IntVector pixel = IntVector.fromArray(INTS, src, srcOffset+i);
+            IntVector r = pixel.lanewise(VectorOperators.LSHR, 16).and(0xff);
+            IntVector g = pixel.lanewise(VectorOperators.LSHR, 8).and(0xff);
+            IntVector b = pixel.and(0xff);
+            luma(r, g, b).intoArray(dst, dstOffset+i);
+        }
+        if (i < count)
+            getScalar().lumaInts(src, srcOffset+i, dst, dstOffset+i, count-i);
+    }
+
+    /**
+     * Convert interleaved byte pixels to luminance.  Pixels with 3 or 4 bytes are
+     * loaded as whole vectors and spread to one pixel per int lane, so each color
+     * component is a byte of the little-endian int.  Other layouts use the scalar kernel.
+     *
+     * @param       src             Pixel data
+     * @param       srcOffset       Offset of the first pixel
+     * @param       pixelStride     Number of bytes per pixel
+     * @param       rOffset         Offset of the red component within a pixel
+     * @param       gOffset         Offset of the green component within a pixel
+     * @param       bOffset         Offset of the blue component within a pixel
+     * @param       dst             Luminance data
+     * @param       dstOffset       Offset of the first luminance value
+     * @param       count           Number of pixels
+     */
+    @Override
+    public void lumaBytes(byte[] src, int srcOffset, int pixelStride, int rOffset, int gOffset,
+                          int bOffset, byte[] dst, int dstOffset, int count) {
+        int lanes = INTS.length();
+        int i = 0;
+        if (pixelStride == 3 || pixelStride == 4) {
+            int rShift = rOffset * 8, gShift = gOffset * 8, bShift = bOffset * 8;
+            for (int offset=srcOffset; i<=count-INT_BYTES.length() && offset+BYTES.length()<=src.length;
+                                       i+=lanes, offset+=lanes*pixelStride) {
+                ByteVector bytes = ByteVector.fromArray(BYTES, src, offset);
+                if (pixelStride == 3)
+                    bytes = bytes.rearrange(SPREAD_3);
+                IntVector pixel = bytes.reinterpretAsInts();
+                IntVector r = pixel.lanewise(VectorOperators.LSHR, rShift).and(0xff);
+                IntVector g = pixel.lanewise(VectorOperators.LSHR, gShift).and(0xff);
+                IntVector b = pixel.lanewise(VectorOperators.LSHR, bShift).and(0xff);
+                luma(r, g, b).intoArray(dst, dstOffset+i);
+            }
+        }
+        if (i < count)
+            getScalar().lumaBytes(src, srcOffset+i*pixelStride, pixelStride, rOffset, gOffset, bOffset,
+                                  dst, dstOffset+i, count-i);
+    }
+
+    /**
+     * Compute the luminance using the Frame.luma() weights.  The result has
+     * INT_BYTES lanes, which is more than the number of int lanes for a 128-bit
+     * shape.  The extra lanes are zero and are stored past the current pixels,
+     * so the callers stop while there is room for all of the lanes and the next
+     * vector (or the scalar kernel) overwrites them.
+     *
+     * @param       r               Red components
+     * @param       g               Green components
+     * @param       b               Blue components
+     * @return                      Luminance values
+     */
+    private static ByteVector luma(IntVector r, IntVector g, IntVector b) {
+        IntVector y = r.mul(306).add(g.mul(601)).add(b.mul(117)).add(0x200).lanewise(VectorOperators.ASHR, 10);
+        return (ByteVector)y.convertShape(VectorOperators.I2B, INT_BYTES, 0);
+    }
+
+    /**
+     * Downsample two luminance rows to one row of half the width.  Adjacent bytes
+     * are summed by treating each pair as a short.
+     *
+     * @param       src             Input luminance data
+     * @param       srcOffset       Offset of the first input row
+     * @param       srcStride       Input row stride
+     * @param       dst             Output luminance data
+     * @param       dstOffset       Offset of the output row
+     * @param       count           Number of output values
+     */
+    @Override
+    public void downsample(byte[] src, int srcOffset, int srcStride, byte[] dst, int dstOffset, int count) {
+        int lanes = SHORTS.length();
+        int x = 0;
+        for (; x<=count-lanes; x+=lanes) {
+            int offset = srcOffset + 2*x;
+            ShortVector row1 = ByteVector.fromArray(BYTES, src, offset).reinterpretAsShorts();
+            ShortVector row2 = ByteVector.fromArray(BYTES, src, offset+srcStride).reinterpretAsShorts();
+            ShortVector sum = pairSum(row1).add(pairSum(row2)).add((short)2).lanewise(VectorOperators.LSHR, 2);
+            ((ByteVector)sum.convertShape(VectorOperators.S2B, SHORT_BYTES, 0)).intoArray(dst, dstOffset+x);
+        }
+        if (x < count)
+            getScalar().downsample(src, srcOffset+2*x, srcStride, dst, dstOffset+x, count-x);
+    }
+
+    /**
+     * Add the two unsigned bytes in each short
+     *
+     * @param       v               Byte pairs
+     * @return                      Pair sums
+     */
+    private static ShortVector pairSum(ShortVector v) {
+        return v.and((short)0xff).add(v.lanewise(VectorOperators.LSHR, 8));
+    }
+
+    /**
+     * Calculate the sum, minimum and maximum luminance for each block in a row of blocks.
+     * The 8 rows are combined a vector at a time and then each group of 8 lanes is
+     * combined by treating adjacent lanes as wider lanes.
+     *
+     * @param       luminances      Luminance data
+     * @param       offset          Offset of the first pixel in the block row
+     * @param       stride          Row stride
+     * @param       width           Image width (at least 8)
+     * @param       blockCount      Number of blocks
+     * @param       sums            Block sums
+     * @param       mins            Block minimum values
+     * @param       maxs            Block maximum values
+     */
+    @Override
+    public void blockStats(byte[] luminances, int offset, int stride, int width, int blockCount,
+                           int[] sums, int[] mins, int[] maxs) {
+        int lanes = BYTES.length();
+        int blocks = lanes / BLOCK_SIZE;
+        int x = 0;
+        for (; (x+blocks)*BLOCK_SIZE<=width && x+blocks<=blockCount; x+=blocks) {
+            int rowOffset = offset + x*BLOCK_SIZE;
+            ByteVector v = ByteVector.fromArray(BYTES, luminances, rowOffset);
+            ShortVector sum = pairSum(v.reinterpretAsShorts());
+            ByteVector min = v.lanewise(VectorOperators.XOR, (byte)0x80);
+            ByteVector max = min;
+            for (int yy=1; yy<BLOCK_SIZE; yy++) {
+                rowOffset += stride;
+                v = ByteVector.fromArray(BYTES, luminances, rowOffset);
+                sum = sum.add(pairSum(v.reinterpretAsShorts()));
+                ByteVector signed = v.lanewise(VectorOperators.XOR, (byte)0x80);
+                min = min.min(signed);
+                max = max.max(signed);
+            }
+            //
+            // Combine adjacent shorts, then adjacent ints, to get one long for each block
+            //
+            IntVector sum4 = sum.reinterpretAsInts();
+            sum4 = sum4.and(0xffff).add(sum4.lanewise(VectorOperators.LSHR, 16));
+            LongVector sum8 = sum4.reinterpretAsLongs();
+            sum8 = sum8.and(0xffffffffL).add(sum8.lanewise(VectorOperators.LSHR, 32));
+            ((IntVector)sum8.convertShape(VectorOperators.L2I, BLOCK_INTS, 0)).intoArray(sums, x);
+            toBlocks(min.lanewise(VectorOperators.XOR, (byte)0x80), true).intoArray(mins, x);
+            toBlocks(max.lanewise(VectorOperators.XOR, (byte)0x80), false).intoArray(maxs, x);
+        }
+        if (x < blockCount)
+            ScalarPixelKernels.blockStats(luminances, offset, stride, width, x, blockCount, sums, mins, maxs);
+    }
+
+    /**
+     * Reduce each group of 8 unsigned bytes to its minimum or maximum
+     *
+     * @param       v               Unsigned byte values
+     * @param       minimum         TRUE for the minimum, FALSE for the maximum
+     * @return                      One int for each group of 8 bytes
+     */
+    private static IntVector toBlocks(ByteVector v, boolean minimum) {
+        VectorOperators.Binary op = (minimum ? VectorOperators.MIN : VectorOperators.MAX);
+        ShortVector s = v.reinterpretAsShorts();
+        s = s.and((short)0xff).lanewise(op, s.lanewise(VectorOperators.LSHR, 8));
+        IntVector i = s.reinterpretAsInts();
+        i = i.and(0xffff).lanewise(op, i.lanewise(VectorOperators.LSHR, 16));
+        LongVector l = i.reinterpretAsLongs();
+        l = l.and(0xffffffffL).lanewise(op, l.lanewise(VectorOperators.LSHR, 32));
+        return (IntVector)l.convertShape(VectorOperators.L2I, BLOCK_INTS, 0);
+    }
+
+    /**
+     * Set the bit for each pixel in a row that is not brighter than its threshold.
+     * The comparison mask for a vector of pixels gives the row bits directly.
+     *
+     * @param       luminances      Luminance data
+     * @param       offset          Offset of the first pixel in the row
+     * @param       thresholds      Threshold for each pixel (unsigned)
+     * @param       width           Row width
+     * @param       bits            Row bits
+     */
+    @Override
+    public void threshold(byte[] luminances, int offset, byte[] thresholds, int width, int[] bits) {
+        int lanes = BYTES.length();
+        int x = 0;
+        for (; x<=width-lanes; x+=lanes) {
+            ByteVector pixels = ByteVector.fromArray(BYTES, luminances, offset+x);
+            ByteVector limits = ByteVector.fromArray(BYTES, thresholds, x);
+            VectorMask<Byte> black = pixels.compare(VectorOperators.UNSIGNED_LE, limits);
+            long mask = black.toLong();
+            int word = x >> 5;
+            if (lanes <= 32) {
+                bits[word] |= (int)(mask << (x & 0x1f));
+            } else {
+                for (int i=0; i<lanes/32; i++, mask>>>=32)
+                    bits[word+i] |= (int)mask;
+            }
+        }
+        if (x < width)
+            ScalarPixelKernels.threshold(luminances, offset, thresholds, x, width, bits);
+    }
+}